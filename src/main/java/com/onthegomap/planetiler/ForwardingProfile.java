@@ -82,6 +82,16 @@ public abstract class ForwardingProfile implements Profile {
     }
   }
 
+  @Override
+  public boolean preprocessesUntaggedOsmNodes() {
+    for (OsmNodePreprocessor osmNodePreprocessor : osmNodePreprocessors) {
+      if (osmNodePreprocessor.preprocessesUntaggedOsmNodes()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public void preprocessOsmWay(OsmElement.Way way) {
     for (OsmWayPreprocessor osmWayPreprocessor : osmWayPreprocessors) {
@@ -125,6 +135,12 @@ public abstract class ForwardingProfile implements Profile {
     return sourceElementProcessors.containsKey(name);
   }
 
+  @Override
+  public boolean caresAboutOsmWay(SourceFeature way) {
+    // handlers can't say which ways they use, so subclasses need to override this to filter any further
+    return sourceElementProcessors.containsKey(way.getSource());
+  }
+
   @Override
   public List<VectorTile.Feature> postProcessLayerFeatures(String layer, int zoom, List<VectorTile.Feature> items)
     throws GeometryException {
@@ -191,6 +207,15 @@ public abstract class ForwardingProfile implements Profile {
      * @see Profile#preprocessOsmNode(OsmElement.Node)
      */
     void preprocessOsmNode(OsmElement.Node node);
+
+    /**
+     * Returns {@code false} if {@link #preprocessOsmNode(OsmElement.Node)} ignores nodes without any tags.
+     *
+     * @see Profile#preprocessesUntaggedOsmNodes()
+     */
+    default boolean preprocessesUntaggedOsmNodes() {
+      return true;
+    }
   }
 
 
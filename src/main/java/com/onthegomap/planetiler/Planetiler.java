@@ -6,9 +6,13 @@ import com.onthegomap.planetiler.collection.LongLongMultimap;
 import com.onthegomap.planetiler.config.Arguments;
 import com.onthegomap.planetiler.config.MbtilesMetadata;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.TileCoordSet;
 import com.onthegomap.planetiler.mbtiles.MbtilesWriter;
 import com.onthegomap.planetiler.reader.NaturalEarthReader;
 import com.onthegomap.planetiler.reader.ShapefileReader;
+import com.onthegomap.planetiler.reader.osm.OsmChangeFile;
+import com.onthegomap.planetiler.reader.osm.OsmChangeTracker;
+import com.onthegomap.planetiler.reader.osm.OsmElementTileIndex;
 import com.onthegomap.planetiler.reader.osm.OsmInputFile;
 import com.onthegomap.planetiler.reader.osm.OsmNodeBoundsProvider;
 import com.onthegomap.planetiler.reader.osm.OsmReader;
@@ -66,13 +70,17 @@ public class Planetiler {
   private final Timers.Finishable overallTimer;
   private final Arguments arguments;
   private final Stats stats;
+  private final List<Path> tmpDirs;
   private final Path tmpDir;
   private final Path nodeDbPath;
   private final Path multipolygonPath;
-  private final Path featureDbPath;
+  private final List<Path> featureDbPaths;
   private final boolean downloadSources;
   private final boolean onlyDownloadSources;
   private final boolean parseNodeBounds;
+  private final Path osmChangesPath;
+  private final Path osmTileIndexPath;
+  private TileCoordSet tilesToUpdate = null;
   private Profile profile = null;
   private Function<Planetiler, Profile> profileProvider = null;
   private final PlanetilerConfig config;
@@ -98,16 +106,30 @@ public class Planetiler {
     overallTimer = stats.startStage("overall");
     LogUtil.clearStage();
     config = PlanetilerConfig.from(arguments);
-    tmpDir = arguments.file("tmpdir", "temp directory", Path.of("data", "tmp"));
+    tmpDirs = arguments.files("tmpdir",
+      "temp directory, or comma-separated list of directories on different disks to spread temporary files across",
+      List.of(Path.of("data", "tmp")));
+    tmpDir = tmpDirs.get(0);
     onlyDownloadSources = arguments.getBoolean("only_download", "download source data then exit", false);
     downloadSources = onlyDownloadSources || arguments.getBoolean("download", "download sources", false);
 
+    // with several temp directories, put node locations and multipolygon geometries on different disks by default
     nodeDbPath = arguments.file("temp_nodes", "temp node db location", tmpDir.resolve("node.db"));
-    multipolygonPath =
-      arguments.file("temp_multipolygons", "temp multipolygon db location", tmpDir.resolve("multipolygon.db"));
-    featureDbPath = arguments.file("temp_features", "temp feature db location", tmpDir.resolve("feature.db"));
+    multipolygonPath = arguments.file("temp_multipolygons", "temp multipolygon db location",
+      tmpDirs.get(1 % tmpDirs.size()).resolve("multipolygon.db"));
+    featureDbPaths = arguments.files("temp_features",
+      "temp feature db location, or comma-separated list of locations to spread temporary feature chunks across",
+      tmpDirs.stream().map(dir -> dir.resolve("feature.db")).toList());
     parseNodeBounds =
       arguments.getBoolean("osm_parse_node_bounds", "parse bounds from OSM nodes instead of header", false);
+    osmTileIndexPath = arguments.file("osm_tile_index",
+      "directory to store the tiles each OSM element touches in, required to apply osm_changes later", null);
+    osmChangesPath = arguments.file("osm_changes",
+      "OsmChange file already applied to the OSM input, only replace the tiles it touches in an existing output " +
+        "(the whole input is still read and sorted, only tile encoding and writing is limited to those tiles)", null);
+    if (osmChangesPath != null && osmTileIndexPath == null) {
+      throw new IllegalArgumentException("osm_changes requires osm_tile_index from the run that created the output");
+    }
   }
 
   /** Returns a new empty runner that will get configuration from {@code arguments}. */
@@ -169,7 +191,7 @@ public class Planetiler {
       throw new IllegalArgumentException("Currently only one OSM input file is supported");
     }
     Path path = getPath(name, "OSM input file", defaultPath, defaultUrl);
-    var thisInputFile = new OsmInputFile(path, config.osmLazyReads());
+    var thisInputFile = new OsmInputFile(path, config, stats);
     osmInputFile = thisInputFile;
     // fail fast if there is some issue with madvise on this system
     if (config.nodeMapMadvise() || config.multipolygonGeometryMadvise()) {
@@ -189,8 +211,24 @@ public class Planetiler {
             config.multipolygonGeometryStorage(), multipolygonPath, config.multipolygonGeometryMadvise());
           var osmReader = new OsmReader(name, thisInputFile, nodeLocations, multipolygonGeometries, profile(), stats)
         ) {
+          OsmChangeTracker changeTracker = null;
+          if (osmTileIndexPath != null) {
+            changeTracker = new OsmChangeTracker(
+              osmChangesPath == null ? null : OsmChangeFile.read(osmChangesPath),
+              OsmElementTileIndex.create(nextOsmTileIndexPath()),
+              tilesToUpdate,
+              config.maxzoom()
+            );
+            osmReader.setChangeTracker(changeTracker);
+          }
           osmReader.pass1(config);
           osmReader.pass2(featureGroup, config);
+          if (changeTracker != null && changeTracker.isUpdate()) {
+            changeTracker.addPreviousTiles(OsmElementTileIndex.open(osmTileIndexPath));
+            LOGGER.info("{} changed OSM elements invalidated {} tiles",
+              Format.defaultInstance().integer(changeTracker.dirtyElements()),
+              Format.defaultInstance().integer(tilesToUpdate.size()));
+          }
         } finally {
           FileUtils.delete(nodeDbPath);
           FileUtils.delete(multipolygonPath);
@@ -412,9 +450,12 @@ public class Planetiler {
   }
 
   /**
-   * Sets the location of the output {@code .mbtiles} file to write rendered tiles to. Fails if the file already exists.
+   * Sets the location of the output {@code .mbtiles} or {@code .pmtiles} file to write rendered tiles to. Fails if the
+   * file already exists.
    * <p>
-   * To override the location of the file, set {@code argument=newpath.mbtiles} in the arguments.
+   * To override the location of the file, set {@code argument=newpath.mbtiles} in the arguments. The output format is
+   * chosen based on the file extension: {@code .pmtiles} files are written as a PMTiles archive, and all others as
+   * mbtiles.
    *
    * @param argument the argument key to check for an override to {@code fallback}
    * @param fallback the fallback value if {@code argument} is not set in arguments
@@ -422,13 +463,13 @@ public class Planetiler {
    * @see MbtilesWriter
    */
   public Planetiler setOutput(String argument, Path fallback) {
-    this.output = arguments.file(argument, "mbtiles output file", fallback);
+    this.output = arguments.file(argument, "mbtiles or pmtiles output file", fallback);
     return this;
   }
 
   /**
-   * Sets the location of the output {@code .mbtiles} file to write rendered tiles to. Overwrites file if it already
-   * exists.
+   * Sets the location of the output {@code .mbtiles} or {@code .pmtiles} file to write rendered tiles to. Overwrites
+   * file if it already exists.
    * <p>
    * To override the location of the file, set {@code argument=newpath.mbtiles} in the arguments.
    *
@@ -442,6 +483,10 @@ public class Planetiler {
     return setOutput(argument, fallback);
   }
 
+  private Path nextOsmTileIndexPath() {
+    return osmTileIndexPath.resolveSibling(osmTileIndexPath.getFileName() + "_next");
+  }
+
   /**
    * Reads all elements from all sourced that have been added, generates map features according to the profile, and
    * writes the rendered tiles to the output mbtiles file.
@@ -469,6 +514,21 @@ public class Planetiler {
       System.exit(0);
     } else if (onlyDownloadSources) {
       // don't check files if not generating map
+    } else if (osmChangesPath != null) {
+      if (osmInputFile == null) {
+        throw new IllegalArgumentException("osm_changes requires an OSM source");
+      }
+      if (FileUtils.hasExtension(output, "pmtiles")) {
+        throw new IllegalArgumentException("osm_changes can only update mbtiles output, not " + output);
+      }
+      if (!Files.exists(output)) {
+        throw new IllegalArgumentException("osm_changes requires an existing output to update, but " + output +
+          " does not exist");
+      }
+      if (!Files.isDirectory(osmTileIndexPath)) {
+        throw new IllegalArgumentException("osm_changes requires osm_tile_index from the run that created " + output);
+      }
+      tilesToUpdate = new TileCoordSet(config.maxzoom());
     } else if (overwrite || config.force()) {
       FileUtils.deleteFile(output);
     } else if (Files.exists(output)) {
@@ -496,9 +556,14 @@ public class Planetiler {
     }
 
     // in case any temp files are left from a previous run...
-    FileUtils.delete(tmpDir, nodeDbPath, featureDbPath, multipolygonPath);
-    Files.createDirectories(tmpDir);
-    FileUtils.createParentDirectories(nodeDbPath, featureDbPath, multipolygonPath, output);
+    FileUtils.delete(tmpDirs.toArray(Path[]::new));
+    FileUtils.delete(featureDbPaths.toArray(Path[]::new));
+    FileUtils.delete(nodeDbPath, multipolygonPath);
+    for (Path dir : tmpDirs) {
+      Files.createDirectories(dir);
+    }
+    FileUtils.createParentDirectories(featureDbPaths.toArray(Path[]::new));
+    FileUtils.createParentDirectories(nodeDbPath, multipolygonPath, output);
 
     if (!toDownload.isEmpty()) {
       download();
@@ -525,9 +590,11 @@ public class Planetiler {
       bounds.addFallbackProvider(new OsmNodeBoundsProvider(osmInputFile, config, stats));
     }
 
-    featureGroup = FeatureGroup.newDiskBackedFeatureGroup(featureDbPath, profile, config, stats);
+    featureGroup = FeatureGroup.newDiskBackedFeatureGroup(featureDbPaths, profile, config, stats);
     stats.monitorFile("nodes", nodeDbPath);
-    stats.monitorFile("features", featureDbPath);
+    for (int i = 0; i < featureDbPaths.size(); i++) {
+      stats.monitorFile(i == 0 ? "features" : "features_" + (i + 1), featureDbPaths.get(i));
+    }
     stats.monitorFile("multipolygons", multipolygonPath);
     stats.monitorFile("mbtiles", output);
 
@@ -546,7 +613,17 @@ public class Planetiler {
 
     featureGroup.prepare();
 
-    MbtilesWriter.writeOutput(featureGroup, output, mbtilesMetadata, config, stats);
+    if (tilesToUpdate != null) {
+      MbtilesWriter.updateOutput(featureGroup, output, tilesToUpdate, mbtilesMetadata, config, stats);
+    } else {
+      MbtilesWriter.writeOutput(featureGroup, output, mbtilesMetadata, config, stats);
+    }
+
+    if (osmTileIndexPath != null && Files.isDirectory(nextOsmTileIndexPath())) {
+      // only replace the index once the output that it describes has been written
+      FileUtils.delete(osmTileIndexPath);
+      FileUtils.move(nextOsmTileIndexPath(), osmTileIndexPath);
+    }
 
     overallTimer.stop();
     LOGGER.info("FINISHED!");
@@ -569,8 +646,8 @@ public class Planetiler {
     readPhase.addDisk(nodeDbPath, nodeMapSize, "temporary node location cache");
     readPhase.addDisk(multipolygonPath, multipolygonGeometrySize, "temporary multipolygon geometry cache");
     // feature db persists across read/write phase
-    readPhase.addDisk(featureDbPath, featureSize, "temporary feature storage");
-    writePhase.addDisk(featureDbPath, featureSize, "temporary feature storage");
+    readPhase.addDisk(featureDbPaths, featureSize, "temporary feature storage");
+    writePhase.addDisk(featureDbPaths, featureSize, "temporary feature storage");
     // output only needed during write phase
     writePhase.addDisk(output, outputSize, "mbtiles output");
     // if the user opts to remove an input source after reading to free up additional space for the output...
@@ -588,9 +665,9 @@ public class Planetiler {
     Format format = Format.defaultInstance();
     ResourceUsage check = new ResourceUsage("read phase");
     ResourceUsage nodeMapUsages = OsmReader.estimateNodeLocationUsage(config.nodeMapType(), config.nodeMapStorage(),
-      osmInputFile.diskUsageBytes(), tmpDir);
-    ResourceUsage multipolygonGeometryUsages =
-      OsmReader.estimateMultipolygonGeometryUsage(config.nodeMapStorage(), osmInputFile.diskUsageBytes(), tmpDir);
+      osmInputFile.diskUsageBytes(), nodeDbPath);
+    ResourceUsage multipolygonGeometryUsages = OsmReader.estimateMultipolygonGeometryUsage(config.nodeMapStorage(),
+      osmInputFile.diskUsageBytes(), multipolygonPath);
     long memoryMappedFiles = nodeMapUsages.diskUsage() + multipolygonGeometryUsages.diskUsage();
 
     check
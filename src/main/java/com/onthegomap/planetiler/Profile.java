@@ -43,6 +43,16 @@ public interface Profile {
    */
   default void preprocessOsmNode(OsmElement.Node node) {}
 
+  /**
+   * Returns {@code false} if {@link #preprocessOsmNode(OsmElement.Node)} ignores nodes without any tags, so that pass 1
+   * can store their locations without creating an {@link OsmElement.Node} for each one.
+   * <p>
+   * The default implementation returns {@code true}.
+   */
+  default boolean preprocessesUntaggedOsmNodes() {
+    return true;
+  }
+
   /**
    * Allows profile to extract any information it needs from a {@link OsmElement.Way} during the first pass through OSM
    * elements.
@@ -169,6 +179,25 @@ public interface Profile {
     return true;
   }
 
+  /**
+   * Returns {@code false} if {@link #processFeature(SourceFeature, FeatureCollector)} will never emit anything for an
+   * OSM way based on its tags, so that when {@code --nodemap-filter} is set, pass1 can skip storing locations of nodes
+   * that are only used by ways like this.
+   * <p>
+   * {@code way} has tags and knows whether it {@link SourceFeature#canBeLine()} or {@link SourceFeature#canBePolygon()}
+   * so it can be matched against a {@link com.onthegomap.planetiler.expression.MultiExpression.Index}, but it has no
+   * geometry or relation info. Node locations for ways that are members of any relation are always stored, so this
+   * does not need to account for ways that only get emitted because of the relations they are in.
+   * <p>
+   * The default implementation returns {@code true} for all ways.
+   *
+   * @param way the input OSM way, without geometry
+   * @return {@code true} to store locations of the nodes in {@code way}, {@code false} if it is safe to ignore
+   */
+  default boolean caresAboutOsmWay(SourceFeature way) {
+    return true;
+  }
+
   /**
    * Invoked once for each source after all elements for that source have been processed.
    *
@@ -26,6 +26,7 @@ import com.onthegomap.planetiler.geo.GeoUtils;
 import com.onthegomap.planetiler.geo.GeometryException;
 import com.onthegomap.planetiler.geo.GeometryType;
 import com.onthegomap.planetiler.geo.MutableCoordinateSequence;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -75,6 +76,7 @@ public class VectorTile {
   // TODO make these configurable
   private static final int EXTENT = 4096;
   private static final double SIZE = 256d;
+  private static final ThreadLocal<ProtoWriter> PROTO_WRITER = ThreadLocal.withInitial(ProtoWriter::new);
   private final Map<String, Layer> layers = new LinkedHashMap<>();
 
   private static int[] getCommands(Geometry input, int scale) {
@@ -443,9 +445,22 @@ public class VectorTile {
   /**
    * Creates a vector tile protobuf with all features in this tile and serializes it as a byte array.
    * <p>
+   * Writes the protobuf wire format directly into a buffer that is reused by each thread instead of building protobuf
+   * message objects, but the output is byte-for-byte identical to {@link #encodeWithProtobuf()}.
+   * <p>
    * Does not compress the result.
    */
   public byte[] encode() {
+    return PROTO_WRITER.get().write(layers);
+  }
+
+  /**
+   * Creates a vector tile protobuf with all features in this tile using the generated protobuf builders and serializes
+   * it as a byte array.
+   * <p>
+   * This is much slower than {@link #encode()} and only kept as a reference implementation to compare against.
+   */
+  byte[] encodeWithProtobuf() {
     VectorTileProto.Tile.Builder tile = VectorTileProto.Tile.newBuilder();
     for (Map.Entry<String, Layer> e : layers.entrySet()) {
       String layerName = e.getKey();
@@ -991,4 +1006,284 @@ public class VectorTile {
       return "Layer{" + encodedFeatures.size() + "}";
     }
   }
+
+  /**
+   * Serializes layers to the vector tile protobuf wire format without building intermediate protobuf messages.
+   * <p>
+   * Protobuf prefixes each nested message with its length, so this computes the size of each feature and value in a
+   * layer first, then writes the whole layer into a growable buffer in a single pass. Fields are written in the same
+   * order as the generated {@link VectorTileProto} code so the output is identical.
+   */
+  @NotThreadSafe
+  private static final class ProtoWriter {
+
+    // field tags from vector_tile_proto.proto: (field number << 3) | wire type
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LEN = 2;
+    private static final int WIRE_FIXED32 = 5;
+    private static final int TILE_LAYERS = (3 << 3) | WIRE_LEN;
+    private static final int LAYER_NAME = (1 << 3) | WIRE_LEN;
+    private static final int LAYER_FEATURES = (2 << 3) | WIRE_LEN;
+    private static final int LAYER_KEYS = (3 << 3) | WIRE_LEN;
+    private static final int LAYER_VALUES = (4 << 3) | WIRE_LEN;
+    private static final int LAYER_EXTENT = (5 << 3) | WIRE_VARINT;
+    private static final int LAYER_VERSION = (15 << 3) | WIRE_VARINT;
+    private static final int FEATURE_ID = (1 << 3) | WIRE_VARINT;
+    private static final int FEATURE_TAGS = (2 << 3) | WIRE_LEN;
+    private static final int FEATURE_TYPE = (3 << 3) | WIRE_VARINT;
+    private static final int FEATURE_GEOMETRY = (4 << 3) | WIRE_LEN;
+    private static final int VALUE_STRING = (1 << 3) | WIRE_LEN;
+    private static final int VALUE_FLOAT = (2 << 3) | WIRE_FIXED32;
+    private static final int VALUE_DOUBLE = (3 << 3) | WIRE_FIXED64;
+    private static final int VALUE_SINT = (6 << 3) | WIRE_VARINT;
+    private static final int VALUE_BOOL = (7 << 3) | WIRE_VARINT;
+    private static final int VERSION = 2;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // don't hold onto the buffer from an unusually large tile between calls
+    private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int pos = 0;
+    // per-layer scratch space, reused between layers
+    private final IntArrayList featureSizes = new IntArrayList();
+    private final IntArrayList tagSizes = new IntArrayList();
+    private final IntArrayList geometrySizes = new IntArrayList();
+    private final List<byte[]> keyBytes = new ArrayList<>();
+    private final List<byte[]> valueStrings = new ArrayList<>();
+    private final IntArrayList valueSizes = new IntArrayList();
+
+    byte[] write(Map<String, Layer> layers) {
+      pos = 0;
+      try {
+        for (Map.Entry<String, Layer> e : layers.entrySet()) {
+          writeLayer(e.getKey(), e.getValue());
+        }
+        return Arrays.copyOf(buffer, pos);
+      } finally {
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+          buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        keyBytes.clear();
+        valueStrings.clear();
+      }
+    }
+
+    private void writeLayer(String name, Layer layer) {
+      featureSizes.clear();
+      tagSizes.clear();
+      geometrySizes.clear();
+      keyBytes.clear();
+      valueStrings.clear();
+      valueSizes.clear();
+
+      byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      long size = lengthDelimitedSize(nameBytes.length);
+      for (EncodedFeature feature : layer.encodedFeatures) {
+        int featureSize = featureSize(feature);
+        featureSizes.add(featureSize);
+        size += lengthDelimitedSize(featureSize);
+      }
+      for (String key : layer.keys.keySet()) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        keyBytes.add(bytes);
+        size += lengthDelimitedSize(bytes.length);
+      }
+      for (Object value : layer.values.keySet()) {
+        int valueSize = valueSize(value);
+        valueSizes.add(valueSize);
+        size += lengthDelimitedSize(valueSize);
+      }
+      size += 1 + varintSize(EXTENT) + 1 + varintSize(VERSION);
+      if (size > Integer.MAX_VALUE - 16) {
+        throw new IllegalStateException("Layer " + name + " is too large to encode: " + size + " bytes");
+      }
+      int layerSize = (int) size;
+      ensureCapacity(1 + varintSize(layerSize) + layerSize);
+
+      writeRaw(TILE_LAYERS);
+      writeVarint(layerSize);
+      writeBytes(LAYER_NAME, nameBytes);
+      for (int i = 0; i < layer.encodedFeatures.size(); i++) {
+        writeFeature(layer.encodedFeatures.get(i), featureSizes.get(i), tagSizes.get(i), geometrySizes.get(i));
+      }
+      for (byte[] key : keyBytes) {
+        writeBytes(LAYER_KEYS, key);
+      }
+      int i = 0;
+      for (Object value : layer.values.keySet()) {
+        writeValue(value, valueSizes.get(i), valueStrings.get(i));
+        i++;
+      }
+      writeRaw(LAYER_EXTENT);
+      writeVarint(EXTENT);
+      writeRaw(LAYER_VERSION);
+      writeVarint(VERSION);
+    }
+
+    private int featureSize(EncodedFeature feature) {
+      int size = 0;
+      if (feature.id >= 0) {
+        size += 1 + varintSize(feature.id);
+      }
+      int tagsSize = packedSize(feature.tags.buffer, feature.tags.size());
+      tagSizes.add(tagsSize);
+      if (tagsSize > 0) {
+        size += lengthDelimitedSize(tagsSize);
+      }
+      size += 1 + varintSize(feature.geometry().geomType().asProtobufType().getNumber());
+      int[] commands = feature.geometry().commands();
+      int geometrySize = packedSize(commands, commands.length);
+      geometrySizes.add(geometrySize);
+      if (geometrySize > 0) {
+        size += lengthDelimitedSize(geometrySize);
+      }
+      return size;
+    }
+
+    private void writeFeature(EncodedFeature feature, int size, int tagsSize, int geometrySize) {
+      writeRaw(LAYER_FEATURES);
+      writeVarint(size);
+      if (feature.id >= 0) {
+        writeRaw(FEATURE_ID);
+        writeVarint(feature.id);
+      }
+      if (tagsSize > 0) {
+        writeRaw(FEATURE_TAGS);
+        writeVarint(tagsSize);
+        writePacked(feature.tags.buffer, feature.tags.size());
+      }
+      writeRaw(FEATURE_TYPE);
+      writeVarint(feature.geometry().geomType().asProtobufType().getNumber());
+      if (geometrySize > 0) {
+        int[] commands = feature.geometry().commands();
+        writeRaw(FEATURE_GEOMETRY);
+        writeVarint(geometrySize);
+        writePacked(commands, commands.length);
+      }
+    }
+
+    /** Returns the size of the value message, and adds its UTF-8 bytes to {@link #valueStrings} if it is a string. */
+    private int valueSize(Object value) {
+      byte[] string = null;
+      int size;
+      if (value instanceof Integer intValue) {
+        size = 1 + varintSize(zigZag(intValue));
+      } else if (value instanceof Long longValue) {
+        size = 1 + varintSize(zigZag(longValue));
+      } else if (value instanceof Float) {
+        size = 1 + 4;
+      } else if (value instanceof Double) {
+        size = 1 + 8;
+      } else if (value instanceof Boolean) {
+        size = 1 + 1;
+      } else {
+        string = value.toString().getBytes(StandardCharsets.UTF_8);
+        size = lengthDelimitedSize(string.length);
+      }
+      valueStrings.add(string);
+      return size;
+    }
+
+    private void writeValue(Object value, int size, byte[] string) {
+      writeRaw(LAYER_VALUES);
+      writeVarint(size);
+      if (value instanceof Integer intValue) {
+        writeRaw(VALUE_SINT);
+        writeVarint(zigZag(intValue));
+      } else if (value instanceof Long longValue) {
+        writeRaw(VALUE_SINT);
+        writeVarint(zigZag(longValue));
+      } else if (value instanceof Float floatValue) {
+        writeRaw(VALUE_FLOAT);
+        writeFixed32(Float.floatToRawIntBits(floatValue));
+      } else if (value instanceof Double doubleValue) {
+        writeRaw(VALUE_DOUBLE);
+        writeFixed64(Double.doubleToRawLongBits(doubleValue));
+      } else if (value instanceof Boolean booleanValue) {
+        writeRaw(VALUE_BOOL);
+        writeRaw(booleanValue ? 1 : 0);
+      } else {
+        writeBytes(VALUE_STRING, string);
+      }
+    }
+
+    private static long zigZag(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+
+    private static int lengthDelimitedSize(int length) {
+      return 1 + varintSize(length) + length;
+    }
+
+    /** Returns the size of {@code values} encoded as unsigned 32-bit varints. */
+    private static int packedSize(int[] values, int length) {
+      int size = 0;
+      for (int i = 0; i < length; i++) {
+        size += varintSize(values[i]);
+      }
+      return size;
+    }
+
+    private static int varintSize(int value) {
+      // treat as unsigned, negative values take 5 bytes
+      return value < 0 ? 5 : varintSize((long) value);
+    }
+
+    private static int varintSize(long value) {
+      return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+    private void ensureCapacity(int bytes) {
+      if (buffer.length - pos < bytes) {
+        buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8,
+          Math.max((long) pos + bytes, buffer.length * 2L)));
+      }
+    }
+
+    private void writeRaw(int b) {
+      buffer[pos++] = (byte) b;
+    }
+
+    private void writeVarint(int value) {
+      while ((value & ~0x7F) != 0) {
+        buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos++] = (byte) value;
+    }
+
+    private void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos++] = (byte) value;
+    }
+
+    private void writePacked(int[] values, int length) {
+      for (int i = 0; i < length; i++) {
+        writeVarint(values[i]);
+      }
+    }
+
+    private void writeBytes(int tag, byte[] bytes) {
+      writeRaw(tag);
+      writeVarint(bytes.length);
+      System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+      pos += bytes.length;
+    }
+
+    private void writeFixed32(int value) {
+      buffer[pos++] = (byte) value;
+      buffer[pos++] = (byte) (value >> 8);
+      buffer[pos++] = (byte) (value >> 16);
+      buffer[pos++] = (byte) (value >> 24);
+    }
+
+    private void writeFixed64(long value) {
+      writeFixed32((int) value);
+      writeFixed32((int) (value >> 32));
+    }
+  }
 }
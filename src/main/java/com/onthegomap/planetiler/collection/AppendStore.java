@@ -34,6 +34,25 @@ interface AppendStore extends Closeable, MemoryEstimator.HasEstimate, DiskBacked
     return 0;
   }
 
+  /** An array of bytes. */
+  interface Bytes extends AppendStore {
+
+    static Bytes create(Storage storage, Storage.Params params) {
+      return switch (storage) {
+        case DIRECT -> new AppendStoreRam.Bytes(true);
+        case RAM -> new AppendStoreRam.Bytes(false);
+        case MMAP -> new AppendStoreMmap.Bytes(params);
+      };
+    }
+
+    void appendByte(byte value);
+
+    byte getByte(long index);
+
+    /** Copies {@code length} bytes starting at {@code index} into {@code dest} starting at {@code offset}. */
+    void getBytes(long index, byte[] dest, int offset, int length);
+  }
+
   /** An array of ints. */
   interface Ints extends AppendStore {
 
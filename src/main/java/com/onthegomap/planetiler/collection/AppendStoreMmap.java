@@ -95,6 +95,60 @@ abstract class AppendStoreMmap implements AppendStore {
     return FileUtils.size(path);
   }
 
+  static class Bytes extends AppendStoreMmap implements AppendStore.Bytes {
+
+    Bytes(Storage.Params params) {
+      this(params.path(), params.madvise());
+    }
+
+    Bytes(Path path, boolean madvise) {
+      super(path, madvise);
+    }
+
+    Bytes(Path path, long segmentSizeBytes, boolean madvise) {
+      super(path, segmentSizeBytes, madvise);
+    }
+
+    @Override
+    public void appendByte(byte value) {
+      try {
+        outputStream.write(value);
+        outIdx++;
+      } catch (IOException e) {
+        throw new IllegalStateException("Error writing byte", e);
+      }
+    }
+
+    @Override
+    public byte getByte(long index) {
+      checkIndexInBounds(index);
+      MappedByteBuffer[] segments = getSegments();
+      int idx = (int) (index >>> segmentBits);
+      int offset = (int) (index & segmentMask);
+      return segments[idx].get(offset);
+    }
+
+    @Override
+    public void getBytes(long index, byte[] dest, int offset, int length) {
+      checkIndexInBounds(index + length - 1);
+      MappedByteBuffer[] segments = getSegments();
+      while (length > 0) {
+        int idx = (int) (index >>> segmentBits);
+        int segmentOffset = (int) (index & segmentMask);
+        int toCopy = (int) Math.min(length, segmentBytes - segmentOffset);
+        segments[idx].get(segmentOffset, dest, offset, toCopy);
+        index += toCopy;
+        offset += toCopy;
+        length -= toCopy;
+      }
+    }
+
+    @Override
+    public long size() {
+      return outIdx;
+    }
+  }
+
   static class Ints extends AppendStoreMmap implements AppendStore.Ints {
 
     Ints(Storage.Params params) {
@@ -55,6 +55,60 @@ abstract class AppendStoreRam implements AppendStore {
     arrays.clear();
   }
 
+  static class Bytes extends AppendStoreRam implements AppendStore.Bytes {
+
+    Bytes(boolean direct) {
+      this(direct, 1 << 20); // 1MB
+    }
+
+    Bytes(boolean direct, int segmentSizeBytes) {
+      super(direct, segmentSizeBytes);
+    }
+
+    @Override
+    public void appendByte(byte value) {
+      int offset = (int) (this.writeOffset & slabMask);
+      getSlabForWrite().put(offset, value);
+      this.writeOffset++;
+    }
+
+    @Override
+    public byte getByte(long index) {
+      if (index >= writeOffset) {
+        throw new IndexOutOfBoundsException("index: " + index + " size: " + size());
+      }
+      int slabIdx = (int) (index >>> slabBits);
+      int offset = (int) (index & slabMask);
+      return arrays.get(slabIdx).get(offset);
+    }
+
+    @Override
+    public void getBytes(long index, byte[] dest, int offset, int length) {
+      if (index + length > writeOffset) {
+        throw new IndexOutOfBoundsException("index: " + (index + length - 1) + " size: " + size());
+      }
+      while (length > 0) {
+        int slabIdx = (int) (index >>> slabBits);
+        int slabOffset = (int) (index & slabMask);
+        int toCopy = Math.min(length, slabSize - slabOffset);
+        arrays.get(slabIdx).get(slabOffset, dest, offset, toCopy);
+        index += toCopy;
+        offset += toCopy;
+        length -= toCopy;
+      }
+    }
+
+    @Override
+    public long size() {
+      return writeOffset;
+    }
+
+    @Override
+    public long estimateMemoryUsageBytes() {
+      return arrays.size() * (estimateByteArraySize(slabSize) + POINTER_BYTES);
+    }
+  }
+
   static class Ints extends AppendStoreRam implements AppendStore.Ints {
 
     Ints(boolean direct) {
@@ -0,0 +1,601 @@
+package com.onthegomap.planetiler.collection;
+
+import static com.onthegomap.planetiler.collection.FeatureGroup.decodeGeomType;
+import static com.onthegomap.planetiler.collection.FeatureGroup.decodeScale;
+import static com.onthegomap.planetiler.collection.FeatureGroup.encodeGeomTypeAndScale;
+
+import com.onthegomap.planetiler.VectorTile;
+import com.onthegomap.planetiler.render.RenderedFeature;
+import com.onthegomap.planetiler.util.CommonStringEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link FeatureCodec} that writes features directly into a reusable byte array with no intermediate objects.
+ * <p>
+ * Format (version 1):
+ *
+ * <pre>
+ * version:byte
+ * [group:zigzag varint, limit:zigzag varint] (only if the key has group bit set)
+ * id:zigzag varint
+ * geomTypeAndScale:byte
+ * attrCount:varint
+ * attrCount * (key:byte [longKey:varint] tag:byte value)
+ * commandCount:varint
+ * commandCount * command:varint
+ * </pre>
+ * <p>
+ * Keys are one-byte {@link CommonStringEncoder} short codes, or {@link CommonStringEncoder#ESCAPE} followed by a long
+ * ID. {@code value} depends on {@code tag}: inline UTF-8 strings are prefixed by their length, interned strings are
+ * a varint index into a dictionary of short attribute values shared by all threads (i.e. "primary" or "yes"), integers
+ * are zigzag varints, and floating point numbers are stored as 4 or 8 byte IEEE 754 values. Booleans are stored in the
+ * tag.
+ */
+class BinaryFeatureCodec implements FeatureCodec {
+
+  static final byte VERSION = 1;
+  // short values are more likely to repeat, and limit the total dictionary size
+  private static final int MAX_INTERNED_LENGTH = 32;
+  private static final int MAX_INTERNED_VALUES = 1 << 16;
+  private static final byte TAG_STRING = 0;
+  private static final byte TAG_INTERNED_STRING = 1;
+  private static final byte TAG_LONG = 2;
+  private static final byte TAG_FLOAT = 3;
+  private static final byte TAG_DOUBLE = 4;
+  private static final byte TAG_TRUE = 5;
+  private static final byte TAG_FALSE = 6;
+
+  private final CommonStringEncoder commonStrings;
+  private final ConcurrentMap<String, Integer> internedIds = new ConcurrentHashMap<>();
+  // only read after all features are written, so writes under the lock are visible to readers
+  private final String[] interned = new String[MAX_INTERNED_VALUES];
+  private int numInterned = 0;
+
+  BinaryFeatureCodec(CommonStringEncoder commonStrings) {
+    this.commonStrings = commonStrings;
+  }
+
+  /**
+   * Returns the dictionary index of {@code value}, or -1 if it is too long or the dictionary is full.
+   * <p>
+   * Once the dictionary is full, strings that were not already added are always written inline, so each string maps to
+   * a single encoding and tiles with identical features still have identical bytes.
+   */
+  private int intern(String value) {
+    if (value.length() > MAX_INTERNED_LENGTH) {
+      return -1;
+    }
+    Integer result = internedIds.get(value);
+    if (result == null) {
+      synchronized (this) {
+        result = internedIds.get(value);
+        if (result == null) {
+          if (numInterned >= MAX_INTERNED_VALUES) {
+            return -1;
+          }
+          result = numInterned++;
+          interned[result] = value;
+          internedIds.put(value, result);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Encoder newEncoder() {
+    return new BinaryEncoder();
+  }
+
+  @Override
+  public RenderedFeature.Group decodeGroup(byte[] encoded) {
+    var reader = new Reader(encoded);
+    return new RenderedFeature.Group(reader.readZigZag(), (int) reader.readZigZag());
+  }
+
+  @Override
+  public VectorTile.Feature decode(String layer, boolean hasGroup, byte[] encoded) {
+    var reader = new Reader(encoded);
+    long group;
+    if (hasGroup) {
+      group = reader.readZigZag();
+      reader.readZigZag(); // groupLimit - features over the limit were already discarded
+    } else {
+      group = VectorTile.Feature.NO_GROUP;
+    }
+    long id = reader.readZigZag();
+    byte geomTypeAndScale = reader.readByte();
+    int numAttrs = (int) reader.readVarLong();
+    AttributeMap attrs = new AttributeMap(numAttrs);
+    for (int i = 0; i < numAttrs; i++) {
+      byte keyByte = reader.readByte();
+      String key = commonStrings.decodeInt(keyByte == CommonStringEncoder.ESCAPE ? (int) reader.readVarLong() :
+        (keyByte & 0xff));
+      byte tag = reader.readByte();
+      Object value = switch (tag) {
+        case TAG_STRING -> reader.readString();
+        case TAG_INTERNED_STRING -> interned[(int) reader.readVarLong()];
+        case TAG_LONG -> reader.readZigZag();
+        case TAG_FLOAT -> (double) Float.intBitsToFloat((int) reader.readFixed(4));
+        case TAG_DOUBLE -> Double.longBitsToDouble(reader.readFixed(8));
+        case TAG_TRUE -> Boolean.TRUE;
+        case TAG_FALSE -> Boolean.FALSE;
+        default -> throw new IllegalStateException("Unexpected attribute tag " + tag);
+      };
+      attrs.append(key, value);
+    }
+    int[] commands = new int[(int) reader.readVarLong()];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = (int) reader.readVarLong();
+    }
+    return new VectorTile.Feature(
+      layer,
+      id,
+      new VectorTile.VectorGeometry(commands, decodeGeomType(geomTypeAndScale), decodeScale(geomTypeAndScale)),
+      attrs,
+      group
+    );
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /** Returns the number of bytes {@code value} takes up as a varint. */
+  private static int varLongSize(long value) {
+    return value == 0 ? 1 : (64 - Long.numberOfLeadingZeros(value) + 6) / 7;
+  }
+
+  /**
+   * Returns the number of bytes {@code value} takes up in UTF-8, where unpaired surrogates get replaced by {@code '?'}
+   * like {@link String#getBytes(java.nio.charset.Charset)} does.
+   */
+  private static int utf8Length(String value) {
+    int length = value.length();
+    int result = length;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x800) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          result += 2;
+          i++;
+        } else if (!Character.isSurrogate(c)) {
+          result += 2;
+        }
+      } else if (c >= 0x80) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Encodes features in two passes over their attributes: the first computes the exact size and remembers each key, tag,
+   * and payload, and the second writes directly into a result array of that size, so that no buffer needs to grow or get
+   * trimmed.
+   */
+  private class BinaryEncoder implements Encoder {
+
+    private byte[] buffer;
+    private int position = 0;
+    // per-attribute state from the sizing pass, re-used between features
+    private int[] keyIds = new int[16];
+    private byte[] tags = new byte[16];
+    // dictionary index, zigzag-encoded integer, floating point bits, or UTF-8 length of an inline string
+    private long[] numbers = new long[16];
+    private String[] strings = new String[16];
+
+    private void writeByte(int value) {
+      buffer[position++] = (byte) value;
+    }
+
+    private void writeVarLong(long value) {
+      while ((value & ~0x7fL) != 0) {
+        buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      buffer[position++] = (byte) value;
+    }
+
+    private void writeZigZag(long value) {
+      writeVarLong(zigZag(value));
+    }
+
+    private void writeFixed(long value, int bytes) {
+      for (int i = 0; i < bytes; i++) {
+        buffer[position++] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    private void writeString(String value, int utf8Length) {
+      writeVarLong(utf8Length);
+      int length = value.length();
+      if (length == utf8Length) {
+        // most attribute values are ascii, so avoid allocating a temporary byte array for them
+        int start = position;
+        for (int i = 0; i < length; i++) {
+          char c = value.charAt(i);
+          if (c >= 0x80) {
+            // an unpaired surrogate, which also takes up one byte
+            position = start;
+            break;
+          }
+          buffer[position++] = (byte) c;
+        }
+        if (position == start + length) {
+          return;
+        }
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    private void ensureAttrCapacity(int numAttrs) {
+      if (numAttrs > keyIds.length) {
+        int newLength = Math.max(numAttrs, keyIds.length * 2);
+        keyIds = new int[newLength];
+        tags = new byte[newLength];
+        numbers = new long[newLength];
+        strings = new String[newLength];
+      }
+    }
+
+    /** Records the tag and payload to write for attribute {@code i}, and returns the number of bytes they take up. */
+    private int addValue(int i, Object value) {
+      String string;
+      if (value instanceof String str) {
+        string = str;
+      } else if (value instanceof Integer integer) {
+        return addNumber(i, TAG_LONG, zigZag(integer), 1 + varLongSize(zigZag(integer)));
+      } else if (value instanceof Long longValue) {
+        return addNumber(i, TAG_LONG, zigZag(longValue), 1 + varLongSize(zigZag(longValue)));
+      } else if (value instanceof Float floatValue) {
+        return addNumber(i, TAG_FLOAT, Float.floatToRawIntBits(floatValue), 1 + 4);
+      } else if (value instanceof Double doubleValue) {
+        return addNumber(i, TAG_DOUBLE, Double.doubleToRawLongBits(doubleValue), 1 + 8);
+      } else if (value instanceof Boolean booleanValue) {
+        return addNumber(i, booleanValue ? TAG_TRUE : TAG_FALSE, 0, 1);
+      } else {
+        string = value.toString();
+      }
+      int id = intern(string);
+      if (id >= 0) {
+        return addNumber(i, TAG_INTERNED_STRING, id, 1 + varLongSize(id));
+      }
+      int utf8Length = utf8Length(string);
+      strings[i] = string;
+      return addNumber(i, TAG_STRING, utf8Length, 1 + varLongSize(utf8Length) + utf8Length);
+    }
+
+    private int addNumber(int i, byte tag, long number, int size) {
+      tags[i] = tag;
+      numbers[i] = number;
+      return size;
+    }
+
+    private void writeValue(int i) {
+      byte tag = tags[i];
+      writeByte(tag);
+      switch (tag) {
+        case TAG_STRING -> {
+          writeString(strings[i], (int) numbers[i]);
+          strings[i] = null;
+        }
+        case TAG_INTERNED_STRING, TAG_LONG -> writeVarLong(numbers[i]);
+        case TAG_FLOAT -> writeFixed(numbers[i], 4);
+        case TAG_DOUBLE -> writeFixed(numbers[i], 8);
+        default -> {
+          // booleans are stored in the tag
+        }
+      }
+    }
+
+    @Override
+    public byte[] encode(VectorTile.Feature feature, RenderedFeature.Group group) {
+      var attrs = feature.attrs();
+      ensureAttrCapacity(attrs.size());
+      int[] commands = feature.geometry().commands();
+
+      // first pass: compute the exact size
+      int size = 1 + varLongSize(zigZag(feature.id())) + 1;
+      if (group != null) {
+        size += varLongSize(zigZag(group.group())) + varLongSize(zigZag(group.limit()));
+      }
+      int numAttrs = 0;
+      for (Map.Entry<String, Object> entry : attrs.entrySet()) {
+        Object value = entry.getValue();
+        if (value != null) {
+          int keyId = commonStrings.encodeInt(entry.getKey());
+          keyIds[numAttrs] = keyId;
+          size += keyId < CommonStringEncoder.MAX_SHORT_CODES ? 1 : 1 + varLongSize(keyId);
+          size += addValue(numAttrs, value);
+          numAttrs++;
+        }
+      }
+      size += varLongSize(numAttrs) + varLongSize(commands.length);
+      for (int command : commands) {
+        size += varLongSize(command & 0xffffffffL);
+      }
+
+      // second pass: write into an array of exactly that size
+      buffer = new byte[size];
+      position = 0;
+      writeByte(VERSION);
+      // hasGroup bit in key will tell consumers whether they need to decode group info from value
+      if (group != null) {
+        writeZigZag(group.group());
+        writeZigZag(group.limit());
+      }
+      writeZigZag(feature.id());
+      writeByte(encodeGeomTypeAndScale(feature.geometry()));
+      writeVarLong(numAttrs);
+      for (int i = 0; i < numAttrs; i++) {
+        int keyId = keyIds[i];
+        if (keyId < CommonStringEncoder.MAX_SHORT_CODES) {
+          writeByte(keyId);
+        } else {
+          writeByte(CommonStringEncoder.ESCAPE);
+          writeVarLong(keyId);
+        }
+        writeValue(i);
+      }
+      // commands are unsigned ints, with parameters already zigzag-encoded
+      writeVarLong(commands.length);
+      for (int command : commands) {
+        writeVarLong(command & 0xffffffffL);
+      }
+      byte[] result = buffer;
+      buffer = null;
+      return result;
+    }
+
+    @Override
+    public void close() {
+      keyIds = null;
+      tags = null;
+      numbers = null;
+      strings = null;
+    }
+  }
+
+  /**
+   * A mutable map of decoded attributes that stores keys and values next to each other in a single array, and finds keys
+   * with a linear scan.
+   * <p>
+   * Features have few enough attributes that this is faster than hashing, and it only allocates the map and its array
+   * instead of a table and an entry per attribute like {@link java.util.HashMap}. Profiles can still add and remove
+   * attributes when post-processing features.
+   */
+  private static class AttributeMap extends AbstractMap<String, Object> {
+
+    private Object[] keysAndValues;
+    private int size = 0;
+
+    AttributeMap(int capacity) {
+      keysAndValues = new Object[Math.max(2, capacity * 2)];
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < size * 2; i += 2) {
+        if (keysAndValues[i].equals(key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** Adds an attribute without checking if the key is already present, since encoded keys are unique. */
+    void append(String key, Object value) {
+      if (size * 2 == keysAndValues.length) {
+        keysAndValues = Arrays.copyOf(keysAndValues, keysAndValues.length * 2);
+      }
+      keysAndValues[size * 2] = key;
+      keysAndValues[size * 2 + 1] = value;
+      size++;
+    }
+
+    private void removeAt(int index) {
+      int end = size * 2;
+      System.arraycopy(keysAndValues, index + 2, keysAndValues, index, end - index - 2);
+      keysAndValues[end - 2] = null;
+      keysAndValues[end - 1] = null;
+      size--;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+      int index = indexOf(key);
+      return index < 0 ? null : keysAndValues[index + 1];
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+      if (key == null) {
+        throw new NullPointerException();
+      }
+      int index = indexOf(key);
+      if (index >= 0) {
+        Object old = keysAndValues[index + 1];
+        keysAndValues[index + 1] = value;
+        return old;
+      }
+      append(key, value);
+      return null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+      int index = indexOf(key);
+      if (index < 0) {
+        return null;
+      }
+      Object old = keysAndValues[index + 1];
+      removeAt(index);
+      return old;
+    }
+
+    @Override
+    public void clear() {
+      Arrays.fill(keysAndValues, 0, size * 2, null);
+      size = 0;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      return new AbstractSet<>() {
+        @Override
+        public int size() {
+          return size;
+        }
+
+        @Override
+        public Iterator<Entry<String, Object>> iterator() {
+          return new Iterator<>() {
+            private int next = 0;
+            private int last = -1;
+
+            @Override
+            public boolean hasNext() {
+              return next < size * 2;
+            }
+
+            @Override
+            public Entry<String, Object> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              last = next;
+              next += 2;
+              return new AttributeEntry(last);
+            }
+
+            @Override
+            public void remove() {
+              if (last < 0) {
+                throw new IllegalStateException();
+              }
+              removeAt(last);
+              next = last;
+              last = -1;
+            }
+          };
+        }
+      };
+    }
+
+    /** An entry that reads and writes through to the backing array. */
+    private class AttributeEntry implements Entry<String, Object> {
+
+      private final int index;
+
+      AttributeEntry(int index) {
+        this.index = index;
+      }
+
+      @Override
+      public String getKey() {
+        return (String) keysAndValues[index];
+      }
+
+      @Override
+      public Object getValue() {
+        return keysAndValues[index + 1];
+      }
+
+      @Override
+      public Object setValue(Object value) {
+        Object old = keysAndValues[index + 1];
+        keysAndValues[index + 1] = value;
+        return old;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        return o instanceof Entry<?, ?> other && getKey().equals(other.getKey()) &&
+          Objects.equals(getValue(), other.getValue());
+      }
+
+      @Override
+      public int hashCode() {
+        return getKey().hashCode() ^ Objects.hashCode(getValue());
+      }
+
+      @Override
+      public String toString() {
+        return getKey() + "=" + getValue();
+      }
+    }
+  }
+
+  /** Cursor over an encoded feature. */
+  private static class Reader {
+
+    private final byte[] buffer;
+    private int position = 0;
+
+    Reader(byte[] buffer) {
+      this.buffer = buffer;
+      byte version = readByte();
+      if (version != VERSION) {
+        throw new IllegalStateException("Unsupported feature encoding version " + version + " expected " + VERSION);
+      }
+    }
+
+    byte readByte() {
+      return buffer[position++];
+    }
+
+    long readVarLong() {
+      long result = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer[position++];
+        result |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      return result;
+    }
+
+    long readZigZag() {
+      long value = readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    long readFixed(int bytes) {
+      long result = 0;
+      for (int i = 0; i < bytes; i++) {
+        result |= (buffer[position++] & 0xffL) << (8 * i);
+      }
+      return result;
+    }
+
+    String readString() {
+      int length = (int) readVarLong();
+      String result = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return result;
+    }
+  }
+}
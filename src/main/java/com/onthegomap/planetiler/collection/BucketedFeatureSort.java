@@ -0,0 +1,585 @@
+package com.onthegomap.planetiler.collection;
+
+import static com.onthegomap.planetiler.util.Exceptions.throwFatalException;
+
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.TileExtents;
+import com.onthegomap.planetiler.stats.ProcessInfo;
+import com.onthegomap.planetiler.stats.Stats;
+import com.onthegomap.planetiler.util.ByteBufferUtil;
+import com.onthegomap.planetiler.util.CloseableConusmer;
+import com.onthegomap.planetiler.util.FileUtils;
+import com.onthegomap.planetiler.util.Format;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A utility that writes {@link SortableFeature SortableFeatures} to disk partitioned into buckets of contiguous tile ID
+ * ranges, so that each bucket can be sorted in memory independently when it is read instead of doing a global external
+ * merge sort.
+ * <p>
+ * Bucket boundaries split the tiles within the map bounds into ranges with roughly the same number of tiles. Each
+ * writer thread buffers features for each bucket and appends full buffers to a file per bucket, alternating bucket
+ * files between temp directories when there are several to spread IO across disks. Since features are not evenly
+ * distributed between tiles, after writing finishes {@link #sort()} splits any bucket too big to sort in memory into
+ * smaller ranges using the actual distribution of tiles in that bucket.
+ * <p>
+ * Reads go through buckets in tile order, with background threads reading and {@link RadixSort radix sorting} the next
+ * buckets into off-heap buffers while the consumer works through the current one, as far ahead as the memory limit
+ * allows. There is no k-way merge since every feature in a bucket comes before every feature in the next one.
+ * <p>
+ * Only supports single-threaded reads.
+ */
+@NotThreadSafe
+class BucketedFeatureSort implements FeatureSort {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BucketedFeatureSort.class);
+  private static final long MAX_BUCKET_SIZE = 2_000_000_000; // 2GB
+  // size of each writer thread's buffer for each bucket
+  private static final int WRITE_BUFFER_BYTES = 32_768;
+  // number of ranges to count features in when splitting a bucket that is too big
+  private static final int SPLIT_HISTOGRAM_SIZE = 4_096;
+  private final List<Path> dirs;
+  private final Stats stats;
+  private final long bucketSizeLimit;
+  private final long readAheadBytes;
+  private final int readerLimit;
+  private final TileRanks ranks;
+  private final Bucket[] initialBuckets;
+  private final AtomicLong features = new AtomicLong(0);
+  private final AtomicInteger fileNum = new AtomicInteger(0);
+  private List<Bucket> buckets = null;
+
+  BucketedFeatureSort(List<Path> tempDirs, PlanetilerConfig config, Stats stats) {
+    this(
+      tempDirs,
+      config.bounds().tileExtents(),
+      config.featureSortBuckets(),
+      // leave room for a few buckets to be sorted ahead of the one being read
+      Math.min(MAX_BUCKET_SIZE, ProcessInfo.getMaxMemoryBytes() / 6),
+      ProcessInfo.getMaxMemoryBytes() / 2,
+      config,
+      stats
+    );
+  }
+
+  BucketedFeatureSort(List<Path> dirs, TileExtents extents, int numBuckets, long bucketSizeLimit, long readAheadBytes,
+    PlanetilerConfig config, Stats stats) {
+    if (numBuckets < 1) {
+      throw new IllegalArgumentException("Must have at least 1 bucket, was " + numBuckets);
+    }
+    if (dirs.isEmpty()) {
+      throw new IllegalArgumentException("No temp directories");
+    }
+    this.dirs = dirs;
+    this.stats = stats;
+    this.bucketSizeLimit = bucketSizeLimit;
+    this.readAheadBytes = readAheadBytes;
+    this.readerLimit = Math.max(1, config.sortMaxReaders());
+    this.ranks = new TileRanks(extents, config.minzoom(), config.maxzoom());
+    try {
+      for (Path dir : dirs) {
+        FileUtils.deleteDirectory(dir);
+        Files.createDirectories(dir);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // buckets are always appended through file channels and read back into off-heap buffers
+    if (config.gzipTempStorage()) {
+      LOGGER.warn("--gzip-temp option not supported with --feature-sort=buckets, ignoring it");
+    }
+    if (!config.mmapTempStorage()) {
+      LOGGER.warn("--mmap-temp=false option not supported with --feature-sort=buckets, ignoring it");
+    }
+    this.initialBuckets = new Bucket[numBuckets];
+    for (int i = 0; i < numBuckets; i++) {
+      initialBuckets[i] = new Bucket();
+    }
+    LOGGER.info("Using tile bucket feature map, buckets={} max bucket size={}mb", numBuckets,
+      bucketSizeLimit / 1_000_000);
+  }
+
+  /** Returns the number of bytes used to serialize a feature with {@code valueLength} bytes of data. */
+  private static int recordLength(int valueLength) {
+    return Long.BYTES + Integer.BYTES + valueLength;
+  }
+
+  /** Returns an estimate of how much RAM it takes to sort a feature with {@code valueLength} bytes of data. */
+  private static int bytesInMemory(int valueLength) {
+    // serialized feature in the off-heap buffer, plus key and offset in the index and radix sort scratch space
+    return recordLength(valueLength) + 2 * (Long.BYTES + Integer.BYTES);
+  }
+
+  @Override
+  public CloseableConusmer<SortableFeature> writerForThread() {
+    return new ThreadLocalWriter();
+  }
+
+  @Override
+  public long diskUsageBytes() {
+    return dirs.stream().mapToLong(FileUtils::directorySize).sum();
+  }
+
+  @Override
+  public long estimateMemoryUsageBytes() {
+    return 0;
+  }
+
+  @Override
+  public long numFeaturesWritten() {
+    return features.get();
+  }
+
+  public int buckets() {
+    return buckets == null ? initialBuckets.length : buckets.size();
+  }
+
+  @Override
+  public void sort() {
+    assert buckets == null;
+    var timer = stats.startStage("sort");
+    List<Bucket> result = new ArrayList<>();
+    int split = 0;
+    long maxBytes = 0;
+    try {
+      for (Bucket bucket : initialBuckets) {
+        bucket.close();
+      }
+      for (Bucket bucket : initialBuckets) {
+        if (bucket.bytesInMemory > bucketSizeLimit) {
+          split++;
+          splitInto(bucket, result);
+        } else if (bucket.itemCount > 0) {
+          result.add(bucket);
+        } else {
+          FileUtils.delete(bucket.path);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (Bucket bucket : result) {
+      maxBytes = Math.max(maxBytes, bucket.bytes);
+    }
+    buckets = result;
+    timer.stop();
+    LOGGER.info("Wrote {} features to {} non-empty buckets after splitting {} that were too big, largest={}",
+      Format.defaultInstance().integer(features.get()), result.size(), split,
+      Format.defaultInstance().storage(maxBytes, false));
+  }
+
+  /**
+   * Splits {@code bucket} into buckets of contiguous tile ranges that each fit in memory, and adds them in order to
+   * {@code result}.
+   */
+  private void splitInto(Bucket bucket, List<Bucket> result) throws IOException {
+    long width = bucket.maxRank - bucket.minRank + 1;
+    if (width <= 1) {
+      throw new IllegalStateException("Features in a single tile take up " + bucket.bytesInMemory +
+        " bytes which is more than the bucket size limit of " + bucketSizeLimit);
+    }
+    int cells = (int) Math.min(SPLIT_HISTOGRAM_SIZE, width);
+    long[] histogram = new long[cells];
+    try (var input = bucket.newInputStream()) {
+      for (long i = 0; i < bucket.itemCount; i++) {
+        long key = input.readLong();
+        int length = input.readInt();
+        input.skipNBytes(length);
+        histogram[cell(ranks.rank(key), bucket.minRank, width, cells)] += bytesInMemory(length);
+      }
+    }
+
+    // group consecutive histogram cells into parts that fit in memory
+    int[] partForCell = new int[cells];
+    List<Bucket> parts = new ArrayList<>();
+    long partSize = 0;
+    for (int i = 0; i < cells; i++) {
+      if (parts.isEmpty() || (partSize > 0 && partSize + histogram[i] > bucketSizeLimit)) {
+        parts.add(new Bucket());
+        partSize = 0;
+      }
+      partSize += histogram[i];
+      partForCell[i] = parts.size() - 1;
+    }
+
+    List<DataOutputStream> outputs = new ArrayList<>();
+    try (var input = bucket.newInputStream()) {
+      for (Bucket part : parts) {
+        part.channel.close();
+        outputs.add(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(part.path), 1 << 16)));
+      }
+      for (long i = 0; i < bucket.itemCount; i++) {
+        long key = input.readLong();
+        int length = input.readInt();
+        byte[] value = input.readNBytes(length);
+        long rank = ranks.rank(key);
+        int part = partForCell[cell(rank, bucket.minRank, width, cells)];
+        var out = outputs.get(part);
+        out.writeLong(key);
+        out.writeInt(length);
+        out.write(value);
+        parts.get(part).count(1, recordLength(length), bytesInMemory(length), rank, rank);
+      }
+    } finally {
+      for (var out : outputs) {
+        out.close();
+      }
+    }
+    FileUtils.delete(bucket.path);
+
+    for (Bucket part : parts) {
+      if (part.itemCount == 0) {
+        FileUtils.delete(part.path);
+      } else if (part.bytesInMemory > bucketSizeLimit) {
+        // only one histogram cell that spans several tiles ended up in this part, so split it more finely
+        splitInto(part, result);
+      } else {
+        result.add(part);
+      }
+    }
+  }
+
+  private static int cell(long rank, long minRank, long width, int cells) {
+    return (int) ((rank - minRank) * cells / width);
+  }
+
+  @Override
+  public Iterator<SortableFeature> iterator(int shard, int shards) {
+    assert buckets != null;
+    if (shard < 0 || shard >= shards) {
+      throw new IllegalArgumentException("Bad shard params: shard=%d shards=%d".formatted(shard, shards));
+    }
+    List<Bucket> toRead = new ArrayList<>();
+    for (int i = shard; i < buckets.size(); i += shards) {
+      toRead.add(buckets.get(i));
+    }
+    if (toRead.isEmpty()) {
+      return Collections.emptyIterator();
+    }
+    return new BucketIterator(toRead, shard, Math.max(1, readerLimit / shards), Math.max(1, readAheadBytes / shards));
+  }
+
+  /**
+   * Maps tile IDs to their index in the order that {@link FeatureGroup} sorts tiles in, counting only tiles within
+   * the map bounds at zoom levels that get rendered.
+   */
+  private static class TileRanks {
+
+    private static final int XY_MASK = (1 << 14) - 1;
+    private final TileExtents.ForZoom[] extents = new TileExtents.ForZoom[PlanetilerConfig.MAX_MAXZOOM + 1];
+    // index of the first tile at each zoom, and the total number of tiles at the end
+    private final long[] zoomStart = new long[PlanetilerConfig.MAX_MAXZOOM + 2];
+
+    TileRanks(TileExtents tileExtents, int minzoom, int maxzoom) {
+      long total = 0;
+      for (int z = 0; z <= PlanetilerConfig.MAX_MAXZOOM; z++) {
+        var forZoom = tileExtents.getForZoom(z);
+        extents[z] = forZoom;
+        zoomStart[z] = total;
+        if (z >= minzoom && z <= maxzoom) {
+          total += (long) Math.max(0, forZoom.maxX() - forZoom.minX()) * Math.max(0, forZoom.maxY() - forZoom.minY());
+        }
+      }
+      zoomStart[zoomStart.length - 1] = Math.max(1, total);
+    }
+
+    long total() {
+      return zoomStart[zoomStart.length - 1];
+    }
+
+    /** Returns the index of the tile encoded in the upper 32 bits of a {@link FeatureGroup} key. */
+    long rank(long key) {
+      int tile = (int) (key >>> 32);
+      int z = (tile >> 28) + 8;
+      var forZoom = extents[z];
+      int width = forZoom.maxX() - forZoom.minX();
+      int height = forZoom.maxY() - forZoom.minY();
+      long start = zoomStart[z];
+      if (width <= 0 || height <= 0 || zoomStart[z + 1] == start) {
+        return Math.min(start, total() - 1);
+      }
+      // tiles are ordered by x ascending then y descending within a zoom level
+      int x = Math.max(0, Math.min(width - 1, ((tile >> 14) & XY_MASK) - forZoom.minX()));
+      int flippedY = Math.max(0, Math.min(height - 1, (tile & XY_MASK) - ((1 << z) - forZoom.maxY())));
+      return start + (long) x * height + flippedY;
+    }
+  }
+
+  /** A file of features for a contiguous range of tiles that writers append to concurrently. */
+  private class Bucket {
+
+    private final Path path;
+    private final FileChannel channel;
+    private long bytes = 0;
+    private long bytesInMemory = 0;
+    private long itemCount = 0;
+    private long minRank = Long.MAX_VALUE;
+    private long maxRank = Long.MIN_VALUE;
+
+    private Bucket() {
+      int num = fileNum.incrementAndGet();
+      this.path = dirs.get(num % dirs.size()).resolve("bucket" + num);
+      FileUtils.deleteOnExit(path);
+      try {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Writes the serialized features in {@code buffer} and records their totals. */
+    synchronized void append(ByteBuffer buffer, long items, long memory, long minRank, long maxRank)
+      throws IOException {
+      long length = buffer.remaining();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      count(items, length, memory, minRank, maxRank);
+    }
+
+    private void count(long items, long length, long memory, long minRank, long maxRank) {
+      this.itemCount += items;
+      this.bytes += length;
+      this.bytesInMemory += memory;
+      this.minRank = Math.min(this.minRank, minRank);
+      this.maxRank = Math.max(this.maxRank, maxRank);
+    }
+
+    synchronized void close() throws IOException {
+      channel.close();
+    }
+
+    private DataInputStream newInputStream() throws IOException {
+      return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+    }
+
+    /** Reads all the features in this bucket into memory and sorts them. */
+    private SortedBucket readAndSort() {
+      if (bytes > Integer.MAX_VALUE || itemCount > Integer.MAX_VALUE) {
+        throw new IllegalStateException("Bucket too big to sort in memory: " + path + " bytes=" + bytes);
+      }
+      ByteBuffer data = ByteBuffer.allocateDirect((int) bytes);
+      try (var input = FileChannel.open(path, StandardOpenOption.READ)) {
+        while (data.hasRemaining() && input.read(data) >= 0) {
+          // keep reading
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      if (data.position() != bytes) {
+        throw new IllegalStateException("Expected " + bytes + " bytes in " + path + " got " + data.position());
+      }
+      int count = (int) itemCount;
+      long[] keys = new long[count];
+      int[] offsets = new int[count];
+      int i = 0;
+      for (int offset = 0; offset < bytes; offset += recordLength(data.getInt(offset + Long.BYTES))) {
+        keys[i] = data.getLong(offset);
+        offsets[i++] = offset;
+      }
+      if (i != count) {
+        throw new IllegalStateException("Expected " + count + " features in " + path + " got " + i);
+      }
+      RadixSort.sort(keys, offsets, count);
+      return new SortedBucket(data, keys, offsets);
+    }
+  }
+
+  /** All the features from a bucket in an off-heap buffer, with an index of their keys and offsets in sorted order. */
+  private record SortedBucket(ByteBuffer data, long[] keys, int[] offsets) {}
+
+  /**
+   * Iterates through features in a list of buckets, with a pool of threads sorting the next buckets ahead of when they
+   * are needed while the total size of buckets in memory stays under a limit.
+   */
+  private static class BucketIterator implements Iterator<SortableFeature> {
+
+    private final List<Bucket> toRead;
+    private final ExecutorService executor;
+    private final long maxBytesInMemory;
+    private final Queue<Future<SortedBucket>> pending = new ArrayDeque<>();
+    private final Queue<Bucket> pendingBuckets = new ArrayDeque<>();
+    private long bytesInMemory = 0;
+    private int nextToSchedule = 0;
+    private Bucket currentBucket = null;
+    private SortedBucket current = null;
+    private int index = 0;
+
+    BucketIterator(List<Bucket> toRead, int shard, int threads, long maxBytesInMemory) {
+      this.toRead = toRead;
+      this.maxBytesInMemory = maxBytesInMemory;
+      // threads exit when they are idle so there's nothing to shut down if the consumer stops reading early
+      var threadNum = new AtomicInteger(0);
+      var pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        runnable -> {
+          Thread thread = new Thread(runnable, "sort_bucket-" + shard + "-" + threadNum.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+      pool.allowCoreThreadTimeOut(true);
+      this.executor = pool;
+      scheduleReads();
+    }
+
+    private void scheduleReads() {
+      while (nextToSchedule < toRead.size()) {
+        Bucket bucket = toRead.get(nextToSchedule);
+        // the bucket being read counts against the limit, but always allow one bucket so reads make progress
+        if (bytesInMemory > 0 && bytesInMemory + bucket.bytesInMemory > maxBytesInMemory) {
+          break;
+        }
+        bytesInMemory += bucket.bytesInMemory;
+        pending.add(executor.submit(bucket::readAndSort));
+        pendingBuckets.add(bucket);
+        nextToSchedule++;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (current != null && index < current.keys.length) {
+        return true;
+      }
+      if (current != null) {
+        release();
+      }
+      if (pending.isEmpty()) {
+        return false;
+      }
+      try {
+        current = pending.poll().get();
+        currentBucket = pendingBuckets.poll();
+        index = 0;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throwFatalException(e);
+      } catch (ExecutionException e) {
+        throwFatalException(e.getCause());
+      }
+      scheduleReads();
+      return hasNext();
+    }
+
+    private void release() {
+      try {
+        ByteBufferUtil.free(current.data);
+      } catch (IOException e) {
+        LOGGER.info("Unable to free bucket buffer", e);
+      }
+      bytesInMemory -= currentBucket.bytesInMemory;
+      current = null;
+      currentBucket = null;
+      scheduleReads();
+    }
+
+    @Override
+    public SortableFeature next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ByteBuffer data = current.data;
+      int offset = current.offsets[index];
+      byte[] value = new byte[data.getInt(offset + Long.BYTES)];
+      data.get(offset + Long.BYTES + Integer.BYTES, value);
+      return new SortableFeature(current.keys[index++], value);
+    }
+  }
+
+  /**
+   * Writer that a single thread can use to write features independent of writers used in other threads, buffering
+   * features for each bucket so the shared bucket files only get locked once per full buffer.
+   */
+  @NotThreadSafe
+  private class ThreadLocalWriter implements CloseableConusmer<SortableFeature> {
+
+    private final ByteBuffer[] buffers = new ByteBuffer[initialBuckets.length];
+    private final long[] items = new long[initialBuckets.length];
+    private final long[] memory = new long[initialBuckets.length];
+    private final long[] minRanks = new long[initialBuckets.length];
+    private final long[] maxRanks = new long[initialBuckets.length];
+
+    @Override
+    public void accept(SortableFeature item) {
+      assert buckets == null;
+      features.incrementAndGet();
+      long rank = ranks.rank(item.key());
+      int bucket = (int) (rank * initialBuckets.length / ranks.total());
+      int length = recordLength(item.value().length);
+      try {
+        ByteBuffer buffer = buffers[bucket];
+        if (buffer == null) {
+          buffer = buffers[bucket] = ByteBuffer.allocate(Math.max(WRITE_BUFFER_BYTES, length));
+          minRanks[bucket] = Long.MAX_VALUE;
+          maxRanks[bucket] = Long.MIN_VALUE;
+        } else if (buffer.remaining() < length) {
+          flush(bucket);
+          buffer = buffers[bucket];
+          if (buffer.capacity() < length) {
+            buffer = buffers[bucket] = ByteBuffer.allocate(length);
+          }
+        }
+        buffer.putLong(item.key());
+        buffer.putInt(item.value().length);
+        buffer.put(item.value());
+        items[bucket]++;
+        memory[bucket] += bytesInMemory(item.value().length);
+        minRanks[bucket] = Math.min(minRanks[bucket], rank);
+        maxRanks[bucket] = Math.max(maxRanks[bucket], rank);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void flush(int bucket) throws IOException {
+      ByteBuffer buffer = buffers[bucket];
+      if (buffer != null && items[bucket] > 0) {
+        buffer.flip();
+        initialBuckets[bucket].append(buffer, items[bucket], memory[bucket], minRanks[bucket], maxRanks[bucket]);
+        buffer.clear();
+        if (buffer.capacity() > WRITE_BUFFER_BYTES) {
+          buffers[bucket] = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+        }
+        items[bucket] = 0;
+        memory[bucket] = 0;
+        minRanks[bucket] = Long.MAX_VALUE;
+        maxRanks[bucket] = Long.MIN_VALUE;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (int i = 0; i < buffers.length; i++) {
+        flush(i);
+        buffers[i] = null;
+      }
+    }
+  }
+}
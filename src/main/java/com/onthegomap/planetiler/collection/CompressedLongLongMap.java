@@ -0,0 +1,360 @@
+package com.onthegomap.planetiler.collection;
+
+import static com.onthegomap.planetiler.util.MemoryEstimator.estimateSize;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A longlong map that breaks the key space into chunks of 256 like {@link SparseArrayLongLongMap}, but stores the
+ * values in each chunk as deltas from the previous value instead of raw 8-byte longs.
+ * <p>
+ * Each chunk is encoded as:
+ * <ul>
+ * <li>a byte with the number of keys present in the chunk minus 1</li>
+ * <li>if every key is present, nothing else; if fewer than 32 are present, one byte per key with its position in the
+ * chunk; otherwise a 32-byte bitmap of the positions that are present</li>
+ * <li>if there are more than 16 keys, a 2-byte offset to the start of each group of 16 values after the first</li>
+ * <li>for each key, the difference between the upper and lower 32 bits of its value and the previous value (or 0 for
+ * the first one in each group) encoded as zigzag varints</li>
+ * </ul>
+ * Consecutive node IDs in an osm.pbf file tend to be close together, so node locations encoded with
+ * {@link com.onthegomap.planetiler.geo.GeoUtils#encodeFlatLocation} take 3-5 bytes each instead of 8.
+ * <p>
+ * Each thread caches the last chunk it read from and decodes each group only as far as the keys it has requested, so a
+ * random read decodes at most 16 values, and reads of nodes in the same way that tend to be in the same chunk decode
+ * each value once.
+ * <p>
+ * NOTE: Writes must come from a single thread in ascending order by key, see {@link SegmentedWritesLongLongMap}.
+ */
+public class CompressedLongLongMap implements LongLongMap, LongLongMap.SequentialWrites {
+
+  private static final int CHUNK_BITS = 8;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int BITMAP_BYTES = CHUNK_SIZE / 8;
+  private static final int GROUP_BITS = 4;
+  private static final int GROUP_SIZE = 1 << GROUP_BITS;
+  private static final int GROUPS = CHUNK_SIZE / GROUP_SIZE;
+  // longest possible encoding of 2 varints for each value in a chunk
+  private static final int MAX_VALUE_BYTES = CHUNK_SIZE * 2 * 10;
+  // count, bitmap, and group index
+  private static final int MAX_HEADER_BYTES = 1 + BITMAP_BYTES + (GROUPS - 1) * 2;
+  private static final long LOWER_32_BIT_MASK = (1L << 32) - 1L;
+
+  // the index in the values store of the first byte of each chunk, chunks without any keys start at the same
+  // place as the next chunk
+  private final AppendStore.Longs offsets = new AppendStoreRam.Longs(false);
+  private final AppendStore.Bytes values;
+  private final ThreadLocal<Chunk> lastChunk = ThreadLocal.withInitial(Chunk::new);
+
+  // owned by the writing thread until the first read
+  private final long[] pendingValues = new long[CHUNK_SIZE];
+  private final boolean[] pendingPresent = new boolean[CHUNK_SIZE];
+  private final byte[] pendingBytes = new byte[MAX_VALUE_BYTES];
+  private final int[] pendingGroupOffsets = new int[GROUPS];
+  private int pendingCount = 0;
+  private long pendingChunk = -1;
+  private long lastKey = -1;
+  private volatile boolean prepared = false;
+
+  public CompressedLongLongMap(AppendStore.Bytes values) {
+    this.values = values;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  @Override
+  public void put(long key, long value) {
+    if (prepared) {
+      throw new IllegalStateException("Cannot write after reading");
+    }
+    if (key <= lastKey) {
+      throw new IllegalArgumentException("Nodes must be sorted ascending by ID, " + key + " came after " + lastKey);
+    }
+    lastKey = key;
+    long chunk = key >>> CHUNK_BITS;
+    if (chunk != pendingChunk) {
+      flushPendingChunk();
+      while (offsets.size() <= chunk) {
+        offsets.appendLong(values.size());
+      }
+      pendingChunk = chunk;
+    }
+    int offset = (int) (key & CHUNK_MASK);
+    pendingValues[offset] = value;
+    pendingPresent[offset] = true;
+    pendingCount++;
+  }
+
+  private void flushPendingChunk() {
+    if (pendingCount == 0) {
+      return;
+    }
+    values.appendByte((byte) (pendingCount - 1));
+    if (pendingCount < BITMAP_BYTES) {
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        if (pendingPresent[i]) {
+          values.appendByte((byte) i);
+        }
+      }
+    } else if (pendingCount < CHUNK_SIZE) {
+      for (int i = 0; i < CHUNK_SIZE; i += 8) {
+        int bits = 0;
+        for (int j = 0; j < 8; j++) {
+          if (pendingPresent[i + j]) {
+            bits |= 1 << j;
+          }
+        }
+        values.appendByte((byte) bits);
+      }
+    }
+    // encode values first to find where each group starts
+    int length = 0;
+    int rank = 0;
+    long lastHigh = 0, lastLow = 0;
+    for (int i = 0; i < CHUNK_SIZE; i++) {
+      if (pendingPresent[i]) {
+        if ((rank & (GROUP_SIZE - 1)) == 0) {
+          pendingGroupOffsets[rank >>> GROUP_BITS] = length;
+          lastHigh = lastLow = 0;
+        }
+        long value = pendingValues[i];
+        long high = value >>> 32;
+        long low = value & LOWER_32_BIT_MASK;
+        length = writeVarint(zigzag(high - lastHigh), pendingBytes, length);
+        length = writeVarint(zigzag(low - lastLow), pendingBytes, length);
+        lastHigh = high;
+        lastLow = low;
+        rank++;
+      }
+    }
+    int groups = (pendingCount + GROUP_SIZE - 1) >>> GROUP_BITS;
+    for (int group = 1; group < groups; group++) {
+      int offset = pendingGroupOffsets[group];
+      values.appendByte((byte) (offset >>> 8));
+      values.appendByte((byte) offset);
+    }
+    for (int i = 0; i < length; i++) {
+      values.appendByte(pendingBytes[i]);
+    }
+    Arrays.fill(pendingPresent, false);
+    pendingCount = 0;
+  }
+
+  private static int writeVarint(long value, byte[] dest, int position) {
+    while ((value & ~0x7FL) != 0) {
+      dest[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    dest[position++] = (byte) value;
+    return position;
+  }
+
+  private void prepare() {
+    if (!prepared) {
+      synchronized (this) {
+        if (!prepared) {
+          flushPendingChunk();
+          prepared = true;
+        }
+      }
+    }
+  }
+
+  @Override
+  public long get(long key) {
+    prepare();
+    long chunk = key >>> CHUNK_BITS;
+    Chunk cached = lastChunk.get();
+    if (cached.chunk != chunk) {
+      if (chunk >= offsets.size()) {
+        return MISSING_VALUE;
+      }
+      long start = offsets.getLong(chunk);
+      long end = chunk >= offsets.size() - 1 ? values.size() : offsets.getLong(chunk + 1);
+      if (start >= end) {
+        return MISSING_VALUE;
+      }
+      cached.load(chunk, start, (int) (end - start));
+    }
+    return cached.get((int) (key & CHUNK_MASK));
+  }
+
+  @Override
+  public long diskUsageBytes() {
+    return values.diskUsageBytes();
+  }
+
+  @Override
+  public long estimateMemoryUsageBytes() {
+    return values.estimateMemoryUsageBytes() + estimateSize(offsets);
+  }
+
+  @Override
+  public void close() throws IOException {
+    values.close();
+    offsets.close();
+  }
+
+  /**
+   * The last chunk that a thread read from, where each group gets decoded lazily up to the highest key requested from
+   * it so far.
+   */
+  private class Chunk {
+
+    private final long[] values = new long[CHUNK_SIZE];
+    // where to continue decoding each group from
+    private final int[] groupPositions = new int[GROUPS];
+    private final int[] groupDecoded = new int[GROUPS];
+    private final long[] groupHigh = new long[GROUPS];
+    private final long[] groupLow = new long[GROUPS];
+    // which keys are present, to find the index of a key in the order values are stored
+    private final long[] bitmap = new long[CHUNK_SIZE / 64];
+    private byte[] buffer = new byte[1024];
+    private long chunk = -1;
+    private long start;
+    private int length;
+    private int groups;
+    private int count;
+    private int position;
+
+    void load(long chunk, long start, int length) {
+      this.chunk = -1;
+      if (buffer.length < length) {
+        buffer = new byte[Math.max(length, buffer.length * 2)];
+      }
+      // only copy the header now, and copy each group of values the first time it gets read from
+      CompressedLongLongMap.this.values.getBytes(start, buffer, 0, Math.min(length, MAX_HEADER_BYTES));
+      this.start = start;
+      this.length = length;
+      position = 0;
+      count = (buffer[position++] & 0xFF) + 1;
+      if (count < BITMAP_BYTES) {
+        Arrays.fill(bitmap, 0);
+        for (int i = 0; i < count; i++) {
+          int offset = buffer[position++] & 0xFF;
+          bitmap[offset >>> 6] |= 1L << offset;
+        }
+      } else if (count < CHUNK_SIZE) {
+        for (int i = 0; i < bitmap.length; i++) {
+          long word = 0;
+          for (int j = 0; j < 8; j++) {
+            word |= (buffer[position++] & 0xFFL) << (j * 8);
+          }
+          bitmap[i] = word;
+        }
+      }
+      groups = (count + GROUP_SIZE - 1) >>> GROUP_BITS;
+      int valuesStart = position + (groups - 1) * 2;
+      groupPositions[0] = valuesStart;
+      for (int group = 1; group < groups; group++) {
+        groupPositions[group] = valuesStart + (((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF));
+        position += 2;
+      }
+      for (int group = 0; group < groups; group++) {
+        groupDecoded[group] = group << GROUP_BITS;
+        groupHigh[group] = groupLow[group] = 0;
+      }
+      this.chunk = chunk;
+    }
+
+    /** Returns the index of the key at {@code offset} in the order values are stored, or -1 if it is missing. */
+    private int rank(int offset) {
+      if (count == CHUNK_SIZE) {
+        return offset;
+      }
+      int word = offset >>> 6;
+      long bit = 1L << offset;
+      if ((bitmap[word] & bit) == 0) {
+        return -1;
+      }
+      int rank = Long.bitCount(bitmap[word] & (bit - 1));
+      for (int i = 0; i < word; i++) {
+        rank += Long.bitCount(bitmap[i]);
+      }
+      return rank;
+    }
+
+    long get(int offset) {
+      int rank = rank(offset);
+      if (rank < 0) {
+        return MISSING_VALUE;
+      }
+      int group = rank >>> GROUP_BITS;
+      int decoded = groupDecoded[group];
+      if (decoded <= rank) {
+        position = groupPositions[group];
+        if (decoded == group << GROUP_BITS) {
+          int end = group + 1 < groups ? groupPositions[group + 1] : length;
+          CompressedLongLongMap.this.values.getBytes(start + position, buffer, position, end - position);
+        }
+        long high = groupHigh[group], low = groupLow[group];
+        while (decoded <= rank) {
+          high += unzigzag(readVarint());
+          low += unzigzag(readVarint());
+          values[decoded++] = (high << 32) | (low & LOWER_32_BIT_MASK);
+        }
+        groupPositions[group] = position;
+        groupDecoded[group] = decoded;
+        groupHigh[group] = high;
+        groupLow[group] = low;
+      }
+      return values[rank];
+    }
+
+    private long readVarint() {
+      // differences between 32-bit halves of node locations take at most 5 bytes so handle those without looping
+      byte[] buf = buffer;
+      int pos = position;
+      long b = buf[pos++];
+      if (b >= 0) {
+        position = pos;
+        return b;
+      }
+      long result = b & 0x7F;
+      b = buf[pos++];
+      if (b >= 0) {
+        position = pos;
+        return result | (b << 7);
+      }
+      result |= (b & 0x7F) << 7;
+      b = buf[pos++];
+      if (b >= 0) {
+        position = pos;
+        return result | (b << 14);
+      }
+      result |= (b & 0x7F) << 14;
+      b = buf[pos++];
+      if (b >= 0) {
+        position = pos;
+        return result | (b << 21);
+      }
+      result |= (b & 0x7F) << 21;
+      b = buf[pos++];
+      if (b >= 0) {
+        position = pos;
+        return result | (b << 28);
+      }
+      return readVarintSlow();
+    }
+
+    private long readVarintSlow() {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = buffer[position++];
+        result |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return result;
+        }
+      }
+      throw new IllegalStateException("Malformed varint in chunk " + chunk);
+    }
+  }
+}
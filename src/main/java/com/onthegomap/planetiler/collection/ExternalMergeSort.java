@@ -2,6 +2,7 @@ package com.onthegomap.planetiler.collection;
 
 import static com.onthegomap.planetiler.util.Exceptions.throwFatalException;
 
+import com.carrotsearch.hppc.sorting.QuickSort;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.stats.ProcessInfo;
 import com.onthegomap.planetiler.stats.ProgressLoggers;
@@ -29,14 +30,22 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -53,8 +62,15 @@ import org.slf4j.LoggerFactory;
  * more data than fits in RAM.
  * <p>
  * Writes append features to a "chunk" file that can be sorted with a fixed amount of RAM, then starts writing to a new
- * chunk. The sort process sorts the chunks, limiting the number of parallel threads by CPU cores and available RAM.
- * Reads do a k-way merge of the sorted chunks using a priority queue of minimum values from each.
+ * chunk, alternating between temp directories when there are several to spread IO across disks. With
+ * {@link PlanetilerConfig#sortBackgroundThreads()} set, each full chunk gets handed off to a small pool of background
+ * threads that sort it while writers keep going, so by the time all writers finish only the last partially-filled
+ * chunks from each writer are left. The sort process sorts the rest of the chunks, limiting the number of parallel
+ * threads by CPU cores and available RAM.
+ * Each chunk gets sorted by reading its serialized features into a single off-heap buffer and {@link RadixSort radix
+ * sorting} an index of the key and offset of each feature, so features never get materialized as objects on the heap.
+ * Reads do a k-way merge of the sorted chunks using a {@link LongMerger tournament tree} of minimum values from each,
+ * with background threads reading batches of features from each chunk ahead of when the merge needs them.
  * <p>
  * Only supports single-threaded writes and reads.
  */
@@ -63,7 +79,10 @@ class ExternalMergeSort implements FeatureSort {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ExternalMergeSort.class);
   private static final long MAX_CHUNK_SIZE = 2_000_000_000; // 2GB
-  private final Path dir;
+  // read features from each chunk in batches of roughly this size, up to PREFETCH_BATCHES batches ahead of the merge
+  private static final int PREFETCH_BATCH_BYTES = 128_000;
+  private static final int PREFETCH_BATCHES = 2;
+  private final List<Path> dirs;
   private final Stats stats;
   private final int chunkSizeLimit;
   private final int workers;
@@ -75,14 +94,19 @@ class ExternalMergeSort implements FeatureSort {
   private final int readerLimit;
   private final int writerLimit;
   private final boolean mmapIO;
-  private final boolean parallelSort;
+  private final SortAlgorithm sortAlgorithm;
   private final boolean madvise;
   private final AtomicBoolean madviseFailed = new AtomicBoolean(false);
+  // sorts full chunks while writers are still adding features, or null if disabled
+  private final ExecutorService backgroundSorter;
+  private final List<Future<?>> backgroundSorts = new CopyOnWriteArrayList<>();
+  private final AtomicLong backgroundSortNanos = new AtomicLong(0);
+  private volatile boolean acceptingBackgroundSorts = true;
   private volatile boolean sorted = false;
 
-  ExternalMergeSort(Path tempDir, PlanetilerConfig config, Stats stats) {
+  ExternalMergeSort(List<Path> tempDirs, PlanetilerConfig config, Stats stats) {
     this(
-      tempDir,
+      tempDirs,
       config.threads(),
       (int) Math.min(
         MAX_CHUNK_SIZE,
@@ -91,19 +115,22 @@ class ExternalMergeSort implements FeatureSort {
       config.gzipTempStorage(),
       config.mmapTempStorage(),
       true,
-      true,
+      SortAlgorithm.from(config.sortAlgorithm()),
       config,
       stats
     );
   }
 
-  ExternalMergeSort(Path dir, int workers, int chunkSizeLimit, boolean gzip, boolean mmap, boolean parallelSort,
-    boolean madvise, PlanetilerConfig config, Stats stats) {
+  ExternalMergeSort(List<Path> dirs, int workers, int chunkSizeLimit, boolean gzip, boolean mmap, boolean madvise,
+    SortAlgorithm sortAlgorithm, PlanetilerConfig config, Stats stats) {
     this.config = config;
     this.madvise = madvise;
-    this.dir = dir;
+    this.sortAlgorithm = sortAlgorithm;
+    if (dirs.isEmpty()) {
+      throw new IllegalArgumentException("No temp directories");
+    }
+    this.dirs = dirs;
     this.stats = stats;
-    this.parallelSort = parallelSort;
     this.chunkSizeLimit = chunkSizeLimit;
     if (gzip && mmap) {
       LOGGER.warn("--gzip-temp option not supported with --mmap-temp, falling back to --gzip-temp=false");
@@ -119,10 +146,29 @@ class ExternalMergeSort implements FeatureSort {
     this.workers = Math.min(workers, maxWorkersBasedOnMemory);
     this.readerLimit = Math.max(1, config.sortMaxReaders());
     this.writerLimit = Math.max(1, config.sortMaxWriters());
-    LOGGER.info("Using merge sort feature map, chunk size={}mb max workers={}", chunkSizeLimit / 1_000_000, workers);
+    // each background sort holds a whole chunk in memory, so limit it to what the sort stage could use
+    int backgroundThreads = Math.min(config.sortBackgroundThreads(), this.workers);
+    if (backgroundThreads > 0) {
+      var threadNum = new AtomicInteger(0);
+      var executor = new ThreadPoolExecutor(backgroundThreads, backgroundThreads, 1, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "sort_background-" + threadNum.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+      // threads exit when idle so there is nothing to shut down
+      executor.allowCoreThreadTimeOut(true);
+      this.backgroundSorter = executor;
+    } else {
+      this.backgroundSorter = null;
+    }
+    LOGGER.info("Using merge sort feature map, chunk size={}mb max workers={} sort={}", chunkSizeLimit / 1_000_000,
+      workers, sortAlgorithm.id());
     try {
-      FileUtils.deleteDirectory(dir);
-      Files.createDirectories(dir);
+      for (Path dir : dirs) {
+        FileUtils.deleteDirectory(dir);
+        Files.createDirectories(dir);
+      }
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -144,7 +190,7 @@ class ExternalMergeSort implements FeatureSort {
 
   @Override
   public long diskUsageBytes() {
-    return FileUtils.directorySize(dir);
+    return dirs.stream().mapToLong(FileUtils::directorySize).sum();
   }
 
   @Override
@@ -152,6 +198,19 @@ class ExternalMergeSort implements FeatureSort {
     return 0;
   }
 
+  /** Sorts a full chunk in a background thread while writers are still adding features to other chunks. */
+  private void sortInBackground(Chunk chunk) {
+    if (backgroundSorter != null) {
+      backgroundSorts.add(backgroundSorter.submit(() -> {
+        // once the sort stage starts, it sorts any chunks that are still waiting itself
+        if (acceptingBackgroundSorts) {
+          time(backgroundSortNanos, () -> chunk.readAllAndMergeIn(List.of()).sort().flush());
+          chunk.presorted = true;
+        }
+      }));
+    }
+  }
+
   @Override
   public void sort() {
     assert !sorted;
@@ -163,6 +222,18 @@ class ExternalMergeSort implements FeatureSort {
       }
     }
     var timer = stats.startStage("sort");
+    acceptingBackgroundSorts = false;
+    for (var future : backgroundSorts) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throwFatalException(e);
+      } catch (ExecutionException e) {
+        throwFatalException(e.getCause());
+      }
+    }
+    List<Chunk> unsorted = chunks.stream().filter(chunk -> !chunk.presorted).toList();
     Semaphore readSemaphore = new Semaphore(readerLimit);
     Semaphore writeSemaphore = new Semaphore(writerLimit);
     AtomicLong reading = new AtomicLong(0);
@@ -174,12 +245,13 @@ class ExternalMergeSort implements FeatureSort {
     // so group together smaller chunks that can be sorted together in-memory to minimize the
     // number of chunks that the reader needs to deal with
     List<List<ExternalMergeSort.Chunk>> groups = BinPack.pack(
-      chunks,
+      unsorted,
       chunkSizeLimit,
       chunk -> chunk.bytesInMemory
     );
 
-    LOGGER.info("Grouped {} chunks into {}", chunks.size(), groups.size());
+    LOGGER.info("Grouped {} chunks into {}, {} were already sorted in the background in {}s", unsorted.size(),
+      groups.size(), chunks.size() - unsorted.size(), Duration.ofNanos(backgroundSortNanos.get()).toSeconds());
 
     var pipeline = WorkerPipeline.start("sort", stats)
       .readFromTiny("item_queue", groups)
@@ -245,14 +317,33 @@ class ExternalMergeSort implements FeatureSort {
       return Collections.emptyIterator();
     }
 
-    // k-way merge to interleave all the sorted chunks
-    List<Reader> iterators = new ArrayList<>();
+    List<Chunk> toRead = new ArrayList<>();
     for (int i = shard; i < chunks.size(); i += shards) {
       var chunk = chunks.get(i);
       if (chunk.itemCount > 0) {
-        iterators.add(chunk.newReader());
+        toRead.add(chunk);
       }
     }
+    if (toRead.isEmpty()) {
+      return Collections.emptyIterator();
+    }
+
+    // threads exit when they are idle so there's nothing to shut down if the consumer stops reading early
+    int threads = Math.min(readerLimit, toRead.size());
+    var prefetchThreadNum = new AtomicInteger(0);
+    var prefetchExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+      runnable -> {
+        Thread thread = new Thread(runnable, "sort_prefetch-" + shard + "-" + prefetchThreadNum.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    prefetchExecutor.allowCoreThreadTimeOut(true);
+
+    // k-way merge to interleave all the sorted chunks
+    List<Reader> iterators = new ArrayList<>();
+    for (Chunk chunk : toRead) {
+      iterators.add(new PrefetchingReader(chunk.newReader(), prefetchExecutor));
+    }
 
     return LongMerger.mergeIterators(iterators);
   }
@@ -271,9 +362,76 @@ class ExternalMergeSort implements FeatureSort {
     }
   }
 
+  /** How to sort the index of features in each chunk. */
+  enum SortAlgorithm {
+    /** Single-threaded {@link RadixSort}. */
+    RADIX("radix"),
+    /**
+     * {@link RadixSort} that splits the work up between threads in the common fork-join pool, which oversubscribes CPUs
+     * when several sort workers use it at once.
+     */
+    PARALLEL_RADIX("parallel_radix"),
+    /** Single-threaded quicksort that compares keys, then offsets to preserve the order of equal keys. */
+    COMPARISON("comparison");
+
+    private final String id;
+
+    SortAlgorithm(String id) {
+      this.id = id;
+    }
+
+    public String id() {
+      return id;
+    }
+
+    /**
+     * Returns the algorithm associated with {@code id} or throws {@link IllegalArgumentException} if no match is
+     * found.
+     */
+    public static SortAlgorithm from(String id) {
+      for (SortAlgorithm value : values()) {
+        if (value.id.equalsIgnoreCase(id.trim())) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Unexpected sort algorithm: " + id);
+    }
+
+    /**
+     * Sorts the first {@code length} elements of {@code keys} and moves {@code offsets} along with them. Equal keys stay
+     * in the order they were written since chunks add features at increasing offsets.
+     */
+    void sort(long[] keys, int[] offsets, int length) {
+      switch (this) {
+        case RADIX -> RadixSort.sort(keys, offsets, length);
+        case PARALLEL_RADIX -> RadixSort.parallelSort(keys, offsets, length);
+        case COMPARISON -> QuickSort.sort(0, length, (a, b) -> {
+          int result = Long.compare(keys[a], keys[b]);
+          return result == 0 ? Integer.compare(offsets[a], offsets[b]) : result;
+        }, (a, b) -> {
+          long key = keys[a];
+          keys[a] = keys[b];
+          keys[b] = key;
+          int offset = offsets[a];
+          offsets[a] = offsets[b];
+          offsets[b] = offset;
+          return 0;
+        });
+      }
+    }
+  }
+
   private interface Writer extends Closeable {
 
     void write(SortableFeature feature) throws IOException;
+
+    /** Copies the serialized feature that starts at {@code offset} in {@code data}. */
+    void write(ByteBuffer data, int offset) throws IOException;
+  }
+
+  /** Returns the number of bytes used to serialize a feature with {@code valueLength} bytes of data. */
+  private static int recordLength(int valueLength) {
+    return Long.BYTES + Integer.BYTES + valueLength;
   }
 
   private interface Reader extends Closeable, Iterator<SortableFeature> {
@@ -282,6 +440,121 @@ class ExternalMergeSort implements FeatureSort {
     void close();
   }
 
+  /**
+   * Reads batches of features from another reader in a background thread ahead of when they are needed, so the thread
+   * doing the merge only has to pull already-decoded features out of memory.
+   * <p>
+   * At most one task fills each reader at a time, and it stops when {@link #PREFETCH_BATCHES} batches are waiting to be
+   * consumed. The consumer schedules another task each time it takes a batch.
+   */
+  private static class PrefetchingReader implements Reader {
+
+    private static final List<SortableFeature> END = List.of();
+    private final Reader source;
+    private final Executor executor;
+    // one extra slot so there is always room for END after the last batch
+    private final BlockingQueue<List<SortableFeature>> batches = new ArrayBlockingQueue<>(PREFETCH_BATCHES + 1);
+    private final AtomicBoolean filling = new AtomicBoolean(false);
+    private volatile boolean sourceDone = false;
+    private volatile boolean closed = false;
+    private volatile Throwable error = null;
+    private List<SortableFeature> batch = null;
+    private int index = 0;
+
+    PrefetchingReader(Reader source, Executor executor) {
+      this.source = source;
+      this.executor = executor;
+      scheduleFill();
+    }
+
+    private void scheduleFill() {
+      if (!sourceDone && filling.compareAndSet(false, true)) {
+        executor.execute(this::fill);
+      }
+    }
+
+    private void fill() {
+      do {
+        try {
+          while (!sourceDone && !closed && batches.remainingCapacity() > 1) {
+            List<SortableFeature> result = new ArrayList<>();
+            long bytes = 0;
+            while (bytes < PREFETCH_BATCH_BYTES && source.hasNext()) {
+              SortableFeature feature = source.next();
+              result.add(feature);
+              bytes += recordLength(feature.value().length);
+            }
+            if (!result.isEmpty()) {
+              batches.add(result);
+            }
+            if (!source.hasNext()) {
+              sourceDone = true;
+              batches.add(END);
+            }
+          }
+        } catch (Throwable e) { // NOSONAR - rethrown by the consumer
+          error = e;
+          sourceDone = true;
+          batches.offer(END);
+        }
+        filling.set(false);
+        // close() may have been called while this task was reading, when it could not close the source itself
+        if (closed) {
+          closeSourceIfUnclaimed();
+          return;
+        }
+        // the consumer may have taken a batch after the loop exited but before the flag was cleared
+      } while (!sourceDone && batches.remainingCapacity() > 1 && filling.compareAndSet(false, true));
+    }
+
+    /**
+     * Closes the source unless a fill task is reading from it, in which case that task closes it when it finishes.
+     * Whichever thread gets here first claims the flag forever so the source gets closed exactly once.
+     */
+    private void closeSourceIfUnclaimed() {
+      if (filling.compareAndSet(false, true) && !sourceDone) {
+        sourceDone = true;
+        source.close();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (batch != null && index < batch.size()) {
+        return true;
+      }
+      if (batch == END) {
+        return false;
+      }
+      try {
+        batch = batches.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+      index = 0;
+      scheduleFill();
+      if (batch == END && error != null) {
+        throwFatalException(error);
+      }
+      return batch != END;
+    }
+
+    @Override
+    public SortableFeature next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return batch.get(index++);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      closeSourceIfUnclaimed();
+    }
+  }
+
   /** Compresses bytes with minimal impact on write performance. Equivalent to {@code gzip -1} */
   private static class FastGzipOutputStream extends GZIPOutputStream {
 
@@ -343,6 +616,7 @@ class ExternalMergeSort implements FeatureSort {
   private static class WriterBuffered implements Writer {
 
     private final DataOutputStream out;
+    private byte[] copyBuffer = new byte[1024];
 
     WriterBuffered(Path path, boolean gzip) {
       try {
@@ -367,6 +641,16 @@ class ExternalMergeSort implements FeatureSort {
       out.writeInt(feature.value().length);
       out.write(feature.value());
     }
+
+    @Override
+    public void write(ByteBuffer data, int offset) throws IOException {
+      int length = recordLength(data.getInt(offset + Long.BYTES));
+      if (copyBuffer.length < length) {
+        copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+      }
+      data.get(offset, copyBuffer, 0, length);
+      out.write(copyBuffer, 0, length);
+    }
   }
 
   /** Common functionality between {@link ReaderMmap} and {@link ReaderBuffered}. */
@@ -423,10 +707,14 @@ class ExternalMergeSort implements FeatureSort {
     }
 
     private void newChunk() throws IOException {
-      Path chunkPath = dir.resolve("chunk" + chunkNum.incrementAndGet());
+      // round-robin chunks between temp directories to spread IO across disks
+      int num = chunkNum.incrementAndGet();
+      Path chunkPath = dirs.get(num % dirs.size()).resolve("chunk" + num);
       FileUtils.deleteOnExit(chunkPath);
       if (currentChunk != null) {
         currentChunk.close();
+        // a full chunk won't get grouped with any others, so it can be sorted now
+        sortInBackground(currentChunk);
       }
       chunks.add(currentChunk = new Chunk(chunkPath));
     }
@@ -473,6 +761,13 @@ class ExternalMergeSort implements FeatureSort {
       buffer.putInt(feature.value().length);
       buffer.put(feature.value());
     }
+
+    @Override
+    public void write(ByteBuffer data, int offset) throws IOException {
+      int length = recordLength(data.getInt(offset + Long.BYTES));
+      buffer.put(buffer.position(), data, offset, length);
+      buffer.position(buffer.position() + length);
+    }
   }
 
   /**
@@ -484,7 +779,12 @@ class ExternalMergeSort implements FeatureSort {
     private final Writer writer;
     // estimate how much RAM it would take to sort this chunk
     private int bytesInMemory = 0;
+    // uncompressed size of the serialized features
+    private int bytes = 0;
     private int itemCount = 0;
+    private boolean closed = false;
+    // set by the background sorter, visible to the sort stage after it waits for background sorts to finish
+    private boolean presorted = false;
 
     private Chunk(Path path) {
       this.path = path;
@@ -493,41 +793,40 @@ class ExternalMergeSort implements FeatureSort {
 
     public void add(SortableFeature entry) throws IOException {
       writer.write(entry);
+      int length = recordLength(entry.value().length);
+      bytes += length;
       bytesInMemory +=
-        // pointer to feature
-        8 +
-          // Feature class overhead
-          16 +
-          // long sort member of feature
-          8 +
-          // byte array pointer
-          8 +
-          // byte array size
-          24 + entry.value().length;
+        // serialized feature in the off-heap buffer
+        length +
+          // key and offset in the index, plus the same again for the radix sort scratch space
+          2 * (Long.BYTES + Integer.BYTES);
       itemCount++;
     }
 
     private SortableChunk readAllAndMergeIn(Collection<Chunk> others) {
       // first, grow this chunk
       int newItems = itemCount;
-      int newBytes = bytesInMemory;
+      int newBytesInMemory = bytesInMemory;
+      int newBytes = bytes;
       for (var other : others) {
         if (Integer.MAX_VALUE - newItems < other.itemCount) {
           throw new IllegalStateException("Too many items in merged chunk: " + itemCount + "+" +
             others.stream().map(c -> c.itemCount).toList());
         }
-        if (Integer.MAX_VALUE - newBytes < other.bytesInMemory) {
+        if (Integer.MAX_VALUE - newBytesInMemory < other.bytesInMemory) {
           throw new IllegalStateException("Too big merged chunk: " + bytesInMemory + "+" +
             others.stream().map(c -> c.bytesInMemory).toList());
         }
         newItems += other.itemCount;
-        newBytes += other.bytesInMemory;
+        newBytesInMemory += other.bytesInMemory;
+        newBytes += other.bytes;
       }
       // then read items from all chunks into memory
-      SortableChunk result = new SortableChunk(newItems);
+      SortableChunk result = new SortableChunk(newItems, newBytes);
       result.readAll(this);
       itemCount = newItems;
-      bytesInMemory = newBytes;
+      bytesInMemory = newBytesInMemory;
+      bytes = newBytes;
       for (var other : others) {
         result.readAll(other);
       }
@@ -546,8 +845,11 @@ class ExternalMergeSort implements FeatureSort {
     }
 
     @Override
-    public void close() throws IOException {
-      writer.close();
+    public synchronized void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        writer.close();
+      }
     }
 
     public void remove() {
@@ -556,32 +858,38 @@ class ExternalMergeSort implements FeatureSort {
     }
 
     /**
-     * A container for all features in a chunk read into memory for sorting.
+     * A container for all features in a chunk read into a single off-heap buffer for sorting.
+     * <p>
+     * Only the index of keys and offsets into the buffer gets sorted, then features are copied from the buffer to the
+     * chunk file in sorted order.
      */
     private class SortableChunk {
 
-      private SortableFeature[] featuresToSort;
+      private ByteBuffer data;
+      private long[] keys;
+      private int[] offsets;
       private int i = 0;
 
-      private SortableChunk(int itemCount) {
-        this.featuresToSort = new SortableFeature[itemCount];
+      private SortableChunk(int itemCount, int bytes) {
+        this.data = ByteBuffer.allocateDirect(bytes);
+        this.keys = new long[itemCount];
+        this.offsets = new int[itemCount];
       }
 
       public SortableChunk sort() {
-        if (parallelSort) {
-          Arrays.parallelSort(featuresToSort);
-        } else {
-          Arrays.sort(featuresToSort);
-        }
+        sortAlgorithm.sort(keys, offsets, i);
         return this;
       }
 
       public SortableChunk flush() {
         try (Writer out = newWriter(path)) {
-          for (SortableFeature feature : featuresToSort) {
-            out.write(feature);
+          for (int j = 0; j < i; j++) {
+            out.write(data, offsets[j]);
           }
-          featuresToSort = null;
+          ByteBufferUtil.free(data);
+          data = null;
+          keys = null;
+          offsets = null;
           return this;
         } catch (IOException e) {
           throw new UncheckedIOException(e);
@@ -589,10 +897,33 @@ class ExternalMergeSort implements FeatureSort {
       }
 
       private void readAll(Chunk chunk) {
-        try (var iterator = chunk.newReader()) {
-          while (iterator.hasNext()) {
-            featuresToSort[i++] = iterator.next();
+        int start = data.position();
+        try {
+          if (gzip) {
+            try (var input = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(chunk.path)))) {
+              byte[] buffer = new byte[1 << 16];
+              int read;
+              while ((read = input.read(buffer)) > 0) {
+                data.put(buffer, 0, read);
+              }
+            }
+          } else {
+            try (var channel = FileChannel.open(chunk.path, StandardOpenOption.READ)) {
+              while (data.position() - start < chunk.bytes && channel.read(data) >= 0) {
+                // keep reading
+              }
+            }
           }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        if (data.position() - start != chunk.bytes) {
+          throw new IllegalStateException(
+            "Expected " + chunk.bytes + " bytes in " + chunk.path + " got " + (data.position() - start));
+        }
+        for (int offset = start; offset < data.position(); offset += recordLength(data.getInt(offset + Long.BYTES))) {
+          keys[i] = data.getLong(offset);
+          offsets[i++] = offset;
         }
       }
     }
@@ -0,0 +1,81 @@
+package com.onthegomap.planetiler.collection;
+
+import com.onthegomap.planetiler.VectorTile;
+import com.onthegomap.planetiler.render.RenderedFeature;
+import com.onthegomap.planetiler.util.CommonStringEncoder;
+import java.io.Closeable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Serializes the value portion of rendered vector tile features that {@link FeatureGroup} stores in temporary storage
+ * until tile encoding time.
+ * <p>
+ * The layer, sort key, and whether a feature has group info are stored in the {@link SortableFeature#key()} so
+ * implementations only need to encode the group, ID, geometry, and attributes.
+ */
+@ThreadSafe
+public interface FeatureCodec {
+
+  /** Returns the codec identified by {@code type} that uses {@code attributeKeys} to compress attribute keys. */
+  static FeatureCodec from(Type type, CommonStringEncoder attributeKeys) {
+    return switch (type) {
+      case MSGPACK -> new MsgpackFeatureCodec(attributeKeys);
+      case BINARY -> new BinaryFeatureCodec(attributeKeys);
+    };
+  }
+
+  /** Returns a new encoder that a single thread can use to serialize features. */
+  Encoder newEncoder();
+
+  /** Returns the group information at the start of a value encoded from a feature that has a group. */
+  RenderedFeature.Group decodeGroup(byte[] encoded);
+
+  /**
+   * Returns the feature encoded in {@code encoded}.
+   *
+   * @param layer    layer name extracted from the key
+   * @param hasGroup whether the key indicates that the value starts with group info
+   * @param encoded  bytes written by {@link Encoder#encode(VectorTile.Feature, RenderedFeature.Group)}
+   */
+  VectorTile.Feature decode(String layer, boolean hasGroup, byte[] encoded);
+
+  /** Serializes features for a single thread, re-using internal buffers between calls. */
+  @NotThreadSafe
+  interface Encoder extends Closeable {
+
+    /** Returns the encoded form of {@code feature} with {@code group} info prepended if it is not null. */
+    byte[] encode(VectorTile.Feature feature, RenderedFeature.Group group);
+  }
+
+  /** Binary formats that features can be encoded with. */
+  enum Type {
+    /** Generic msgpack values. */
+    MSGPACK("msgpack"),
+    /** Purpose-built format using varints and a shared dictionary of common attribute values. */
+    BINARY("binary");
+
+    private final String id;
+
+    Type(String id) {
+      this.id = id;
+    }
+
+    public String id() {
+      return id;
+    }
+
+    /**
+     * Returns the codec type associated with {@code id} or throws {@link IllegalArgumentException} if no match is
+     * found.
+     */
+    public static Type from(String id) {
+      for (Type value : values()) {
+        if (value.id.equalsIgnoreCase(id.trim())) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Unexpected feature encoding: " + id);
+    }
+  }
+}
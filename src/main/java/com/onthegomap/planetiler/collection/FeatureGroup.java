@@ -21,20 +21,12 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.annotation.concurrent.NotThreadSafe;
-import org.msgpack.core.MessageBufferPacker;
-import org.msgpack.core.MessagePack;
-import org.msgpack.core.MessageUnpacker;
-import org.msgpack.value.Value;
-import org.msgpack.value.ValueFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,8 +35,8 @@ import org.slf4j.LoggerFactory;
  * <p>
  * Only support single-threaded writes and reads.
  * <p>
- * Limitation: layer name and attribute key strings get compressed into a single byte, so only 250 unique values are
- * supported (see {@link CommonStringEncoder})
+ * Limitation: layer names get compressed into a single byte of the sort key, so only 250 unique layers are supported.
+ * Attribute keys use one byte for the first 250 and a longer escaped ID after that (see {@link CommonStringEncoder})
  */
 @NotThreadSafe
 public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>, DiskBacked {
@@ -57,19 +49,25 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
   private final FeatureSort sorter;
   private final Profile profile;
   private final CommonStringEncoder commonStrings;
+  private final CommonStringEncoder attributeKeys;
+  private final FeatureCodec codec;
   private final Stats stats;
   private final LayerStats layerStats = new LayerStats();
   private volatile boolean prepared = false;
 
-  FeatureGroup(FeatureSort sorter, Profile profile, CommonStringEncoder commonStrings, Stats stats) {
+  FeatureGroup(FeatureSort sorter, Profile profile, FeatureCodec.Type codecType, CommonStringEncoder attributeKeys,
+    Stats stats) {
     this.sorter = sorter;
     this.profile = profile;
-    this.commonStrings = commonStrings;
+    // layers are kept separate from attribute keys so they always get a short code that fits in the sort key
+    this.commonStrings = new CommonStringEncoder();
+    this.attributeKeys = attributeKeys;
+    this.codec = FeatureCodec.from(codecType, attributeKeys);
     this.stats = stats;
   }
 
   FeatureGroup(FeatureSort sorter, Profile profile, Stats stats) {
-    this(sorter, profile, new CommonStringEncoder(), stats);
+    this(sorter, profile, FeatureCodec.Type.MSGPACK, new CommonStringEncoder(), stats);
   }
 
   /** Returns a feature grouper that stores all feature in-memory. Only suitable for toy use-cases like unit tests. */
@@ -83,9 +81,22 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
    */
   public static FeatureGroup newDiskBackedFeatureGroup(Path tempDir, Profile profile, PlanetilerConfig config,
     Stats stats) {
+    return newDiskBackedFeatureGroup(List.of(tempDir), profile, config, stats);
+  }
+
+  /**
+   * Same as {@link #newDiskBackedFeatureGroup(Path, Profile, PlanetilerConfig, Stats)} except spreads temporary files
+   * across {@code tempDirs}, which can be on different disks.
+   */
+  public static FeatureGroup newDiskBackedFeatureGroup(List<Path> tempDirs, Profile profile, PlanetilerConfig config,
+    Stats stats) {
+    FeatureSort sorter = "buckets".equals(config.featureSort()) ?
+      new BucketedFeatureSort(tempDirs, config, stats) :
+      new ExternalMergeSort(tempDirs, config, stats);
     return new FeatureGroup(
-      new ExternalMergeSort(tempDir, config, stats),
-      profile, stats
+      sorter,
+      profile, FeatureCodec.Type.from(config.featureEncoding()),
+      new CommonStringEncoder(config.attributeKeys()), stats
     );
   }
 
@@ -114,16 +125,6 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     return ((int) ((key >> 1) & SORT_KEY_MASK)) + SORT_KEY_MIN;
   }
 
-  private static RenderedFeature.Group peekAtGroupInfo(byte[] encoded) {
-    try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(encoded)) {
-      long group = unpacker.unpackLong();
-      int limit = unpacker.unpackInt();
-      return new RenderedFeature.Group(group, limit);
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-  }
-
   static GeometryType decodeGeomType(byte geomTypeAndScale) {
     return GeometryType.valueOf((byte) (geomTypeAndScale & 0b111));
   }
@@ -154,8 +155,8 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
   public RenderedFeatureEncoder newRenderedFeatureEncoder() {
     return new RenderedFeatureEncoder() {
       // This method gets called billions of times when generating the planet, so these optimizations make a big difference:
-      // 1) Re-use the same buffer packer to avoid allocating and resizing new byte arrays for every feature.
-      private final MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+      // 1) Re-use the same encoder to avoid allocating and resizing new byte arrays for every feature.
+      private final FeatureCodec.Encoder encoder = codec.newEncoder();
       // 2) Avoid a ThreadLocal lookup on every layer stats call by getting the handler for this thread once
       private final Consumer<RenderedFeature> threadLocalLayerStats = layerStats.handlerForThread();
       // 3) Avoid re-encoding values for identical filled geometries (i.e. ocean) by memoizing the encoded values
@@ -170,12 +171,12 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
         var thisFeature = feature.vectorTileFeature();
         byte[] encodedValue;
         if (group != null) { // don't bother memoizing if group is present
-          encodedValue = encodeValue(thisFeature, group, packer);
+          encodedValue = encoder.encode(thisFeature, group);
         } else if (lastFeature == thisFeature) {
           encodedValue = lastEncodedValue;
         } else { // feature changed, memoize new value
           lastFeature = thisFeature;
-          lastEncodedValue = encodedValue = encodeValue(feature.vectorTileFeature(), null, packer);
+          lastEncodedValue = encodedValue = encoder.encode(feature.vectorTileFeature(), null);
         }
 
         return new SortableFeature(encodeKey(feature), encodedValue);
@@ -183,7 +184,7 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
 
       @Override
       public void close() throws IOException {
-        packer.close();
+        encoder.close();
       }
     };
   }
@@ -199,54 +200,6 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
     );
   }
 
-  private byte[] encodeValue(VectorTile.Feature vectorTileFeature, RenderedFeature.Group group,
-    MessageBufferPacker packer) {
-    packer.clear();
-    try {
-      // hasGroup bit in key will tell consumers whether they need to decode group info from value
-      if (group != null) {
-        packer.packLong(group.group());
-        packer.packInt(group.limit());
-      }
-      packer.packLong(vectorTileFeature.id());
-      packer.packByte(encodeGeomTypeAndScale(vectorTileFeature.geometry()));
-      var attrs = vectorTileFeature.attrs();
-      packer.packMapHeader((int) attrs.values().stream().filter(Objects::nonNull).count());
-      for (Map.Entry<String, Object> entry : attrs.entrySet()) {
-        if (entry.getValue() != null) {
-          packer.packByte(commonStrings.encode(entry.getKey()));
-          Object value = entry.getValue();
-          if (value instanceof String string) {
-            packer.packValue(ValueFactory.newString(string));
-          } else if (value instanceof Integer integer) {
-            packer.packValue(ValueFactory.newInteger(integer.longValue()));
-          } else if (value instanceof Long longValue) {
-            packer.packValue(ValueFactory.newInteger(longValue));
-          } else if (value instanceof Float floatValue) {
-            packer.packValue(ValueFactory.newFloat(floatValue));
-          } else if (value instanceof Double doubleValue) {
-            packer.packValue(ValueFactory.newFloat(doubleValue));
-          } else if (value instanceof Boolean booleanValue) {
-            packer.packValue(ValueFactory.newBoolean(booleanValue));
-          } else {
-            packer.packValue(ValueFactory.newString(value.toString()));
-          }
-        }
-      }
-      // Use the same binary format for encoding geometries in output vector tiles. Benchmarking showed
-      // it was faster and smaller for encoding/decoding intermediate geometries than alternatives like WKB.
-      int[] commands = vectorTileFeature.geometry().commands();
-      packer.packArrayHeader(commands.length);
-      for (int command : commands) {
-        packer.packInt(command);
-      }
-      packer.close();
-    } catch (IOException e) {
-      throw new IllegalStateException(e);
-    }
-    return packer.toByteArray();
-  }
-
   /** Returns a new feature writer that can be used for a single thread. */
   public CloseableConusmer<SortableFeature> writerForThread() {
     return sorter.writerForThread();
@@ -324,6 +277,12 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
         if (!prepared) {
           sorter.sort();
           prepared = true;
+          List<String> spilled = attributeKeys.mostUsedLongIdStrings(50);
+          if (!spilled.isEmpty()) {
+            LOGGER.info("{} attribute keys did not fit in one-byte codes, pass the most-used ones to " +
+              "--attribute_keys to shrink temporary features: {}", attributeKeys.size() -
+              CommonStringEncoder.MAX_SHORT_CODES, String.join(",", spilled));
+          }
         }
       }
     }
@@ -372,6 +331,15 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
       return tileCoord;
     }
 
+    /** Returns the total size of the encoded features in this tile. */
+    public long getContentSizeBytes() {
+      long result = 0;
+      for (var feature : entries) {
+        result += feature.value().length;
+      }
+      return result;
+    }
+
     /**
      * Generates a hash over the feature's relevant data: layer, geometry, and attributes. The coordinates are
      * <b>not</b> part of the hash.
@@ -412,49 +380,8 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
 
 
     private VectorTile.Feature decodeVectorTileFeature(SortableFeature entry) {
-      try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(entry.value())) {
-        long group;
-        if (extractHasGroupFromKey(entry.key())) {
-          group = unpacker.unpackLong();
-          unpacker.unpackInt(); // groupLimit - features over the limit were already discarded
-        } else {
-          group = VectorTile.Feature.NO_GROUP;
-        }
-        long id = unpacker.unpackLong();
-        byte geomTypeAndScale = unpacker.unpackByte();
-        GeometryType geomType = decodeGeomType(geomTypeAndScale);
-        int scale = decodeScale(geomTypeAndScale);
-        int mapSize = unpacker.unpackMapHeader();
-        Map<String, Object> attrs = new HashMap<>(mapSize);
-        for (int i = 0; i < mapSize; i++) {
-          String key = commonStrings.decode(unpacker.unpackByte());
-          Value v = unpacker.unpackValue();
-          if (v.isStringValue()) {
-            attrs.put(key, v.asStringValue().asString());
-          } else if (v.isIntegerValue()) {
-            attrs.put(key, v.asIntegerValue().toLong());
-          } else if (v.isFloatValue()) {
-            attrs.put(key, v.asFloatValue().toDouble());
-          } else if (v.isBooleanValue()) {
-            attrs.put(key, v.asBooleanValue().getBoolean());
-          }
-        }
-        int commandSize = unpacker.unpackArrayHeader();
-        int[] commands = new int[commandSize];
-        for (int i = 0; i < commandSize; i++) {
-          commands[i] = unpacker.unpackInt();
-        }
-        String layer = commonStrings.decode(extractLayerIdFromKey(entry.key()));
-        return new VectorTile.Feature(
-          layer,
-          id,
-          new VectorTile.VectorGeometry(commands, geomType, scale),
-          attrs,
-          group
-        );
-      } catch (IOException e) {
-        throw new IllegalStateException(e);
-      }
+      String layer = commonStrings.decode(extractLayerIdFromKey(entry.key()));
+      return codec.decode(layer, extractHasGroupFromKey(entry.key()), entry.value());
     }
 
     public VectorTile getVectorTileEncoder() {
@@ -517,7 +444,7 @@ public final class FeatureGroup implements Iterable<FeatureGroup.TileFeatures>,
           lastLayer = thisLayer;
           counts.clear();
         }
-        var groupInfo = peekAtGroupInfo(entry.value());
+        var groupInfo = codec.decodeGroup(entry.value());
         long old = counts.getOrDefault(groupInfo.group(), 0);
         if (groupInfo.limit() > 0 && old >= groupInfo.limit()) {
           // discard if there are to many features in this group already
@@ -0,0 +1,81 @@
+package com.onthegomap.planetiler.collection;
+
+import com.onthegomap.planetiler.util.MemoryEstimator;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A set of non-negative {@code long} values stored as one bit each, in fixed-size pages that only get allocated once a
+ * value in their range is added.
+ * <p>
+ * Multiple threads can add values concurrently without locking. Reads are only guaranteed to see values added by other
+ * threads after those threads have finished, for example after the worker pipeline that added them completes.
+ * <p>
+ * OSM node IDs are dense enough that this takes roughly {@code maxId / 8} bytes, which is around 1.5GB for the planet.
+ */
+@ThreadSafe
+public class LongBitSet implements MemoryEstimator.HasEstimate {
+
+  private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+  // each page holds 2^22 bits (512kb) so the page directory can address up to 2^40 values
+  private static final int PAGE_BITS = 22;
+  private static final int WORDS_PER_PAGE = 1 << (PAGE_BITS - 6);
+  private static final int MAX_PAGES = 1 << 18;
+  private static final long MAX_VALUE = ((long) MAX_PAGES << PAGE_BITS) - 1;
+  private final AtomicReferenceArray<long[]> pages = new AtomicReferenceArray<>(MAX_PAGES);
+  private final AtomicLong allocatedPages = new AtomicLong(0);
+
+  /** Adds {@code value} to the set. */
+  public void set(long value) {
+    if (value < 0 || value > MAX_VALUE) {
+      throw new IllegalArgumentException("Value must be between 0 and " + MAX_VALUE + ", was " + value);
+    }
+    int pageIndex = (int) (value >>> PAGE_BITS);
+    long[] page = pages.get(pageIndex);
+    if (page == null) {
+      long[] newPage = new long[WORDS_PER_PAGE];
+      page = pages.compareAndExchange(pageIndex, null, newPage);
+      if (page == null) {
+        page = newPage;
+        allocatedPages.incrementAndGet();
+      }
+    }
+    WORDS.getAndBitwiseOr(page, wordIndex(value), 1L << value);
+  }
+
+  /** Returns {@code true} if {@code value} has been added to the set. */
+  public boolean get(long value) {
+    if (value < 0 || value > MAX_VALUE) {
+      return false;
+    }
+    long[] page = pages.get((int) (value >>> PAGE_BITS));
+    return page != null && (page[wordIndex(value)] & (1L << value)) != 0;
+  }
+
+  /** Returns the number of values in the set. */
+  public long cardinality() {
+    long result = 0;
+    for (int i = 0; i < MAX_PAGES; i++) {
+      long[] page = pages.get(i);
+      if (page != null) {
+        for (long word : page) {
+          result += Long.bitCount(word);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int wordIndex(long value) {
+    return (int) (value >>> 6) & (WORDS_PER_PAGE - 1);
+  }
+
+  @Override
+  public long estimateMemoryUsageBytes() {
+    return MemoryEstimator.estimateObjectArraySize(MAX_PAGES) +
+      allocatedPages.get() * MemoryEstimator.estimateLongArraySize(WORDS_PER_PAGE);
+  }
+}
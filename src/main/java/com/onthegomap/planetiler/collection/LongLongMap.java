@@ -45,11 +45,16 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
   static LongLongMap from(Type type, Storage storage, Storage.Params params) {
     return switch (type) {
       case NOOP -> noop();
-      case SPARSE_ARRAY -> new SparseArrayLongLongMap(AppendStore.Longs.create(storage, params));
-      case SORTED_TABLE -> new SortedTableLongLongMap(
+      case SPARSE_ARRAY -> new SegmentedWritesLongLongMap(
+        new SparseArrayLongLongMap(AppendStore.Longs.create(storage, params))
+      );
+      case COMPRESSED -> new SegmentedWritesLongLongMap(
+        new CompressedLongLongMap(AppendStore.Bytes.create(storage, params))
+      );
+      case SORTED_TABLE -> new SegmentedWritesLongLongMap(new SortedTableLongLongMap(
         new AppendStore.SmallLongs(i -> AppendStore.Ints.create(storage, params.resolve("keys-" + i))),
         AppendStore.Longs.create(storage, params.resolve("values"))
-      );
+      ));
       case ARRAY -> switch (storage) {
           case MMAP -> new ArrayLongLongMapMmap(params.path(), params.madvise());
           case RAM -> new ArrayLongLongMapRam(false);
@@ -125,7 +130,7 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
      * <p>
      * Uses exactly 12 bytes per value stored so is ideal for small extracts.
      * <p>
-     * NOTE: Requires ordered writes from a single thread.
+     * NOTE: Each writer must write keys in ascending order, see {@link SegmentedWritesLongLongMap}.
      */
     SORTED_TABLE("sortedtable"),
 
@@ -135,13 +140,24 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
      * Uses around ~9 bytes per value stored as the input approaches full planet size. Ideal for full-planet imports
      * when you want to use as little memory as possible.
      * <p>
-     * NOTE: Requires ordered writes from a single thread.
+     * NOTE: Each writer must write keys in ascending order, see {@link SegmentedWritesLongLongMap}.
      */
     SPARSE_ARRAY("sparsearray"),
 
+    /**
+     * Stores values in chunks of 256 keys like {@link #SPARSE_ARRAY} but encodes each value as the difference from the
+     * previous one in its chunk, and decodes a whole chunk at a time on read.
+     * <p>
+     * Uses around ~4-5 bytes per node location stored as the input approaches full planet size, at the cost of some CPU
+     * on reads. Ideal for full-planet imports when you want the node map to fit in memory or the OS page cache.
+     * <p>
+     * NOTE: Each writer must write keys in ascending order, see {@link SegmentedWritesLongLongMap}.
+     */
+    COMPRESSED("compressed"),
+
     /**
      * Stores values in indexed by key, without compressing unused ranges from the key space so that writes can be done
-     * from multiple threads in parallel.
+     * from multiple threads in parallel in any order.
      * <p>
      * Uses exactly {@code maxNodeId * 8} bytes. Suitable only for full-planet imports that use {@link Storage#MMAP}
      * storage or have plenty of extra RAM.
@@ -180,6 +196,13 @@ public interface LongLongMap extends Closeable, MemoryEstimator.HasEstimate, Dis
      */
     void put(long key, long value);
 
+    /**
+     * Promises that all later calls to {@link #put(long, long)} from this writer will use keys greater than {@code key},
+     * for example once a thread finishes a block of input whose keys it skipped, so that maps buffering writes from
+     * several threads do not have to wait for this one to put another key.
+     */
+    default void advanceTo(long key) {}
+
     @Override
     default void close() {}
   }
@@ -3,7 +3,7 @@ package com.onthegomap.planetiler.collection;
 import static com.onthegomap.planetiler.util.MemoryEstimator.estimateSize;
 
 import com.carrotsearch.hppc.LongArrayList;
-import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongLongHashMap;
 import com.onthegomap.planetiler.stats.Timer;
 import com.onthegomap.planetiler.util.DiskBacked;
 import com.onthegomap.planetiler.util.MemoryEstimator;
@@ -11,6 +11,8 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -95,6 +97,22 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
         put(key, vals.get(i));
       }
     }
+
+    /**
+     * Returns a handle that a single thread can use to append values without contending with other threads. Values
+     * become visible once the writer is closed, and every writer must be closed before the first read.
+     */
+    Writer newWriter();
+  }
+
+  /** A handle for a single thread to use to append values to an {@link Appendable} multimap. */
+  interface Writer extends AutoCloseable {
+
+    /** Appends {@code value} to the values for {@code key}. Not thread safe! */
+    void put(long key, long value);
+
+    @Override
+    default void close() {}
   }
 
   /** Dummy implementation of a map that throws an exception from {@link #get(long)}. */
@@ -124,11 +142,20 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
     public void replaceValues(long key, LongArrayList values) {
       // do nothing on update
     }
+
+    @Override
+    public Writer newWriter() {
+      return this::put;
+    }
   }
 
   /**
    * A map from {@code long} to {@code long} stored as a list of keys and values that uses binary search to find the
    * values for a key. Inserts do not need to be ordered, the first read will sort the array.
+   * <p>
+   * Each thread can append through its own {@link #newWriter()} without locking. The first read copies values from
+   * every writer into a single pair of exactly-sized arrays and sorts them in place by key, then value, so the result
+   * does not depend on the order that threads wrote in.
    */
   class SparseUnorderedBinarySearchMultimap implements Appendable {
 
@@ -137,13 +164,18 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
     private static final LongArrayList EMPTY_LIST = new LongArrayList();
     private final LongArrayList keys = new LongArrayList();
     private final LongArrayList values = new LongArrayList();
+    private final List<BufferedWriter> writers = new CopyOnWriteArrayList<>();
     private volatile boolean prepared = false;
 
-    @Override
-    public void put(long key, long val) {
+    private static void checkValue(long val) {
       if (val <= 0) {
         throw new IllegalArgumentException("Invalid value: " + val + " must be >0");
       }
+    }
+
+    @Override
+    public void put(long key, long val) {
+      checkValue(val);
       if (prepared) {
         throw new IllegalArgumentException("Cannot insert after preparing");
       }
@@ -151,6 +183,16 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
       values.add(val);
     }
 
+    @Override
+    public Writer newWriter() {
+      if (prepared) {
+        throw new IllegalArgumentException("Cannot insert after preparing");
+      }
+      BufferedWriter writer = new BufferedWriter();
+      writers.add(writer);
+      return writer;
+    }
+
     private void prepare() {
       if (!prepared) {
         synchronized (this) {
@@ -162,41 +204,44 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
       }
     }
 
-    /** Sort the keys and values arrays by key */
+    /** Merge values from each writer into the keys and values arrays, then sort them by key */
     private void doPrepare() {
       Timer timer = Timer.start();
 
       LOGGER.debug("Sorting long long multimap...");
-      long[] sortedKeys = keys.toArray();
-
-      // this happens in a worker thread, but it's OK to use parallel sort because
-      // all other threads will block while we prepare the multimap.
-      Arrays.parallelSort(sortedKeys);
-
-      // after sorting keys, sort values by iterating through each unordered key/value pair and
-      // using binary search to find where to insert the result in sorted values.
-      long[] sortedValues = new long[sortedKeys.length];
-      int from = 0;
-      while (from < keys.size()) {
-        long key = keys.get(from);
-        int to = Arrays.binarySearch(sortedKeys, key);
-        if (to < 0) {
-          throw new IllegalStateException("Key not found: " + key);
-        }
-        // skip back to the first entry for this key
-        while (to >= 0 && sortedKeys[to] == key) {
-          to--;
-        }
-        // skip ahead past values we've already added for this key
-        do {
-          to++;
-        } while (sortedValues[to] != 0);
-        while (from < keys.size() && keys.get(from) == key) {
-          sortedValues[to++] = values.get(from++);
+      long total = keys.size();
+      for (BufferedWriter writer : writers) {
+        if (!writer.closed) {
+          throw new IllegalStateException("Cannot read before all writers are closed");
         }
+        total += writer.keys.size();
       }
-      keys.buffer = sortedKeys;
-      values.buffer = sortedValues;
+      if (total > Integer.MAX_VALUE - 16) {
+        throw new IllegalStateException("Too many values to store in a long long multimap: " + total);
+      }
+      long[] mergedKeys = new long[(int) total];
+      long[] mergedValues = new long[(int) total];
+      int size = keys.size();
+      System.arraycopy(keys.buffer, 0, mergedKeys, 0, size);
+      System.arraycopy(values.buffer, 0, mergedValues, 0, size);
+      for (BufferedWriter writer : writers) {
+        int length = writer.keys.size();
+        System.arraycopy(writer.keys.buffer, 0, mergedKeys, size, length);
+        System.arraycopy(writer.values.buffer, 0, mergedValues, size, length);
+        size += length;
+        // free each writer's buffers as soon as they are copied
+        writer.keys.release();
+        writer.values.release();
+      }
+      writers.clear();
+
+      // this happens in a worker thread, but it's OK to sort in parallel because
+      // all other threads will block while we prepare the multimap.
+      LongPairSort.parallelSort(mergedKeys, mergedValues, size);
+      keys.buffer = mergedKeys;
+      keys.elementsCount = size;
+      values.buffer = mergedValues;
+      values.elementsCount = size;
       LOGGER.debug("Sorted long long multimap {}", timer.stop());
     }
 
@@ -210,12 +255,12 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
       int index = Arrays.binarySearch(keys.buffer, 0, size, key);
       LongArrayList result = new LongArrayList();
       if (index >= 0) {
-        // binary search might drop us in the middle of repeated values, so look forwards...
-        for (int i = index; i < size && keys.get(i) == key; i++) {
-          result.add(values.get(i));
+        // binary search might drop us in the middle of repeated values, so skip back to the first one...
+        while (index > 0 && keys.get(index - 1) == key) {
+          index--;
         }
-        // ... and backwards to get all the matches
-        for (int i = index - 1; i >= 0 && keys.get(i) == key; i--) {
+        // ... then get all the matches in order
+        for (int i = index; i < size && keys.get(i) == key; i++) {
           result.add(values.get(i));
         }
       }
@@ -224,33 +269,66 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
 
     @Override
     public long estimateMemoryUsageBytes() {
-      return estimateSize(keys) + estimateSize(values);
+      long result = estimateSize(keys) + estimateSize(values);
+      for (BufferedWriter writer : writers) {
+        result += estimateSize(writer.keys) + estimateSize(writer.values);
+      }
+      return result;
     }
 
     @Override
     public void close() {
       keys.release();
       values.release();
+      for (BufferedWriter writer : writers) {
+        writer.keys.release();
+        writer.values.release();
+      }
+      writers.clear();
+    }
+
+    /** Buffers the values that one thread appends until the map gets prepared for reads. */
+    private static class BufferedWriter implements Writer {
+
+      private final LongArrayList keys = new LongArrayList();
+      private final LongArrayList values = new LongArrayList();
+      private volatile boolean closed = false;
+
+      @Override
+      public void put(long key, long value) {
+        checkValue(value);
+        if (closed) {
+          throw new IllegalStateException("Cannot insert after closing writer");
+        }
+        keys.add(key);
+        values.add(value);
+      }
+
+      @Override
+      public void close() {
+        closed = true;
+      }
     }
   }
 
   /**
    * A map from {@code long} to {@code long} where each putAll replaces previous values and results are returned in the
    * same order they were inserted.
+   * <p>
+   * Values for each key are stored as a count followed by the difference between the upper and lower 32 bits of each
+   * value and the previous one, encoded as zigzag varints. Sequences where consecutive values are close, like node IDs
+   * in a way or x/y coordinates packed with {@link com.onthegomap.planetiler.geo.GeoUtils#encodeFlatLocation}, take a
+   * few bytes per value instead of 8. Offsets into the store are 64-bit, so it can hold more than 2^31 values.
    */
   class DenseOrderedMultimap implements Replaceable {
 
     private static final LongArrayList EMPTY_LIST = new LongArrayList();
-    private final LongIntHashMap keyToValuesIndex = Hppc.newLongIntHashMap();
-    // each block starts with a "length" header then contains that number of entries
-    private final AppendStore.Longs values;
+    private static final long LOWER_32_BIT_MASK = (1L << 32) - 1L;
+    private final LongLongHashMap keyToValuesIndex = Hppc.newLongLongHashMap();
+    private final AppendStore.Bytes values;
 
     public DenseOrderedMultimap(Storage storage, Storage.Params params) {
-      values = switch (storage) {
-        case MMAP -> new AppendStoreMmap.Longs(params);
-        case RAM -> new AppendStoreRam.Longs(false);
-        case DIRECT -> new AppendStoreRam.Longs(true);
-      };
+      values = AppendStore.Bytes.create(storage, params);
     }
 
     @Override
@@ -258,21 +336,48 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
       if (values.isEmpty()) {
         return;
       }
-      keyToValuesIndex.put(key, (int) this.values.size());
-      this.values.appendLong(values.size());
+      keyToValuesIndex.put(key, this.values.size());
+      writeVarint(values.size());
+      long lastHigh = 0, lastLow = 0;
       for (int i = 0; i < values.size(); i++) {
-        this.values.appendLong(values.get(i));
+        long value = values.get(i);
+        long high = value >>> 32;
+        long low = value & LOWER_32_BIT_MASK;
+        writeVarint(zigzag(high - lastHigh));
+        writeVarint(zigzag(low - lastLow));
+        lastHigh = high;
+        lastLow = low;
       }
     }
 
+    private static long zigzag(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        values.appendByte((byte) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      values.appendByte((byte) value);
+    }
+
     @Override
     public LongArrayList get(long key) {
-      int index = keyToValuesIndex.getOrDefault(key, -1);
+      long index = keyToValuesIndex.getOrDefault(key, -1);
       if (index >= 0) {
-        LongArrayList result = new LongArrayList();
-        int num = (int) values.getLong(index);
+        Cursor cursor = new Cursor(index);
+        int num = (int) cursor.readVarint();
+        LongArrayList result = new LongArrayList(num);
+        long high = 0, low = 0;
         for (int i = 0; i < num; i++) {
-          result.add(values.getLong(i + index + 1L));
+          high += unzigzag(cursor.readVarint());
+          low += unzigzag(cursor.readVarint());
+          result.add((high << 32) | (low & LOWER_32_BIT_MASK));
         }
         return result;
       } else {
@@ -299,5 +404,27 @@ public interface LongLongMultimap extends MemoryEstimator.HasEstimate, DiskBacke
         throw new UncheckedIOException(e);
       }
     }
+
+    /** Reads varints sequentially from the values for one key. */
+    private class Cursor {
+
+      private long position;
+
+      Cursor(long position) {
+        this.position = position;
+      }
+
+      long readVarint() {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+          byte b = values.getByte(position++);
+          result |= (long) (b & 0x7F) << shift;
+          if (b >= 0) {
+            return result;
+          }
+        }
+        throw new IllegalStateException("Malformed varint at " + position);
+      }
+    }
   }
 }
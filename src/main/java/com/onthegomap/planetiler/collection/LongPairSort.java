@@ -0,0 +1,135 @@
+package com.onthegomap.planetiler.collection;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts parallel arrays of {@code long} keys and {@code long} values in place by key, then by value, without allocating
+ * any extra arrays.
+ * <p>
+ * Uses a quicksort that partitions into values less than, equal to, and greater than the pivot so that keys repeated
+ * many times (i.e. ways that are members of many relations) don't degrade performance, and sorts partitions in parallel
+ * in the common fork-join pool once they are large enough.
+ */
+class LongPairSort {
+
+  private static final int INSERTION_SORT_LENGTH = 32;
+  // below this size, the overhead of splitting work up between threads outweighs the benefit
+  private static final int MIN_PARALLEL_LENGTH = 1 << 16;
+
+  private LongPairSort() {}
+
+  /** Sorts the first {@code length} elements of {@code keys} and {@code values} in a single thread. */
+  static void sort(long[] keys, long[] values, int length) {
+    sortRange(keys, values, 0, length, false);
+  }
+
+  /** Same as {@link #sort(long[], long[], int)} except splits the work up between threads. */
+  static void parallelSort(long[] keys, long[] values, int length) {
+    if (length < MIN_PARALLEL_LENGTH) {
+      sort(keys, values, length);
+    } else {
+      ForkJoinPool.commonPool().invoke(new SortTask(keys, values, 0, length));
+    }
+  }
+
+  private static void sortRange(long[] keys, long[] values, int from, int to, boolean parallel) {
+    while (to - from > INSERTION_SORT_LENGTH) {
+      int mid = (from + to) >>> 1;
+      int pivot = medianOfThree(keys, values, from, mid, to - 1);
+      long pivotKey = keys[pivot];
+      long pivotValue = values[pivot];
+      // after partitioning, [from, lt) < pivot, [lt, i) == pivot, and (gt, to) > pivot
+      int lt = from;
+      int i = from;
+      int gt = to - 1;
+      while (i <= gt) {
+        int cmp = compare(keys[i], values[i], pivotKey, pivotValue);
+        if (cmp < 0) {
+          swap(keys, values, lt++, i++);
+        } else if (cmp > 0) {
+          swap(keys, values, i, gt--);
+        } else {
+          i++;
+        }
+      }
+      if (parallel && to - from >= MIN_PARALLEL_LENGTH) {
+        RecursiveAction.invokeAll(new SortTask(keys, values, from, lt), new SortTask(keys, values, gt + 1, to));
+        return;
+      }
+      // recurse into the smaller side and loop on the larger one to bound stack depth
+      if (lt - from < to - gt - 1) {
+        sortRange(keys, values, from, lt, false);
+        from = gt + 1;
+      } else {
+        sortRange(keys, values, gt + 1, to, false);
+        to = lt;
+      }
+    }
+    insertionSort(keys, values, from, to);
+  }
+
+  private static void insertionSort(long[] keys, long[] values, int from, int to) {
+    for (int i = from + 1; i < to; i++) {
+      long key = keys[i];
+      long value = values[i];
+      int j = i - 1;
+      while (j >= from && compare(keys[j], values[j], key, value) > 0) {
+        keys[j + 1] = keys[j];
+        values[j + 1] = values[j];
+        j--;
+      }
+      keys[j + 1] = key;
+      values[j + 1] = value;
+    }
+  }
+
+  private static int medianOfThree(long[] keys, long[] values, int a, int b, int c) {
+    if (compare(keys[a], values[a], keys[b], values[b]) < 0) {
+      if (compare(keys[b], values[b], keys[c], values[c]) < 0) {
+        return b;
+      }
+      return compare(keys[a], values[a], keys[c], values[c]) < 0 ? c : a;
+    } else {
+      if (compare(keys[a], values[a], keys[c], values[c]) < 0) {
+        return a;
+      }
+      return compare(keys[b], values[b], keys[c], values[c]) < 0 ? c : b;
+    }
+  }
+
+  private static int compare(long keyA, long valueA, long keyB, long valueB) {
+    int result = Long.compare(keyA, keyB);
+    return result != 0 ? result : Long.compare(valueA, valueB);
+  }
+
+  private static void swap(long[] keys, long[] values, int a, int b) {
+    long key = keys[a];
+    keys[a] = keys[b];
+    keys[b] = key;
+    long value = values[a];
+    values[a] = values[b];
+    values[b] = value;
+  }
+
+  private static class SortTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private final long[] keys;
+    private final long[] values;
+    private final int from;
+    private final int to;
+
+    SortTask(long[] keys, long[] values, int from, int to) {
+      this.keys = keys;
+      this.values = values;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      sortRange(keys, values, from, to, true);
+    }
+  }
+}
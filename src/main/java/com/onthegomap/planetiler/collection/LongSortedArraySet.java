@@ -0,0 +1,125 @@
+package com.onthegomap.planetiler.collection;
+
+import static com.onthegomap.planetiler.util.MemoryEstimator.estimateSize;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.onthegomap.planetiler.util.MemoryEstimator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A set of {@code long} values that each thread adds to through its own {@link Writer} without locking, then get
+ * merged into a single sorted array of distinct values on the first read and looked up using binary search.
+ * <p>
+ * Takes 8 bytes per value once merged, compared to 16-32 bytes per value for a
+ * {@link com.carrotsearch.hppc.LongHashSet} depending on how full its hash table is.
+ */
+@ThreadSafe
+public class LongSortedArraySet implements MemoryEstimator.HasEstimate {
+
+  private final List<Writer> writers = new CopyOnWriteArrayList<>();
+  private long[] values = new long[0];
+  private int size = 0;
+  private volatile boolean prepared = false;
+
+  /**
+   * Returns a handle that a single thread can use to add values. Values become visible once the writer is closed, and
+   * every writer must be closed before the first read.
+   */
+  public Writer newWriter() {
+    if (prepared) {
+      throw new IllegalStateException("Cannot add values after reading");
+    }
+    Writer writer = new Writer();
+    writers.add(writer);
+    return writer;
+  }
+
+  /** Returns {@code true} if any writer added {@code value} to this set. */
+  public boolean contains(long value) {
+    prepare();
+    return Arrays.binarySearch(values, 0, size, value) >= 0;
+  }
+
+  /** Returns the number of distinct values in this set. */
+  public int size() {
+    prepare();
+    return size;
+  }
+
+  private void prepare() {
+    if (!prepared) {
+      synchronized (this) {
+        if (!prepared) {
+          doPrepare();
+          prepared = true;
+        }
+      }
+    }
+  }
+
+  private void doPrepare() {
+    long total = 0;
+    for (Writer writer : writers) {
+      if (!writer.closed) {
+        throw new IllegalStateException("Cannot read before all writers are closed");
+      }
+      total += writer.values.size();
+    }
+    if (total > Integer.MAX_VALUE - 16) {
+      throw new IllegalStateException("Too many values to store in a sorted set: " + total);
+    }
+    long[] merged = new long[(int) total];
+    int length = 0;
+    for (Writer writer : writers) {
+      System.arraycopy(writer.values.buffer, 0, merged, length, writer.values.size());
+      length += writer.values.size();
+      // free each writer's buffer as soon as it is copied
+      writer.values.release();
+    }
+    writers.clear();
+    Arrays.parallelSort(merged, 0, length);
+    // remove duplicates in place, leaving a little unused space at the end instead of copying the whole array again
+    int distinct = 0;
+    for (int i = 0; i < length; i++) {
+      if (distinct == 0 || merged[distinct - 1] != merged[i]) {
+        merged[distinct++] = merged[i];
+      }
+    }
+    values = merged;
+    size = distinct;
+  }
+
+  @Override
+  public long estimateMemoryUsageBytes() {
+    long result = estimateSize(values);
+    for (Writer writer : writers) {
+      result += estimateSize(writer.values);
+    }
+    return result;
+  }
+
+  /** A handle for a single thread to use to add values to this set. */
+  public static class Writer implements AutoCloseable {
+
+    private final LongArrayList values = new LongArrayList();
+    private volatile boolean closed = false;
+
+    private Writer() {}
+
+    /** Adds {@code value} to the set. Not thread safe! */
+    public void add(long value) {
+      if (closed) {
+        throw new IllegalStateException("Cannot add values after closing writer");
+      }
+      values.add(value);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package com.onthegomap.planetiler.collection;
+
+import java.util.stream.IntStream;
+
+/**
+ * Sorts parallel arrays of {@code long} keys and {@code int} values by key without comparing or allocating objects.
+ * <p>
+ * Uses a least-significant-digit radix sort with 8-bit digits, so the sort is stable and runs in linear time. Digits
+ * that are the same for every key (i.e. the high bytes of tile IDs at low zoom levels) are skipped.
+ * <p>
+ * {@link #parallelSort(long[], int[], int)} first partitions the keys in parallel by their most significant digit that
+ * varies, which for {@link FeatureGroup} keys is usually part of the tile ID, then sorts each partition on the
+ * remaining digits in parallel.
+ */
+class RadixSort {
+
+  private static final int BITS = 8;
+  private static final int BUCKETS = 1 << BITS;
+  private static final int DIGITS = Long.SIZE / BITS;
+  // below this size, the overhead of splitting work up between threads outweighs the benefit
+  private static final int MIN_PARALLEL_LENGTH = 1 << 16;
+
+  private RadixSort() {}
+
+  /**
+   * Sorts the first {@code length} elements of {@code keys} in ascending signed order, moving the corresponding elements
+   * of {@code values} along with them.
+   */
+  static void sort(long[] keys, int[] values, int length) {
+    if (length < 2) {
+      return;
+    }
+    sortRange(keys, values, new long[length], new int[length], 0, length, DIGITS, false);
+  }
+
+  /**
+   * Same as {@link #sort(long[], int[], int)} except splits the work up between threads in the common fork-join pool.
+   */
+  static void parallelSort(long[] keys, int[] values, int length) {
+    if (length < MIN_PARALLEL_LENGTH) {
+      sort(keys, values, length);
+      return;
+    }
+    int parts = Math.max(1, Math.min(length / MIN_PARALLEL_LENGTH, 4 * Runtime.getRuntime().availableProcessors()));
+    int partSize = (length + parts - 1) / parts;
+
+    // find the most significant digit that differs between any keys
+    long first = keys[0];
+    long differentBits = IntStream.range(0, parts).parallel().mapToLong(part -> {
+      long result = 0;
+      for (int i = part * partSize, end = Math.min(length, i + partSize); i < end; i++) {
+        result |= keys[i] ^ first;
+      }
+      return result;
+    }).reduce(0, (a, b) -> a | b);
+    if (differentBits == 0) {
+      return;
+    }
+    int topDigit = (Long.SIZE - 1 - Long.numberOfLeadingZeros(differentBits)) / BITS;
+
+    // partition by the top digit into scratch space with each thread writing to its own slice of each bucket
+    int[][] counts = new int[parts][BUCKETS];
+    IntStream.range(0, parts).parallel().forEach(part -> {
+      int[] count = counts[part];
+      for (int i = part * partSize, end = Math.min(length, i + partSize); i < end; i++) {
+        count[digit(keys[i], topDigit)]++;
+      }
+    });
+    int[] bucketStarts = new int[BUCKETS + 1];
+    int offset = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      bucketStarts[b] = offset;
+      for (int part = 0; part < parts; part++) {
+        int count = counts[part][b];
+        counts[part][b] = offset;
+        offset += count;
+      }
+    }
+    bucketStarts[BUCKETS] = length;
+    long[] scratchKeys = new long[length];
+    int[] scratchValues = new int[length];
+    IntStream.range(0, parts).parallel().forEach(part -> {
+      int[] next = counts[part];
+      for (int i = part * partSize, end = Math.min(length, i + partSize); i < end; i++) {
+        long key = keys[i];
+        int dst = next[digit(key, topDigit)]++;
+        scratchKeys[dst] = key;
+        scratchValues[dst] = values[i];
+      }
+    });
+
+    // then sort each bucket on the lower digits, ending up back in the original arrays
+    IntStream.range(0, BUCKETS).parallel().forEach(b -> sortRange(scratchKeys, scratchValues, keys, values,
+      bucketStarts[b], bucketStarts[b + 1], topDigit, true));
+  }
+
+  /**
+   * Sorts elements from {@code from} to {@code to} of {@code aKeys} by their lowest {@code digits} digits, using the
+   * same range of {@code bKeys} as scratch space, and leaves the result in {@code bKeys} if {@code resultInB} is true or
+   * {@code aKeys} otherwise.
+   */
+  private static void sortRange(long[] aKeys, int[] aValues, long[] bKeys, int[] bValues, int from, int to,
+    int digits, boolean resultInB) {
+    boolean inB = false;
+    if (to - from > 1 && digits > 0) {
+      int[][] counts = new int[digits][BUCKETS];
+      for (int i = from; i < to; i++) {
+        long key = aKeys[i];
+        for (int d = 0; d < digits; d++) {
+          counts[d][digit(key, d)]++;
+        }
+      }
+      long[] srcKeys = aKeys, dstKeys = bKeys;
+      int[] srcValues = aValues, dstValues = bValues;
+      for (int d = 0; d < digits; d++) {
+        int[] count = counts[d];
+        if (count[digit(srcKeys[from], d)] == to - from) {
+          continue;
+        }
+        int offset = from;
+        for (int b = 0; b < BUCKETS; b++) {
+          int c = count[b];
+          count[b] = offset;
+          offset += c;
+        }
+        for (int i = from; i < to; i++) {
+          long key = srcKeys[i];
+          int dst = count[digit(key, d)]++;
+          dstKeys[dst] = key;
+          dstValues[dst] = srcValues[i];
+        }
+        long[] tmpKeys = srcKeys;
+        srcKeys = dstKeys;
+        dstKeys = tmpKeys;
+        int[] tmpValues = srcValues;
+        srcValues = dstValues;
+        dstValues = tmpValues;
+        inB = !inB;
+      }
+    }
+    if (inB != resultInB) {
+      if (inB) {
+        System.arraycopy(bKeys, from, aKeys, from, to - from);
+        System.arraycopy(bValues, from, aValues, from, to - from);
+      } else {
+        System.arraycopy(aKeys, from, bKeys, from, to - from);
+        System.arraycopy(aValues, from, bValues, from, to - from);
+      }
+    }
+  }
+
+  private static int digit(long key, int d) {
+    int digit = (int) (key >>> (d * BITS)) & (BUCKETS - 1);
+    // flip the sign bit so negative keys sort before positive ones
+    return d == DIGITS - 1 ? digit ^ (BUCKETS >>> 1) : digit;
+  }
+}
@@ -0,0 +1,230 @@
+package com.onthegomap.planetiler.collection;
+
+import static com.onthegomap.planetiler.util.Exceptions.throwFatalException;
+import static com.onthegomap.planetiler.util.MemoryEstimator.estimateLongArraySize;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Adapts a {@link LongLongMap.SequentialWrites} map to accept writes from multiple threads in parallel, as long as each
+ * writer puts keys in ascending order, like worker threads that each take the next block of nodes from an osm.pbf file.
+ * <p>
+ * Each writer buffers the values it puts into segments of sorted keys, and hands off each segment when it fills up or
+ * when {@link Writer#advanceTo(long)} says it finished a block of input. Since every key a writer puts later will be
+ * greater than the last one it handed off or advanced to, entries up to the lowest such key from any open writer can be
+ * stitched together in key order and written to the underlying map.
+ * <p>
+ * Writers that get more than {@code maxPendingEntries} ahead of the slowest open writer block until it catches up, so
+ * memory usage stays bounded even when one writer puts keys much less often than the others.
+ */
+@ThreadSafe
+class SegmentedWritesLongLongMap implements LongLongMap.ParallelWrites {
+
+  private static final int SEGMENT_SIZE = 4_096;
+  // 16MB of keys and values, or a couple hundred blocks of nodes from an osm.pbf file
+  private static final long DEFAULT_MAX_PENDING_ENTRIES = 1 << 20;
+  private final LongLongMap.SequentialWrites delegate;
+  private final long maxPendingEntries;
+  // guarded by this
+  private final List<SegmentWriter> writers = new ArrayList<>();
+  private long pendingEntries = 0;
+
+  SegmentedWritesLongLongMap(LongLongMap.SequentialWrites delegate) {
+    this(delegate, DEFAULT_MAX_PENDING_ENTRIES);
+  }
+
+  SegmentedWritesLongLongMap(LongLongMap.SequentialWrites delegate, long maxPendingEntries) {
+    this.delegate = delegate;
+    this.maxPendingEntries = maxPendingEntries;
+  }
+
+  @Override
+  public synchronized Writer newWriter() {
+    var writer = new SegmentWriter();
+    writers.add(writer);
+    return writer;
+  }
+
+  @Override
+  public long get(long key) {
+    return delegate.get(key);
+  }
+
+  /** Returns the highest key that no open writer can still put a lower key than. */
+  private long watermark() {
+    assert Thread.holdsLock(this);
+    long watermark = Long.MAX_VALUE;
+    for (SegmentWriter writer : writers) {
+      if (!writer.closed) {
+        watermark = Math.min(watermark, writer.lastHandedOffKey);
+      }
+    }
+    return watermark;
+  }
+
+  /** Writes all handed-off entries that no open writer can still write a lower key than to the underlying map. */
+  private void stitch() {
+    assert Thread.holdsLock(this);
+    long watermark = watermark();
+    while (true) {
+      // find the writer with the lowest next key, and the next lowest key from any other writer
+      SegmentWriter lowest = null;
+      long lowestKey = Long.MAX_VALUE;
+      long secondKey = Long.MAX_VALUE;
+      for (SegmentWriter writer : writers) {
+        if (writer.hasPending()) {
+          long key = writer.nextPendingKey();
+          if (key < lowestKey) {
+            secondKey = lowestKey;
+            lowestKey = key;
+            lowest = writer;
+          } else if (key < secondKey) {
+            secondKey = key;
+          }
+        }
+      }
+      if (lowest == null || lowestKey > watermark) {
+        break;
+      }
+      long limit = Math.min(watermark, secondKey);
+      pendingEntries -= lowest.writePendingUpTo(limit, delegate);
+    }
+    writers.removeIf(writer -> writer.closed && !writer.hasPending());
+    // wake up writers waiting for the slowest one to catch up
+    notifyAll();
+  }
+
+  /**
+   * Blocks {@code writer} while too many entries are waiting to be stitched and it is ahead of the slowest open writer,
+   * which never blocks so it can always make progress.
+   */
+  private void waitForSlowerWriters(SegmentWriter writer) {
+    assert Thread.holdsLock(this);
+    try {
+      while (pendingEntries > maxPendingEntries && writer.lastHandedOffKey > watermark()) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throwFatalException(e);
+    }
+  }
+
+  @Override
+  public long diskUsageBytes() {
+    return delegate.diskUsageBytes();
+  }
+
+  @Override
+  public long estimateMemoryUsageBytes() {
+    long pending;
+    synchronized (this) {
+      pending = pendingEntries;
+    }
+    return delegate.estimateMemoryUsageBytes() + 2 * estimateLongArraySize((int) Math.min(Integer.MAX_VALUE, pending));
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate.close();
+  }
+
+  private record Segment(long[] keys, long[] values, int size) {}
+
+  /** Buffers writes from a single thread into segments that get handed off to be stitched together. */
+  private class SegmentWriter implements Writer {
+
+    // owned by the writing thread
+    private long[] keys = new long[SEGMENT_SIZE];
+    private long[] values = new long[SEGMENT_SIZE];
+    private int size = 0;
+    private long lastKey = -1;
+    // guarded by the map
+    private final ArrayDeque<Segment> pending = new ArrayDeque<>();
+    private int pendingPosition = 0;
+    private long lastHandedOffKey = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    @Override
+    public void put(long key, long value) {
+      if (key <= lastKey) {
+        throw new IllegalArgumentException("Nodes must be sorted ascending by ID, " + key + " came after " + lastKey);
+      }
+      lastKey = key;
+      keys[size] = key;
+      values[size++] = value;
+      if (size >= SEGMENT_SIZE) {
+        handOff(false);
+      }
+    }
+
+    @Override
+    public void advanceTo(long key) {
+      lastKey = Math.max(lastKey, key);
+      handOff(false);
+    }
+
+    private void handOff(boolean close) {
+      boolean full = size >= SEGMENT_SIZE;
+      synchronized (SegmentedWritesLongLongMap.this) {
+        if (closed) {
+          return;
+        }
+        if (size > 0) {
+          // keep reusing the buffers when handing off part of a segment at the end of a block
+          pending.add(full ? new Segment(keys, values, size) :
+            new Segment(Arrays.copyOf(keys, size), Arrays.copyOf(values, size), size));
+          pendingEntries += size;
+        }
+        lastHandedOffKey = Math.max(lastHandedOffKey, lastKey);
+        closed = close;
+        stitch();
+        if (!close) {
+          waitForSlowerWriters(this);
+        }
+      }
+      if (full) {
+        keys = new long[SEGMENT_SIZE];
+        values = new long[SEGMENT_SIZE];
+      }
+      size = 0;
+    }
+
+    private boolean hasPending() {
+      return !pending.isEmpty();
+    }
+
+    private long nextPendingKey() {
+      return pending.getFirst().keys[pendingPosition];
+    }
+
+    /** Writes pending entries with keys up to {@code limit} to {@code map} and returns the number written. */
+    private int writePendingUpTo(long limit, LongLongMap.SequentialWrites map) {
+      int written = 0;
+      while (!pending.isEmpty()) {
+        Segment segment = pending.getFirst();
+        while (pendingPosition < segment.size && segment.keys[pendingPosition] <= limit) {
+          map.put(segment.keys[pendingPosition], segment.values[pendingPosition]);
+          pendingPosition++;
+          written++;
+        }
+        if (pendingPosition < segment.size) {
+          break;
+        }
+        pending.removeFirst();
+        pendingPosition = 0;
+      }
+      return written;
+    }
+
+    @Override
+    public void close() {
+      handOff(true);
+    }
+  }
+}
@@ -208,6 +208,21 @@ public class Arguments {
     return file;
   }
 
+  /** Returns a list of {@link Path Paths} parsed from {@code key} argument where values are separated by commas. */
+  public List<Path> files(String key, String description, List<Path> defaultValue) {
+    String value = getArg(key);
+    List<Path> files = value == null ? defaultValue : Stream.of(value.split(","))
+      .map(String::trim)
+      .filter(c -> !c.isBlank())
+      .map(Path::of)
+      .toList();
+    if (files.isEmpty()) {
+      throw new IllegalArgumentException("Expected at least one path for " + key);
+    }
+    logArgValue(key, description, files);
+    return files;
+  }
+
   /**
    * Returns a {@link Path} parsed from {@code key} argument which must exist for the program to function.
    *
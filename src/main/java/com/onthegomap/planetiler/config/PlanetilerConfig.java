@@ -1,8 +1,13 @@
 package com.onthegomap.planetiler.config;
 
+import com.onthegomap.planetiler.collection.FeatureCodec;
 import com.onthegomap.planetiler.collection.LongLongMap;
 import com.onthegomap.planetiler.collection.Storage;
+import com.onthegomap.planetiler.util.Gzip;
+import com.onthegomap.planetiler.worker.WorkQueue;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.List;
 import java.util.stream.Stream;
 
 /**
@@ -42,7 +47,24 @@ public record PlanetilerConfig(
   double simplifyToleranceBelowMaxZoom,
   boolean osmLazyReads,
   boolean compactDb,
-  boolean skipFilledTiles
+  boolean skipFilledTiles,
+  String featureEncoding,
+  List<String> attributeKeys,
+  int mbtilesShards,
+  boolean mbtilesShardsMerge,
+  String sortAlgorithm,
+  boolean nodeMapFilter,
+  long tileCacheMB,
+  boolean compactDbDedupeAll,
+  int tileCompressionLevel,
+  int tileCompressionStrategy,
+  int sortBackgroundThreads,
+  String featureSort,
+  int featureSortBuckets,
+  WorkQueue.Type featureQueueType,
+  boolean osmBlockIndex,
+  Path osmBlockIndexDir,
+  int osmMmapReadThreads
 ) {
 
   public static final int MIN_MINZOOM = 0;
@@ -61,6 +83,21 @@ public record PlanetilerConfig(
     if (httpRetries < 0) {
       throw new IllegalArgumentException("HTTP Retries must be >= 0, was " + httpRetries);
     }
+    if (tileCacheMB < 0) {
+      throw new IllegalArgumentException("Tile cache size must be >= 0, was " + tileCacheMB);
+    }
+    if (mbtilesShards < 1) {
+      throw new IllegalArgumentException("Mbtiles shards must be >= 1, was " + mbtilesShards);
+    }
+    if (!"merge".equals(featureSort) && !"buckets".equals(featureSort)) {
+      throw new IllegalArgumentException("Feature sort must be merge or buckets, was " + featureSort);
+    }
+    if (featureSortBuckets < 1) {
+      throw new IllegalArgumentException("Feature sort buckets must be >= 1, was " + featureSortBuckets);
+    }
+    if (osmMmapReadThreads < 0) {
+      throw new IllegalArgumentException("OSM mmap read threads must be >= 0, was " + osmMmapReadThreads);
+    }
   }
 
   public static PlanetilerConfig defaults() {
@@ -103,8 +140,10 @@ public record PlanetilerConfig(
       arguments.getBoolean("optimize_db", "optimize mbtiles after writing", false),
       arguments.getBoolean("emit_tiles_in_order", "emit tiles in index order", true),
       arguments.getBoolean("force", "overwriting output file and ignore disk/RAM warnings", false),
-      arguments.getBoolean("gzip_temp", "gzip temporary feature storage (uses more CPU, but less disk space)", false),
-      arguments.getBoolean("mmap_temp", "use memory-mapped IO for temp feature files", true),
+      arguments.getBoolean("gzip_temp",
+        "gzip temporary feature storage (uses more CPU, but less disk space), ignored with feature_sort=buckets", false),
+      arguments.getBoolean("mmap_temp", "use memory-mapped IO for temp feature files, ignored with feature_sort=buckets",
+        true),
       arguments.getInteger("sort_max_readers", "maximum number of concurrent read threads to use when sorting chunks",
         6),
       arguments.getInteger("sort_max_writers", "maximum number of concurrent write threads to use when sorting chunks",
@@ -146,7 +185,59 @@ public record PlanetilerConfig(
         true),
       arguments.getBoolean("skip_filled_tiles",
         "Skip writing tiles containing only polygon fills to the output",
-        false)
+        false),
+      arguments.getString("feature_encoding",
+        "binary format for temporary feature storage, one of " + Stream.of(FeatureCodec.Type.values()).map(
+          FeatureCodec.Type::id).toList(),
+        FeatureCodec.Type.MSGPACK.id()),
+      arguments.getList("attribute_keys",
+        "attribute keys to give one-byte codes in temporary feature storage before any others, i.e. the most-used keys logged by a previous run",
+        List.of()),
+      arguments.getInteger("mbtiles_shards",
+        "number of threads that write interleaved subsets of tiles to separate mbtiles files in parallel",
+        1),
+      arguments.getBoolean("mbtiles_shards_merge",
+        "with mbtiles_shards, merge the shards into the output once they are written, or false to leave them next to it with a .shards.json manifest",
+        true),
+      arguments.getString("sort_algorithm",
+        "how to sort each chunk of temporary features: comparison, radix, or parallel_radix (which competes with the other sort workers for CPUs, so only helps when there are fewer chunks than cores)",
+        "comparison"),
+      arguments.getBoolean("nodemap_filter",
+        "scan ways and relations first to only store locations of nodes in ways the profile cares about",
+        false),
+      arguments.getLong("tile_cache_mb",
+        "megabytes of encoded tiles shared by all encoder threads to reuse for tiles with identical contents, 0 to disable",
+        64),
+      arguments.getBoolean("compact_db_dedupe_all",
+        "with compact_db, dedupe all tiles by content instead of only tiles with polygon fills or edges (uses ~24 bytes of RAM per unique tile, several GB for the planet)",
+        false),
+      Gzip.parseLevel(arguments.getString("tile_compression_level",
+        "gzip level for output tiles: fast for quick development builds, default, max for smallest release builds, or 0-9",
+        "default")),
+      Gzip.parseStrategy(arguments.getString("tile_compression_strategy",
+        "deflate strategy for output tiles: default, filtered, or huffman",
+        "default")),
+      arguments.getInteger("sort_background_threads",
+        "number of threads that sort full chunks of temporary features while they are still being written, or 0 to sort all chunks in the sort stage",
+        0),
+      arguments.getString("feature_sort",
+        "how to sort temporary features by tile: merge for an external merge sort, or buckets to write them into tile range buckets that each get sorted in memory as tiles are written",
+        "merge"),
+      arguments.getInteger("feature_sort_buckets",
+        "with feature_sort=buckets, number of tile range buckets to write features into",
+        256),
+      WorkQueue.Type.from(arguments.getString("feature_queue",
+        "queue between threads that process input features and threads that write them to temporary storage: blocking, or lockfree to reduce contention with many processing threads",
+        WorkQueue.Type.BLOCKING.id())),
+      arguments.getBoolean("osm_block_index",
+        "index the blocks in the OSM input file during the first pass so later passes can read blocks in parallel and skip ones they don't need",
+        true),
+      arguments.file("osm_block_index_dir",
+        "directory to cache OSM block indexes in so later runs on the same input skip building them, or unset to only keep them in memory for this run",
+        null),
+      arguments.getInteger("osm_mmap_read_threads",
+        "memory-map the OSM input file and locate blocks in it using this many threads in parallel, or 0 to read it through a file channel instead",
+        0)
     );
   }
 
@@ -247,6 +247,15 @@ public interface Expression {
    */
   boolean evaluate(WithTags input, List<String> matchKeys);
 
+  /**
+   * Returns true if this expression matches an input element, without tracking which keys triggered the match.
+   * <p>
+   * Built-in expressions override this to avoid allocating anything.
+   */
+  default boolean evaluate(WithTags input) {
+    return evaluate(input, new ArrayList<>());
+  }
+
   /** Returns Java code that can be used to reconstruct this expression. */
   String generateJavaCode();
 
@@ -261,6 +270,11 @@ public interface Expression {
     public boolean evaluate(WithTags input, List<String> matchKeys) {
       return value;
     }
+
+    @Override
+    public boolean evaluate(WithTags input) {
+      return value;
+    }
   }
 
   record And(List<Expression> children) implements Expression {
@@ -280,6 +294,16 @@ public interface Expression {
       }
       return true;
     }
+
+    @Override
+    public boolean evaluate(WithTags input) {
+      for (Expression child : children) {
+        if (!child.evaluate(input)) {
+          return false;
+        }
+      }
+      return true;
+    }
   }
 
   record Or(List<Expression> children) implements Expression {
@@ -299,6 +323,16 @@ public interface Expression {
       return false;
     }
 
+    @Override
+    public boolean evaluate(WithTags input) {
+      for (Expression child : children) {
+        if (child.evaluate(input)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
     @Override
     public boolean equals(Object obj) {
       if (obj == this) {
@@ -329,6 +363,11 @@ public interface Expression {
     public boolean evaluate(WithTags input, List<String> matchKeys) {
       return !child.evaluate(input, new ArrayList<>());
     }
+
+    @Override
+    public boolean evaluate(WithTags input) {
+      return !child.evaluate(input);
+    }
   }
 
   /**
@@ -367,20 +406,30 @@ public interface Expression {
       Object value = valueGetter.apply(input, field);
       if (value == null) {
         return matchWhenMissing;
+      } else if (matches(value.toString())) {
+        matchKeys.add(field);
+        return true;
       } else {
-        String str = value.toString();
-        if (exactMatches.contains(str)) {
-          matchKeys.add(field);
+        return false;
+      }
+    }
+
+    @Override
+    public boolean evaluate(WithTags input) {
+      Object value = valueGetter.apply(input, field);
+      return value == null ? matchWhenMissing : matches(value.toString());
+    }
+
+    private boolean matches(String str) {
+      if (exactMatches.contains(str)) {
+        return true;
+      }
+      for (String target : wildcards) {
+        if (str.contains(target)) {
           return true;
         }
-        for (String target : wildcards) {
-          if (str.contains(target)) {
-            matchKeys.add(field);
-            return true;
-          }
-        }
-        return false;
       }
+      return false;
     }
 
     @Override
@@ -420,6 +469,11 @@ public interface Expression {
       }
       return false;
     }
+
+    @Override
+    public boolean evaluate(WithTags input) {
+      return input.hasTag(field);
+    }
   }
 
   /**
@@ -434,6 +488,11 @@ public interface Expression {
 
     @Override
     public boolean evaluate(WithTags input, List<String> matchKeys) {
+      return evaluate(input);
+    }
+
+    @Override
+    public boolean evaluate(WithTags input) {
       if (input instanceof SourceFeature sourceFeature) {
         return switch (type) {
           case LINESTRING_TYPE -> sourceFeature.canBeLine();
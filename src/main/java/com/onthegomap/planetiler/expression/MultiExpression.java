@@ -7,7 +7,10 @@ import static com.onthegomap.planetiler.geo.GeoUtils.EMPTY_GEOMETRY;
 
 import com.onthegomap.planetiler.reader.SimpleFeature;
 import com.onthegomap.planetiler.reader.SourceFeature;
+import com.onthegomap.planetiler.reader.WithTags;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,14 +22,16 @@ import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A list of {@link Expression Expressions} to evaluate on input elements.
  * <p>
- * {@link #index()} returns an optimized {@link Index} that evaluates the minimal set of expressions on the keys present
- * on the element.
+ * {@link #index()} returns an optimized {@link Index} that looks up the expressions that could match each key/value
+ * pair present on the element, and only evaluates those. {@link #keyIndex()} returns the simpler index that evaluates
+ * every expression that refers to any key present on the element.
  * <p>
  * {@link Index#getMatches(SourceFeature)} returns the data value associated with the expressions that match an input
  * element.
@@ -103,9 +108,89 @@ public record MultiExpression<T> (List<Entry<T>> expressions) {
     }
   }
 
-  /** Returns an optimized index for matching {@link #expressions()} against each input element. */
+  /**
+   * Returns the tag values that an input element must have for {@code expression} to match, as a map from key to the
+   * set of values where a {@code null} set means any value, or {@code null} if there is no such constraint.
+   */
+  private static Map<String, Set<String>> getGuard(Expression expression) {
+    if (expression == FALSE) {
+      return Map.of();
+    } else if (expression instanceof Expression.MatchAny any) {
+      if (any.matchWhenMissing()) {
+        return null;
+      }
+      Map<String, Set<String>> result = new HashMap<>();
+      // typed matches compare against a converted value, so can only narrow down by key
+      result.put(any.field(), any.valueGetter() == Expression.GET_TAG && any.wildcards().isEmpty() ?
+        any.exactMatches() : null);
+      return result;
+    } else if (expression instanceof Expression.MatchField field) {
+      Map<String, Set<String>> result = new HashMap<>();
+      result.put(field.field(), null);
+      return result;
+    } else if (expression instanceof Expression.Or or) {
+      // matches if any child matches, so needs the union of every child's constraint
+      Map<String, Set<String>> result = new HashMap<>();
+      for (Expression child : or.children()) {
+        Map<String, Set<String>> childGuard = getGuard(child);
+        if (childGuard == null) {
+          return null;
+        }
+        for (var entry : childGuard.entrySet()) {
+          if (entry.getValue() == null || (result.containsKey(entry.getKey()) && result.get(entry.getKey()) == null)) {
+            result.put(entry.getKey(), null);
+          } else {
+            result.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue());
+          }
+        }
+      }
+      return result;
+    } else if (expression instanceof Expression.And and) {
+      // matches only if every child matches, so any child's constraint will do, prefer the most selective one
+      Map<String, Set<String>> best = null;
+      for (Expression child : and.children()) {
+        Map<String, Set<String>> childGuard = getGuard(child);
+        if (childGuard != null && (best == null || selectivity(childGuard) < selectivity(best))) {
+          best = childGuard;
+        }
+      }
+      return best;
+    } else {
+      return null;
+    }
+  }
+
+  /** Returns a rough score for how many elements would pass {@code guard}, lower is better. */
+  private static long selectivity(Map<String, Set<String>> guard) {
+    long result = 0;
+    for (var values : guard.values()) {
+      result += values == null ? 1_000 : values.size();
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if an element that satisfies the constraint from {@link #getGuard(Expression)} always matches
+   * {@code expression}, so it does not need to be evaluated.
+   */
+  private static boolean isDecidedByGuard(Expression expression) {
+    if (expression instanceof Expression.MatchAny any) {
+      return !any.matchWhenMissing() && any.valueGetter() == Expression.GET_TAG && any.wildcards().isEmpty();
+    } else if (expression instanceof Expression.MatchField) {
+      return true;
+    } else if (expression instanceof Expression.Or or) {
+      return or.children().stream().allMatch(MultiExpression::isDecidedByGuard);
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Returns an optimized index for matching {@link #expressions()} against each input element that looks up the
+   * expressions to evaluate by the key and value of each tag on the element.
+   */
   public Index<T> index() {
-    return index(false);
+    return index(false, ValueIndex::new);
   }
 
   /**
@@ -113,16 +198,24 @@ public record MultiExpression<T> (List<Entry<T>> expressions) {
    * input.
    */
   public Index<T> indexAndWarn() {
-    return index(true);
+    return index(true, ValueIndex::new);
   }
 
-  private Index<T> index(boolean warn) {
+  /**
+   * Returns an index for matching {@link #expressions()} against each input element that evaluates every expression
+   * that refers to a key present on the element.
+   */
+  public Index<T> keyIndex() {
+    return index(false, KeyIndex::new);
+  }
+
+  private Index<T> index(boolean warn, IndexFactory factory) {
     if (expressions.isEmpty()) {
       return new EmptyIndex<>();
     }
     boolean caresAboutGeometryType =
       expressions.stream().anyMatch(entry -> entry.expression.contains(exp -> exp instanceof Expression.MatchType));
-    return caresAboutGeometryType ? new GeometryTypeIndex<>(this, warn) : new KeyIndex<>(simplify(), warn);
+    return caresAboutGeometryType ? new GeometryTypeIndex<>(this, warn, factory) : factory.create(simplify(), warn);
   }
 
   /** Returns a copy of this multi-expression that replaces every expression using {@code mapper}. */
@@ -219,6 +312,11 @@ public record MultiExpression<T> (List<Entry<T>> expressions) {
     int id();
   }
 
+  @FunctionalInterface
+  private interface IndexFactory {
+    <T> Index<T> create(MultiExpression<T> expressions, boolean warn);
+  }
+
   private static class EmptyIndex<T> implements Index<T> {
 
     @Override
@@ -299,23 +397,218 @@ public record MultiExpression<T> (List<Entry<T>> expressions) {
     }
   }
 
+  /**
+   * Index that looks up the expressions to evaluate on an input element by the key and value of each of its tags.
+   * <p>
+   * Each expression gets filed under the tag values that an element must have for it to match, for example {@code
+   * and(matchAny("highway", "primary", "secondary"), matchField("name"))} only gets evaluated on elements with {@code
+   * highway=primary} or {@code highway=secondary}. Expressions where having one of those tag values is enough to match
+   * don't get evaluated at all. Matching reuses a per-thread buffer to track which expressions were already visited, and
+   * only determines the keys that triggered a match when {@link Match#keys()} is read, so elements that don't match
+   * anything don't allocate any objects.
+   */
+  private static class ValueIndex<T> implements Index<T> {
+
+    private final int numExpressions;
+    private final Map<String, KeyNode<T>> keyToNode;
+    // same as keyToNode but as a list (optimized for iteration when # source feature keys > # tags we care about)
+    private final List<Map.Entry<String, KeyNode<T>>> keyToNodeList;
+    private final Candidate<T>[] alwaysEvaluate;
+    private final ThreadLocal<int[]> visited;
+
+    private ValueIndex(MultiExpression<T> expressions, boolean warn) {
+      int id = 1;
+      Map<String, Map<String, List<Candidate<T>>>> byValue = new HashMap<>();
+      Map<String, List<Candidate<T>>> anyValue = new HashMap<>();
+      List<Candidate<T>> always = new ArrayList<>();
+      for (var entry : expressions.expressions) {
+        Expression expression = entry.expression;
+        var candidate = new Candidate<>(new EntryWithId<>(entry.result, expression, id++),
+          isDecidedByGuard(expression));
+        Map<String, Set<String>> guard = getGuard(expression);
+        if (guard == null) {
+          always.add(candidate);
+        } else {
+          for (var keyAndValues : guard.entrySet()) {
+            String key = keyAndValues.getKey();
+            if (keyAndValues.getValue() == null) {
+              anyValue.computeIfAbsent(key, k -> new ArrayList<>()).add(candidate);
+            } else {
+              for (String value : keyAndValues.getValue()) {
+                byValue.computeIfAbsent(key, k -> new HashMap<>())
+                  .computeIfAbsent(value, v -> new ArrayList<>()).add(candidate);
+              }
+            }
+          }
+        }
+      }
+      if (warn && !always.isEmpty()) {
+        LOGGER.warn("{} expressions will be evaluated for every element:", always.size());
+        for (var candidate : always) {
+          LOGGER.warn("    {}: {}", candidate.entry.result, candidate.entry.expression);
+        }
+      }
+      Map<String, KeyNode<T>> nodes = new HashMap<>();
+      for (String key : Stream.concat(byValue.keySet().stream(), anyValue.keySet().stream()).distinct().toList()) {
+        Map<String, Candidate<T>[]> values = new HashMap<>();
+        byValue.getOrDefault(key, Map.of()).forEach((value, list) -> values.put(value, toArray(list)));
+        nodes.put(key, new KeyNode<>(Map.copyOf(values), toArray(anyValue.getOrDefault(key, List.of()))));
+      }
+      keyToNode = Map.copyOf(nodes);
+      keyToNodeList = List.copyOf(keyToNode.entrySet());
+      alwaysEvaluate = toArray(always);
+      numExpressions = id;
+      visited = ThreadLocal.withInitial(() -> new int[numExpressions + 1]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Candidate<T>[] toArray(List<Candidate<T>> list) {
+      return list.toArray(Candidate[]::new);
+    }
+
+    @Override
+    public List<Match<T>> getMatchesWithTriggers(SourceFeature input) {
+      return find(input, false);
+    }
+
+    @Override
+    public boolean matches(SourceFeature input) {
+      return !find(input, true).isEmpty();
+    }
+
+    private List<Match<T>> find(SourceFeature input, boolean stopAtFirst) {
+      // the last slot holds a counter that changes for every element, so visited flags never need to be cleared
+      int[] visitedIds = visited.get();
+      int stamp = ++visitedIds[numExpressions];
+      if (stamp == Integer.MAX_VALUE) {
+        Arrays.fill(visitedIds, 0);
+        stamp = visitedIds[numExpressions] = 1;
+      }
+      List<Match<T>> result = visit(input, alwaysEvaluate, visitedIds, stamp, null, stopAtFirst);
+      Map<String, Object> tags = input.tags();
+      if (tags.size() < keyToNode.size()) {
+        for (var tag : tags.entrySet()) {
+          if (stopAtFirst && result != null) {
+            break;
+          }
+          KeyNode<T> node = keyToNode.get(tag.getKey());
+          if (node != null) {
+            result = visit(input, node, tag.getValue(), visitedIds, stamp, result, stopAtFirst);
+          }
+        }
+      } else {
+        for (var entry : keyToNodeList) {
+          if (stopAtFirst && result != null) {
+            break;
+          }
+          Object value = tags.get(entry.getKey());
+          if (value != null || tags.containsKey(entry.getKey())) {
+            result = visit(input, entry.getValue(), value, visitedIds, stamp, result, stopAtFirst);
+          }
+        }
+      }
+      if (result == null) {
+        return List.of();
+      }
+      if (result.size() > 1) {
+        result.sort(BY_ID);
+      }
+      return result;
+    }
+
+    private List<Match<T>> visit(SourceFeature input, KeyNode<T> node, Object value, int[] visitedIds, int stamp,
+      List<Match<T>> result, boolean stopAtFirst) {
+      result = visit(input, node.anyValue, visitedIds, stamp, result, stopAtFirst);
+      if (value != null && !(stopAtFirst && result != null)) {
+        Candidate<T>[] candidates = node.byValue.get(value.toString());
+        if (candidates != null) {
+          result = visit(input, candidates, visitedIds, stamp, result, stopAtFirst);
+        }
+      }
+      return result;
+    }
+
+    private List<Match<T>> visit(SourceFeature input, Candidate<T>[] candidates, int[] visitedIds, int stamp,
+      List<Match<T>> result, boolean stopAtFirst) {
+      for (Candidate<T> candidate : candidates) {
+        EntryWithId<T> entry = candidate.entry;
+        if (visitedIds[entry.id] != stamp) {
+          visitedIds[entry.id] = stamp;
+          if (candidate.decidedByGuard || entry.expression.evaluate(input)) {
+            if (result == null) {
+              result = new ArrayList<>(2);
+            }
+            result.add(new Match<>(entry.result, new MatchKeys(entry.expression, input), entry.id));
+            if (stopAtFirst) {
+              return result;
+            }
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Expressions to evaluate on elements with a certain tag key.
+     *
+     * @param byValue  expressions to evaluate when the tag has a certain value
+     * @param anyValue expressions to evaluate when the tag has any value
+     */
+    private record KeyNode<T> (Map<String, Candidate<T>[]> byValue, Candidate<T>[] anyValue) {}
+
+    /** An expression to evaluate, and whether it matches any element that led to it without evaluating it. */
+    private record Candidate<T> (EntryWithId<T> entry, boolean decidedByGuard) {}
+  }
+
+  /** The tag keys that triggered a match, only determined the first time they are read. */
+  private static class MatchKeys extends AbstractList<String> {
+
+    private final Expression expression;
+    private final WithTags input;
+    private List<String> keys = null;
+
+    private MatchKeys(Expression expression, WithTags input) {
+      this.expression = expression;
+      this.input = input;
+    }
+
+    private List<String> keys() {
+      if (keys == null) {
+        List<String> result = new ArrayList<>();
+        expression.evaluate(input, result);
+        keys = result;
+      }
+      return keys;
+    }
+
+    @Override
+    public String get(int index) {
+      return keys().get(index);
+    }
+
+    @Override
+    public int size() {
+      return keys().size();
+    }
+  }
+
   /** Index that limits the search space of expressions based on geometry type of an input element. */
   private static class GeometryTypeIndex<T> implements Index<T> {
 
-    private final KeyIndex<T> pointIndex;
-    private final KeyIndex<T> lineIndex;
-    private final KeyIndex<T> polygonIndex;
+    private final Index<T> pointIndex;
+    private final Index<T> lineIndex;
+    private final Index<T> polygonIndex;
 
-    private GeometryTypeIndex(MultiExpression<T> expressions, boolean warn) {
+    private GeometryTypeIndex(MultiExpression<T> expressions, boolean warn, IndexFactory factory) {
       // build an index per type then search in each of those indexes based on the geometry type of each input element
       // this narrows the search space substantially, improving matching performance
-      pointIndex = indexForType(expressions, Expression.POINT_TYPE, warn);
-      lineIndex = indexForType(expressions, Expression.LINESTRING_TYPE, warn);
-      polygonIndex = indexForType(expressions, Expression.POLYGON_TYPE, warn);
+      pointIndex = indexForType(expressions, Expression.POINT_TYPE, warn, factory);
+      lineIndex = indexForType(expressions, Expression.LINESTRING_TYPE, warn, factory);
+      polygonIndex = indexForType(expressions, Expression.POLYGON_TYPE, warn, factory);
     }
 
-    private KeyIndex<T> indexForType(MultiExpression<T> expressions, String type, boolean warn) {
-      return new KeyIndex<>(
+    private Index<T> indexForType(MultiExpression<T> expressions, String type, boolean warn, IndexFactory factory) {
+      return factory.create(
         expressions
           .replace(matchType(type), TRUE)
           .replace(e -> e instanceof Expression.MatchType, FALSE)
@@ -324,6 +617,19 @@ public record MultiExpression<T> (List<Entry<T>> expressions) {
       );
     }
 
+    @Override
+    public boolean matches(SourceFeature input) {
+      if (input.isPoint()) {
+        return pointIndex.matches(input);
+      } else if (input.canBeLine()) {
+        return lineIndex.matches(input) || (input.canBePolygon() && polygonIndex.matches(input));
+      } else if (input.canBePolygon()) {
+        return polygonIndex.matches(input);
+      } else {
+        return pointIndex.matches(input);
+      }
+    }
+
     /**
      * Returns all data values associated with expressions that match an input element, along with the tag keys that
      * caused the match.
@@ -336,7 +642,11 @@ public record MultiExpression<T> (List<Entry<T>> expressions) {
         result = lineIndex.getMatchesWithTriggers(input);
         // closed ways can be lines or polygons, unless area=yes or no
         if (input.canBePolygon()) {
-          result.addAll(polygonIndex.getMatchesWithTriggers(input));
+          List<Match<T>> polygonResult = polygonIndex.getMatchesWithTriggers(input);
+          if (!polygonResult.isEmpty()) {
+            result = new ArrayList<>(result);
+            result.addAll(polygonResult);
+          }
         }
       } else if (input.canBePolygon()) {
         result = polygonIndex.getMatchesWithTriggers(input);
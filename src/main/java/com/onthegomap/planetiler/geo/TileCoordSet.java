@@ -0,0 +1,98 @@
+package com.onthegomap.planetiler.geo;
+
+import com.carrotsearch.hppc.BitSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import javax.annotation.concurrent.ThreadSafe;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * A compact set of {@link TileCoord TileCoords} from z0 to {@code maxzoom} backed by a bitset with one bit for every
+ * tile, so z0-z14 uses ~45MB regardless of how many tiles are in the set.
+ * <p>
+ * Writes are synchronized, reads are safe from multiple threads once all writes have finished.
+ */
+@ThreadSafe
+public class TileCoordSet implements Predicate<TileCoord> {
+
+  private final int maxzoom;
+  private final long[] zoomOffsets;
+  private final BitSet bits;
+
+  public TileCoordSet(int maxzoom) {
+    if (maxzoom < 0 || maxzoom > 14) {
+      throw new IllegalArgumentException("maxzoom must be between 0 and 14, was " + maxzoom);
+    }
+    this.maxzoom = maxzoom;
+    this.zoomOffsets = new long[maxzoom + 2];
+    for (int z = 0; z <= maxzoom; z++) {
+      zoomOffsets[z + 1] = zoomOffsets[z] + (1L << (2 * z));
+    }
+    this.bits = new BitSet(zoomOffsets[maxzoom + 1]);
+  }
+
+  private long index(int x, int y, int z) {
+    return zoomOffsets[z] + ((long) x << z) + y;
+  }
+
+  /** Adds a single tile to this set. */
+  public synchronized void add(TileCoord tile) {
+    if (tile.z() <= maxzoom) {
+      bits.set(index(tile.x(), tile.y(), tile.z()));
+    }
+  }
+
+  /**
+   * Adds every tile from {@code minzoom} to {@code maxzoom} that intersects {@code worldBounds} after expanding it by
+   * {@code bufferPixels} (assuming 256px tiles) at each zoom level.
+   */
+  public synchronized void addWorldBounds(Envelope worldBounds, double bufferPixels, int minzoom) {
+    if (worldBounds.isNull()) {
+      return;
+    }
+    for (int z = Math.max(0, minzoom); z <= maxzoom; z++) {
+      int max = 1 << z;
+      double buffer = bufferPixels / 256d;
+      int minX = clamp((int) Math.floor(worldBounds.getMinX() * max - buffer), max);
+      int maxX = clamp((int) Math.floor(worldBounds.getMaxX() * max + buffer), max);
+      int minY = clamp((int) Math.floor(worldBounds.getMinY() * max - buffer), max);
+      int maxY = clamp((int) Math.floor(worldBounds.getMaxY() * max + buffer), max);
+      for (int x = minX; x <= maxX; x++) {
+        bits.set(index(x, minY, z), index(x, maxY, z) + 1);
+      }
+    }
+  }
+
+  private static int clamp(int value, int max) {
+    return Math.max(0, Math.min(max - 1, value));
+  }
+
+  @Override
+  public boolean test(TileCoord tile) {
+    return tile.z() <= maxzoom && bits.get(index(tile.x(), tile.y(), tile.z()));
+  }
+
+  /** Returns the number of tiles in this set. */
+  public synchronized long size() {
+    return bits.cardinality();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /** Returns all tiles in this set ordered by z ascending, x ascending, y ascending. */
+  public synchronized List<TileCoord> toList() {
+    List<TileCoord> result = new ArrayList<>((int) Math.min(Integer.MAX_VALUE - 8, bits.cardinality()));
+    int z = 0;
+    for (long idx = bits.nextSetBit(0L); idx >= 0; idx = bits.nextSetBit(idx + 1)) {
+      while (idx >= zoomOffsets[z + 1]) {
+        z++;
+      }
+      long offset = idx - zoomOffsets[z];
+      result.add(TileCoord.ofXYZ((int) (offset >>> z), (int) (offset & ((1L << z) - 1)), z));
+    }
+    return result;
+  }
+}
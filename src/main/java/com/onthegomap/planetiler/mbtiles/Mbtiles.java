@@ -2,16 +2,18 @@ package com.onthegomap.planetiler.mbtiles;
 
 import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_ABSENT;
 
-import com.carrotsearch.hppc.LongIntHashMap;
+import com.carrotsearch.hppc.LongLongHashMap;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.onthegomap.planetiler.config.MbtilesMetadata;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.geo.GeoUtils;
 import com.onthegomap.planetiler.geo.TileCoord;
 import com.onthegomap.planetiler.util.Format;
-import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -35,6 +37,7 @@ import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.slf4j.Logger;
@@ -46,7 +49,7 @@ import org.sqlite.SQLiteConfig;
  *
  * @see <a href="https://github.com/mapbox/mbtiles-spec/blob/master/1.3/spec.md">MBTiles Specification</a>
  */
-public final class Mbtiles implements Closeable {
+public final class Mbtiles implements WriteableTileArchive {
 
   // https://www.sqlite.org/src/artifact?ci=trunk&filename=magic.txt
   private static final int MBTILES_APPLICATION_ID = 0x4d504258;
@@ -127,6 +130,45 @@ public final class Mbtiles implements Closeable {
     }
   }
 
+  /**
+   * Returns a new connection to an existing mbtiles file that replaces some of its tiles, using the compact or
+   * non-compact layout that the file was created with.
+   * <p>
+   * Unlike {@link #newWriteToFileDatabase(Path, boolean)} this keeps a rollback journal and normal syncing, and does
+   * not lock out readers, so that a crash during an update wrapped in {@link #beginTransaction()} and
+   * {@link #commit()} leaves the previous contents of the file intact.
+   */
+  public static Mbtiles newUpdateFileDatabase(Path path) {
+    if (!Files.isRegularFile(path)) {
+      throw new IllegalArgumentException(path + " does not exist");
+    }
+    Mbtiles result;
+    try {
+      SQLiteConfig config = new SQLiteConfig();
+      config.setJournalMode(SQLiteConfig.JournalMode.DELETE);
+      config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+      config.setCacheSize(1_000_000); // 1GB
+      config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+      result = new Mbtiles(DriverManager.getConnection("jdbc:sqlite:" + path.toAbsolutePath(), config.toProperties()),
+        false);
+    } catch (SQLException throwables) {
+      throw new IllegalArgumentException("Unable to open " + path, throwables);
+    }
+    boolean compact = result.hasTable(TILES_SHALLOW_TABLE);
+    return compact ? new Mbtiles(result.connection, true) : result;
+  }
+
+  private boolean hasTable(String name) {
+    try (var statement = connection.prepareStatement("select 1 from sqlite_master where type='table' and name=?")) {
+      statement.setString(1, name);
+      try (ResultSet rs = statement.executeQuery()) {
+        return rs.next();
+      }
+    } catch (SQLException throwables) {
+      throw new IllegalStateException("Could not read tables", throwables);
+    }
+  }
+
   /** Returns a new connection to an mbtiles file optimized for reads. */
   public static Mbtiles newReadOnlyDatabase(Path path) {
     try {
@@ -273,6 +315,41 @@ public final class Mbtiles implements Closeable {
     }
   }
 
+  /**
+   * Copies all tiles from another mbtiles file with the same layout that was written in parallel with this one,
+   * renumbering its tile data IDs to follow the ones already in this file.
+   */
+  public Mbtiles mergeFrom(Path shard) {
+    try (var attach = connection.prepareStatement("ATTACH DATABASE ? AS shard")) {
+      attach.setString(1, shard.toAbsolutePath().toString());
+      attach.execute();
+    } catch (SQLException throwables) {
+      throw new IllegalStateException("Unable to attach " + shard, throwables);
+    }
+    try {
+      if (compactDb) {
+        int offset = nextTileDataId() - 1;
+        execute(
+          "insert into %s (%s, %s) select %s + %d, %s from shard.%s".formatted(
+            TILES_DATA_TABLE, TILES_DATA_COL_DATA_ID, TILES_DATA_COL_DATA,
+            TILES_DATA_COL_DATA_ID, offset, TILES_DATA_COL_DATA, TILES_DATA_TABLE),
+          "insert into %s (%s, %s, %s, %s) select %s, %s, %s, %s + %d from shard.%s".formatted(
+            TILES_SHALLOW_TABLE,
+            TILES_SHALLOW_COL_Z, TILES_SHALLOW_COL_X, TILES_SHALLOW_COL_Y, TILES_SHALLOW_COL_DATA_ID,
+            TILES_SHALLOW_COL_Z, TILES_SHALLOW_COL_X, TILES_SHALLOW_COL_Y, TILES_SHALLOW_COL_DATA_ID, offset,
+            TILES_SHALLOW_TABLE)
+        );
+      } else {
+        execute("insert into %s (%s, %s, %s, %s) select %s, %s, %s, %s from shard.%s".formatted(
+          TILES_TABLE, TILES_COL_Z, TILES_COL_X, TILES_COL_Y, TILES_COL_DATA,
+          TILES_COL_Z, TILES_COL_X, TILES_COL_Y, TILES_COL_DATA, TILES_TABLE));
+      }
+    } finally {
+      execute("DETACH DATABASE shard");
+    }
+    return this;
+  }
+
   public Mbtiles vacuumAnalyze() {
     return execute(
       "VACUUM;",
@@ -280,6 +357,143 @@ public final class Mbtiles implements Closeable {
     );
   }
 
+  /**
+   * Deletes {@code tiles} from the database so they can be rewritten, or left empty if they no longer contain any
+   * features.
+   */
+  public Mbtiles deleteTiles(Collection<TileCoord> tiles) {
+    String table = compactDb ? TILES_SHALLOW_TABLE : TILES_TABLE;
+    try (
+      var statement = connection.prepareStatement("delete from %s where %s=? and %s=? and %s=?"
+        .formatted(table, TILES_COL_Z, TILES_COL_X, TILES_COL_Y))
+    ) {
+      // batch the deletes in a transaction, unless the caller already started one that this should be part of
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      int count = 0;
+      for (TileCoord tile : tiles) {
+        statement.setInt(1, tile.z());
+        statement.setInt(2, tile.x());
+        statement.setInt(3, (1 << tile.z()) - 1 - tile.y());
+        statement.addBatch();
+        if (++count % 10_000 == 0) {
+          statement.executeBatch();
+        }
+      }
+      statement.executeBatch();
+      if (autoCommit) {
+        connection.commit();
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException throwables) {
+      throw new IllegalStateException("Could not delete tiles", throwables);
+    }
+    return this;
+  }
+
+  /**
+   * Starts a transaction that lasts until {@link #commit()} or {@link #rollback()}, so that readers and crashes only
+   * ever see the database before or after all the writes in between.
+   */
+  public Mbtiles beginTransaction() {
+    try {
+      connection.setAutoCommit(false);
+    } catch (SQLException throwables) {
+      throw new IllegalStateException("Could not begin transaction", throwables);
+    }
+    return this;
+  }
+
+  /** Commits all writes since {@link #beginTransaction()} and goes back to committing each statement on its own. */
+  public Mbtiles commit() {
+    try {
+      connection.commit();
+      connection.setAutoCommit(true);
+    } catch (SQLException throwables) {
+      throw new IllegalStateException("Could not commit transaction", throwables);
+    }
+    return this;
+  }
+
+  /** Discards all writes since {@link #beginTransaction()} and goes back to committing each statement on its own. */
+  public Mbtiles rollback() {
+    try {
+      connection.rollback();
+      connection.setAutoCommit(true);
+    } catch (SQLException throwables) {
+      throw new IllegalStateException("Could not roll back transaction", throwables);
+    }
+    return this;
+  }
+
+  /** Deletes tile data that is no longer referenced by any tile after some tiles were deleted or replaced. */
+  public Mbtiles deleteUnusedTileData() {
+    if (compactDb) {
+      execute("delete from %s where %s not in (select %s from %s)".formatted(
+        TILES_DATA_TABLE, TILES_DATA_COL_DATA_ID, TILES_SHALLOW_COL_DATA_ID, TILES_SHALLOW_TABLE));
+    }
+    return this;
+  }
+
+  private int nextTileDataId() {
+    try (
+      Statement statement = connection.createStatement();
+      ResultSet rs = statement.executeQuery("select max(%s) from %s".formatted(TILES_DATA_COL_DATA_ID, TILES_DATA_TABLE))
+    ) {
+      return rs.next() ? rs.getInt(1) + 1 : 1;
+    } catch (SQLException throwables) {
+      // table doesn't exist yet
+      return 1;
+    }
+  }
+
+  @Override
+  public boolean deduplicates() {
+    return compactDb;
+  }
+
+  /**
+   * Creates the tables unless they already exist (when updating an existing file) and writes the tileset metadata.
+   */
+  @Override
+  public void initialize(PlanetilerConfig config, MbtilesMetadata mbtilesMetadata, MetadataJson layerStats) {
+    if (hasTable(METADATA_TABLE)) {
+      LOGGER.debug("Tables already exist");
+    } else if (config.skipIndexCreation()) {
+      createTablesWithoutIndexes();
+      if (LOGGER.isInfoEnabled()) {
+        LOGGER.info("Skipping index creation. Add later by executing: {}",
+          String.join(" ; ", getManualIndexCreationStatements()));
+      }
+    } else {
+      createTablesWithIndexes();
+    }
+
+    metadata()
+      .setName(mbtilesMetadata.name())
+      .setFormat("pbf")
+      .setDescription(mbtilesMetadata.description())
+      .setAttribution(mbtilesMetadata.attribution())
+      .setVersion(mbtilesMetadata.version())
+      .setType(mbtilesMetadata.type())
+      .setBoundsAndCenter(config.bounds().latLon())
+      .setMinzoom(config.minzoom())
+      .setMaxzoom(config.maxzoom())
+      .setJson(layerStats);
+  }
+
+  @Override
+  public TileWriter newTileWriter() {
+    return newBatchedTileWriter();
+  }
+
+  @Override
+  public void finish(PlanetilerConfig config) {
+    if (config.optimizeDb()) {
+      vacuumAnalyze();
+    }
+  }
+
   /** Returns a writer that queues up inserts into the tile database(s) into large batches before executing them. */
   public BatchedTileWriter newBatchedTileWriter() {
     if (compactDb) {
@@ -663,14 +877,7 @@ public final class Mbtiles implements Closeable {
   /**
    * A high-throughput writer that accepts new tiles and queues up the writes to execute them in fewer large-batches.
    */
-  public interface BatchedTileWriter extends AutoCloseable {
-    void write(TileEncodingResult encodingResult);
-
-    @Override
-    void close();
-
-    default void printStats() {}
-  }
+  public interface BatchedTileWriter extends TileWriter {}
 
   private class BatchedNonCompactTileWriter implements BatchedTileWriter {
 
@@ -692,9 +899,14 @@ public final class Mbtiles implements Closeable {
 
     private final BatchedTileShallowTableWriter batchedTileShallowTableWriter = new BatchedTileShallowTableWriter();
     private final BatchedTileDataTableWriter batchedTileDataTableWriter = new BatchedTileDataTableWriter();
-    private final LongIntHashMap tileDataIdByHash = new LongIntHashMap(1_000);
+    // tile data ID in the high 32 bits and a checksum of the tile bytes in the low 32 bits, so that two different tiles
+    // with the same content hash don't get stored as one
+    private final LongLongHashMap tileDataIdAndChecksumByHash = new LongLongHashMap(1_000);
+    private final CRC32 checksum = new CRC32();
+    private long hashCollisions = 0;
 
-    private int tileDataIdCounter = 1;
+    // continue after existing tile data when adding tiles to an existing file
+    private int tileDataIdCounter = nextTileDataId();
 
     @Override
     public void write(TileEncodingResult encodingResult) {
@@ -704,12 +916,25 @@ public final class Mbtiles implements Closeable {
 
       if (tileDataHashOpt.isPresent()) {
         long tileDataHash = tileDataHashOpt.getAsLong();
-        if (tileDataIdByHash.containsKey(tileDataHash)) {
-          tileDataId = tileDataIdByHash.get(tileDataHash);
-          writeData = false;
+        checksum.reset();
+        checksum.update(encodingResult.tileData());
+        int tileChecksum = (int) checksum.getValue();
+        int index = tileDataIdAndChecksumByHash.indexOf(tileDataHash);
+        if (tileDataIdAndChecksumByHash.indexExists(index)) {
+          long existing = tileDataIdAndChecksumByHash.indexGet(index);
+          if ((int) existing == tileChecksum) {
+            tileDataId = (int) (existing >>> 32);
+            writeData = false;
+          } else {
+            // same content hash but different bytes, so keep the first tile and store this one separately
+            hashCollisions++;
+            tileDataId = tileDataIdCounter++;
+            writeData = true;
+          }
         } else {
           tileDataId = tileDataIdCounter++;
-          tileDataIdByHash.put(tileDataHash, tileDataId);
+          tileDataIdAndChecksumByHash.indexInsert(index, tileDataHash,
+            ((long) tileDataId << 32) | (tileChecksum & 0xffffffffL));
           writeData = true;
         }
       } else {
@@ -735,7 +960,8 @@ public final class Mbtiles implements Closeable {
         LOGGER.debug("Shallow tiles written: {}", format.integer(batchedTileShallowTableWriter.count()));
         LOGGER.debug("Tile data written: {} ({} omitted)", format.integer(batchedTileDataTableWriter.count()),
           format.percent(1d - batchedTileDataTableWriter.count() * 1d / batchedTileShallowTableWriter.count()));
-        LOGGER.debug("Unique tile hashes: {}", format.integer(tileDataIdByHash.size()));
+        LOGGER.debug("Unique tile hashes: {} ({} collisions)", format.integer(tileDataIdAndChecksumByHash.size()),
+          format.integer(hashCollisions));
       }
     }
   }
@@ -759,7 +985,7 @@ public final class Mbtiles implements Closeable {
         LOGGER.debug("Set mbtiles metadata: {}={}", name, value);
         try (
           PreparedStatement statement = connection.prepareStatement(
-            "INSERT INTO " + METADATA_TABLE + " (" + METADATA_COL_NAME + "," + METADATA_COL_VALUE + ") VALUES(?, ?);")
+            "INSERT OR REPLACE INTO " + METADATA_TABLE + " (" + METADATA_COL_NAME + "," + METADATA_COL_VALUE + ") VALUES(?, ?);")
         ) {
           statement.setString(1, name);
           statement.setString(2, value.toString());
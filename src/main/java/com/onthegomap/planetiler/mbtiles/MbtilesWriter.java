@@ -1,13 +1,15 @@
 package com.onthegomap.planetiler.mbtiles;
 
-import static com.onthegomap.planetiler.util.Gzip.gzip;
 import static com.onthegomap.planetiler.worker.Worker.joinFutures;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.onthegomap.planetiler.VectorTile;
 import com.onthegomap.planetiler.collection.FeatureGroup;
 import com.onthegomap.planetiler.config.MbtilesMetadata;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.geo.TileCoordSet;
+import com.onthegomap.planetiler.pmtiles.WriteablePmtiles;
 import com.onthegomap.planetiler.stats.Counter;
 import com.onthegomap.planetiler.stats.ProcessInfo;
 import com.onthegomap.planetiler.stats.ProgressLoggers;
@@ -16,12 +18,15 @@ import com.onthegomap.planetiler.stats.Timer;
 import com.onthegomap.planetiler.util.DiskBacked;
 import com.onthegomap.planetiler.util.FileUtils;
 import com.onthegomap.planetiler.util.Format;
+import com.onthegomap.planetiler.util.Gzip;
 import com.onthegomap.planetiler.util.LayerStats;
 import com.onthegomap.planetiler.worker.WorkQueue;
 import com.onthegomap.planetiler.worker.Worker;
 import com.onthegomap.planetiler.worker.WorkerPipeline;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
@@ -42,30 +47,47 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Final stage of the map generation process that encodes vector tiles using {@link VectorTile} and writes them to an
- * {@link Mbtiles} file.
+ * {@link Mbtiles} file, or any other {@link WriteableTileArchive}.
  */
 public class MbtilesWriter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MbtilesWriter.class);
+  private static final ObjectMapper objectMapper = new ObjectMapper();
   private static final long MAX_FEATURES_PER_BATCH = 10_000;
   private static final long MAX_TILES_PER_BATCH = 1_000;
   private final Counter.Readable featuresProcessed;
-  private final Counter memoizedTiles;
+  private final Counter.Readable memoizedTiles;
+  private final Counter.Readable tileCacheHits;
+  private final Counter.Readable tileCacheMisses;
+  // shared by all encoder threads, or null when disabled
+  private final TileContentCache tileCache;
+  private final WriteableTileArchive archive;
+  // only set for mbtiles output, which also supports incremental updates and sharded writes
   private final Mbtiles db;
   private final PlanetilerConfig config;
   private final Stats stats;
   private final LayerStats layerStats;
   private final Counter.Readable[] tilesByZoom;
   private final Counter.Readable[] totalTileSizesByZoom;
+  private final Counter.Readable[] compressedTileSizesByZoom;
+  private final Counter.Readable[] compressionNanosByZoom;
   private final LongAccumulator[] maxTileSizesByZoom;
   private final Iterable<FeatureGroup.TileFeatures> inputTiles;
   private final AtomicReference<TileCoord> lastTileWritten = new AtomicReference<>();
   private final MbtilesMetadata mbtilesMetadata;
-
-  private MbtilesWriter(Iterable<FeatureGroup.TileFeatures> inputTiles, Mbtiles db, PlanetilerConfig config,
-    MbtilesMetadata mbtilesMetadata, Stats stats, LayerStats layerStats) {
+  // when non-null, only replace these tiles in an existing mbtiles file
+  private final TileCoordSet tilesToUpdate;
+  // when non-null, write interleaved subsets of tiles to separate files in parallel
+  private final Shards shards;
+
+  private MbtilesWriter(Iterable<FeatureGroup.TileFeatures> inputTiles, WriteableTileArchive archive,
+    PlanetilerConfig config,
+    MbtilesMetadata mbtilesMetadata, Stats stats, LayerStats layerStats, TileCoordSet tilesToUpdate, Shards shards) {
     this.inputTiles = inputTiles;
-    this.db = db;
+    this.tilesToUpdate = tilesToUpdate;
+    this.shards = shards;
+    this.archive = archive;
+    this.db = archive instanceof Mbtiles mbtiles ? mbtiles : null;
     this.config = config;
     this.mbtilesMetadata = mbtilesMetadata;
     this.stats = stats;
@@ -76,31 +98,92 @@ public class MbtilesWriter {
     totalTileSizesByZoom = IntStream.rangeClosed(0, config.maxzoom())
       .mapToObj(i -> Counter.newMultiThreadCounter())
       .toArray(Counter.Readable[]::new);
+    compressedTileSizesByZoom = IntStream.rangeClosed(0, config.maxzoom())
+      .mapToObj(i -> Counter.newMultiThreadCounter())
+      .toArray(Counter.Readable[]::new);
+    compressionNanosByZoom = IntStream.rangeClosed(0, config.maxzoom())
+      .mapToObj(i -> Counter.newMultiThreadCounter())
+      .toArray(Counter.Readable[]::new);
     maxTileSizesByZoom = IntStream.rangeClosed(0, config.maxzoom())
       .mapToObj(i -> new LongAccumulator(Long::max, 0))
       .toArray(LongAccumulator[]::new);
     memoizedTiles = stats.longCounter("mbtiles_memoized_tiles");
+    tileCacheHits = stats.longCounter("mbtiles_tile_cache_hits");
+    tileCacheMisses = stats.longCounter("mbtiles_tile_cache_misses");
+    tileCache = config.tileCacheMB() > 0 ? new TileContentCache(config.tileCacheMB() * 1_000_000) : null;
     featuresProcessed = stats.longCounter("mbtiles_features_processed");
     Map<String, LongSupplier> countsByZoom = new LinkedHashMap<>();
     for (int zoom = config.minzoom(); zoom <= config.maxzoom(); zoom++) {
       countsByZoom.put(Integer.toString(zoom), tilesByZoom[zoom]);
     }
     stats.counter("mbtiles_tiles_written", "zoom", () -> countsByZoom);
+    stats.counter("mbtiles_uncompressed_bytes", "zoom", () -> byZoom(totalTileSizesByZoom));
+    stats.counter("mbtiles_compressed_bytes", "zoom", () -> byZoom(compressedTileSizesByZoom));
+    stats.counter("mbtiles_compression_nanos", "zoom", () -> byZoom(compressionNanosByZoom));
   }
 
-  /** Reads all {@code features}, encodes them in parallel, and writes to {@code outputPath}. */
+  private Map<String, LongSupplier> byZoom(Counter.Readable[] counters) {
+    Map<String, LongSupplier> result = new LinkedHashMap<>();
+    for (int zoom = config.minzoom(); zoom <= config.maxzoom(); zoom++) {
+      result.put(Integer.toString(zoom), counters[zoom]);
+    }
+    return result;
+  }
+
+  /**
+   * Reads all {@code features}, encodes them in parallel, and writes to {@code outputPath} as a {@link WriteablePmtiles
+   * pmtiles} archive if it ends in {@code .pmtiles}, otherwise as an {@link Mbtiles} file.
+   * <p>
+   * When {@link PlanetilerConfig#mbtilesShards()} is greater than 1, mbtiles get split into that many shard files next
+   * to {@code outputPath} that are written in parallel, see {@link Shards}.
+   */
   public static void writeOutput(FeatureGroup features, Path outputPath, MbtilesMetadata mbtilesMetadata,
     PlanetilerConfig config, Stats stats) {
+    if (FileUtils.hasExtension(outputPath, "pmtiles")) {
+      try (var output = WriteablePmtiles.newWriteToFile(outputPath)) {
+        writeOutput(features, output, () -> FileUtils.fileSize(outputPath), mbtilesMetadata, config, stats);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to write to " + outputPath, e);
+      }
+      return;
+    }
+    Shards shards = config.mbtilesShards() > 1 ?
+      new Shards(outputPath, config.mbtilesShards(), config.mbtilesShardsMerge()) : null;
     try (Mbtiles output = Mbtiles.newWriteToFileDatabase(outputPath, config.compactDb())) {
-      writeOutput(features, output, () -> FileUtils.fileSize(outputPath), mbtilesMetadata, config, stats);
+      writeOutput(features, output, () -> FileUtils.fileSize(outputPath) +
+        (shards == null ? 0 : shards.paths.stream().mapToLong(FileUtils::fileSize).sum()),
+        mbtilesMetadata, config, stats, null, shards);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write to " + outputPath, e);
+    }
+  }
+
+  /**
+   * Reads all {@code features}, and replaces only tiles in {@code tilesToUpdate} in the existing mbtiles file at
+   * {@code outputPath} in a single transaction, leaving all other tiles unchanged.
+   * <p>
+   * {@code features} must still contain the whole input, since this only limits encoding and writing to the tiles
+   * that changed.
+   */
+  public static void updateOutput(FeatureGroup features, Path outputPath, TileCoordSet tilesToUpdate,
+    MbtilesMetadata mbtilesMetadata, PlanetilerConfig config, Stats stats) {
+    try (Mbtiles output = Mbtiles.newUpdateFileDatabase(outputPath)) {
+      writeOutput(features, output, () -> FileUtils.fileSize(outputPath), mbtilesMetadata, config, stats,
+        tilesToUpdate, null);
     } catch (IOException e) {
       throw new IllegalStateException("Unable to write to " + outputPath, e);
     }
   }
 
   /** Reads all {@code features}, encodes them in parallel, and writes to {@code output}. */
-  public static void writeOutput(FeatureGroup features, Mbtiles output, DiskBacked fileSize,
+  public static void writeOutput(FeatureGroup features, WriteableTileArchive output, DiskBacked fileSize,
     MbtilesMetadata mbtilesMetadata, PlanetilerConfig config, Stats stats) {
+    writeOutput(features, output, fileSize, mbtilesMetadata, config, stats, null, null);
+  }
+
+  private static void writeOutput(FeatureGroup features, WriteableTileArchive output, DiskBacked fileSize,
+    MbtilesMetadata mbtilesMetadata, PlanetilerConfig config, Stats stats, TileCoordSet tilesToUpdate,
+    Shards shards) {
     var timer = stats.startStage("mbtiles");
 
     int readThreads = config.featureReadThreads();
@@ -123,7 +206,7 @@ public class MbtilesWriter {
     }
 
     MbtilesWriter writer = new MbtilesWriter(inputTiles, output, config, mbtilesMetadata, stats,
-      features.layerStats());
+      features.layerStats(), tilesToUpdate, shards);
 
     var pipeline = WorkerPipeline.start("mbtiles", stats);
 
@@ -226,6 +309,10 @@ public class MbtilesWriter {
         LOGGER.trace("Starting z{}", z);
         currentZoom = z;
       }
+      if (tilesToUpdate != null && !tilesToUpdate.test(feature.tileCoord())) {
+        featuresProcessed.incBy(feature.getNumFeaturesProcessed());
+        continue;
+      }
       long thisTileFeatures = feature.getNumFeaturesToEmit();
       if (tilesInThisBatch > 0 &&
         (tilesInThisBatch >= MAX_TILES_PER_BATCH ||
@@ -252,133 +339,229 @@ public class MbtilesWriter {
 
   private void tileEncoder(Iterable<TileBatch> prev, Consumer<TileBatch> next) throws IOException {
     /*
-     * To optimize emitting many identical consecutive tiles (like large ocean areas), memoize output to avoid
-     * recomputing if the input hasn't changed.
+     * To optimize emitting many identical tiles (like large ocean areas), memoize output to avoid recomputing if the
+     * input hasn't changed since the last tile, or if another thread already encoded a small tile with the same
+     * contents.
      */
-    byte[] lastBytes = null, lastEncoded = null;
+    byte[] lastBytes = null;
+    int lastEncodedLength = 0;
     Long lastTileDataHash = null;
     boolean lastIsFill = false;
-    boolean compactDb = config.compactDb();
+    boolean deduplicate = archive.deduplicates();
+    boolean dedupeAll = config.compactDbDedupeAll();
     boolean skipFilled = config.skipFilledTiles();
 
-    for (TileBatch batch : prev) {
-      Queue<TileEncodingResult> result = new ArrayDeque<>(batch.size());
-      FeatureGroup.TileFeatures last = null;
-      // each batch contains tile ordered by z asc, x asc, y desc
-      for (int i = 0; i < batch.in.size(); i++) {
-        FeatureGroup.TileFeatures tileFeatures = batch.in.get(i);
-        featuresProcessed.incBy(tileFeatures.getNumFeaturesProcessed());
-        byte[] bytes, encoded;
-        Long tileDataHash;
-        if (tileFeatures.hasSameContents(last)) {
-          if (skipFilled && lastIsFill) {
-            continue;
-          }
-          bytes = lastBytes;
-          encoded = lastEncoded;
-          tileDataHash = lastTileDataHash;
-          memoizedTiles.inc();
-        } else {
-          VectorTile en = tileFeatures.getVectorTileEncoder();
-          if (skipFilled) {
-            lastIsFill = en.containsOnlyFills();
-            if (lastIsFill) {
+    try (var compressor = new Gzip.Compressor(config.tileCompressionLevel(), config.tileCompressionStrategy())) {
+      for (TileBatch batch : prev) {
+        Queue<TileEncodingResult> result = new ArrayDeque<>(batch.size());
+        FeatureGroup.TileFeatures last = null;
+        // each batch contains tile ordered by z asc, x asc, y desc
+        for (int i = 0; i < batch.in.size(); i++) {
+          FeatureGroup.TileFeatures tileFeatures = batch.in.get(i);
+          featuresProcessed.incBy(tileFeatures.getNumFeaturesProcessed());
+          byte[] bytes;
+          int encodedLength;
+          Long tileDataHash;
+          if (tileFeatures.hasSameContents(last) && last.tileCoord().z() == tileFeatures.tileCoord().z()) {
+            if (skipFilled && lastIsFill) {
               continue;
             }
-          }
-          lastEncoded = encoded = en.encode();
-          lastBytes = bytes = gzip(encoded);
-          last = tileFeatures;
-          if (encoded.length > 1_000_000) {
-            LOGGER.warn("{} {}kb uncompressed",
-              tileFeatures.tileCoord(),
-              encoded.length / 1024);
-          }
-          if (compactDb && en.containsOnlyFillsOrEdges()) {
-            tileDataHash = tileFeatures.generateContentHash();
+            bytes = lastBytes;
+            encodedLength = lastEncodedLength;
+            tileDataHash = lastTileDataHash;
+            memoizedTiles.inc();
           } else {
-            tileDataHash = null;
+            boolean cacheable = tileCache != null && TileContentCache.isCacheable(tileFeatures);
+            long contentKey = cacheable || deduplicate ? TileContentCache.key(tileFeatures) : 0;
+            TileContentCache.Entry cached = cacheable ? tileCache.get(contentKey, tileFeatures) : null;
+            boolean containsOnlyFillsOrEdges;
+            last = tileFeatures;
+            if (cached != null) {
+              tileCacheHits.inc();
+              lastIsFill = cached.containsOnlyFills();
+              containsOnlyFillsOrEdges = cached.containsOnlyFillsOrEdges();
+              bytes = cached.gzipped();
+              encodedLength = cached.encodedLength();
+            } else {
+              if (cacheable) {
+                tileCacheMisses.inc();
+              }
+              VectorTile en = tileFeatures.getVectorTileEncoder();
+              lastIsFill = en.containsOnlyFills();
+              containsOnlyFillsOrEdges = en.containsOnlyFillsOrEdges();
+              if (skipFilled && lastIsFill) {
+                if (cacheable) {
+                  tileCache.put(contentKey, new TileContentCache.Entry(tileFeatures, new byte[0], 0, true,
+                    containsOnlyFillsOrEdges));
+                }
+                continue;
+              }
+              byte[] encoded = en.encode();
+              long start = System.nanoTime();
+              bytes = compressor.gzip(encoded);
+              compressionNanosByZoom[tileFeatures.tileCoord().z()].incBy(System.nanoTime() - start);
+              encodedLength = encoded.length;
+              if (encoded.length > 1_000_000) {
+                LOGGER.warn("{} {}kb uncompressed",
+                  tileFeatures.tileCoord(),
+                  encoded.length / 1024);
+              }
+              if (cacheable) {
+                tileCache.put(contentKey, new TileContentCache.Entry(tileFeatures, bytes, encodedLength, lastIsFill,
+                  containsOnlyFillsOrEdges));
+              }
+            }
+            if (skipFilled && lastIsFill) {
+              continue;
+            }
+            if (deduplicate && (dedupeAll || containsOnlyFillsOrEdges)) {
+              tileDataHash = contentKey;
+            } else {
+              tileDataHash = null;
+            }
+            lastBytes = bytes;
+            lastEncodedLength = encodedLength;
+            lastTileDataHash = tileDataHash;
           }
-          lastTileDataHash = tileDataHash;
+          int zoom = tileFeatures.tileCoord().z();
+          totalTileSizesByZoom[zoom].incBy(encodedLength);
+          compressedTileSizesByZoom[zoom].incBy(bytes.length);
+          maxTileSizesByZoom[zoom].accumulate(encodedLength);
+          result.add(
+            new TileEncodingResult(tileFeatures.tileCoord(), bytes,
+              tileDataHash == null ? OptionalLong.empty() : OptionalLong.of(tileDataHash))
+          );
         }
-        int zoom = tileFeatures.tileCoord().z();
-        int encodedLength = encoded == null ? 0 : encoded.length;
-        totalTileSizesByZoom[zoom].incBy(encodedLength);
-        maxTileSizesByZoom[zoom].accumulate(encodedLength);
-        result.add(
-          new TileEncodingResult(tileFeatures.tileCoord(), bytes,
-            tileDataHash == null ? OptionalLong.empty() : OptionalLong.of(tileDataHash))
-        );
+        // hand result off to writer
+        batch.out.complete(result);
+        next.accept(batch);
       }
-      // hand result off to writer
-      batch.out.complete(result);
-      next.accept(batch);
     }
   }
 
   private void tileWriter(Iterable<TileBatch> tileBatches) throws ExecutionException, InterruptedException {
+    if (tilesToUpdate == null) {
+      writeTiles(tileBatches);
+    } else {
+      // replace tiles in the live file in a single transaction, so readers and crashes never see a partial update
+      db.beginTransaction();
+      boolean committed = false;
+      try {
+        LOGGER.info("Deleting {} tiles to update", Format.defaultInstance().integer(tilesToUpdate.size()));
+        db.deleteTiles(tilesToUpdate.toList());
+        writeTiles(tileBatches);
+        db.deleteUnusedTileData();
+        db.commit();
+        committed = true;
+      } finally {
+        if (!committed) {
+          db.rollback();
+        }
+      }
+    }
+
+    archive.finish(config);
+  }
+
+  private void writeTiles(Iterable<TileBatch> tileBatches) throws ExecutionException, InterruptedException {
+    archive.initialize(config, mbtilesMetadata, layerStats.getTileStats());
 
-    if (config.skipIndexCreation()) {
-      db.createTablesWithoutIndexes();
-      if (LOGGER.isInfoEnabled()) {
-        LOGGER.info("Skipping index creation. Add later by executing: {}",
-          String.join(" ; ", db.getManualIndexCreationStatements()));
+    if (shards == null) {
+      try (var archiveTileWriter = archive.newTileWriter()) {
+        writeTiles(tileBatches, archiveTileWriter::write);
+        archiveTileWriter.printStats();
       }
     } else {
-      db.createTablesWithIndexes();
+      writeShards(tileBatches);
     }
+  }
 
-    db.metadata()
-      .setName(mbtilesMetadata.name())
-      .setFormat("pbf")
-      .setDescription(mbtilesMetadata.description())
-      .setAttribution(mbtilesMetadata.attribution())
-      .setVersion(mbtilesMetadata.version())
-      .setType(mbtilesMetadata.type())
-      .setBoundsAndCenter(config.bounds().latLon())
-      .setMinzoom(config.minzoom())
-      .setMaxzoom(config.maxzoom())
-      .setJson(layerStats.getTileStats());
+  /**
+   * Sends each tile from {@code tileBatches} to a thread that writes its shard, then merges the shards into the output
+   * or writes a manifest listing them once they are all finished.
+   */
+  private void writeShards(Iterable<TileBatch> tileBatches) throws ExecutionException, InterruptedException {
+    int numShards = shards.paths.size();
+    var tileStats = layerStats.getTileStats();
+    List<WorkQueue<TileEncodingResult>> queues = new ArrayList<>(numShards);
+    for (int i = 0; i < numShards; i++) {
+      FileUtils.deleteFile(shards.paths.get(i));
+      queues.add(new WorkQueue<>("mbtiles_shard_queue_" + i, 10_000, 100, stats));
+    }
+    Worker shardWriters = new Worker("mbtiles_shard_write", stats, numShards, i -> {
+      try (Mbtiles shard = Mbtiles.newWriteToFileDatabase(shards.paths.get(i), config.compactDb())) {
+        if (shards.merge) {
+          shard.createTablesWithoutIndexes();
+        } else {
+          shard.initialize(config, mbtilesMetadata, tileStats);
+        }
+        try (var batchedTileWriter = shard.newBatchedTileWriter()) {
+          for (TileEncodingResult tile : queues.get(i)) {
+            batchedTileWriter.write(tile);
+          }
+        }
+        if (!shards.merge) {
+          shard.finish(config);
+        }
+      }
+    });
+    try {
+      List<Consumer<TileEncodingResult>> writers = queues.stream().map(WorkQueue::threadLocalWriter).toList();
+      writeTiles(tileBatches, tile -> writers.get(shards.shard(tile.coord())).accept(tile));
+    } finally {
+      queues.forEach(WorkQueue::close);
+    }
+    shardWriters.await();
+
+    if (shards.merge) {
+      Timer timer = Timer.start();
+      for (Path shardPath : shards.paths) {
+        LOGGER.info("Merging {}", shardPath.getFileName());
+        db.mergeFrom(shardPath);
+        FileUtils.deleteFile(shardPath);
+      }
+      LOGGER.info("Merged {} shards in {}", numShards, timer.stop());
+    } else {
+      shards.writeManifest();
+      LOGGER.info("Wrote {} shards listed in {}", numShards, shards.manifestPath);
+    }
+  }
 
+  /** Passes each tile from {@code tileBatches} to {@code writer} in order, recording stats about the tiles written. */
+  private void writeTiles(Iterable<TileBatch> tileBatches, Consumer<TileEncodingResult> writer)
+    throws ExecutionException, InterruptedException {
     TileCoord lastTile = null;
     Timer time = null;
     int currentZ = Integer.MIN_VALUE;
-    try (var batchedTileWriter = db.newBatchedTileWriter()) {
-      for (TileBatch batch : tileBatches) {
-        Queue<TileEncodingResult> encodedTiles = batch.out.get();
-        TileEncodingResult encodedTile;
-        while ((encodedTile = encodedTiles.poll()) != null) {
-          TileCoord tileCoord = encodedTile.coord();
-          assert lastTile == null || lastTile.compareTo(tileCoord) < 0 : "Tiles out of order %s before %s"
-            .formatted(lastTile, tileCoord);
-          lastTile = encodedTile.coord();
-          int z = tileCoord.z();
-          if (z != currentZ) {
-            if (time == null) {
-              LOGGER.info("Starting z{}", z);
-            } else {
-              LOGGER.info("Finished z{} in {}, now starting z{}", currentZ, time.stop(), z);
-            }
-            time = Timer.start();
-            currentZ = z;
+    for (TileBatch batch : tileBatches) {
+      Queue<TileEncodingResult> encodedTiles = batch.out.get();
+      TileEncodingResult encodedTile;
+      while ((encodedTile = encodedTiles.poll()) != null) {
+        TileCoord tileCoord = encodedTile.coord();
+        assert lastTile == null || lastTile.compareTo(tileCoord) < 0 : "Tiles out of order %s before %s"
+          .formatted(lastTile, tileCoord);
+        lastTile = encodedTile.coord();
+        int z = tileCoord.z();
+        if (z != currentZ) {
+          if (time == null) {
+            LOGGER.info("Starting z{}", z);
+          } else {
+            LOGGER.info("Finished z{} in {}, now starting z{}", currentZ, time.stop(), z);
           }
-          batchedTileWriter.write(encodedTile);
-
-          stats.wroteTile(z, encodedTile.tileData() == null ? 0 : encodedTile.tileData().length);
-          tilesByZoom[z].inc();
+          time = Timer.start();
+          currentZ = z;
         }
-        lastTileWritten.set(lastTile);
+        writer.accept(encodedTile);
+
+        stats.wroteTile(z, encodedTile.tileData() == null ? 0 : encodedTile.tileData().length);
+        tilesByZoom[z].inc();
       }
-      batchedTileWriter.printStats();
+      lastTileWritten.set(lastTile);
     }
 
     if (time != null) {
       LOGGER.info("Finished z{} in {}", currentZ, time.stop());
     }
-
-    if (config.optimizeDb()) {
-      db.vacuumAnalyze();
-    }
   }
 
   private void printTileStats() {
@@ -387,28 +570,87 @@ public class MbtilesWriter {
     long sumSize = 0;
     long sumCount = 0;
     long maxMax = 0;
+    long sumCompressedSize = 0;
+    long sumCompressionNanos = 0;
     for (int z = config.minzoom(); z <= config.maxzoom(); z++) {
       long totalCount = tilesByZoom[z].get();
       long totalSize = totalTileSizesByZoom[z].get();
       sumSize += totalSize;
       sumCount += totalCount;
       long maxSize = maxTileSizesByZoom[z].get();
-      LOGGER.debug("z{} avg:{} max:{}",
+      long compressedSize = compressedTileSizesByZoom[z].get();
+      sumCompressedSize += compressedSize;
+      long compressionNanos = compressionNanosByZoom[z].get();
+      sumCompressionNanos += compressionNanos;
+      LOGGER.debug("z{} avg:{} max:{} gzip ratio:{} gzip time:{}",
         z,
         format.storage(totalCount == 0 ? 0 : (totalSize / totalCount), false),
-        format.storage(maxSize, false));
+        format.storage(maxSize, false),
+        format.percent(totalSize == 0 ? 0 : compressedSize * 1d / totalSize),
+        format.duration(Duration.ofNanos(compressionNanos)));
     }
-    LOGGER.debug("all avg:{} max:{}",
+    LOGGER.debug("all avg:{} max:{} gzip ratio:{} gzip time:{}",
       format.storage(sumCount == 0 ? 0 : (sumSize / sumCount), false),
-      format.storage(maxMax, false));
+      format.storage(maxMax, false),
+      format.percent(sumSize == 0 ? 0 : sumCompressedSize * 1d / sumSize),
+      format.duration(Duration.ofNanos(sumCompressionNanos)));
     LOGGER.debug(" # features: {}", format.integer(featuresProcessed.get()));
     LOGGER.debug("    # tiles: {}", format.integer(this.tilesEmitted()));
+    long hits = tileCacheHits.get();
+    long lookups = hits + tileCacheMisses.get();
+    LOGGER.debug(" tile cache: {} hits of {} lookups ({}), {} consecutive tiles memoized", format.integer(hits),
+      format.integer(lookups), format.percent(lookups == 0 ? 0 : hits * 1d / lookups),
+      format.integer(memoizedTiles.get()));
   }
 
   private long tilesEmitted() {
     return Stream.of(tilesByZoom).mapToLong(c -> c.get()).sum();
   }
 
+  /**
+   * Shard files next to the output that tiles get written to in parallel when {@link PlanetilerConfig#mbtilesShards()}
+   * is greater than 1.
+   * <p>
+   * Tile {@code x, y} goes to shard {@code (x + y) % shards}, so consecutive tiles in {@link TileCoord} order go to
+   * different shards and keep every shard writer busy, while each shard still receives its tiles in order. Once all
+   * shards are written, they either get merged into the output with {@link Mbtiles#mergeFrom(Path)}, or get left as
+   * complete mbtiles files with a JSON manifest that lists them and how tiles are assigned to them. Compact-db
+   * deduplication only applies within each shard.
+   */
+  private static class Shards {
+
+    private final List<Path> paths;
+    private final Path manifestPath;
+    private final boolean merge;
+
+    Shards(Path outputPath, int count, boolean merge) {
+      String name = outputPath.getFileName().toString();
+      String base = FileUtils.hasExtension(outputPath, "mbtiles") ?
+        name.substring(0, name.length() - ".mbtiles".length()) : name;
+      this.paths = IntStream.range(0, count)
+        .mapToObj(i -> outputPath.resolveSibling(base + ".shard" + i + ".mbtiles"))
+        .toList();
+      this.manifestPath = outputPath.resolveSibling(base + ".shards.json");
+      this.merge = merge;
+    }
+
+    int shard(TileCoord coord) {
+      return (coord.x() + coord.y()) % paths.size();
+    }
+
+    void writeManifest() {
+      Map<String, Object> manifest = new LinkedHashMap<>();
+      manifest.put("shards", paths.stream().map(path -> path.getFileName().toString()).toList());
+      manifest.put("assignment", "tiles go to shard (x + y) % " + paths.size() +
+        " where x and y count from the northwest corner (XYZ, not the TMS tile_row stored in each shard)");
+      try {
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(manifestPath.toFile(), manifest);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
   /**
    * Container for a batch of tiles to be processed together in the encoder and writer threads.
    * <p>
@@ -0,0 +1,111 @@
+package com.onthegomap.planetiler.mbtiles;
+
+import com.onthegomap.planetiler.collection.FeatureGroup;
+import com.onthegomap.planetiler.util.Hashing;
+import java.util.LinkedHashMap;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded cache of encoded and gzipped tiles, shared by all encoder threads and keyed by the hash of each tile's
+ * features, so that tiles with identical contents only get decoded, post-processed, encoded, and gzipped once even when
+ * they are not next to each other.
+ * <p>
+ * Only tiles whose input features are small get cached since those are the ones that repeat (ocean, land, forest
+ * interiors), and caching large unique tiles would just evict them. Lookups compare the input features of the cached
+ * tile to the requested one so a hash collision never returns the wrong tile.
+ */
+@ThreadSafe
+class TileContentCache {
+
+  // tiles with more input feature bytes than this are almost always unique
+  static final int MAX_CACHEABLE_INPUT_BYTES = 2_048;
+  private static final int SEGMENTS = 16;
+  // rough per-entry overhead of the map entry, key, value record and input feature objects
+  private static final int ENTRY_OVERHEAD_BYTES = 256;
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  TileContentCache(long maxBytes) {
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(maxBytes / SEGMENTS);
+    }
+  }
+
+  /**
+   * A tile that was already encoded.
+   *
+   * @param input                    the features the tile was encoded from, to verify cache hits
+   * @param gzipped                  the gzipped tile
+   * @param encodedLength            size of the tile before compression
+   * @param containsOnlyFills        true if the tile only contains polygon fills
+   * @param containsOnlyFillsOrEdges true if the tile only contains polygon fills or edges
+   */
+  record Entry(
+    FeatureGroup.TileFeatures input,
+    byte[] gzipped,
+    int encodedLength,
+    boolean containsOnlyFills,
+    boolean containsOnlyFillsOrEdges
+  ) {
+
+    private long weight() {
+      return ENTRY_OVERHEAD_BYTES + gzipped.length + input.getContentSizeBytes();
+    }
+  }
+
+  /**
+   * Returns the hash to use for {@code tile} in this cache and to deduplicate tile data, which includes the zoom level
+   * since profiles can post-process the same features differently at each zoom.
+   */
+  static long key(FeatureGroup.TileFeatures tile) {
+    return Hashing.fnv1a64(tile.generateContentHash(), (byte) tile.tileCoord().z());
+  }
+
+  /** Returns true if {@code tile} is small enough to cache. */
+  static boolean isCacheable(FeatureGroup.TileFeatures tile) {
+    return tile.getContentSizeBytes() <= MAX_CACHEABLE_INPUT_BYTES;
+  }
+
+  /** Returns the cached encoding of {@code tile} with hash {@code key}, or {@code null} if it is not cached. */
+  Entry get(long key, FeatureGroup.TileFeatures tile) {
+    Entry entry = segment(key).get(key);
+    return entry != null && entry.input.tileCoord().z() == tile.tileCoord().z() &&
+      entry.input.hasSameContents(tile) ? entry : null;
+  }
+
+  void put(long key, Entry entry) {
+    segment(key).put(key, entry);
+  }
+
+  private Segment segment(long key) {
+    return segments[(int) ((key * 0x9E3779B97F4A7C15L) >>> 60) & (SEGMENTS - 1)];
+  }
+
+  /** A portion of the cache with its own lock that evicts the least-recently-used tiles when it gets too big. */
+  private static class Segment {
+
+    private final long maxBytes;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    Segment(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized Entry get(long key) {
+      return entries.get(key);
+    }
+
+    synchronized void put(long key, Entry entry) {
+      Entry old = entries.put(key, entry);
+      if (old != null) {
+        bytes -= old.weight();
+      }
+      bytes += entry.weight();
+      var iterator = entries.values().iterator();
+      while (bytes > maxBytes && iterator.hasNext()) {
+        bytes -= iterator.next().weight();
+        iterator.remove();
+      }
+    }
+  }
+}
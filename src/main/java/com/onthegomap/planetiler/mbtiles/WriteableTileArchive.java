@@ -0,0 +1,46 @@
+package com.onthegomap.planetiler.mbtiles;
+
+import com.onthegomap.planetiler.config.MbtilesMetadata;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import java.io.Closeable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A file format that {@link MbtilesWriter} can write encoded tiles to.
+ * <p>
+ * The writer calls {@link #initialize(PlanetilerConfig, MbtilesMetadata, Mbtiles.MetadataJson)} first, then writes
+ * every tile through a single {@link TileWriter} from one thread in {@link com.onthegomap.planetiler.geo.TileCoord}
+ * order, then calls {@link #finish(PlanetilerConfig)}.
+ *
+ * @see Mbtiles
+ * @see com.onthegomap.planetiler.pmtiles.WriteablePmtiles
+ */
+@NotThreadSafe
+public interface WriteableTileArchive extends Closeable {
+
+  /**
+   * Returns {@code true} if this archive stores identical tiles only once, so encoders should compute a
+   * {@link TileEncodingResult#tileDataHash()} for tiles that are likely to repeat.
+   */
+  boolean deduplicates();
+
+  /** Prepares the archive to receive tiles and records information about the tileset. */
+  void initialize(PlanetilerConfig config, MbtilesMetadata metadata, Mbtiles.MetadataJson layerStats);
+
+  /** Returns a writer that tiles get passed to in order. */
+  TileWriter newTileWriter();
+
+  /** Called after the last tile is written and its {@link TileWriter} is closed. */
+  void finish(PlanetilerConfig config);
+
+  /** Accepts encoded tiles to store in the archive. */
+  interface TileWriter extends AutoCloseable {
+
+    void write(TileEncodingResult encodingResult);
+
+    @Override
+    void close();
+
+    default void printStats() {}
+  }
+}
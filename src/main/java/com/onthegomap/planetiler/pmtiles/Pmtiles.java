@@ -0,0 +1,226 @@
+package com.onthegomap.planetiler.pmtiles;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongArrayList;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and encoding utilities for the PMTiles v3 single-file tile archive format.
+ *
+ * @see <a href="https://github.com/protomaps/PMTiles/blob/main/spec/v3/spec.md">PMTiles v3 Specification</a>
+ */
+public final class Pmtiles {
+
+  /** Size of the fixed-length header at the start of the archive. */
+  public static final int HEADER_LENGTH = 127;
+  /** The header and root directory must fit within this many bytes from the start of the archive. */
+  public static final int ROOT_SECTION_LENGTH = 16_384;
+  private static final byte[] MAGIC = "PMTiles".getBytes(StandardCharsets.UTF_8);
+  private static final byte VERSION = 3;
+  // tile IDs at each zoom level start after all tiles at lower zoom levels
+  private static final long[] ZOOM_START = new long[32];
+
+  static {
+    for (int z = 1; z < ZOOM_START.length; z++) {
+      ZOOM_START[z] = ZOOM_START[z - 1] + (1L << (2 * (z - 1)));
+    }
+  }
+
+  private Pmtiles() {}
+
+  /** Compression applied to tiles or to directories and metadata. */
+  public enum Compression {
+    UNKNOWN,
+    NONE,
+    GZIP,
+    BROTLI,
+    ZSTD;
+
+    byte id() {
+      return (byte) ordinal();
+    }
+  }
+
+  /** Format of the tile data. */
+  public enum TileType {
+    UNKNOWN,
+    MVT,
+    PNG,
+    JPEG,
+    WEBP;
+
+    byte id() {
+      return (byte) ordinal();
+    }
+  }
+
+  /**
+   * Returns the position of tile {@code z/x/y} along a hilbert curve through each zoom level, after all the tiles at
+   * lower zoom levels.
+   */
+  public static long tileId(int z, int x, int y) {
+    long d = 0;
+    for (int s = z == 0 ? 0 : 1 << (z - 1); s > 0; s >>>= 1) {
+      int rx = (x & s) != 0 ? 1 : 0;
+      int ry = (y & s) != 0 ? 1 : 0;
+      d += (long) s * s * ((3 * rx) ^ ry);
+      // rotate the quadrant so the curve stays continuous
+      if (ry == 0) {
+        if (rx == 1) {
+          x = s - 1 - x;
+          y = s - 1 - y;
+        }
+        int t = x;
+        x = y;
+        y = t;
+      }
+    }
+    return ZOOM_START[z] + d;
+  }
+
+  /** The fixed-length header at the start of the archive that points to each section. */
+  public record Header(
+    long rootDirOffset,
+    long rootDirLength,
+    long metadataOffset,
+    long metadataLength,
+    long leafDirectoriesOffset,
+    long leafDirectoriesLength,
+    long tileDataOffset,
+    long tileDataLength,
+    long numAddressedTiles,
+    long numTileEntries,
+    long numTileContents,
+    boolean clustered,
+    Compression internalCompression,
+    Compression tileCompression,
+    TileType tileType,
+    int minZoom,
+    int maxZoom,
+    double minLon,
+    double minLat,
+    double maxLon,
+    double maxLat,
+    int centerZoom,
+    double centerLon,
+    double centerLat
+  ) {
+
+    /** Returns the little-endian encoding of this header. */
+    public byte[] toBytes() {
+      ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      buf.put(MAGIC);
+      buf.put(VERSION);
+      buf.putLong(rootDirOffset);
+      buf.putLong(rootDirLength);
+      buf.putLong(metadataOffset);
+      buf.putLong(metadataLength);
+      buf.putLong(leafDirectoriesOffset);
+      buf.putLong(leafDirectoriesLength);
+      buf.putLong(tileDataOffset);
+      buf.putLong(tileDataLength);
+      buf.putLong(numAddressedTiles);
+      buf.putLong(numTileEntries);
+      buf.putLong(numTileContents);
+      buf.put((byte) (clustered ? 1 : 0));
+      buf.put(internalCompression.id());
+      buf.put(tileCompression.id());
+      buf.put(tileType.id());
+      buf.put((byte) minZoom);
+      buf.put((byte) maxZoom);
+      buf.putInt(e7(minLon));
+      buf.putInt(e7(minLat));
+      buf.putInt(e7(maxLon));
+      buf.putInt(e7(maxLat));
+      buf.put((byte) centerZoom);
+      buf.putInt(e7(centerLon));
+      buf.putInt(e7(centerLat));
+      return buf.array();
+    }
+
+    private static int e7(double degrees) {
+      return (int) Math.round(degrees * 10_000_000);
+    }
+  }
+
+  /**
+   * A list of directory entries stored in primitive arrays to avoid object overhead when there are millions of them.
+   * <p>
+   * Each entry points to {@code length} bytes at {@code offset} that hold the tile data for {@code runLength}
+   * consecutive tile IDs starting at {@code tileId}, or to a leaf directory when {@code runLength} is 0.
+   */
+  public static class Entries {
+
+    private final LongArrayList tileIds = new LongArrayList();
+    private final LongArrayList offsets = new LongArrayList();
+    private final IntArrayList lengths = new IntArrayList();
+    private final IntArrayList runLengths = new IntArrayList();
+
+    public void add(long tileId, long offset, int length, int runLength) {
+      tileIds.add(tileId);
+      offsets.add(offset);
+      lengths.add(length);
+      runLengths.add(runLength);
+    }
+
+    /**
+     * Extends the last entry to cover {@code tileId} if it immediately follows the last entry and points to the same
+     * data, or adds a new entry otherwise.
+     */
+    public void addOrExtend(long tileId, long offset, int length) {
+      int last = size() - 1;
+      if (last >= 0 && offsets.get(last) == offset && lengths.get(last) == length &&
+        tileIds.get(last) + runLengths.get(last) == tileId) {
+        runLengths.set(last, runLengths.get(last) + 1);
+      } else {
+        add(tileId, offset, length, 1);
+      }
+    }
+
+    public int size() {
+      return tileIds.size();
+    }
+
+    public long tileId(int index) {
+      return tileIds.get(index);
+    }
+
+    /** Returns the uncompressed directory encoding of entries from {@code from} inclusive to {@code to} exclusive. */
+    public byte[] serialize(int from, int to) {
+      var out = new ByteArrayOutputStream((to - from) * 8);
+      writeVarLong(out, to - from);
+      long lastId = 0;
+      for (int i = from; i < to; i++) {
+        long id = tileIds.get(i);
+        writeVarLong(out, id - lastId);
+        lastId = id;
+      }
+      for (int i = from; i < to; i++) {
+        writeVarLong(out, runLengths.get(i));
+      }
+      for (int i = from; i < to; i++) {
+        writeVarLong(out, lengths.get(i));
+      }
+      for (int i = from; i < to; i++) {
+        // 0 means the data immediately follows the previous entry's data
+        if (i > from && offsets.get(i) == offsets.get(i - 1) + lengths.get(i - 1)) {
+          writeVarLong(out, 0);
+        } else {
+          writeVarLong(out, offsets.get(i) + 1);
+        }
+      }
+      return out.toByteArray();
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+      while ((value & ~0x7fL) != 0) {
+        out.write((int) ((value & 0x7f) | 0x80));
+        value >>>= 7;
+      }
+      out.write((int) value);
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package com.onthegomap.planetiler.pmtiles;
+
+import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_ABSENT;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongIntHashMap;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.onthegomap.planetiler.config.MbtilesMetadata;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.mbtiles.Mbtiles;
+import com.onthegomap.planetiler.mbtiles.TileEncodingResult;
+import com.onthegomap.planetiler.mbtiles.WriteableTileArchive;
+import com.onthegomap.planetiler.util.Format;
+import com.onthegomap.planetiler.util.Gzip;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes tiles to a single-file PMTiles v3 archive that can be served directly from object storage using HTTP range
+ * requests.
+ * <p>
+ * Tile data is appended sequentially as tiles arrive, after space reserved at the start of the file for the header and
+ * root directory. Identical tiles are only stored once, either when they have the same
+ * {@link TileEncodingResult#tileDataHash()} or when the encoder re-used the bytes from the previous tile. When all
+ * tiles are written, the directory is sorted by tile ID and consecutive tiles with the same contents (i.e. ocean) are
+ * collapsed into a single run-length entry, then metadata and leaf directories are written after the tile data.
+ *
+ * @see <a href="https://github.com/protomaps/PMTiles/blob/main/spec/v3/spec.md">PMTiles v3 Specification</a>
+ */
+@NotThreadSafe
+public final class WriteablePmtiles implements WriteableTileArchive {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteablePmtiles.class);
+  private static final ObjectMapper objectMapper = new ObjectMapper()
+    .registerModules(new Jdk8Module())
+    .setSerializationInclusion(NON_ABSENT);
+  private static final int MIN_LEAF_SIZE = 4_096;
+
+  private final FileChannel channel;
+  private final OutputStream out;
+  // (tile ID << 32) | content ID for each tile, so sorting by tile ID is a primitive array sort
+  private final LongArrayList tiles = new LongArrayList();
+  // offset and length of each unique tile content, indexed by content ID
+  private final LongArrayList contentOffsets = new LongArrayList();
+  private final IntArrayList contentLengths = new IntArrayList();
+  private final LongIntHashMap contentIdByHash = new LongIntHashMap();
+  private long tileDataLength = 0;
+  private byte[] metadata;
+  private boolean initialized = false;
+
+  private WriteablePmtiles(FileChannel channel) {
+    this.channel = channel;
+    this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20);
+  }
+
+  /** Returns a new archive that writes to {@code path}, replacing it if it already exists. */
+  public static WriteablePmtiles newWriteToFile(Path path) {
+    try {
+      return new WriteablePmtiles(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING));
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to open " + path, e);
+    }
+  }
+
+  @Override
+  public boolean deduplicates() {
+    return true;
+  }
+
+  @Override
+  public void initialize(PlanetilerConfig config, MbtilesMetadata mbtilesMetadata, Mbtiles.MetadataJson layerStats) {
+    Map<String, Object> json = new LinkedHashMap<>();
+    json.put("name", mbtilesMetadata.name());
+    json.put("format", "pbf");
+    json.put("description", mbtilesMetadata.description());
+    json.put("attribution", mbtilesMetadata.attribution());
+    json.put("version", mbtilesMetadata.version());
+    json.put("type", mbtilesMetadata.type());
+    if (layerStats != null) {
+      json.put("vector_layers", layerStats.vectorLayers());
+    }
+    json.values().removeIf(value -> value == null);
+    try {
+      metadata = Gzip.gzip(objectMapper.writeValueAsBytes(json));
+      channel.position(Pmtiles.ROOT_SECTION_LENGTH);
+    } catch (JsonProcessingException e) {
+      throw new IllegalArgumentException("Unable to encode metadata: " + json, e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    initialized = true;
+  }
+
+  @Override
+  public TileWriter newTileWriter() {
+    if (!initialized) {
+      throw new IllegalStateException("Must initialize before writing tiles");
+    }
+    return new PmtilesTileWriter();
+  }
+
+  @Override
+  public void finish(PlanetilerConfig config) {
+    try {
+      out.flush();
+      long[] sorted = tiles.toArray();
+      Arrays.parallelSort(sorted);
+      Pmtiles.Entries entries = new Pmtiles.Entries();
+      for (long tile : sorted) {
+        int contentId = (int) tile;
+        entries.addOrExtend(tile >>> 32, contentOffsets.get(contentId), contentLengths.get(contentId));
+      }
+      LOGGER.info("Writing pmtiles directory for {} tiles with {} entries and {} unique tiles",
+        Format.defaultInstance().integer(sorted.length),
+        Format.defaultInstance().integer(entries.size()),
+        Format.defaultInstance().integer(contentOffsets.size()));
+
+      Directories directories = buildDirectories(entries);
+      long metadataOffset = Pmtiles.ROOT_SECTION_LENGTH + tileDataLength;
+      long leafDirectoriesOffset = metadataOffset + metadata.length;
+      out.write(metadata);
+      out.write(directories.leaves);
+      out.flush();
+
+      Envelope bounds = config.bounds().latLon();
+      Coordinate center = bounds.centre();
+      int centerZoom = (int) Math.ceil(GeoUtils.getZoomFromLonLatBounds(bounds));
+      var header = new Pmtiles.Header(
+        Pmtiles.HEADER_LENGTH, directories.root.length,
+        metadataOffset, metadata.length,
+        leafDirectoriesOffset, directories.leaves.length,
+        Pmtiles.ROOT_SECTION_LENGTH, tileDataLength,
+        sorted.length, entries.size(), contentOffsets.size(),
+        false,
+        Pmtiles.Compression.GZIP,
+        Pmtiles.Compression.GZIP,
+        Pmtiles.TileType.MVT,
+        config.minzoom(),
+        config.maxzoom(),
+        bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(),
+        Math.max(config.minzoom(), Math.min(config.maxzoom(), centerZoom)),
+        center.x, center.y
+      );
+      channel.write(ByteBuffer.wrap(header.toBytes()), 0);
+      channel.write(ByteBuffer.wrap(directories.root), Pmtiles.HEADER_LENGTH);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private record Directories(byte[] root, byte[] leaves) {}
+
+  /**
+   * Returns a root directory that fits in the space reserved at the start of the file, splitting entries into leaf
+   * directories that get larger until the root directory pointing to them fits.
+   */
+  private static Directories buildDirectories(Pmtiles.Entries entries) throws IOException {
+    int maxRootLength = Pmtiles.ROOT_SECTION_LENGTH - Pmtiles.HEADER_LENGTH;
+    byte[] root = Gzip.gzip(entries.serialize(0, entries.size()));
+    if (root.length <= maxRootLength) {
+      return new Directories(root, new byte[0]);
+    }
+    for (int leafSize = MIN_LEAF_SIZE; ; leafSize *= 2) {
+      Pmtiles.Entries rootEntries = new Pmtiles.Entries();
+      var leaves = new ByteArrayOutputStream();
+      for (int from = 0; from < entries.size(); from += leafSize) {
+        int to = Math.min(entries.size(), from + leafSize);
+        byte[] leaf = Gzip.gzip(entries.serialize(from, to));
+        rootEntries.add(entries.tileId(from), leaves.size(), leaf.length, 0);
+        leaves.write(leaf);
+      }
+      root = Gzip.gzip(rootEntries.serialize(0, rootEntries.size()));
+      if (root.length <= maxRootLength) {
+        return new Directories(root, leaves.toByteArray());
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try (channel) {
+      out.close();
+    }
+  }
+
+  private class PmtilesTileWriter implements TileWriter {
+
+    // the encoder re-uses the same array for consecutive identical tiles
+    private byte[] lastData = null;
+    private int lastContentId = -1;
+
+    @Override
+    public void write(TileEncodingResult encodingResult) {
+      byte[] data = encodingResult.tileData();
+      if (data == null) {
+        return;
+      }
+      TileCoord coord = encodingResult.coord();
+      OptionalLong hash = encodingResult.tileDataHash();
+      int contentId;
+      if (data == lastData) {
+        contentId = lastContentId;
+      } else if (hash.isPresent() && contentIdByHash.containsKey(hash.getAsLong())) {
+        contentId = contentIdByHash.get(hash.getAsLong());
+      } else {
+        contentId = contentOffsets.size();
+        contentOffsets.add(tileDataLength);
+        contentLengths.add(data.length);
+        try {
+          out.write(data);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        tileDataLength += data.length;
+        if (hash.isPresent()) {
+          contentIdByHash.put(hash.getAsLong(), contentId);
+        }
+      }
+      lastData = data;
+      lastContentId = contentId;
+      tiles.add((Pmtiles.tileId(coord.z(), coord.x(), coord.y()) << 32) | contentId);
+    }
+
+    @Override
+    public void close() {}
+  }
+}
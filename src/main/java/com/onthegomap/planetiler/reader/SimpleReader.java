@@ -79,7 +79,7 @@ public abstract class SimpleReader implements Closeable {
       })
       // output large batches since each input may map to many tiny output features (i.e. slicing ocean tiles)
       // which turns enqueueing into the bottleneck
-      .addBuffer("write_queue", 50_000, 1_000)
+      .addBuffer("write_queue", 50_000, 1_000, config.featureQueueType())
       .sinkTo("write", writeThreads, prev -> {
         try (var threadLocalWriter = writer.writerForThread()) {
           for (var item : prev) {
@@ -0,0 +1,271 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.annotation.concurrent.ThreadSafe;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The location of every data block in an {@code .osm.pbf} file, with the types of elements, range of element IDs, and
+ * bounds of the nodes that each one contains.
+ * <p>
+ * An index gets built as a side effect of the first pass through a file that decodes every block, so that later passes
+ * can hand block offsets straight to worker threads to read in parallel, and skip blocks that a pass does not need
+ * without reading them. It can also be cached in a separate directory for later runs on the same file, since the
+ * directory holding the input may be read-only or shared.
+ * <p>
+ * The cached copy records the size and modification time of the input file and gets ignored if either changes.
+ */
+@ThreadSafe
+public class OsmBlockIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OsmBlockIndex.class);
+  private static final long MAGIC = 0x504246494e444558L; // "PBFINDEX"
+  private static final int VERSION = 1;
+  private static final int HAS_NODES = 1;
+  private static final int HAS_WAYS = 2;
+  private static final int HAS_RELATIONS = 4;
+  private final List<Entry> entries;
+
+  private OsmBlockIndex(List<Entry> entries) {
+    this.entries = List.copyOf(entries);
+  }
+
+  /** Returns the path in {@code cacheDir} that the index for {@code input} gets cached to. */
+  public static Path cachePath(Path cacheDir, Path input) {
+    return cacheDir.resolve(input.getFileName() + ".blockindex");
+  }
+
+  /**
+   * Returns the index of {@code input} cached in {@code cacheDir}, or {@code null} if there is none or it was built
+   * from a different version of the file.
+   */
+  public static OsmBlockIndex load(Path cacheDir, Path input) {
+    Path path = cachePath(cacheDir, input);
+    if (!Files.isRegularFile(path)) {
+      return null;
+    }
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+      if (in.readLong() != MAGIC || in.readInt() != VERSION || in.readLong() != Files.size(input) ||
+        in.readLong() != Files.getLastModifiedTime(input).toMillis()) {
+        LOGGER.info("Ignoring outdated OSM block index {}", path);
+        return null;
+      }
+      int count = in.readInt();
+      List<Entry> entries = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        entries.add(new Entry(
+          in.readLong(),
+          in.readInt(),
+          in.readByte(),
+          in.readLong(),
+          in.readLong(),
+          in.readFloat(),
+          in.readFloat(),
+          in.readFloat(),
+          in.readFloat()
+        ));
+      }
+      return new OsmBlockIndex(entries);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read OSM block index {}: {}", path, e.toString());
+      return null;
+    }
+  }
+
+  /** Returns the number of data blocks in the file. */
+  public int size() {
+    return entries.size();
+  }
+
+  /** Returns every block in the order they appear in the file. */
+  public List<Entry> entries() {
+    return entries;
+  }
+
+  /** Returns the bounds of every node in the file. */
+  public Envelope nodeBounds() {
+    Envelope result = new Envelope();
+    for (Entry entry : entries) {
+      if (entry.hasNodes()) {
+        result.expandToInclude(entry.nodeBounds());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes this index of {@code input} to {@code cacheDir}, logging a warning instead of failing if that location is not
+   * writeable.
+   */
+  void save(Path cacheDir, Path input) {
+    Path path = cachePath(cacheDir, input);
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      Files.createDirectories(cacheDir);
+      try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(Files.size(input));
+        out.writeLong(Files.getLastModifiedTime(input).toMillis());
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+          out.writeLong(entry.offset);
+          out.writeInt(entry.length);
+          out.writeByte(entry.types);
+          out.writeLong(entry.minId);
+          out.writeLong(entry.maxId);
+          out.writeFloat(entry.minLon);
+          out.writeFloat(entry.minLat);
+          out.writeFloat(entry.maxLon);
+          out.writeFloat(entry.maxLat);
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      LOGGER.info("Wrote index of {} OSM blocks to {}", entries.size(), path);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to write OSM block index to {}: {}", path, e.toString());
+      try {
+        Files.deleteIfExists(tmp);
+      } catch (IOException ignored) {
+        // already warned
+      }
+    }
+  }
+
+  /**
+   * Location and contents of a data block.
+   *
+   * @param offset start of the blob in the file, after its header
+   * @param length size of the blob in bytes
+   * @param types  bitmask of the element types in the block
+   * @param minId  smallest element ID in the block
+   * @param maxId  largest element ID in the block
+   * @param minLon westernmost node longitude, rounded down
+   * @param minLat southernmost node latitude, rounded down
+   * @param maxLon easternmost node longitude, rounded up
+   * @param maxLat northernmost node latitude, rounded up
+   */
+  public record Entry(
+    long offset,
+    int length,
+    int types,
+    long minId,
+    long maxId,
+    float minLon,
+    float minLat,
+    float maxLon,
+    float maxLat
+  ) {
+
+    /** Returns an entry for a block that contains no elements. */
+    static Entry empty(long offset, int length) {
+      return new Entry(offset, length, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /** Returns an entry for a block with elements of the given types, IDs, and node bounds. */
+    static Entry of(long offset, int length, boolean nodes, boolean ways, boolean relations, long minId, long maxId,
+      double minLon, double minLat, double maxLon, double maxLat) {
+      return new Entry(offset, length,
+        (nodes ? HAS_NODES : 0) | (ways ? HAS_WAYS : 0) | (relations ? HAS_RELATIONS : 0),
+        minId, maxId,
+        nodes ? Math.nextDown((float) minLon) : 0,
+        nodes ? Math.nextDown((float) minLat) : 0,
+        nodes ? Math.nextUp((float) maxLon) : 0,
+        nodes ? Math.nextUp((float) maxLat) : 0
+      );
+    }
+
+    public boolean hasNodes() {
+      return (types & HAS_NODES) != 0;
+    }
+
+    public boolean hasWays() {
+      return (types & HAS_WAYS) != 0;
+    }
+
+    public boolean hasRelations() {
+      return (types & HAS_RELATIONS) != 0;
+    }
+
+    /** Returns the bounds of all nodes in this block, or an empty envelope if it has none. */
+    public Envelope nodeBounds() {
+      return hasNodes() ? new Envelope(minLon, maxLon, minLat, maxLat) : new Envelope();
+    }
+  }
+
+  /**
+   * Collects entries for blocks as they get read from the file in one thread and decoded in worker threads, and builds
+   * the index once the last block has been decoded.
+   */
+  @ThreadSafe
+  static class Builder {
+
+    private final Consumer<OsmBlockIndex> onComplete;
+    private final List<Entry> entries = new ArrayList<>();
+    private int remaining = 0;
+    private boolean doneReading = false;
+    private boolean[] summarized = new boolean[1024];
+
+    /** Calls {@code onComplete} from whichever thread finishes the last block. */
+    Builder(Consumer<OsmBlockIndex> onComplete) {
+      this.onComplete = onComplete;
+    }
+
+    /** Adds a block that was just read and returns its position in the file to pass to {@link #set(int, Entry)}. */
+    synchronized int add(long offset, int length) {
+      int index = entries.size();
+      entries.add(Entry.empty(offset, length));
+      if (index >= summarized.length) {
+        summarized = Arrays.copyOf(summarized, summarized.length * 2);
+      }
+      remaining++;
+      return index;
+    }
+
+    /** Records the contents of the block at {@code index} after it was decoded. */
+    void set(int index, Entry entry) {
+      OsmBlockIndex result = null;
+      synchronized (this) {
+        if (!summarized[index]) {
+          summarized[index] = true;
+          entries.set(index, entry);
+          remaining--;
+          result = build();
+        }
+      }
+      if (result != null) {
+        onComplete.accept(result);
+      }
+    }
+
+    /** Marks that every block from the file has been passed to {@link #add(long, int)}. */
+    void finishedReading() {
+      OsmBlockIndex result;
+      synchronized (this) {
+        doneReading = true;
+        result = build();
+      }
+      if (result != null) {
+        onComplete.accept(result);
+      }
+    }
+
+    /** Returns the index if every block has been decoded, or {@code null} otherwise. */
+    private OsmBlockIndex build() {
+      return doneReading && remaining == 0 ? new OsmBlockIndex(entries) : null;
+    }
+  }
+}
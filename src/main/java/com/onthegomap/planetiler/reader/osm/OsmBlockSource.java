@@ -3,6 +3,7 @@ package com.onthegomap.planetiler.reader.osm;
 import java.io.Closeable;
 import java.util.Iterator;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * An osm.pbf input file that iterates through {@link Block Blocks} of raw bytes that can be decompressed/parsed in
@@ -13,6 +14,19 @@ public interface OsmBlockSource extends Closeable {
   /** Calls {@code consumer} for each block from the input file sequentially in a single thread. */
   void forEachBlock(Consumer<Block> consumer);
 
+  /**
+   * Calls {@code consumer} for each block that {@code filter} accepts if this source has an {@link OsmBlockIndex},
+   * otherwise for every block like {@link #forEachBlock(Consumer)}.
+   */
+  default void forEachMatchingBlock(Predicate<OsmBlockIndex.Entry> filter, Consumer<Block> consumer) {
+    forEachBlock(consumer);
+  }
+
+  /** Returns the index of blocks in the input file, or {@code null} if one is not available yet. */
+  default OsmBlockIndex blockIndex() {
+    return null;
+  }
+
   @Override
   default void close() {}
 
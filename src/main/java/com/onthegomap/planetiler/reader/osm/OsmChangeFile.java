@@ -0,0 +1,123 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import com.carrotsearch.hppc.LongHashSet;
+import com.onthegomap.planetiler.reader.FileFormatException;
+import com.onthegomap.planetiler.util.FileUtils;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The IDs of elements touched by an <a href="https://wiki.openstreetmap.org/wiki/OsmChange">OsmChange</a> replication
+ * diff ({@code .osc} or {@code .osc.gz}).
+ * <p>
+ * Only element IDs are retained since the new version of each element is read from the updated {@code .osm.pbf} input
+ * and the old version is looked up from an {@link OsmElementTileIndex} persisted by the previous run.
+ */
+public record OsmChangeFile(LongHashSet nodes, LongHashSet ways, LongHashSet relations) {
+
+  private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+
+  static {
+    // osc files come from replication servers, do not resolve external entities
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
+  public OsmChangeFile() {
+    this(new LongHashSet(), new LongHashSet(), new LongHashSet());
+  }
+
+  /**
+   * Parses the created, modified, and deleted element IDs from an OsmChange file.
+   *
+   * @throws FileFormatException if the file is not valid OsmChange XML
+   */
+  public static OsmChangeFile read(Path path) {
+    try (
+      InputStream fileStream = new BufferedInputStream(Files.newInputStream(path));
+      InputStream inputStream = FileUtils.hasExtension(path, "gz") ? new GZIPInputStream(fileStream) : fileStream
+    ) {
+      return read(inputStream);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Parses the created, modified, and deleted element IDs from an OsmChange XML stream. */
+  public static OsmChangeFile read(InputStream inputStream) {
+    OsmChangeFile result = new OsmChangeFile();
+    XMLStreamReader reader = null;
+    try {
+      reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+      int depth = 0;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          // osmChange > create|modify|delete > node|way|relation, ignore nested tags, nds, and members
+          if (depth == 3) {
+            String id = reader.getAttributeValue(null, "id");
+            switch (reader.getLocalName()) {
+              case "node" -> result.nodes.add(parseId(id));
+              case "way" -> result.ways.add(parseId(id));
+              case "relation" -> result.relations.add(parseId(id));
+              default -> {
+                // other elements (i.e. bounds) do not affect output
+              }
+            }
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          depth--;
+        }
+      }
+    } catch (XMLStreamException e) {
+      throw new FileFormatException("Invalid OsmChange file", e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // ok
+        }
+      }
+    }
+    return result;
+  }
+
+  private static long parseId(String id) {
+    if (id == null) {
+      throw new FileFormatException("OsmChange element missing id attribute");
+    }
+    try {
+      return Long.parseLong(id);
+    } catch (NumberFormatException e) {
+      throw new FileFormatException("Invalid OsmChange element id: " + id, e);
+    }
+  }
+
+  /** Returns {@code true} if {@code element} was created, modified, or deleted by this change file. */
+  public boolean contains(OsmElement element) {
+    if (element instanceof OsmElement.Node) {
+      return nodes.contains(element.id());
+    } else if (element instanceof OsmElement.Way) {
+      return ways.contains(element.id());
+    } else if (element instanceof OsmElement.Relation) {
+      return relations.contains(element.id());
+    }
+    return false;
+  }
+
+  /** Returns the total number of elements touched by this change file. */
+  public long size() {
+    return (long) nodes.size() + ways.size() + relations.size();
+  }
+}
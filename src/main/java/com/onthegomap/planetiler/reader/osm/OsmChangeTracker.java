@@ -0,0 +1,291 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongHashSet;
+import com.carrotsearch.hppc.LongObjectHashMap;
+import com.onthegomap.planetiler.FeatureCollector;
+import com.onthegomap.planetiler.Profile;
+import com.onthegomap.planetiler.geo.TileCoordSet;
+import com.onthegomap.planetiler.reader.SourceFeature;
+import java.util.List;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Keeps track of which tiles need to be regenerated when applying an {@link OsmChangeFile} to a previous output, and
+ * records the area covered by each element to a new {@link OsmElementTileIndex} for the next update.
+ * <p>
+ * This only limits which tiles get encoded and written to the existing output: pass1, pass2, and the feature sort
+ * still run over the full OSM input, which must already have the changes applied.
+ * <p>
+ * An element is "dirty" when it was created, modified, or deleted by the change file, or when its geometry or relation
+ * membership depends on an element that was:
+ * <ul>
+ * <li>a way is dirty if any of its nodes or any of the relations it is a member of changed</li>
+ * <li>a relation is dirty if any of its member nodes or ways are dirty, or if any relation nested in it at any depth
+ * changed</li>
+ * </ul>
+ * Tiles covered by the new features of every dirty element are added to the dirty tile set during pass2, then
+ * {@link #addPreviousTiles(OsmElementTileIndex)} adds the tiles that dirty elements covered in the previous run.
+ * Features that the profile emits from {@link Profile#finish} can depend on any element, so the tiles they cover in the
+ * previous and new runs are always dirty.
+ * <p>
+ * When {@code changes} is null, this only writes the index so that a later run can apply changes incrementally.
+ */
+@ThreadSafe
+public class OsmChangeTracker {
+
+  private final OsmChangeFile changes;
+  private final OsmElementTileIndex newIndex;
+  private final TileCoordSet dirtyTiles;
+  private final int maxzoom;
+  // ways are all processed before relations so relations can rely on this being complete
+  private final LongHashSet dirtyWays = new LongHashSet();
+  private final LongHashSet dirtyKeys = new LongHashSet();
+  // relations are processed in parallel in no particular order, so store child -> parent relation IDs to propagate
+  // changes up through nested relations once pass2 is done
+  private final LongObjectHashMap<LongArrayList> parentRelations = new LongObjectHashMap<>();
+
+  public OsmChangeTracker(OsmChangeFile changes, OsmElementTileIndex newIndex, TileCoordSet dirtyTiles, int maxzoom) {
+    this.changes = changes;
+    this.newIndex = newIndex;
+    this.dirtyTiles = dirtyTiles;
+    this.maxzoom = maxzoom;
+    if (changes != null) {
+      // deleted elements will not show up in the new input, so their old tiles need to be invalidated up-front
+      for (var cursor : changes.nodes()) {
+        dirtyKeys.add(OsmElementTileIndex.key(OsmElement.Type.NODE, cursor.value));
+      }
+      for (var cursor : changes.ways()) {
+        dirtyKeys.add(OsmElementTileIndex.key(OsmElement.Type.WAY, cursor.value));
+      }
+      for (var cursor : changes.relations()) {
+        dirtyKeys.add(OsmElementTileIndex.key(OsmElement.Type.RELATION, cursor.value));
+      }
+      dirtyKeys.add(OsmElementTileIndex.FINISHED_KEY);
+    }
+  }
+
+  /** Returns {@code true} if this tracker is applying changes, or {@code false} if it is only writing the index. */
+  public boolean isUpdate() {
+    return changes != null;
+  }
+
+  private void markDirty(long key) {
+    synchronized (dirtyKeys) {
+      dirtyKeys.add(key);
+    }
+  }
+
+  private boolean isDirtyWay(long id) {
+    synchronized (dirtyWays) {
+      return dirtyWays.contains(id);
+    }
+  }
+
+  private static double maxBufferPixels(FeatureCollector.Feature feature, int maxzoom) {
+    double bufferPixels = 0;
+    for (int z = feature.getMinZoom(); z <= Math.min(feature.getMaxZoom(), maxzoom); z++) {
+      bufferPixels = Math.max(bufferPixels, feature.getBufferPixelsAtZoom(z));
+    }
+    return bufferPixels;
+  }
+
+  private boolean anyRelationChanged(List<OsmReader.RelationMember<OsmRelationInfo>> relations) {
+    for (var relation : relations) {
+      if (changes.relations().contains(relation.relation().id())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns {@code true} if {@code element} needs to be re-rendered because it or something it depends on changed. */
+  boolean isDirty(OsmElement element, SourceFeature feature) {
+    if (changes == null) {
+      return false;
+    }
+    if (element instanceof OsmElement.Node node) {
+      return changes.nodes().contains(node.id());
+    } else if (element instanceof OsmElement.Way way) {
+      return isDirtyWay(way.id()) ||
+        anyRelationChanged(feature.relationInfo(OsmRelationInfo.class));
+    } else if (element instanceof OsmElement.Relation relation) {
+      if (changes.relations().contains(relation.id())) {
+        return true;
+      }
+      for (var member : relation.members()) {
+        boolean dirty = switch (member.type()) {
+          case NODE -> changes.nodes().contains(member.ref());
+          case WAY -> isDirtyWay(member.ref());
+          case RELATION -> changes.relations().contains(member.ref());
+        };
+        if (dirty) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean anyNodeChanged(LongArrayList nodes) {
+    for (int i = 0; i < nodes.size(); i++) {
+      if (changes.nodes().contains(nodes.get(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds the tiles that every dirty element covered in the previous run from {@code oldIndex} to the dirty tile set.
+   * <p>
+   * Must be called after pass2 has processed every element.
+   */
+  public void addPreviousTiles(OsmElementTileIndex oldIndex) {
+    LongHashSet ancestors = changedRelationAncestors();
+    LongHashSet keys;
+    synchronized (dirtyKeys) {
+      ancestors.removeAll(dirtyKeys);
+      dirtyKeys.addAll(ancestors);
+      keys = dirtyKeys;
+    }
+    if (!ancestors.isEmpty()) {
+      // pass2 did not know these were dirty, so invalidate the tiles they cover now too
+      newIndex.scan(ancestors::contains,
+        (key, worldBounds, bufferPixels, minzoom) -> dirtyTiles.addWorldBounds(worldBounds, bufferPixels, minzoom));
+    }
+    oldIndex.scan(keys::contains,
+      (key, worldBounds, bufferPixels, minzoom) -> dirtyTiles.addWorldBounds(worldBounds, bufferPixels, minzoom));
+  }
+
+  /** Returns the keys of every relation that has a changed relation nested inside of it at any depth. */
+  private LongHashSet changedRelationAncestors() {
+    LongHashSet result = new LongHashSet();
+    LongArrayList queue = new LongArrayList();
+    for (var cursor : changes.relations()) {
+      queue.add(cursor.value);
+    }
+    synchronized (parentRelations) {
+      while (!queue.isEmpty()) {
+        long child = queue.remove(queue.size() - 1);
+        LongArrayList parents = parentRelations.get(child);
+        if (parents != null) {
+          for (var cursor : parents) {
+            // the set check also stops cycles of relations that contain each other
+            if (result.add(OsmElementTileIndex.key(OsmElement.Type.RELATION, cursor.value))) {
+              queue.add(cursor.value);
+            }
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Returns the number of elements marked dirty so far. */
+  public long dirtyElements() {
+    synchronized (dirtyKeys) {
+      return dirtyKeys.size();
+    }
+  }
+
+  /** Returns a new handle that a single pass2 worker thread can use to record rendered elements. */
+  public ForThread forThread() {
+    return new ForThread();
+  }
+
+  /** Per-thread state for recording the features that each element renders. */
+  @NotThreadSafe
+  public class ForThread implements AutoCloseable {
+
+    private final OsmElementTileIndex.Writer writer = newIndex.newWriter();
+    private final Envelope bounds = new Envelope();
+
+    /**
+     * Records what later elements need to know about {@code element} to tell if they are dirty, whether or not it
+     * renders any features.
+     * <p>
+     * Must be called for every way and relation in pass2.
+     */
+    void visit(OsmElement element) {
+      if (changes == null) {
+        return;
+      }
+      if (element instanceof OsmElement.Way way) {
+        if (changes.ways().contains(way.id()) || anyNodeChanged(way.nodes())) {
+          synchronized (dirtyWays) {
+            dirtyWays.add(way.id());
+          }
+        }
+      } else if (element instanceof OsmElement.Relation relation) {
+        for (var member : relation.members()) {
+          if (member.type() == OsmElement.Type.RELATION) {
+            synchronized (parentRelations) {
+              LongArrayList parents = parentRelations.get(member.ref());
+              if (parents == null) {
+                parentRelations.put(member.ref(), parents = new LongArrayList(1));
+              }
+              parents.add(relation.id());
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Records the area covered by {@code features} that were rendered from {@code element}, and invalidates the tiles
+     * they cover if {@code element} is dirty.
+     */
+    void rendered(OsmElement element, SourceFeature source, FeatureCollector features) {
+      boolean dirty = isDirty(element, source);
+      long key = OsmElementTileIndex.key(element);
+      if (dirty) {
+        markDirty(key);
+      }
+      bounds.setToNull();
+      double bufferPixels = 0;
+      int minzoom = Integer.MAX_VALUE;
+      for (FeatureCollector.Feature feature : features) {
+        bounds.expandToInclude(feature.getGeometry().getEnvelopeInternal());
+        bufferPixels = Math.max(bufferPixels, maxBufferPixels(feature, maxzoom));
+        minzoom = Math.min(minzoom, feature.getMinZoom());
+      }
+      if (bounds.isNull()) {
+        return;
+      }
+      writer.write(key, bounds, bufferPixels, minzoom);
+      // so changes to a route relation invalidate tiles with ways that used to be in it
+      var relations = source.relationInfo(OsmRelationInfo.class);
+      for (var relation : relations) {
+        writer.write(OsmElementTileIndex.key(OsmElement.Type.RELATION, relation.relation().id()), bounds,
+          bufferPixels, minzoom);
+      }
+      if (dirty) {
+        dirtyTiles.addWorldBounds(bounds, bufferPixels, minzoom);
+      }
+    }
+
+    /**
+     * Records the area covered by {@code feature} that the profile emitted from {@link Profile#finish}, and invalidates
+     * the tiles it covers when applying changes.
+     */
+    void finished(FeatureCollector.Feature feature) {
+      Envelope featureBounds = feature.getGeometry().getEnvelopeInternal();
+      if (featureBounds.isNull()) {
+        return;
+      }
+      double bufferPixels = maxBufferPixels(feature, maxzoom);
+      writer.write(OsmElementTileIndex.FINISHED_KEY, featureBounds, bufferPixels, feature.getMinZoom());
+      if (changes != null) {
+        dirtyTiles.addWorldBounds(featureBounds, bufferPixels, feature.getMinZoom());
+      }
+    }
+
+    @Override
+    public void close() {
+      writer.close();
+    }
+  }
+}
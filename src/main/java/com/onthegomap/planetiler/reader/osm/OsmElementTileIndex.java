@@ -0,0 +1,171 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import com.onthegomap.planetiler.util.DiskBacked;
+import com.onthegomap.planetiler.util.FileUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+import java.util.stream.Stream;
+import javax.annotation.concurrent.NotThreadSafe;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * A reverse index from OSM element to the area of the map covered by the features it rendered, persisted to disk so
+ * that an incremental update can find the tiles that an element used to touch before it was modified or deleted.
+ * <p>
+ * Each worker thread appends fixed-size records to its own file in the index directory so writes never contend. Reads
+ * are a sequential scan of every file since an update only needs to look up the bounds of a small set of changed
+ * elements.
+ */
+public class OsmElementTileIndex implements DiskBacked {
+
+  /**
+   * Key for features that the profile emits from {@link com.onthegomap.planetiler.Profile#finish}, which do not come
+   * from any single element.
+   */
+  public static final long FINISHED_KEY = 3L << 62;
+  private static final String PART_PREFIX = "part-";
+  private final Path dir;
+  private final AtomicInteger parts = new AtomicInteger(0);
+
+  private OsmElementTileIndex(Path dir) {
+    this.dir = dir;
+  }
+
+  /** Returns a new empty index that will be written to {@code dir}, replacing any index that was there before. */
+  public static OsmElementTileIndex create(Path dir) {
+    FileUtils.deleteDirectory(dir);
+    FileUtils.createDirectory(dir);
+    return new OsmElementTileIndex(dir);
+  }
+
+  /** Returns a handle to the existing index in {@code dir}. */
+  public static OsmElementTileIndex open(Path dir) {
+    if (!Files.isDirectory(dir)) {
+      throw new IllegalArgumentException("No OSM element tile index found at " + dir);
+    }
+    return new OsmElementTileIndex(dir);
+  }
+
+  /** Packs the element type and ID into a single long key. */
+  public static long key(OsmElement.Type type, long id) {
+    return ((long) type.ordinal() << 62) | id;
+  }
+
+  /** Returns the key for {@code element}. */
+  public static long key(OsmElement element) {
+    OsmElement.Type type;
+    if (element instanceof OsmElement.Node) {
+      type = OsmElement.Type.NODE;
+    } else if (element instanceof OsmElement.Way) {
+      type = OsmElement.Type.WAY;
+    } else {
+      type = OsmElement.Type.RELATION;
+    }
+    return key(type, element.id());
+  }
+
+  /** Returns a new writer that a single thread can use to append entries to this index. */
+  public Writer newWriter() {
+    return new Writer(dir.resolve(PART_PREFIX + parts.incrementAndGet()));
+  }
+
+  /**
+   * Calls {@code consumer} with the bounds of every element in this index whose key passes {@code filter}.
+   */
+  public void scan(LongPredicate filter, EntryConsumer consumer) {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(dir)) {
+      files = list.filter(path -> path.getFileName().toString().startsWith(PART_PREFIX)).toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    for (Path file : files) {
+      try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 50_000))) {
+        while (true) {
+          long key;
+          try {
+            key = input.readLong();
+          } catch (EOFException e) {
+            break;
+          }
+          double minX = input.readFloat();
+          double minY = input.readFloat();
+          double maxX = input.readFloat();
+          double maxY = input.readFloat();
+          float buffer = input.readFloat();
+          int minzoom = input.readByte();
+          if (filter.test(key)) {
+            consumer.accept(key, new Envelope(minX, maxX, minY, maxY), buffer, minzoom);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  @Override
+  public long diskUsageBytes() {
+    return FileUtils.directorySize(dir);
+  }
+
+  /** Receives entries read from the index. */
+  @FunctionalInterface
+  public interface EntryConsumer {
+
+    void accept(long key, Envelope worldBounds, double bufferPixels, int minzoom);
+  }
+
+  /** Appends entries to a single file in the index. */
+  @NotThreadSafe
+  public static class Writer implements AutoCloseable {
+
+    private final DataOutputStream output;
+
+    private Writer(Path path) {
+      try {
+        output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 50_000));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Records that the element with {@code key} rendered features within {@code worldBounds}, expanded by up to
+     * {@code bufferPixels} at each zoom level starting at {@code minzoom}.
+     */
+    public void write(long key, Envelope worldBounds, double bufferPixels, int minzoom) {
+      try {
+        output.writeLong(key);
+        // round outwards so the stored bounds always contain the original
+        output.writeFloat(Math.nextDown((float) worldBounds.getMinX()));
+        output.writeFloat(Math.nextDown((float) worldBounds.getMinY()));
+        output.writeFloat(Math.nextUp((float) worldBounds.getMaxX()));
+        output.writeFloat(Math.nextUp((float) worldBounds.getMaxY()));
+        output.writeFloat((float) bufferPixels);
+        output.writeByte(minzoom);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        output.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
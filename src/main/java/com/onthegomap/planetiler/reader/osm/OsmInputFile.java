@@ -1,17 +1,31 @@
 package com.onthegomap.planetiler.reader.osm;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.onthegomap.planetiler.config.Bounds;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
 import com.onthegomap.planetiler.reader.FileFormatException;
+import com.onthegomap.planetiler.stats.Counter;
+import com.onthegomap.planetiler.stats.Stats;
 import com.onthegomap.planetiler.util.DiskBacked;
 import com.onthegomap.planetiler.util.FileUtils;
+import com.onthegomap.planetiler.util.Format;
+import com.onthegomap.planetiler.worker.Worker;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import org.locationtech.jts.geom.Envelope;
 import org.openstreetmap.osmosis.osmbinary.Fileformat.BlobHeader;
@@ -26,9 +40,23 @@ import org.slf4j.LoggerFactory;
 public class OsmInputFile implements Bounds.Provider, Supplier<OsmBlockSource>, DiskBacked {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(OsmInputFile.class);
+  // the PBF format limits blob headers to 64 KiB and blobs to 32 MiB
+  private static final int MAX_HEADER_BYTES = 64 * 1024;
+  private static final int MAX_BLOB_BYTES = 32 * 1024 * 1024;
+  private static final long MAX_BLOCK_BYTES = 4 + MAX_HEADER_BYTES + MAX_BLOB_BYTES;
+  private static final long MMAP_SEGMENT_BYTES = 1L << 30;
+  private static final byte[] DATA_HEADER_PREFIX = {0x0A, 7, 'O', 'S', 'M', 'D', 'a', 't', 'a'};
 
   private final Path path;
   private final boolean lazy;
+  private final boolean useBlockIndex;
+  private final Path blockIndexDir;
+  private final int mmapReadThreads;
+  private final Stats stats;
+  private final Counter.Readable[] blocksLocated;
+  private final Counter.Readable[] bytesLocated;
+  private OsmBlockIndex blockIndex = null;
+  private boolean loadedBlockIndex = false;
 
   /**
    * Creates a new OSM input file reader.
@@ -38,14 +66,81 @@ public class OsmInputFile implements Bounds.Provider, Supplier<OsmBlockSource>,
    *                  decoded in a worker thread.
    */
   public OsmInputFile(Path path, boolean lazyReads) {
+    this(path, lazyReads, false);
+  }
+
+  /**
+   * Creates a new OSM input file reader.
+   *
+   * @param path       Path to the file
+   * @param lazyReads  If {@code true}, defers reading the actual content of each block from disk until the block is
+   *                   decoded in a worker thread.
+   * @param blockIndex If {@code true}, builds an {@link OsmBlockIndex} during the first pass through the file so later
+   *                   passes can read blocks in parallel and skip ones they do not need.
+   */
+  public OsmInputFile(Path path, boolean lazyReads, boolean blockIndex) {
+    this(path, lazyReads, blockIndex, null, 0, Stats.inMemory());
+  }
+
+  /**
+   * Creates a new OSM input file reader using the {@code osm_lazy_reads}, {@code osm_block_index},
+   * {@code osm_block_index_dir}, and {@code osm_mmap_read_threads} options from {@code config}.
+   *
+   * @param path   Path to the file
+   * @param config user-defined parameters controlling how to read the file
+   * @param stats  stats collector to report the throughput of each thread locating blocks in a memory-mapped file to
+   */
+  public OsmInputFile(Path path, PlanetilerConfig config, Stats stats) {
+    this(path, config.osmLazyReads(), config.osmBlockIndex(), config.osmBlockIndexDir(), config.osmMmapReadThreads(),
+      stats);
+  }
+
+  private OsmInputFile(Path path, boolean lazyReads, boolean blockIndex, Path blockIndexDir, int mmapReadThreads,
+    Stats stats) {
     this.path = path;
     lazy = lazyReads;
+    useBlockIndex = blockIndex;
+    this.blockIndexDir = blockIndexDir;
+    this.mmapReadThreads = mmapReadThreads;
+    this.stats = stats;
+    blocksLocated = new Counter.Readable[mmapReadThreads];
+    bytesLocated = new Counter.Readable[mmapReadThreads];
+    for (int i = 0; i < mmapReadThreads; i++) {
+      blocksLocated[i] = Counter.newSingleThreadCounter();
+      bytesLocated[i] = Counter.newSingleThreadCounter();
+    }
+    if (mmapReadThreads > 0) {
+      stats.counter("osm_mmap_blocks_located", "thread", () -> byThread(blocksLocated));
+      stats.counter("osm_mmap_bytes_located", "thread", () -> byThread(bytesLocated));
+    }
   }
 
   public OsmInputFile(Path path) {
     this(path, false);
   }
 
+  private static Map<String, LongSupplier> byThread(Counter.Readable[] counters) {
+    Map<String, LongSupplier> result = new LinkedHashMap<>();
+    for (int i = 0; i < counters.length; i++) {
+      result.put(Integer.toString(i), counters[i]);
+    }
+    return result;
+  }
+
+  /**
+   * Decodes a block and records its contents in {@code indexBuilder} once a worker has iterated through all of its
+   * elements if the block index is being built.
+   */
+  private static PbfDecoder decode(ByteBuffer bytes, long offset, OsmBlockIndex.Builder indexBuilder,
+    int indexPosition) {
+    int length = bytes.remaining();
+    PbfDecoder decoder = PbfDecoder.decode(bytes);
+    if (indexBuilder != null) {
+      decoder.summarizeAfterIterating(offset, length, entry -> indexBuilder.set(indexPosition, entry));
+    }
+    return decoder;
+  }
+
   private static int readInt(FileChannel channel) throws IOException {
     ByteBuffer buf = ByteBuffer.allocate(4);
     int read = channel.read(buf);
@@ -121,9 +216,32 @@ public class OsmInputFile implements Bounds.Provider, Supplier<OsmBlockSource>,
     }
   }
 
+  /**
+   * Returns the index of blocks in this file that was built during an earlier pass or cached by an earlier run, or
+   * {@code null} if it has not been built yet or block indexing is disabled.
+   */
+  public synchronized OsmBlockIndex getBlockIndex() {
+    if (useBlockIndex && blockIndexDir != null && blockIndex == null && !loadedBlockIndex) {
+      loadedBlockIndex = true;
+      blockIndex = OsmBlockIndex.load(blockIndexDir, path);
+    }
+    return blockIndex;
+  }
+
+  private OsmBlockIndex.Builder newBlockIndexBuilder() {
+    return useBlockIndex ? new OsmBlockIndex.Builder(index -> {
+      synchronized (this) {
+        blockIndex = index;
+      }
+      if (blockIndexDir != null) {
+        index.save(blockIndexDir, path);
+      }
+    }) : null;
+  }
+
   @Override
   public OsmBlockSource get() {
-    return lazy ? new LazyReader() : new EagerReader();
+    return mmapReadThreads > 0 ? new MmapReader(mmapReadThreads) : lazy ? new LazyReader() : new EagerReader();
   }
 
   @Override
@@ -140,97 +258,381 @@ public class OsmInputFile implements Bounds.Provider, Supplier<OsmBlockSource>,
   }
 
   /**
-   * An OSM block reader that iterates through the input file in a single thread, reading the raw bytes of each block
-   * and passing them off to worker threads.
+   * Reads blocks using the {@link OsmBlockIndex} for this file when it is available, otherwise scans through the file
+   * and builds the index as a side effect once every block has been decoded.
    */
-  private class EagerReader implements OsmBlockSource {
+  private abstract class Reader implements OsmBlockSource {
 
     @Override
     public void forEachBlock(Consumer<Block> consumer) {
+      forEachMatchingBlock(entry -> true, consumer);
+    }
+
+    @Override
+    public void forEachMatchingBlock(Predicate<OsmBlockIndex.Entry> filter, Consumer<Block> consumer) {
+      OsmBlockIndex index = getBlockIndex();
+      if (index != null) {
+        // already know where every block is, so hand them straight to worker threads to read in parallel
+        for (var entry : index.entries()) {
+          if (filter.test(entry)) {
+            consumer.accept(indexedBlock(entry));
+          }
+        }
+      } else {
+        OsmBlockIndex.Builder indexBuilder = newBlockIndexBuilder();
+        scanBlocks(consumer, indexBuilder);
+        if (indexBuilder != null) {
+          indexBuilder.finishedReading();
+        }
+      }
+    }
+
+    @Override
+    public OsmBlockIndex blockIndex() {
+      return getBlockIndex();
+    }
+
+    /** Returns a block that a worker thread can read from the location in {@code entry}. */
+    abstract Block indexedBlock(OsmBlockIndex.Entry entry);
+
+    /**
+     * Passes every data block in the file to {@code consumer} in order, and adds them to {@code indexBuilder} if it is
+     * not {@code null}.
+     */
+    abstract void scanBlocks(Consumer<Block> consumer, OsmBlockIndex.Builder indexBuilder);
+  }
+
+  /** Reads the file through a {@link FileChannel}, walking from each blob header to the next in a single thread. */
+  private abstract class ChannelReader extends Reader {
+
+    private FileChannel blockReadChannel = null;
+
+    @Override
+    Block indexedBlock(OsmBlockIndex.Entry entry) {
+      return new LazyBlock(entry.offset(), entry.length(), blockReadChannel(), null, -1);
+    }
+
+    @Override
+    void scanBlocks(Consumer<Block> consumer, OsmBlockIndex.Builder indexBuilder) {
       try (FileChannel channel = openChannel()) {
         final long size = channel.size();
         while (channel.position() < size) {
           BlobHeader header = readBlobHeader(channel);
-          byte[] blockBytes = readBytes(channel, header.getDatasize());
+          int blockSize = header.getDatasize();
           String headerType = header.getType();
+          long blockStartPosition = channel.position();
           if ("OSMData".equals(headerType)) {
-            consumer.accept(new EagerBlock(blockBytes));
+            int indexPosition = indexBuilder == null ? -1 : indexBuilder.add(blockStartPosition, blockSize);
+            consumer.accept(readBlock(channel, blockStartPosition, blockSize, indexBuilder, indexPosition));
           } else if ("OSMHeader".equals(headerType)) {
-            validateHeader(blockBytes);
+            validateHeader(readBytes(channel, blockStartPosition, blockSize));
           } else {
             LOGGER.warn("Unrecognized OSM PBF blob header type: {}", headerType);
           }
+          channel.position(blockStartPosition + blockSize);
         }
       } catch (IOException e) {
         throw new UncheckedIOException(e);
       }
     }
 
-    private static final class EagerBlock implements Block {
-      // not a record since would need to override equals/hashcode for byte array anyway
-      private final byte[] bytes;
+    /** Returns a block of {@code length} bytes at {@code offset} from {@code channel} while scanning the file. */
+    abstract Block readBlock(FileChannel channel, long offset, int length, OsmBlockIndex.Builder indexBuilder,
+      int indexPosition) throws IOException;
 
-      private EagerBlock(byte[] bytes) {
-        this.bytes = bytes;
+    synchronized FileChannel blockReadChannel() {
+      if (blockReadChannel == null) {
+        blockReadChannel = openChannel();
       }
+      return blockReadChannel;
+    }
 
-      public Iterable<OsmElement> decodeElements() {
-        return PbfDecoder.decode(bytes);
+    @Override
+    public synchronized void close() {
+      if (blockReadChannel != null) {
+        try {
+          blockReadChannel.close();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
       }
     }
   }
 
+  /**
+   * An OSM block reader that iterates through the input file in a single thread, reading the raw bytes of each block
+   * and passing them off to worker threads.
+   */
+  private class EagerReader extends ChannelReader {
+
+    @Override
+    Block readBlock(FileChannel channel, long offset, int length, OsmBlockIndex.Builder indexBuilder,
+      int indexPosition) throws IOException {
+      return new EagerBlock(readBytes(channel, offset, length), offset, indexBuilder, indexPosition);
+    }
+  }
+
   /**
    * An OSM block reader that iterates through the input file in a single thread, skipping over each block and just
    * passing the position/offset to workers so they can read the contents from disk in parallel.
    * <p>
    * This may result in a speedup on some systems.
    */
-  private class LazyReader implements OsmBlockSource {
+  private class LazyReader extends ChannelReader {
+
+    @Override
+    Block readBlock(FileChannel channel, long offset, int length, OsmBlockIndex.Builder indexBuilder,
+      int indexPosition) {
+      return new LazyBlock(offset, length, blockReadChannel(), indexBuilder, indexPosition);
+    }
+  }
+
+  /**
+   * An OSM block reader that memory-maps the input file and hands workers a slice of the mapped file for each block
+   * instead of copying it into a byte array.
+   * <p>
+   * To locate blocks faster than a single thread can walk from one blob header to the next, the file is split into
+   * equal-size chunks and each thread starts by searching its chunk for the first byte sequence that looks like an
+   * {@code OSMData} blob header, then walks the headers from there until it reaches the end of its chunk. Blocks still
+   * get emitted in file order, and if the walk through one chunk does not end exactly where the search in the next
+   * one started (for example, if compressed data happened to contain something that looked like a blob header), the
+   * rest of the file gets walked in a single thread instead.
+   */
+  private class MmapReader extends Reader {
 
-    final FileChannel lazyReadChannel = openChannel();
+    private final int threads;
+    private MappedByteBuffer[] segments = null;
+    private long size;
+
+    MmapReader(int threads) {
+      this.threads = threads;
+    }
+
+    private record BlobLocation(long headerOffset, String type, long offset, int length) {
+
+      long end() {
+        return offset + length;
+      }
+    }
+
+    /**
+     * Blobs found by one thread starting at {@code start}, ending at {@code end} which is either the first header past
+     * the end of its chunk when {@code complete} is true, or an invalid header when it is false.
+     */
+    private record Chunk(long start, List<BlobLocation> blobs, long end, boolean complete) {}
+
+    private synchronized void map() {
+      if (segments == null) {
+        try (FileChannel channel = openChannel()) {
+          size = channel.size();
+          int count = (int) ((size + MMAP_SEGMENT_BYTES - 1) / MMAP_SEGMENT_BYTES);
+          MappedByteBuffer[] result = new MappedByteBuffer[count];
+          for (int i = 0; i < count; i++) {
+            long start = i * MMAP_SEGMENT_BYTES;
+            // overlap the next segment by the largest possible block so each block fits within the segment it starts in
+            result[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+              Math.min(size - start, MMAP_SEGMENT_BYTES + MAX_BLOCK_BYTES));
+          }
+          segments = result;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+
+    private ByteBuffer slice(long offset, int length) {
+      return segments[(int) (offset / MMAP_SEGMENT_BYTES)].slice((int) (offset % MMAP_SEGMENT_BYTES), length);
+    }
 
     @Override
-    public void forEachBlock(Consumer<Block> consumer) {
-      try (FileChannel channel = openChannel()) {
-        final long size = channel.size();
-        while (channel.position() < size) {
-          BlobHeader header = readBlobHeader(channel);
-          int blockSize = header.getDatasize();
-          String headerType = header.getType();
-          long blockStartPosition = channel.position();
-          if ("OSMData".equals(headerType)) {
-            consumer.accept(new LazyBlock(blockStartPosition, blockSize, lazyReadChannel));
-          } else if ("OSMHeader".equals(headerType)) {
-            validateHeader(readBytes(channel, blockStartPosition, blockSize));
-          } else {
-            LOGGER.warn("Unrecognized OSM PBF blob header type: {}", headerType);
+    Block indexedBlock(OsmBlockIndex.Entry entry) {
+      map();
+      return new MappedBlock(slice(entry.offset(), entry.length()), entry.offset(), null, -1);
+    }
+
+    @Override
+    void scanBlocks(Consumer<Block> consumer, OsmBlockIndex.Builder indexBuilder) {
+      map();
+      long chunkSize = Math.max(1, (size + threads - 1) / threads);
+      List<CompletableFuture<Chunk>> chunks = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        chunks.add(new CompletableFuture<>());
+      }
+      var worker = new Worker("osm_mmap_locate", stats, threads, i -> {
+        try {
+          chunks.get(i).complete(locateBlobs(i, i * chunkSize, Math.min(size, (i + 1) * chunkSize)));
+        } catch (Exception e) {
+          chunks.get(i).completeExceptionally(e);
+          throw e;
+        }
+      });
+
+      long position = 0;
+      for (var future : chunks) {
+        Chunk chunk = future.join();
+        if (chunk.start() != position) {
+          break;
+        }
+        for (BlobLocation blob : chunk.blobs()) {
+          emit(blob, consumer, indexBuilder);
+        }
+        position = chunk.end();
+        if (!chunk.complete()) {
+          break;
+        }
+      }
+      if (position < size) {
+        LOGGER.warn("Lost track of OSM blocks at offset {} while locating them in parallel, walking the rest of {} " +
+          "in a single thread", position, path.getFileName());
+        while (position < size) {
+          BlobLocation blob = locate(position);
+          if (blob == null) {
+            throw new FileFormatException("Invalid OSM PBF blob header at offset " + position);
           }
-          channel.position(blockStartPosition + blockSize);
+          emit(blob, consumer, indexBuilder);
+          position = blob.end();
         }
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
+      }
+      worker.await();
+    }
+
+    private void emit(BlobLocation blob, Consumer<Block> consumer, OsmBlockIndex.Builder indexBuilder) {
+      if ("OSMData".equals(blob.type())) {
+        int indexPosition = indexBuilder == null ? -1 : indexBuilder.add(blob.offset(), blob.length());
+        consumer.accept(new MappedBlock(slice(blob.offset(), blob.length()), blob.offset(), indexBuilder,
+          indexPosition));
+      } else if ("OSMHeader".equals(blob.type())) {
+        ByteBuffer data = slice(blob.offset(), blob.length());
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        validateHeader(bytes);
+      } else {
+        LOGGER.warn("Unrecognized OSM PBF blob header type: {}", blob.type());
+      }
+    }
+
+    /** Walks the blob headers in the chunk of the file from {@code chunkStart} to {@code chunkEnd}. */
+    private Chunk locateBlobs(int thread, long chunkStart, long chunkEnd) {
+      long startTime = System.nanoTime();
+      long start = chunkStart == 0 ? 0 : findBlobHeader(chunkStart);
+      List<BlobLocation> blobs = new ArrayList<>();
+      long position = start;
+      boolean complete = true;
+      while (position < chunkEnd) {
+        BlobLocation blob = locate(position);
+        if (blob == null) {
+          complete = false;
+          break;
+        }
+        blobs.add(blob);
+        blocksLocated[thread].inc();
+        bytesLocated[thread].incBy(blob.end() - blob.headerOffset());
+        position = blob.end();
+      }
+      if (LOGGER.isDebugEnabled()) {
+        Format format = Format.defaultInstance();
+        Duration duration = Duration.ofNanos(System.nanoTime() - startTime);
+        long bytes = position - start;
+        LOGGER.debug("Thread {} located {} blocks ({}B) in {} ({}B/s)", thread, format.integer(blobs.size()),
+          format.storage(bytes, false), format.duration(duration),
+          format.storage(bytes * 1e9 / Math.max(1, duration.toNanos()), false));
+      }
+      return new Chunk(start, blobs, position, complete);
+    }
+
+    /** Returns the position of the first {@code OSMData} blob header at or after {@code from}. */
+    private long findBlobHeader(long from) {
+      for (long position = from; position + 4 + DATA_HEADER_PREFIX.length <= size; position++) {
+        if (matchesDataHeaderPrefix(position + 4)) {
+          BlobLocation blob = locate(position);
+          // make sure the following header lines up too, in case compressed data looked like a header
+          if (blob != null && (blob.end() == size || locate(blob.end()) != null)) {
+            return position;
+          }
+        }
+      }
+      return size;
+    }
+
+    private boolean matchesDataHeaderPrefix(long position) {
+      ByteBuffer segment = segments[(int) (position / MMAP_SEGMENT_BYTES)];
+      int offset = (int) (position % MMAP_SEGMENT_BYTES);
+      for (int i = 0; i < DATA_HEADER_PREFIX.length; i++) {
+        if (segment.get(offset + i) != DATA_HEADER_PREFIX[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns the blob with a header at {@code position}, or {@code null} if there is not a valid header there. */
+    private BlobLocation locate(long position) {
+      if (position + 4 > size) {
+        return null;
+      }
+      ByteBuffer segment = segments[(int) (position / MMAP_SEGMENT_BYTES)];
+      int offset = (int) (position % MMAP_SEGMENT_BYTES);
+      int headerSize = segment.getInt(offset);
+      if (headerSize <= 0 || headerSize > MAX_HEADER_BYTES || position + 4 + headerSize > size) {
+        return null;
+      }
+      try {
+        BlobHeader header = BlobHeader.parseFrom(segment.slice(offset + 4, headerSize));
+        long blobOffset = position + 4 + headerSize;
+        int length = header.getDatasize();
+        if (length < 0 || length > MAX_BLOB_BYTES || blobOffset + length > size) {
+          return null;
+        }
+        return new BlobLocation(position, header.getType(), blobOffset, length);
+      } catch (InvalidProtocolBufferException e) {
+        return null;
       }
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
+      // workers may still hold slices of the file if a pass failed, so let the garbage collector unmap it once they
+      // are gone instead of unmapping it here
+      segments = null;
+    }
+  }
+
+  private static final class EagerBlock implements OsmBlockSource.Block {
+    // not a record since would need to override equals/hashcode for byte array anyway
+    private final byte[] bytes;
+    private final long offset;
+    private final OsmBlockIndex.Builder indexBuilder;
+    private final int indexPosition;
+
+    private EagerBlock(byte[] bytes, long offset, OsmBlockIndex.Builder indexBuilder, int indexPosition) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.indexBuilder = indexBuilder;
+      this.indexPosition = indexPosition;
+    }
+
+    public Iterable<OsmElement> decodeElements() {
+      return decode(ByteBuffer.wrap(bytes), offset, indexBuilder, indexPosition);
+    }
+  }
+
+  private record LazyBlock(long offset, int length, FileChannel channel, OsmBlockIndex.Builder indexBuilder,
+    int indexPosition) implements OsmBlockSource.Block {
+
+    public Iterable<OsmElement> decodeElements() {
       try {
-        lazyReadChannel.close();
+        return decode(ByteBuffer.wrap(readBytes(channel, offset, length)), offset, indexBuilder, indexPosition);
       } catch (IOException e) {
         throw new UncheckedIOException(e);
       }
     }
+  }
 
-    private record LazyBlock(long offset, int length, FileChannel channel) implements Block {
+  private record MappedBlock(ByteBuffer data, long offset, OsmBlockIndex.Builder indexBuilder, int indexPosition)
+    implements OsmBlockSource.Block {
 
-      public Iterable<OsmElement> decodeElements() {
-        try {
-          return PbfDecoder.decode(readBytes(channel, offset, length));
-        } catch (IOException e) {
-          throw new UncheckedIOException(e);
-        }
-      }
+    public Iterable<OsmElement> decodeElements() {
+      return decode(data, offset, indexBuilder, indexPosition);
     }
   }
 
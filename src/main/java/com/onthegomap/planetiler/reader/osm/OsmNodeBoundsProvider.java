@@ -29,6 +29,12 @@ public class OsmNodeBoundsProvider implements Bounds.Provider {
 
   @Override
   public Envelope getLatLonBounds() {
+    OsmBlockIndex index = file.getBlockIndex();
+    if (index != null) {
+      Envelope bounds = index.nodeBounds();
+      LOGGER.info("Using bounds of nodes from OSM block index: {}", bounds);
+      return bounds;
+    }
     LOGGER.warn("Bounds not found in header for {} and --bounds not provided, parsing bounds from nodes",
       file.getPath().getFileName());
 
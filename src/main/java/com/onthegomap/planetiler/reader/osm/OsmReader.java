@@ -5,15 +5,16 @@ import static com.onthegomap.planetiler.worker.Worker.joinFutures;
 
 import com.carrotsearch.hppc.IntObjectHashMap;
 import com.carrotsearch.hppc.LongArrayList;
-import com.carrotsearch.hppc.LongHashSet;
 import com.carrotsearch.hppc.LongObjectHashMap;
 import com.carrotsearch.hppc.ObjectIntHashMap;
 import com.onthegomap.planetiler.FeatureCollector;
 import com.onthegomap.planetiler.Profile;
 import com.onthegomap.planetiler.collection.FeatureGroup;
 import com.onthegomap.planetiler.collection.Hppc;
+import com.onthegomap.planetiler.collection.LongBitSet;
 import com.onthegomap.planetiler.collection.LongLongMap;
 import com.onthegomap.planetiler.collection.LongLongMultimap;
+import com.onthegomap.planetiler.collection.LongSortedArraySet;
 import com.onthegomap.planetiler.collection.SortableFeature;
 import com.onthegomap.planetiler.collection.Storage;
 import com.onthegomap.planetiler.config.PlanetilerConfig;
@@ -41,11 +42,13 @@ import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.CoordinateList;
 import org.locationtech.jts.geom.CoordinateSequence;
 import org.locationtech.jts.geom.CoordinateXY;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.MultiPolygon;
@@ -75,26 +78,28 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
   private final Counter.Readable PASS1_BLOCKS = Counter.newSingleThreadCounter();
   private final Profile profile;
   private final String name;
+  private static final NodeLocationProvider STORED_LOCATIONS = new EncodedLocationProvider();
   private final AtomicLong relationInfoSizes = new AtomicLong(0);
   // need a few large objects to process ways in relations, should be small enough to keep in memory
   // for routes (750k rels 40m ways) and boundaries (650k rels, 8m ways)
   // need to store route info to use later when processing ways
   // <~500mb
   private LongObjectHashMap<OsmRelationInfo> relationInfo = Hppc.newLongObjectHashMap();
-  // ~800mb, ~1.6GB when sorting
+  // ~800mb, each pass1 thread appends to its own buffer that get merged into one sorted array on the first read
   private LongLongMultimap.Appendable wayToRelations = LongLongMultimap.newAppendableMultimap();
-  private final Object wayToRelationsLock = new Object();
   // for multipolygons need to store way info (20m ways, 800m nodes) to use when processing relations (4.5m)
-  // ~300mb
-  private LongHashSet waysInMultipolygon = new LongHashSet();
-  private final Object waysInMultipolygonLock = new Object();
-  // ~7GB
+  // ~160mb
+  private LongSortedArraySet waysInMultipolygon = new LongSortedArraySet();
+  // ~3GB, delta-encoded locations of the nodes in each way indexed by 64-bit offsets so it can grow past 2GB
   private LongLongMultimap.Replaceable multipolygonWayGeometries;
   // keep track of data needed to encode/decode role strings into a long
   private final ObjectIntHashMap<String> roleIds = new ObjectIntHashMap<>();
   private final IntObjectHashMap<String> roleIdsReverse = new IntObjectHashMap<>();
   private final AtomicLong roleSizes = new AtomicLong(0);
   private final OsmPhaser pass1Phaser = new OsmPhaser(0);
+  private OsmChangeTracker changeTracker = null;
+  // nodes that pass2 needs locations for when --nodemap-filter is set, otherwise null to store all node locations
+  private LongBitSet requiredNodes = null;
 
   /**
    * Constructs a new {@code OsmReader} from an {@code osmSourceProvider} that will use {@code nodeLocationDb} as a
@@ -141,10 +146,16 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
    * <p>
    * Also stores the result of {@link Profile#preprocessOsmRelation(OsmElement.Relation)} so that pass2 can know the
    * relevant relations that a way belongs to.
+   * <p>
+   * When {@link PlanetilerConfig#nodeMapFilter()} is set, first runs {@link #findRequiredNodes(PlanetilerConfig)} so
+   * that only locations of nodes that pass2 will need get stored.
    *
    * @param config user-provided arguments to control the number of threads, and log interval
    */
   public void pass1(PlanetilerConfig config) {
+    if (config.nodeMapFilter()) {
+      findRequiredNodes(config);
+    }
     var timer = stats.startStage("osm_pass1");
     var pipeline = WorkerPipeline.start("osm_pass1", stats);
     CompletableFuture<?> done;
@@ -225,27 +236,181 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
     timer.stop();
   }
 
+  /**
+   * Scans ways and relations before pass1 to find the nodes that pass2 will need locations for: nodes in ways that
+   * {@link Profile#caresAboutOsmWay(SourceFeature)} and nodes in ways that are a member of any relation.
+   * <p>
+   * Relations come after ways in the input file, so the first scan marks nodes in ways the profile cares about and
+   * collects the IDs of ways in relations, then a second scan decodes only the blocks that had other ways in them to
+   * mark nodes in ways that turned out to be relation members.
+   *
+   * @param config user-provided arguments to control the number of threads, and log interval
+   */
+  void findRequiredNodes(PlanetilerConfig config) {
+    var timer = stats.startStage("osm_node_filter");
+    int threads = Math.max(1, config.threads() - 1);
+    LongBitSet nodes = new LongBitSet();
+    LongBitSet relationWays = new LongBitSet();
+    LongBitSet blocksWithOtherWays = new LongBitSet();
+    Counter.MultiThreadCounter waysScanned = Counter.newMultiThreadCounter();
+    Counter.MultiThreadCounter waysKept = Counter.newMultiThreadCounter();
+    record IndexedBlock(long index, OsmBlockSource.Block block) {}
+    // both scans need to see the same sequence of blocks, so only skip node blocks if the index was built beforehand
+    Predicate<OsmBlockIndex.Entry> blockFilter = osmBlockSource.blockIndex() != null ?
+      entry -> entry.hasWays() || entry.hasRelations() : entry -> true;
+
+    var scan = WorkerPipeline.start("osm_node_filter", stats)
+      .<IndexedBlock>fromGenerator("read", next -> {
+        long[] index = {0};
+        osmBlockSource.forEachMatchingBlock(blockFilter,
+          block -> next.accept(new IndexedBlock(index[0]++, block)));
+      })
+      .addBuffer("pbf_blocks", threads * 2)
+      .sinkTo("scan", threads, prev -> {
+        Counter scanned = waysScanned.counterForThread();
+        Counter kept = waysKept.counterForThread();
+        for (var indexed : prev) {
+          boolean otherWays = false;
+          for (var element : waysAndRelations(indexed.block)) {
+            if (element instanceof OsmElement.Way way) {
+              scanned.inc();
+              if (caresAboutWay(way)) {
+                kept.inc();
+                markNodes(way, nodes);
+              } else {
+                otherWays = true;
+              }
+            } else if (element instanceof OsmElement.Relation relation) {
+              for (var member : relation.members()) {
+                if (member.type() == OsmElement.Type.WAY) {
+                  relationWays.set(member.ref());
+                }
+              }
+            }
+          }
+          if (otherWays) {
+            blocksWithOtherWays.set(indexed.index);
+          }
+        }
+      });
+    var loggers = ProgressLoggers.create()
+      .addRateCounter("ways", waysScanned, true)
+      .addRateCounter("kept", waysKept)
+      .addInMemoryObject("nodes", nodes)
+      .addInMemoryObject("rel_ways", relationWays)
+      .newLine()
+      .addProcessStats()
+      .newLine()
+      .addPipelineStats(scan);
+    scan.awaitAndLog(loggers, config.logInterval());
+
+    Counter.MultiThreadCounter relationWaysKept = Counter.newMultiThreadCounter();
+    var relationMembers = WorkerPipeline.start("osm_node_filter", stats)
+      .<OsmBlockSource.Block>fromGenerator("read", next -> {
+        long[] index = {0};
+        osmBlockSource.forEachMatchingBlock(blockFilter, block -> {
+          if (blocksWithOtherWays.get(index[0]++)) {
+            next.accept(block);
+          }
+        });
+      })
+      .addBuffer("pbf_blocks", threads * 2)
+      .sinkTo("members", threads, prev -> {
+        Counter kept = relationWaysKept.counterForThread();
+        for (var block : prev) {
+          for (var element : waysAndRelations(block)) {
+            if (element instanceof OsmElement.Way way && relationWays.get(way.id())) {
+              kept.inc();
+              markNodes(way, nodes);
+            }
+          }
+        }
+      });
+    loggers = ProgressLoggers.create()
+      .addRateCounter("rel_ways", relationWaysKept, true)
+      .addInMemoryObject("nodes", nodes)
+      .newLine()
+      .addProcessStats()
+      .newLine()
+      .addPipelineStats(relationMembers);
+    relationMembers.awaitAndLog(loggers, config.logInterval());
+
+    requiredNodes = nodes;
+    LOGGER.info("Storing locations for {} nodes in {} of {} ways", FORMAT.integer(nodes.cardinality()),
+      FORMAT.integer(waysKept.get() + relationWaysKept.get()), FORMAT.integer(waysScanned.get()));
+    timer.stop();
+  }
+
+  /** Returns the elements in {@code block}, skipping over nodes without decoding them if it came from an osm.pbf file. */
+  private static Iterable<OsmElement> waysAndRelations(OsmBlockSource.Block block) {
+    var elements = block.decodeElements();
+    return elements instanceof PbfDecoder decoder ? decoder.waysAndRelations() : elements;
+  }
+
+  private boolean caresAboutWay(OsmElement.Way way) {
+    try {
+      return profile.caresAboutOsmWay(newWaySourceFeature(way, null, null));
+    } catch (Exception e) {
+      LOGGER.error("Error checking if profile cares about OSM way " + way.id(), e);
+      return true;
+    }
+  }
+
+  private static void markNodes(OsmElement.Way way, LongBitSet nodes) {
+    LongArrayList nodeIds = way.nodes();
+    for (int i = 0; i < nodeIds.size(); i++) {
+      nodes.set(nodeIds.get(i));
+    }
+  }
+
   void processPass1Blocks(Iterable<? extends Iterable<? extends OsmElement>> blocks) {
     // may be called by multiple threads so need to synchronize access to any shared data structures
     try (
       var nodeWriter = nodeLocationDb.newWriter();
+      var wayToRelationsWriter = wayToRelations.newWriter();
+      var waysInMultipolygonWriter = waysInMultipolygon.newWriter();
       var phases = pass1Phaser.forWorker()
         .whenWorkerFinishes(OsmPhaser.Phase.NODES, nodeWriter::close)
     ) {
+      // collect relation info and roles in this thread, then add them to the shared maps once at the end
+      LongObjectHashMap<OsmRelationInfo> threadRelationInfo = Hppc.newLongObjectHashMap();
+      long threadRelationInfoSizes = 0;
+      ObjectIntHashMap<String> threadRoleIds = new ObjectIntHashMap<>();
+      boolean skipUntaggedNodes = !profile.preprocessesUntaggedOsmNodes();
+      // highest node ID in the current block, including nodes that were not stored
+      long[] lastNodeId = {-1};
+      PbfDecoder.NodeLocationConsumer untaggedNodes = (id, lat, lon) -> {
+        if (id < 0) {
+          throw new IllegalArgumentException("Negative OSM element IDs not supported: node " + id);
+        }
+        phases.arrive(OsmPhaser.Phase.NODES);
+        lastNodeId[0] = Math.max(lastNodeId[0], id);
+        if (requiredNodes == null || requiredNodes.get(id)) {
+          nodeWriter.put(id, GeoUtils.encodeFlatLocation(lon, lat));
+        }
+      };
       for (var block : blocks) {
-        for (OsmElement element : block) {
+        Iterable<? extends OsmElement> elements = block;
+        if (skipUntaggedNodes && block instanceof OsmBlockSource.Block pbfBlock) {
+          // store untagged node locations straight from the decoded block without creating an element for each one
+          var decoded = pbfBlock.decodeElements();
+          elements = decoded instanceof PbfDecoder decoder ? decoder.elements(untaggedNodes) : decoded;
+        }
+        for (OsmElement element : elements) {
           if (element.id() < 0) {
             throw new IllegalArgumentException("Negative OSM element IDs not supported: " + element);
           }
           if (element instanceof OsmElement.Node node) {
             phases.arrive(OsmPhaser.Phase.NODES);
+            lastNodeId[0] = Math.max(lastNodeId[0], node.id());
             try {
               profile.preprocessOsmNode(node);
             } catch (Exception e) {
               LOGGER.error("Error preprocessing OSM node " + node.id(), e);
             }
-            // TODO allow limiting node storage to only ones that profile cares about
-            nodeWriter.put(node.id(), node.encodedLocation());
+            if (requiredNodes == null || requiredNodes.get(node.id())) {
+              nodeWriter.put(node.id(), node.encodedLocation());
+            }
           } else if (element instanceof OsmElement.Way way) {
             phases.arriveAndWaitForOthers(OsmPhaser.Phase.WAYS);
             try {
@@ -258,16 +423,15 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
             try {
               List<OsmRelationInfo> infos = profile.preprocessOsmRelation(relation);
               if (infos != null) {
-                synchronized (wayToRelationsLock) {
-                  for (OsmRelationInfo info : infos) {
-                    relationInfo.put(relation.id(), info);
-                    relationInfoSizes.addAndGet(info.estimateMemoryUsageBytes());
-                    for (var member : relation.members()) {
-                      var type = member.type();
-                      // TODO handle nodes in relations and super-relations
-                      if (type == OsmElement.Type.WAY) {
-                        wayToRelations.put(member.ref(), encodeRelationMembership(member.role(), relation.id()));
-                      }
+                for (OsmRelationInfo info : infos) {
+                  threadRelationInfo.put(relation.id(), info);
+                  threadRelationInfoSizes += info.estimateMemoryUsageBytes();
+                  for (var member : relation.members()) {
+                    var type = member.type();
+                    // TODO handle nodes in relations and super-relations
+                    if (type == OsmElement.Type.WAY) {
+                      wayToRelationsWriter.put(member.ref(),
+                        encodeRelationMembership(member.role(), relation.id(), threadRoleIds));
                     }
                   }
                 }
@@ -277,21 +441,65 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
             }
             // TODO allow limiting multipolygon storage to only ones that profile cares about
             if (isMultipolygon(relation)) {
-              synchronized (waysInMultipolygonLock) {
-                for (var member : relation.members()) {
-                  if (member.type() == OsmElement.Type.WAY) {
-                    waysInMultipolygon.add(member.ref());
-                  }
+              for (var member : relation.members()) {
+                if (member.type() == OsmElement.Type.WAY) {
+                  waysInMultipolygonWriter.add(member.ref());
                 }
               }
             }
           }
         }
+        if (lastNodeId[0] >= 0) {
+          // let the node map stitch together other threads' writes up to here even if this block stored few nodes
+          nodeWriter.advanceTo(lastNodeId[0]);
+          lastNodeId[0] = -1;
+        }
         PASS1_BLOCKS.inc();
       }
+      synchronized (relationInfo) {
+        relationInfo.putAll(threadRelationInfo);
+      }
+      relationInfoSizes.addAndGet(threadRelationInfoSizes);
     }
   }
 
+  /**
+   * Sets a tracker that pass2 will report every way, relation, and rendered feature to, in order to build an index for
+   * incremental updates or find the tiles that an {@link OsmChangeFile} invalidates.
+   */
+  public OsmReader setChangeTracker(OsmChangeTracker changeTracker) {
+    this.changeTracker = changeTracker;
+    return this;
+  }
+
+  /**
+   * Returns the latitude/longitude area that a point needs to be inside of to render into any tile within the bounds,
+   * or {@code null} if that is the whole world.
+   * <p>
+   * Tiles at {@code minzoom} cover the most area, so this is the tiles at that zoom level that intersect the bounds plus
+   * one more tile on every side, so that points in the buffer of edge tiles still render for any buffer up to a full
+   * tile wide.
+   */
+  private static Envelope renderedNodeBounds(PlanetilerConfig config) {
+    int max = 1 << config.minzoom();
+    var extents = config.bounds().tileExtents().getForZoom(config.minzoom());
+    int minX = Math.max(0, extents.minX() - 1);
+    int minY = Math.max(0, extents.minY() - 1);
+    // max extents are exclusive
+    int maxX = Math.min(max, extents.maxX() + 1);
+    int maxY = Math.min(max, extents.maxY() + 1);
+    if (minX == 0 && minY == 0 && maxX == max && maxY == max) {
+      return null;
+    }
+    // at the edge of the web mercator world, extend to the poles to include nodes that get clamped to the edge
+    return new Envelope(
+      GeoUtils.getWorldLon(minX / (double) max),
+      GeoUtils.getWorldLon(maxX / (double) max),
+      maxY == max ? -90 : GeoUtils.getWorldLat(maxY / (double) max),
+      minY == 0 ? 90 : GeoUtils.getWorldLat(minY / (double) max)
+    );
+  }
+
   private static boolean isMultipolygon(OsmElement.Relation relation) {
     return relation.hasTag("type", "multipolygon", "boundary", "land_area");
   }
@@ -321,8 +529,13 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
     // items to threads that are done reading blocks
     Distributor<OsmElement.Relation> relationDistributor = Distributor.createWithCapacity(1_000);
 
+    // nodes only get emitted as points, so skip blocks of nodes that can't render into any tile
+    Envelope nodeBounds = renderedNodeBounds(config);
+    Predicate<OsmBlockIndex.Entry> blockFilter = nodeBounds == null ? entry -> true :
+      entry -> entry.hasWays() || entry.hasRelations() || entry.nodeBounds().intersects(nodeBounds);
+
     var pipeline = WorkerPipeline.start("osm_pass2", stats)
-      .fromGenerator("read", osmBlockSource::forEachBlock)
+      .<OsmBlockSource.Block>fromGenerator("read", next -> osmBlockSource.forEachMatchingBlock(blockFilter, next))
       .addBuffer("pbf_blocks", Math.max(10, processThreads / 2))
       .<SortableFeature>addWorker("process", processThreads, (prev, next) -> {
         // avoid contention trying to get the thread-local counters by getting them once when thread starts
@@ -331,12 +544,18 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
 
         var featureCollectors = new FeatureCollector.Factory(config, stats);
         final NodeLocationProvider nodeLocations = newNodeLocationProvider();
-        try (var renderer = createFeatureRenderer(writer, config, next)) {
+        try (
+          var renderer = createFeatureRenderer(writer, config, next);
+          var tracker = changeTracker == null ? null : changeTracker.forThread()
+        ) {
           var phaser = pass2Phaser.forWorker();
           var relationHandler = relationDistributor.forThread(relation -> {
+            if (tracker != null) {
+              tracker.visit(relation);
+            }
             var feature = processRelationPass2(relation, nodeLocations);
             if (feature != null) {
-              render(featureCollectors, renderer, relation, feature);
+              render(featureCollectors, renderer, tracker, relation, feature);
             }
             rels.inc();
           });
@@ -348,6 +567,9 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
                 feature = processNodePass2(node);
               } else if (element instanceof OsmElement.Way way) {
                 phaser.arrive(OsmPhaser.Phase.WAYS);
+                if (tracker != null) {
+                  tracker.visit(way);
+                }
                 feature = processWayPass2(way, nodeLocations);
               } else if (element instanceof OsmElement.Relation relation) {
                 phaser.arriveAndWaitForOthers(OsmPhaser.Phase.RELATIONS);
@@ -356,7 +578,7 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
               // render features specified by profile and hand them off to next step that will
               // write them intermediate storage
               if (feature != null) {
-                render(featureCollectors, renderer, element, feature);
+                render(featureCollectors, renderer, tracker, element, feature);
               }
             }
             blocks.inc();
@@ -367,7 +589,7 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
           // do work for other threads that are still processing blocks of relations
           relationHandler.close();
         }
-      }).addBuffer("feature_queue", 50_000, 1_000)
+      }).addBuffer("feature_queue", 50_000, 1_000, config.featureQueueType())
       // FeatureGroup writes need to be single-threaded
       .sinkTo("write", writeThreads, prev -> {
         try (var writerForThread = writer.writerForThread()) {
@@ -401,9 +623,13 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
 
     try (
       var writerForThread = writer.writerForThread();
-      var renderer = createFeatureRenderer(writer, config, writerForThread)
+      var renderer = createFeatureRenderer(writer, config, writerForThread);
+      var tracker = changeTracker == null ? null : changeTracker.forThread()
     ) {
-      profile.finish(name, new FeatureCollector.Factory(config, stats), renderer);
+      profile.finish(name, new FeatureCollector.Factory(config, stats), tracker == null ? renderer : feature -> {
+        tracker.finished(feature);
+        renderer.accept(feature);
+      });
     } catch (Exception e) {
       LOGGER.error("Error calling profile.finish", e);
     }
@@ -426,6 +652,8 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
       case NOOP -> check;
       case SPARSE_ARRAY -> check.addMemory(300_000_000L, "sparsearray node location in-memory index")
         .add(path, storage, 9 * nodes, "sparsearray node location cache");
+      case COMPRESSED -> check.addMemory(300_000_000L, "compressed node location in-memory index")
+        .add(path, storage, 5 * nodes, "compressed node location cache");
       case SORTED_TABLE -> check.addMemory(300_000_000L, "sortedtable node location in-memory index")
         .add(path, storage, 12 * nodes, "sortedtable node location cache");
       case ARRAY -> check.add(path, storage, 8 * maxNodeId,
@@ -460,11 +688,14 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
     return Math.round(9_500_000_000d * Math.max(1, osmFileSize / 66_691_979_646d));
   }
 
-  private void render(FeatureCollector.Factory featureCollectors, FeatureRenderer renderer, OsmElement element,
-    SourceFeature feature) {
+  private void render(FeatureCollector.Factory featureCollectors, FeatureRenderer renderer,
+    OsmChangeTracker.ForThread tracker, OsmElement element, SourceFeature feature) {
     FeatureCollector features = featureCollectors.get(feature);
     try {
       profile.processFeature(feature, features);
+      if (tracker != null) {
+        tracker.rendered(element, feature, features);
+      }
       for (FeatureCollector.Feature renderable : features) {
         renderer.accept(renderable);
       }
@@ -496,25 +727,35 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
     // from pass1 to reconstruct the geometry.
     LongArrayList nodes = way.nodes();
     if (waysInMultipolygon.contains(way.id())) {
-      // if this is part of a multipolygon, store the node IDs for this way ID so that when
-      // we get to the multipolygon we can go from way IDs -> node IDs -> node locations.
+      // if this is part of a multipolygon, store the node locations for this way ID so that when
+      // we get to the multipolygon we can read its geometry without looking up each node again.
+      LongArrayList locations = new LongArrayList(nodes.size());
+      for (int i = 0; i < nodes.size(); i++) {
+        locations.add(nodeLocationDb.get(nodes.get(i)));
+      }
       synchronized (this) { // multiple threads may update this concurrently
-        multipolygonWayGeometries.replaceValues(way.id(), nodes);
+        multipolygonWayGeometries.replaceValues(way.id(), locations);
       }
     }
+    List<RelationMember<OsmRelationInfo>> rels = getRelationMembershipForWay(way.id());
+    return newWaySourceFeature(way, nodeLocations, rels);
+  }
+
+  private WaySourceFeature newWaySourceFeature(OsmElement.Way way, NodeLocationProvider nodeLocations,
+    List<RelationMember<OsmRelationInfo>> rels) {
+    LongArrayList nodes = way.nodes();
     boolean closed = nodes.size() > 1 && nodes.get(0) == nodes.get(nodes.size() - 1);
     // area tag used to differentiate between whether a closed way should be treated as a polygon or linestring
     String area = way.getString("area");
-    List<RelationMember<OsmRelationInfo>> rels = getRelationMembershipForWay(way.id());
     return new WaySourceFeature(way, closed, area, nodeLocations, rels);
   }
 
   SourceFeature processRelationPass2(OsmElement.Relation rel, NodeLocationProvider nodeLocations) {
     // Relation info gets used during way processing, except multipolygons which we have to process after we've
-    // stored all the node IDs for each way.
+    // stored all the node locations for each way.
     if (isMultipolygon(rel)) {
       List<RelationMember<OsmRelationInfo>> parentRelations = getRelationMembershipForWay(rel.id());
-      return new MultipolygonSourceFeature(rel, nodeLocations, parentRelations);
+      return new MultipolygonSourceFeature(rel, parentRelations);
     } else {
       return null;
     }
@@ -602,21 +843,35 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
     return new RelationMembership(roleIdsReverse.get(role), encoded & NOT_ROLE_MASK);
   }
 
-  /** Packs a string role and relation into a compact long for storage. */
-  private long encodeRelationMembership(String role, long relationId) {
-    int roleId = roleIds.getOrDefault(role, -1);
+  /**
+   * Packs a string role and relation into a compact long for storage, using {@code threadRoleIds} to cache role IDs so
+   * that each thread only needs to lock the shared role map the first time it sees a role.
+   */
+  private long encodeRelationMembership(String role, long relationId, ObjectIntHashMap<String> threadRoleIds) {
+    int roleId = threadRoleIds.getOrDefault(role, -1);
     if (roleId == -1) {
-      roleSizes.addAndGet(estimateSize(role));
-      roleId = roleIds.size() + 1;
-      roleIds.put(role, roleId);
-      roleIdsReverse.put(roleId, role);
-      if (roleId > MAX_ROLES) {
-        throw new IllegalStateException("Too many roles to encode: " + role);
-      }
+      roleId = getOrAddRoleId(role);
+      threadRoleIds.put(role, roleId);
     }
     return relationId | ((long) roleId << ROLE_SHIFT);
   }
 
+  private int getOrAddRoleId(String role) {
+    synchronized (roleIds) {
+      int roleId = roleIds.getOrDefault(role, -1);
+      if (roleId == -1) {
+        roleSizes.addAndGet(estimateSize(role));
+        roleId = roleIds.size() + 1;
+        roleIds.put(role, roleId);
+        roleIdsReverse.put(roleId, role);
+        if (roleId > MAX_ROLES) {
+          throw new IllegalStateException("Too many roles to encode: " + role);
+        }
+      }
+      return roleId;
+    }
+  }
+
   /**
    * A source feature generated from OSM elements. Inferring the geometry can be expensive, so each subclass is
    * constructed with the inputs necessary to create the geometry, but the geometry is constructed lazily on read.
@@ -766,13 +1021,11 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
   private class MultipolygonSourceFeature extends OsmFeature {
 
     private final OsmElement.Relation relation;
-    private final NodeLocationProvider nodeLocations;
 
-    public MultipolygonSourceFeature(OsmElement.Relation relation, NodeLocationProvider nodeLocations,
+    public MultipolygonSourceFeature(OsmElement.Relation relation,
       List<RelationMember<OsmRelationInfo>> parentRelations) {
       super(relation, false, false, true, parentRelations);
       this.relation = relation;
-      this.nodeLocations = nodeLocations;
     }
 
     @Override
@@ -791,7 +1044,8 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
           }
         }
       }
-      return OsmMultipolygon.build(rings, nodeLocations, id());
+      // member ways store encoded node locations instead of node IDs, so connect them by location
+      return OsmMultipolygon.build(rings, STORED_LOCATIONS, id());
     }
 
     @Override
@@ -800,6 +1054,36 @@ public class OsmReader implements Closeable, MemoryEstimator.HasEstimate {
     }
   }
 
+  /**
+   * Decodes node "IDs" that are actually locations encoded with {@link GeoUtils#encodeFlatLocation(double, double)},
+   * like the multipolygon way geometries stored during pass2.
+   */
+  private static class EncodedLocationProvider implements NodeLocationProvider {
+
+    @Override
+    public Coordinate getCoordinate(long encoded) {
+      if (encoded == LongLongMap.MISSING_VALUE) {
+        throw new IllegalArgumentException("Missing location for node in multipolygon way");
+      }
+      return new CoordinateXY(GeoUtils.decodeWorldX(encoded), GeoUtils.decodeWorldY(encoded));
+    }
+
+    @Override
+    public CoordinateSequence getWayGeometry(LongArrayList encodedLocations) {
+      int num = encodedLocations.size();
+      CoordinateSequence seq = new PackedCoordinateSequence.Double(num, 2, 0);
+      for (int i = 0; i < num; i++) {
+        long encoded = encodedLocations.get(i);
+        if (encoded == LongLongMap.MISSING_VALUE) {
+          throw new IllegalArgumentException("Missing location for node in multipolygon way");
+        }
+        seq.setOrdinate(i, 0, GeoUtils.decodeWorldX(encoded));
+        seq.setOrdinate(i, 1, GeoUtils.decodeWorldY(encoded));
+      }
+      return seq;
+    }
+  }
+
   /**
    * A thin layer on top of {@link LongLongMap} that decodes node locations stored as {@code long} values.
    */
@@ -2,11 +2,13 @@
 // See NOTICE.md here or copying.txt from https://github.com/openstreetmap/osmosis/blob/master/package/copying.txt for details.
 package com.onthegomap.planetiler.reader.osm;
 
+import com.carrotsearch.hppc.IntArrayList;
 import com.carrotsearch.hppc.LongArrayList;
-import com.google.common.collect.Iterators;
 import com.onthegomap.planetiler.reader.FileFormatException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -15,40 +17,153 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.function.IntUnaryOperator;
+import java.util.function.Consumer;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
+import javax.annotation.concurrent.NotThreadSafe;
 import org.locationtech.jts.geom.Envelope;
-import org.openstreetmap.osmosis.osmbinary.Fileformat;
 import org.openstreetmap.osmosis.osmbinary.Osmformat;
 
 /**
  * Converts PBF block data into decoded entities. This class was adapted from Osmosis to expose an iterator over blocks
  * to give more control over the parallelism.
+ * <p>
+ * Instead of parsing the whole block into generated protobuf objects up-front, this reads the protobuf wire format
+ * directly from the decompressed block bytes as elements are requested. Dense node IDs and coordinates get decoded
+ * straight into primitive arrays, strings from the block's string table only get decoded the first time an element
+ * refers to them, and {@link #elements(NodeLocationConsumer)} can hand untagged nodes to a callback without building
+ * an {@link OsmElement.Node} for each one.
  *
  * @author Brett Henderson
  */
+@NotThreadSafe
 public class PbfDecoder implements Iterable<OsmElement> {
 
-  private final Osmformat.PrimitiveBlock block;
-  private final PbfFieldDecoder fieldDecoder;
-
-  private PbfDecoder(byte[] rawBlob) throws IOException {
-    byte[] data = readBlobContent(rawBlob);
-    block = Osmformat.PrimitiveBlock.parseFrom(data);
-    fieldDecoder = new PbfFieldDecoder(block);
+  private static final double COORDINATE_SCALING_FACTOR = 0.000000001;
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+  private static final int WIRE_FIXED32 = 5;
+  // field numbers from osmformat.proto and fileformat.proto
+  private static final int BLOB_RAW = 1;
+  private static final int BLOB_RAW_SIZE = 2;
+  private static final int BLOB_ZLIB_DATA = 3;
+  private static final int BLOCK_STRINGTABLE = 1;
+  private static final int BLOCK_PRIMITIVEGROUP = 2;
+  private static final int BLOCK_GRANULARITY = 17;
+  private static final int BLOCK_LAT_OFFSET = 19;
+  private static final int BLOCK_LON_OFFSET = 20;
+  private static final int STRINGTABLE_S = 1;
+  private static final int GROUP_NODES = 1;
+  private static final int GROUP_DENSE = 2;
+  private static final int GROUP_WAYS = 3;
+  private static final int GROUP_RELATIONS = 4;
+  private static final int ELEMENT_ID = 1;
+  private static final int ELEMENT_KEYS = 2;
+  private static final int ELEMENT_VALS = 3;
+  private static final int NODE_LAT = 8;
+  private static final int NODE_LON = 9;
+  private static final int DENSE_ID = 1;
+  private static final int DENSE_LAT = 8;
+  private static final int DENSE_LON = 9;
+  private static final int DENSE_KEYS_VALS = 10;
+  private static final int WAY_REFS = 8;
+  private static final int RELATION_ROLES_SID = 8;
+  private static final int RELATION_MEMIDS = 9;
+  private static final int RELATION_TYPES = 10;
+
+  private final byte[] data;
+  // offset and length of each string in the string table
+  private final int[] stringOffsets;
+  private final int[] stringLengths;
+  private final String[] strings;
+  // start and end offset of each primitive group
+  private final IntArrayList groups = new IntArrayList();
+  private int granularity = 100;
+  private long latOffset = 0;
+  private long lonOffset = 0;
+  private long summaryOffset = 0;
+  private int summaryLength = 0;
+  private Consumer<OsmBlockIndex.Entry> summaryConsumer = null;
+
+  private PbfDecoder(ByteBuffer rawBlob) {
+    data = readBlobContent(rawBlob);
+    IntArrayList stringTable = new IntArrayList();
+    ProtoReader reader = new ProtoReader(data, 0, data.length);
+    while (reader.hasMore()) {
+      int tag = reader.readTag();
+      switch (tag >>> 3) {
+        case BLOCK_STRINGTABLE -> {
+          ProtoReader table = reader.readMessage(tag);
+          while (table.hasMore()) {
+            int tableTag = table.readTag();
+            if ((tableTag >>> 3) == STRINGTABLE_S) {
+              int length = table.readLength(tableTag);
+              stringTable.add(table.pos, length);
+              table.pos += length;
+            } else {
+              table.skip(tableTag);
+            }
+          }
+        }
+        case BLOCK_PRIMITIVEGROUP -> {
+          int length = reader.readLength(tag);
+          groups.add(reader.pos, reader.pos + length);
+          reader.pos += length;
+        }
+        case BLOCK_GRANULARITY -> granularity = (int) reader.readVarint(tag);
+        case BLOCK_LAT_OFFSET -> latOffset = reader.readVarint(tag);
+        case BLOCK_LON_OFFSET -> lonOffset = reader.readVarint(tag);
+        default -> reader.skip(tag);
+      }
+    }
+    int numStrings = stringTable.size() / 2;
+    stringOffsets = new int[numStrings];
+    stringLengths = new int[numStrings];
+    for (int i = 0; i < numStrings; i++) {
+      stringOffsets[i] = stringTable.get(i * 2);
+      stringLengths[i] = stringTable.get(i * 2 + 1);
+    }
+    strings = new String[numStrings];
   }
 
-  private static byte[] readBlobContent(byte[] input) throws IOException {
-    Fileformat.Blob blob = Fileformat.Blob.parseFrom(input);
+  private static byte[] readBlobContent(ByteBuffer input) {
+    ByteBuffer reader = input.duplicate();
+    int rawSize = -1;
+    ByteBuffer raw = null;
+    ByteBuffer zlib = null;
+    while (reader.hasRemaining()) {
+      int tag = (int) readRawVarint(reader);
+      switch (tag >>> 3) {
+        case BLOB_RAW -> raw = readBytes(reader, tag);
+        case BLOB_RAW_SIZE -> {
+          expect(tag, WIRE_VARINT);
+          rawSize = (int) readRawVarint(reader);
+        }
+        case BLOB_ZLIB_DATA -> zlib = readBytes(reader, tag);
+        default -> {
+          switch (tag & 7) {
+            case WIRE_VARINT -> readRawVarint(reader);
+            case WIRE_LENGTH_DELIMITED -> readBytes(reader, tag);
+            case WIRE_FIXED64 -> skipBytes(reader, 8);
+            case WIRE_FIXED32 -> skipBytes(reader, 4);
+            default -> throw new FileFormatException("Unsupported protobuf wire type " + (tag & 7) + " in PBF blob");
+          }
+        }
+      }
+    }
     byte[] blobData;
 
-    if (blob.hasRaw()) {
-      blobData = blob.getRaw().toByteArray();
-    } else if (blob.hasZlibData()) {
+    if (raw != null) {
+      blobData = new byte[raw.remaining()];
+      raw.get(blobData);
+    } else if (zlib != null) {
+      if (rawSize < 0) {
+        throw new FileFormatException("PBF blob is missing raw_size for compressed data.");
+      }
       Inflater inflater = new Inflater();
-      inflater.setInput(blob.getZlibData().toByteArray());
-      blobData = new byte[blob.getRawSize()];
+      inflater.setInput(zlib);
+      blobData = new byte[rawSize];
       try {
         inflater.inflate(blobData);
       } catch (DataFormatException e) {
@@ -65,19 +180,64 @@ public class PbfDecoder implements Iterable<OsmElement> {
     return blobData;
   }
 
-  /** Decompresses and parses a block of primitive OSM elements. */
-  public static Iterable<OsmElement> decode(byte[] raw) {
-    try {
-      return new PbfDecoder(raw);
-    } catch (IOException e) {
-      throw new UncheckedIOException("Unable to process PBF blob", e);
+  private static long readRawVarint(ByteBuffer buf) {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!buf.hasRemaining()) {
+        throw new FileFormatException("Truncated varint in PBF blob");
+      }
+      byte b = buf.get();
+      result |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return result;
+      }
     }
+    throw new FileFormatException("Malformed varint in PBF blob");
+  }
+
+  /** Returns a view of the next length-delimited field in {@code buf} and advances past it. */
+  private static ByteBuffer readBytes(ByteBuffer buf, int tag) {
+    expect(tag, WIRE_LENGTH_DELIMITED);
+    int length = (int) readRawVarint(buf);
+    if (length < 0 || length > buf.remaining()) {
+      throw new FileFormatException("Invalid length " + length + " in PBF blob");
+    }
+    ByteBuffer result = buf.slice(buf.position(), length);
+    buf.position(buf.position() + length);
+    return result;
+  }
+
+  private static void skipBytes(ByteBuffer buf, int length) {
+    if (length > buf.remaining()) {
+      throw new FileFormatException("Truncated PBF blob");
+    }
+    buf.position(buf.position() + length);
+  }
+
+  private static void expect(int tag, int wireType) {
+    if ((tag & 7) != wireType) {
+      throw new FileFormatException("Expected wire type " + wireType + " for field " + (tag >>> 3) + " but got " +
+        (tag & 7));
+    }
+  }
+
+  /** Decompresses and indexes a block of primitive OSM elements that get parsed lazily while iterating. */
+  public static PbfDecoder decode(byte[] raw) {
+    return decode(ByteBuffer.wrap(raw));
+  }
+
+  /**
+   * Same as {@link #decode(byte[])} except reads the blob from the remaining bytes in {@code raw}, which may be a slice
+   * of a memory-mapped file, without copying it first.
+   */
+  public static PbfDecoder decode(ByteBuffer raw) {
+    return new PbfDecoder(raw);
   }
 
   /** Decompresses and parses a header block of an OSM input file. */
   public static OsmHeader decodeHeader(byte[] raw) {
     try {
-      byte[] data = readBlobContent(raw);
+      byte[] data = readBlobContent(ByteBuffer.wrap(raw));
       Osmformat.HeaderBlock header = Osmformat.HeaderBlock.parseFrom(data);
       Osmformat.HeaderBBox bbox = header.getBbox();
       Envelope bounds = new Envelope(
@@ -101,211 +261,499 @@ public class PbfDecoder implements Iterable<OsmElement> {
     }
   }
 
+  /** Returns all nodes, ways, and relations in this block in the order they appear. */
   @Override
   public Iterator<OsmElement> iterator() {
-    return Iterators.concat(block.getPrimitivegroupList().stream().map(primitiveGroup -> Iterators.concat(
-      new DenseNodeIterator(primitiveGroup.getDense()),
-      new NodeIterator(primitiveGroup.getNodesList()),
-      new WayIterator(primitiveGroup.getWaysList()),
-      new RelationIterator(primitiveGroup.getRelationsList())
-    )).iterator());
+    return new ElementIterator(true, null);
+  }
+
+  /**
+   * Returns all elements in this block like {@link #iterator()}, except nodes without any tags get passed to
+   * {@code untaggedNodes} as they are reached instead of being returned as {@link OsmElement.Node} objects.
+   */
+  public Iterable<OsmElement> elements(NodeLocationConsumer untaggedNodes) {
+    return () -> new ElementIterator(true, untaggedNodes);
   }
 
-  private Map<String, Object> buildTags(int num, IntUnaryOperator key, IntUnaryOperator value) {
+  /** Returns only the ways and relations in this block, without decoding any of its nodes. */
+  public Iterable<OsmElement> waysAndRelations() {
+    return () -> new ElementIterator(false, null);
+  }
+
+  /**
+   * Passes the {@link OsmBlockIndex} entry for this block, stored at {@code offset} with {@code length} bytes in the
+   * input file, to {@code consumer} once an iterator that includes nodes has returned every element.
+   * <p>
+   * The entry gets built from the elements as they are decoded for the caller, so building an index does not decode the
+   * block a second time.
+   */
+  void summarizeAfterIterating(long offset, int length, Consumer<OsmBlockIndex.Entry> consumer) {
+    summaryOffset = offset;
+    summaryLength = length;
+    summaryConsumer = consumer;
+  }
+
+  private String decodeString(int index) {
+    String result = strings[index];
+    if (result == null) {
+      result = strings[index] = new String(data, stringOffsets[index], stringLengths[index], StandardCharsets.UTF_8);
+    }
+    return result;
+  }
+
+  private double decodeLatitude(long rawLatitude) {
+    return COORDINATE_SCALING_FACTOR * (latOffset + (granularity * rawLatitude));
+  }
+
+  private double decodeLongitude(long rawLongitude) {
+    return COORDINATE_SCALING_FACTOR * (lonOffset + (granularity * rawLongitude));
+  }
+
+  private Map<String, Object> buildTags(IntArrayList keys, IntArrayList values) {
+    int num = Math.min(keys.size(), values.size());
     if (num > 0) {
-      Map<String, Object> tags = new HashMap<>(num);
+      Map<String, Object> tags = new HashMap<>(num * 2);
       for (int i = 0; i < num; i++) {
-        String k = fieldDecoder.decodeString(key.applyAsInt(i));
-        String v = fieldDecoder.decodeString(value.applyAsInt(i));
-        tags.put(k, v);
+        tags.put(decodeString(keys.get(i)), decodeString(values.get(i)));
       }
       return tags;
     }
     return Collections.emptyMap();
   }
 
-  private class NodeIterator implements Iterator<OsmElement.Node> {
-
-    private final List<Osmformat.Node> nodes;
-    int i;
-
-    public NodeIterator(List<Osmformat.Node> nodes) {
-      this.nodes = nodes;
-      i = 0;
+  private OsmElement.Node readNode(ProtoReader reader, NodeLocationConsumer untaggedNodes, BlockSummary summary) {
+    long id = 0, lat = 0, lon = 0;
+    IntArrayList keys = new IntArrayList();
+    IntArrayList values = new IntArrayList();
+    while (reader.hasMore()) {
+      int tag = reader.readTag();
+      switch (tag >>> 3) {
+        case ELEMENT_ID -> id = ProtoReader.decodeZigZag(reader.readVarint(tag));
+        case ELEMENT_KEYS -> reader.readInts(tag, keys);
+        case ELEMENT_VALS -> reader.readInts(tag, values);
+        case NODE_LAT -> lat = ProtoReader.decodeZigZag(reader.readVarint(tag));
+        case NODE_LON -> lon = ProtoReader.decodeZigZag(reader.readVarint(tag));
+        default -> reader.skip(tag);
+      }
+    }
+    if (summary != null) {
+      summary.node(id, decodeLatitude(lat), decodeLongitude(lon));
     }
+    if (untaggedNodes != null && keys.isEmpty()) {
+      untaggedNodes.accept(id, decodeLatitude(lat), decodeLongitude(lon));
+      return null;
+    }
+    return new OsmElement.Node(id, buildTags(keys, values), decodeLatitude(lat), decodeLongitude(lon));
+  }
 
-    @Override
-    public boolean hasNext() {
-      return i < nodes.size();
+  private OsmElement.Way readWay(ProtoReader reader) {
+    long id = 0;
+    IntArrayList keys = new IntArrayList();
+    IntArrayList values = new IntArrayList();
+    LongArrayList nodes = new LongArrayList();
+    while (reader.hasMore()) {
+      int tag = reader.readTag();
+      switch (tag >>> 3) {
+        case ELEMENT_ID -> id = reader.readVarint(tag);
+        case ELEMENT_KEYS -> reader.readInts(tag, keys);
+        case ELEMENT_VALS -> reader.readInts(tag, values);
+        case WAY_REFS -> reader.readSInt64s(tag, nodes);
+        default -> reader.skip(tag);
+      }
+    }
+    // Build up the list of way nodes for the way. The node ids are
+    // delta encoded meaning that each id is stored as a delta against
+    // the previous one.
+    long[] wayNodes = nodes.buffer;
+    long nodeId = 0;
+    for (int j = 0; j < nodes.size(); j++) {
+      nodeId += wayNodes[j];
+      wayNodes[j] = nodeId;
     }
+    return new OsmElement.Way(id, buildTags(keys, values), nodes);
+  }
 
-    @Override
-    public OsmElement.Node next() {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
+  private OsmElement.Relation readRelation(ProtoReader reader) {
+    long id = 0;
+    IntArrayList keys = new IntArrayList();
+    IntArrayList values = new IntArrayList();
+    IntArrayList roles = new IntArrayList();
+    LongArrayList memberIds = new LongArrayList();
+    IntArrayList types = new IntArrayList();
+    while (reader.hasMore()) {
+      int tag = reader.readTag();
+      switch (tag >>> 3) {
+        case ELEMENT_ID -> id = reader.readVarint(tag);
+        case ELEMENT_KEYS -> reader.readInts(tag, keys);
+        case ELEMENT_VALS -> reader.readInts(tag, values);
+        case RELATION_ROLES_SID -> reader.readInts(tag, roles);
+        case RELATION_MEMIDS -> reader.readSInt64s(tag, memberIds);
+        case RELATION_TYPES -> reader.readInts(tag, types);
+        default -> reader.skip(tag);
       }
-      var node = nodes.get(i++);
-      return new OsmElement.Node(
-        node.getId(),
-        buildTags(node.getKeysCount(), node::getKeys, node::getVals),
-        fieldDecoder.decodeLatitude(node.getLat()),
-        fieldDecoder.decodeLongitude(node.getLon())
-      );
     }
+    int num = memberIds.size();
+    if (roles.size() != num || types.size() != num) {
+      throw new FileFormatException("PBF relation " + id + " has " + num + " member IDs but " + roles.size() +
+        " roles and " + types.size() + " types");
+    }
+    List<OsmElement.Relation.Member> members = new ArrayList<>(num);
+    long memberId = 0;
+    for (int j = 0; j < num; j++) {
+      memberId += memberIds.get(j);
+      var memberType = switch (types.get(j)) {
+        case 0 -> OsmElement.Type.NODE;
+        case 1 -> OsmElement.Type.WAY;
+        case 2 -> OsmElement.Type.RELATION;
+        default -> throw new FileFormatException("Unrecognized PBF relation member type: " + types.get(j));
+      };
+      members.add(new OsmElement.Relation.Member(memberType, memberId, decodeString(roles.get(j))));
+    }
+    return new OsmElement.Relation(id, buildTags(keys, values), members);
   }
 
-  private class RelationIterator implements Iterator<OsmElement.Relation> {
+  /** Receives the ID and location of a node that has no tags. */
+  @FunctionalInterface
+  public interface NodeLocationConsumer {
 
-    private final List<Osmformat.Relation> relations;
-    int i;
+    void accept(long id, double lat, double lon);
+  }
 
-    public RelationIterator(List<Osmformat.Relation> relations) {
-      this.relations = relations;
-      i = 0;
+  /**
+   * Iterates through the primitive groups in this block, returning dense nodes, nodes, ways, then relations from each
+   * group.
+   */
+  private class ElementIterator implements Iterator<OsmElement> {
+
+    private final boolean includeNodes;
+    private final NodeLocationConsumer untaggedNodes;
+    // only summarize the block when this iterator will see every element in it
+    private final BlockSummary summary;
+    // field number, start, and end offset of each element in the current group, in the order to return them
+    private final IntArrayList pending = new IntArrayList();
+    private int pendingIndex = 0;
+    private int groupIndex = 0;
+    private DenseNodeIterator dense = null;
+    private OsmElement next = null;
+
+    ElementIterator(boolean includeNodes, NodeLocationConsumer untaggedNodes) {
+      this.includeNodes = includeNodes;
+      this.untaggedNodes = untaggedNodes;
+      this.summary = includeNodes && summaryConsumer != null ? new BlockSummary() : null;
     }
 
     @Override
     public boolean hasNext() {
-      return i < relations.size();
+      if (next == null) {
+        next = advance();
+      }
+      return next != null;
     }
 
     @Override
-    public OsmElement.Relation next() {
+    public OsmElement next() {
       if (!hasNext()) {
         throw new NoSuchElementException();
       }
-      var relation = relations.get(i++);
-      int num = relation.getMemidsCount();
-
-      List<OsmElement.Relation.Member> members = new ArrayList<>(num);
-
-      long memberId = 0;
-      for (int j = 0; j < num; j++) {
-        memberId += relation.getMemids(j);
-        var memberType = switch (relation.getTypes(j)) {
-          case WAY -> OsmElement.Type.WAY;
-          case NODE -> OsmElement.Type.NODE;
-          case RELATION -> OsmElement.Type.RELATION;
-        };
-        members.add(new OsmElement.Relation.Member(
-          memberType,
-          memberId,
-          fieldDecoder.decodeString(relation.getRolesSid(j))
-        ));
+      OsmElement result = next;
+      next = null;
+      return result;
+    }
+
+    private OsmElement advance() {
+      while (true) {
+        if (dense != null) {
+          OsmElement.Node node = dense.next();
+          if (node != null) {
+            return node;
+          }
+          dense = null;
+        } else if (pendingIndex < pending.size()) {
+          int field = pending.get(pendingIndex);
+          ProtoReader reader = new ProtoReader(data, pending.get(pendingIndex + 1), pending.get(pendingIndex + 2));
+          pendingIndex += 3;
+          switch (field) {
+            case GROUP_DENSE -> dense = new DenseNodeIterator(reader, untaggedNodes, summary);
+            case GROUP_NODES -> {
+              OsmElement.Node node = readNode(reader, untaggedNodes, summary);
+              if (node != null) {
+                return node;
+              }
+            }
+            case GROUP_WAYS -> {
+              OsmElement.Way way = readWay(reader);
+              if (summary != null) {
+                summary.way(way.id());
+              }
+              return way;
+            }
+            default -> {
+              OsmElement.Relation relation = readRelation(reader);
+              if (summary != null) {
+                summary.relation(relation.id());
+              }
+              return relation;
+            }
+          }
+        } else if (groupIndex < groups.size()) {
+          int start = groups.get(groupIndex);
+          int end = groups.get(groupIndex + 1);
+          groupIndex += 2;
+          pending.clear();
+          pendingIndex = 0;
+          if (includeNodes) {
+            addElements(start, end, GROUP_DENSE);
+            addElements(start, end, GROUP_NODES);
+          }
+          addElements(start, end, GROUP_WAYS);
+          addElements(start, end, GROUP_RELATIONS);
+        } else {
+          if (summary != null && summaryConsumer != null) {
+            var consumer = summaryConsumer;
+            summaryConsumer = null;
+            consumer.accept(summary.entry(summaryOffset, summaryLength));
+          }
+          return null;
+        }
       }
+    }
 
-      // Add the bound object to the results.
-      return new OsmElement.Relation(
-        relation.getId(),
-        buildTags(relation.getKeysCount(), relation::getKeys, relation::getVals),
-        members
-      );
+    private void addElements(int start, int end, int field) {
+      ProtoReader reader = new ProtoReader(data, start, end);
+      while (reader.hasMore()) {
+        int tag = reader.readTag();
+        if ((tag >>> 3) == field) {
+          int length = reader.readLength(tag);
+          pending.add(field, reader.pos, reader.pos + length);
+          reader.pos += length;
+        } else {
+          reader.skip(tag);
+        }
+      }
     }
   }
 
-  private class WayIterator implements Iterator<OsmElement.Way> {
+  /** Decodes packed dense node IDs and coordinates into arrays, then returns nodes from them one at a time. */
+  private class DenseNodeIterator {
+
+    private final NodeLocationConsumer untaggedNodes;
+    private final BlockSummary summary;
+    private final LongArrayList ids = new LongArrayList();
+    private final LongArrayList lats = new LongArrayList();
+    private final LongArrayList lons = new LongArrayList();
+    private final IntArrayList keysVals = new IntArrayList();
+    private long nodeId = 0;
+    private long latitude = 0;
+    private long longitude = 0;
+    private int i = 0;
+    private int kvIndex = 0;
+
+    DenseNodeIterator(ProtoReader reader, NodeLocationConsumer untaggedNodes, BlockSummary summary) {
+      this.untaggedNodes = untaggedNodes;
+      this.summary = summary;
+      while (reader.hasMore()) {
+        int tag = reader.readTag();
+        switch (tag >>> 3) {
+          case DENSE_ID -> reader.readSInt64s(tag, ids);
+          case DENSE_LAT -> reader.readSInt64s(tag, lats);
+          case DENSE_LON -> reader.readSInt64s(tag, lons);
+          case DENSE_KEYS_VALS -> reader.readInts(tag, keysVals);
+          default -> reader.skip(tag);
+        }
+      }
+      if (lats.size() != ids.size() || lons.size() != ids.size()) {
+        throw new FileFormatException("PBF dense nodes have " + ids.size() + " IDs but " + lats.size() +
+          " latitudes and " + lons.size() + " longitudes");
+      }
+    }
 
-    private final List<Osmformat.Way> ways;
-    int i;
+    /** Returns the next node with tags, or the next node if there is no callback for untagged nodes. */
+    OsmElement.Node next() {
+      long[] idDeltas = ids.buffer;
+      long[] latDeltas = lats.buffer;
+      long[] lonDeltas = lons.buffer;
+      int[] kvs = keysVals.buffer;
+      int numKeysVals = keysVals.size();
+      while (i < ids.size()) {
+        // Delta decode node fields.
+        nodeId += idDeltas[i];
+        latitude += latDeltas[i];
+        longitude += lonDeltas[i];
+        i++;
+
+        // Build the tags. The key and value string indexes are sequential
+        // in the same PBF array. Each set of tags is delimited by an index
+        // with a value of 0.
+        Map<String, Object> tags = null;
+        while (kvIndex < numKeysVals) {
+          int keyIndex = kvs[kvIndex++];
+          if (keyIndex == 0) {
+            break;
+          }
+          int valueIndex = kvs[kvIndex++];
+          if (tags == null) {
+            tags = new HashMap<>();
+          }
+          tags.put(decodeString(keyIndex), decodeString(valueIndex));
+        }
 
-    public WayIterator(List<Osmformat.Way> ways) {
-      this.ways = ways;
-      i = 0;
+        double lat = ((double) latitude) / 10000000;
+        double lon = ((double) longitude) / 10000000;
+        if (summary != null) {
+          summary.node(nodeId, lat, lon);
+        }
+        if (tags == null && untaggedNodes != null) {
+          untaggedNodes.accept(nodeId, lat, lon);
+        } else {
+          return new OsmElement.Node(nodeId, tags == null ? Collections.emptyMap() : tags, lat, lon);
+        }
+      }
+      return null;
     }
+  }
 
-    @Override
-    public boolean hasNext() {
-      return i < ways.size();
+  /** Accumulates the types, ID range, and node bounds of the elements in a block as they get decoded. */
+  private static class BlockSummary {
+
+    private boolean nodes = false, ways = false, relations = false;
+    private long minId = Long.MAX_VALUE, maxId = Long.MIN_VALUE;
+    private double minLon = Double.POSITIVE_INFINITY, minLat = Double.POSITIVE_INFINITY;
+    private double maxLon = Double.NEGATIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+
+    private void id(long id) {
+      minId = Math.min(minId, id);
+      maxId = Math.max(maxId, id);
     }
 
-    @Override
-    public OsmElement.Way next() {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
-      }
-      var way = ways.get(i++);
-      // Build up the list of way nodes for the way. The node ids are
-      // delta encoded meaning that each id is stored as a delta against
-      // the previous one.
-      long nodeId = 0;
-      int numNodes = way.getRefsCount();
-      LongArrayList wayNodesList = new LongArrayList(numNodes);
-      wayNodesList.elementsCount = numNodes;
-      long[] wayNodes = wayNodesList.buffer;
-      for (int j = 0; j < numNodes; j++) {
-        long nodeIdOffset = way.getRefs(j);
-        nodeId += nodeIdOffset;
-        wayNodes[j] = nodeId;
-      }
+    void node(long id, double lat, double lon) {
+      id(id);
+      minLat = Math.min(minLat, lat);
+      maxLat = Math.max(maxLat, lat);
+      minLon = Math.min(minLon, lon);
+      maxLon = Math.max(maxLon, lon);
+      nodes = true;
+    }
 
-      return new OsmElement.Way(
-        way.getId(),
-        buildTags(way.getKeysCount(), way::getKeys, way::getVals),
-        wayNodesList
-      );
+    void way(long id) {
+      id(id);
+      ways = true;
+    }
+
+    void relation(long id) {
+      id(id);
+      relations = true;
+    }
+
+    OsmBlockIndex.Entry entry(long offset, int length) {
+      return nodes || ways || relations ?
+        OsmBlockIndex.Entry.of(offset, length, nodes, ways, relations, minId, maxId, minLon, minLat, maxLon, maxLat) :
+        OsmBlockIndex.Entry.empty(offset, length);
     }
   }
 
-  private class DenseNodeIterator implements Iterator<OsmElement.Node> {
+  /** Reads protobuf wire format values from a range of a byte array. */
+  private static final class ProtoReader {
 
-    final Osmformat.DenseNodes nodes;
-    long nodeId;
-    long latitude;
-    long longitude;
-    int i;
-    int kvIndex;
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
 
-    public DenseNodeIterator(Osmformat.DenseNodes nodes) {
-      this.nodes = nodes;
-      nodeId = 0;
-      latitude = 0;
-      longitude = 0;
-      i = 0;
-      kvIndex = 0;
+    ProtoReader(byte[] buf, int start, int limit) {
+      this.buf = buf;
+      this.pos = start;
+      this.limit = limit;
     }
 
+    static long decodeZigZag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
 
-    @Override
-    public boolean hasNext() {
-      return i < nodes.getIdCount();
+    boolean hasMore() {
+      return pos < limit;
     }
 
-    @Override
-    public OsmElement.Node next() {
-      if (!hasNext()) {
-        throw new NoSuchElementException();
-      }
-      // Delta decode node fields.
-      nodeId += nodes.getId(i);
-      latitude += nodes.getLat(i);
-      longitude += nodes.getLon(i);
-      i++;
-
-      // Build the tags. The key and value string indexes are sequential
-      // in the same PBF array. Each set of tags is delimited by an index
-      // with a value of 0.
-      Map<String, Object> tags = null;
-      while (kvIndex < nodes.getKeysValsCount()) {
-        int keyIndex = nodes.getKeysVals(kvIndex++);
-        if (keyIndex == 0) {
-          break;
+    int readTag() {
+      return (int) readRawVarint();
+    }
+
+    long readRawVarint() {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos >= limit) {
+          throw new FileFormatException("Truncated varint in PBF block");
         }
-        int valueIndex = nodes.getKeysVals(kvIndex++);
+        byte b = buf[pos++];
+        result |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return result;
+        }
+      }
+      throw new FileFormatException("Malformed varint in PBF block");
+    }
 
-        if (tags == null) {
-          // divide by 2 as key&value, multiply by 2 because of the better approximation
-          tags = new HashMap<>(Math.max(3, 2 * (nodes.getKeysValsCount() / 2) / nodes.getKeysValsCount()));
+    long readVarint(int tag) {
+      expect(tag, WIRE_VARINT);
+      return readRawVarint();
+    }
+
+    int readLength(int tag) {
+      expect(tag, WIRE_LENGTH_DELIMITED);
+      int length = (int) readRawVarint();
+      if (length < 0 || length > limit - pos) {
+        throw new FileFormatException("Invalid length " + length + " in PBF block");
+      }
+      return length;
+    }
+
+    ProtoReader readMessage(int tag) {
+      int length = readLength(tag);
+      ProtoReader result = new ProtoReader(buf, pos, pos + length);
+      pos += length;
+      return result;
+    }
+
+    /** Appends a packed or unpacked repeated int32/uint32/enum field to {@code result}. */
+    void readInts(int tag, IntArrayList result) {
+      if ((tag & 7) == WIRE_LENGTH_DELIMITED) {
+        int length = readLength(tag);
+        int end = pos + length;
+        while (pos < end) {
+          result.add((int) readRawVarint());
         }
+      } else {
+        result.add((int) readVarint(tag));
+      }
+    }
 
-        tags.put(fieldDecoder.decodeString(keyIndex), fieldDecoder.decodeString(valueIndex));
+    /** Appends a packed or unpacked repeated sint64 field to {@code result}. */
+    void readSInt64s(int tag, LongArrayList result) {
+      if ((tag & 7) == WIRE_LENGTH_DELIMITED) {
+        int length = readLength(tag);
+        int end = pos + length;
+        // each value takes at least one byte
+        result.ensureCapacity(result.size() + length);
+        long[] values = result.buffer;
+        int size = result.size();
+        while (pos < end) {
+          values[size++] = decodeZigZag(readRawVarint());
+        }
+        result.elementsCount = size;
+      } else {
+        result.add(decodeZigZag(readVarint(tag)));
       }
+    }
 
-      return new OsmElement.Node(
-        nodeId,
-        tags == null ? Collections.emptyMap() : tags,
-        ((double) latitude) / 10000000,
-        ((double) longitude) / 10000000
-      );
+    void skip(int tag) {
+      switch (tag & 7) {
+        case WIRE_VARINT -> readRawVarint();
+        case WIRE_FIXED64 -> pos += 8;
+        case WIRE_LENGTH_DELIMITED -> {
+          int length = readLength(tag);
+          pos += length;
+        }
+        case WIRE_FIXED32 -> pos += 4;
+        default -> throw new FileFormatException("Unsupported protobuf wire type " + (tag & 7) + " in PBF block");
+      }
     }
   }
 }
@@ -0,0 +1,152 @@
+package com.onthegomap.planetiler.server;
+
+import com.onthegomap.planetiler.mbtiles.Mbtiles;
+import com.onthegomap.planetiler.util.Hashing;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Reads tiles from an mbtiles file on many threads at once using a pool of read-only connections, and keeps the most
+ * recently requested tiles in memory.
+ * <p>
+ * Each {@link Mbtiles} connection re-uses a single prepared statement so it can only be used by one thread at a time.
+ * Requests borrow a connection from the pool and block when all of them are in use. The cache is split into segments
+ * with their own lock and least-recently-used eviction so that threads serving hot tiles rarely contend with each other.
+ * Each cached tile holds an ETag computed once when it is read from the database.
+ */
+@ThreadSafe
+public class CachedMbtilesReader implements Closeable {
+
+  private static final int CACHE_SEGMENTS = 16;
+  // rough per-entry overhead of the map entry, key, and tile record
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+  private final List<Mbtiles> connections = new ArrayList<>();
+  private final BlockingQueue<Mbtiles> available;
+  private final CacheSegment[] segments = new CacheSegment[CACHE_SEGMENTS];
+  private final Map<String, String> metadata;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Opens {@code numConnections} read-only connections to {@code path} and caches up to {@code cacheBytes} of tile
+   * data.
+   */
+  public CachedMbtilesReader(Path path, int numConnections, long cacheBytes) {
+    if (numConnections < 1) {
+      throw new IllegalArgumentException("Must have at least one connection, was " + numConnections);
+    }
+    available = new ArrayBlockingQueue<>(numConnections);
+    for (int i = 0; i < numConnections; i++) {
+      Mbtiles connection = Mbtiles.newReadOnlyDatabase(path);
+      connections.add(connection);
+      available.add(connection);
+    }
+    for (int i = 0; i < CACHE_SEGMENTS; i++) {
+      segments[i] = new CacheSegment(cacheBytes / CACHE_SEGMENTS);
+    }
+    metadata = connections.get(0).metadata().getAll();
+  }
+
+  /** A tile and its ETag, or {@link #MISSING} if the archive does not contain the tile. */
+  public record Tile(byte[] data, String etag) {
+
+    public static final Tile MISSING = new Tile(null, null);
+
+    public boolean exists() {
+      return data != null;
+    }
+
+    private long weight() {
+      return ENTRY_OVERHEAD_BYTES + (data == null ? 0 : data.length);
+    }
+  }
+
+  /** Returns the tile at {@code z/x/y} in XYZ coordinates, from the cache if it was read recently. */
+  public Tile getTile(int z, int x, int y) {
+    long key = ((long) z << 58) | ((long) x << 29) | y;
+    CacheSegment segment = segments[(int) ((key * 0x9E3779B97F4A7C15L) >>> 60) & (CACHE_SEGMENTS - 1)];
+    Tile tile = segment.get(key);
+    if (tile != null) {
+      hits.increment();
+      return tile;
+    }
+    misses.increment();
+    byte[] data = readTile(z, x, y);
+    tile = data == null ? Tile.MISSING : new Tile(data, "\"" + Long.toHexString(Hashing.fnv1a64(data)) + "\"");
+    segment.put(key, tile);
+    return tile;
+  }
+
+  private byte[] readTile(int z, int x, int y) {
+    Mbtiles connection;
+    try {
+      connection = available.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    try {
+      return connection.getTile(x, y, z);
+    } finally {
+      available.add(connection);
+    }
+  }
+
+  /** Returns the contents of the mbtiles metadata table, read when this reader was opened. */
+  public Map<String, String> metadata() {
+    return metadata;
+  }
+
+  public long cacheHits() {
+    return hits.sum();
+  }
+
+  public long cacheMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Mbtiles connection : connections) {
+      connection.close();
+    }
+  }
+
+  /** A portion of the cache with its own lock that evicts the least-recently-used tiles when it gets too big. */
+  private static class CacheSegment {
+
+    private final long maxBytes;
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    CacheSegment(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized Tile get(long key) {
+      return tiles.get(key);
+    }
+
+    synchronized void put(long key, Tile tile) {
+      Tile old = tiles.put(key, tile);
+      if (old != null) {
+        bytes -= old.weight();
+      }
+      bytes += tile.weight();
+      var iterator = tiles.values().iterator();
+      while (bytes > maxBytes && iterator.hasNext()) {
+        bytes -= iterator.next().weight();
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package com.onthegomap.planetiler.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.util.Format;
+import com.onthegomap.planetiler.util.Gzip;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only HTTP server for the vector tiles in an mbtiles file, built on the JDK's {@link HttpServer}.
+ * <p>
+ * Serves:
+ * <ul>
+ * <li>{@code /{z}/{x}/{y}.pbf} - the gzipped tile, {@code 204} if the archive does not contain it, or {@code 304} if
+ * the client already has the tile with a matching {@code If-None-Match} ETag. Tiles are sent gzipped only to clients
+ * that accept it, with {@code Vary: Accept-Encoding} and a different ETag for each encoding.</li>
+ * <li>{@code /} or {@code /tiles.json} - a <a href="https://github.com/mapbox/tilejson-spec">TileJSON</a> document built
+ * from the mbtiles metadata table</li>
+ * </ul>
+ * Tiles are read through a {@link CachedMbtilesReader} so each request thread gets its own read-only connection and hot
+ * tiles are served from memory.
+ */
+public class TileServer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TileServer.class);
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+  private static final Pattern TILE_PATH = Pattern.compile("^/(\\d+)/(\\d+)/(\\d+)\\.(pbf|mvt)$");
+  private static final int MAX_ZOOM = 24;
+  private final CachedMbtilesReader reader;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final String publicUrl;
+  private final byte[] tileJson;
+
+  private TileServer(CachedMbtilesReader reader, String host, int port, int threads, String publicUrl)
+    throws IOException {
+    this.reader = reader;
+    this.server = HttpServer.create(new InetSocketAddress(host, port), 1024);
+    AtomicInteger threadNum = new AtomicInteger(0);
+    this.executor = Executors.newFixedThreadPool(threads,
+      runnable -> new Thread(runnable, "tileserver-" + threadNum.incrementAndGet()));
+    this.publicUrl = publicUrl.isBlank() ? "http://" + host + ":" + server.getAddress().getPort() : publicUrl;
+    this.tileJson = objectMapper.writeValueAsBytes(tileJson(reader.metadata(), this.publicUrl));
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  /**
+   * Starts a server for the tiles in {@code mbtiles} configured from {@code arguments} and returns a handle that can be
+   * used to stop it.
+   */
+  public static TileServer start(Path mbtiles, Arguments arguments) throws IOException {
+    String host = arguments.getString("serve_host", "address for the tile server to listen on", "localhost");
+    int port = arguments.getInteger("serve_port", "port for the tile server to listen on (0 for any free port)", 8080);
+    int threads = arguments.getInteger("serve_threads",
+      "number of request threads and read-only mbtiles connections for the tile server",
+      Runtime.getRuntime().availableProcessors() * 2);
+    long cacheMb = arguments.getLong("serve_cache_mb", "megabytes of recently used tiles to keep in memory", 256);
+    String publicUrl = arguments.getString("serve_url",
+      "URL the tile server is reachable at to use in TileJSON, defaults to http://{serve_host}:{serve_port}", "");
+    // the JDK server writes headers and body separately, so without TCP_NODELAY small tile responses stall ~40ms
+    // waiting on the client's delayed ACK; this is read once when the first server in the JVM gets created
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    var reader = new CachedMbtilesReader(mbtiles, threads, cacheMb * 1_000_000);
+    var server = new TileServer(reader, host, port, threads, publicUrl);
+    LOGGER.info("Serving {} at {}/{z}/{x}/{y}.pbf with {} threads and {} tile cache", mbtiles, server.url(), threads,
+      Format.defaultInstance().storage(cacheMb * 1_000_000, false));
+    return server;
+  }
+
+  /** Returns the base URL tiles are served from. */
+  public String url() {
+    return publicUrl;
+  }
+
+  public CachedMbtilesReader reader() {
+    return reader;
+  }
+
+  /** Returns a TileJSON document describing the tileset from the values in an mbtiles metadata table. */
+  static Map<String, Object> tileJson(Map<String, String> metadata, String url) throws IOException {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("tilejson", "3.0.0");
+    result.put("tiles", List.of(url + "/{z}/{x}/{y}.pbf"));
+    for (String key : List.of("name", "description", "attribution", "version")) {
+      if (metadata.containsKey(key)) {
+        result.put(key, metadata.get(key));
+      }
+    }
+    for (String key : List.of("minzoom", "maxzoom")) {
+      if (metadata.containsKey(key)) {
+        result.put(key, Integer.parseInt(metadata.get(key).trim()));
+      }
+    }
+    for (String key : List.of("bounds", "center")) {
+      if (metadata.containsKey(key)) {
+        List<Double> values = new ArrayList<>();
+        for (String part : metadata.get(key).split(",")) {
+          values.add(Double.parseDouble(part.trim()));
+        }
+        result.put(key, values);
+      }
+    }
+    if (metadata.containsKey("json")) {
+      JsonNode json = objectMapper.readTree(metadata.get("json"));
+      if (json.has("vector_layers")) {
+        result.put("vector_layers", json.get("vector_layers"));
+      }
+    }
+    return result;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      String method = exchange.getRequestMethod();
+      if (!"GET".equals(method) && !"HEAD".equals(method)) {
+        send(exchange, 405, null);
+        return;
+      }
+      exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+      String path = exchange.getRequestURI().getPath();
+      Matcher matcher = TILE_PATH.matcher(path);
+      if (matcher.matches()) {
+        serveTile(exchange, matcher);
+      } else if ("/".equals(path) || "/tiles.json".equals(path)) {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, 200, tileJson);
+      } else {
+        send(exchange, 404, null);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Error serving {}", exchange.getRequestURI(), e);
+    }
+  }
+
+  private void serveTile(HttpExchange exchange, Matcher matcher) throws IOException {
+    int z, x, y;
+    try {
+      z = Integer.parseInt(matcher.group(1));
+      x = Integer.parseInt(matcher.group(2));
+      y = Integer.parseInt(matcher.group(3));
+    } catch (NumberFormatException e) {
+      send(exchange, 404, null);
+      return;
+    }
+    if (z > MAX_ZOOM || x >= (1 << z) || y >= (1 << z)) {
+      send(exchange, 404, null);
+      return;
+    }
+    CachedMbtilesReader.Tile tile = reader.getTile(z, x, y);
+    if (!tile.exists()) {
+      send(exchange, 204, null);
+      return;
+    }
+    var headers = exchange.getResponseHeaders();
+    headers.set("Content-Type", "application/vnd.mapbox-vector-tile");
+    byte[] data = tile.data();
+    String etag = tile.etag();
+    boolean gunzip = false;
+    if (isGzipped(data)) {
+      // the body depends on whether the client accepts gzip, so caches need to key on it and each encoding needs its
+      // own validator
+      headers.set("Vary", "Accept-Encoding");
+      String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+        headers.set("Content-Encoding", "gzip");
+      } else {
+        gunzip = true;
+        etag = etag.substring(0, etag.length() - 1) + "-identity\"";
+      }
+    }
+    headers.set("ETag", etag);
+    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+      send(exchange, 304, null);
+      return;
+    }
+    send(exchange, 200, gunzip ? Gzip.gunzip(data) : data);
+  }
+
+  private static boolean isGzipped(byte[] data) {
+    return data.length > 2 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b;
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    boolean noBody = body == null || body.length == 0 || "HEAD".equals(exchange.getRequestMethod()) ||
+      status == 204 || status == 304;
+    if (body == null && status >= 400) {
+      body = ("HTTP " + status).getBytes(StandardCharsets.UTF_8);
+      noBody = "HEAD".equals(exchange.getRequestMethod());
+    }
+    exchange.sendResponseHeaders(status, noBody ? -1 : body.length);
+    if (!noBody) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.stop(0);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    reader.close();
+  }
+}
@@ -1,19 +1,58 @@
 package com.onthegomap.planetiler.util;
 
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
- * A utility for compressing up to 250 commonly-used strings (i.e. layer name, tag attributes) into a single byte.
+ * A utility for compressing commonly-used strings (i.e. layer name, tag attributes) into small integer IDs.
+ * <p>
+ * IDs have two tiers: the first {@value #MAX_SHORT_CODES} strings get short codes that fit in a single byte, and any
+ * strings after that get long IDs that callers need to write after an {@link #ESCAPE} byte using a variable-length
+ * encoding. {@link #encode(String)} and {@link #decode(byte)} only support short codes.
+ * <p>
+ * A string never changes IDs once it has one, so the same input always encodes to the same bytes. To give one-byte
+ * codes to strings that are used often but first seen after the short codes run out, pass them to
+ * {@link #CommonStringEncoder(List)} up front, for example from {@link #mostUsedLongIdStrings(int)} on a previous run.
  */
 @ThreadSafe
 public class CommonStringEncoder {
 
-  private final ConcurrentMap<String, Byte> stringToId = new ConcurrentHashMap<>(255);
-  private final String[] idToString = new String[255];
-  private final AtomicInteger layerId = new AtomicInteger(0);
+  /** Number of IDs that fit in a single byte, IDs at or above this are long IDs. */
+  public static final int MAX_SHORT_CODES = 250;
+  /** Byte value that indicates a long ID follows. */
+  public static final byte ESCAPE = (byte) 0xff;
+
+  private final ConcurrentMap<String, Entry> stringToEntry = new ConcurrentHashMap<>(255);
+  private final String[] shortCodeToString = new String[MAX_SHORT_CODES];
+  private final ConcurrentMap<Integer, String> longIdToString = new ConcurrentHashMap<>();
+  private final AtomicInteger nextShortCode = new AtomicInteger(0);
+  private final AtomicInteger nextLongId = new AtomicInteger(MAX_SHORT_CODES);
+
+  /** Returns a new encoder that hands out short codes to the first strings it sees. */
+  public CommonStringEncoder() {
+    this(List.of());
+  }
+
+  /**
+   * Returns a new encoder that hands out short codes to {@code trained} strings first, in order, before any strings it
+   * sees later.
+   *
+   * @throws IllegalArgumentException if there are more than {@link #MAX_SHORT_CODES} trained strings
+   */
+  public CommonStringEncoder(List<String> trained) {
+    if (trained.size() > MAX_SHORT_CODES) {
+      throw new IllegalArgumentException(
+        "Can only reserve " + MAX_SHORT_CODES + " short codes, got " + trained.size() + " strings");
+    }
+    for (String string : trained) {
+      encodeInt(string);
+    }
+  }
 
   /**
    * Returns the string for {@code id}.
@@ -21,7 +60,20 @@ public class CommonStringEncoder {
    * @throws IllegalArgumentException if there is no value for {@code id}.
    */
   public String decode(byte id) {
-    String str = idToString[id & 0xff];
+    String str = (id & 0xff) < MAX_SHORT_CODES ? shortCodeToString[id & 0xff] : null;
+    if (str == null) {
+      throw new IllegalArgumentException("No string for " + id);
+    }
+    return str;
+  }
+
+  /**
+   * Returns the string for a short code or long ID returned from {@link #encodeInt(String)}.
+   *
+   * @throws IllegalArgumentException if there is no value for {@code id}.
+   */
+  public String decodeInt(int id) {
+    String str = id < MAX_SHORT_CODES ? shortCodeToString[id] : longIdToString.get(id);
     if (str == null) {
       throw new IllegalArgumentException("No string for " + id);
     }
@@ -36,19 +88,70 @@ public class CommonStringEncoder {
    * @throws IllegalArgumentException if called for too many values
    */
   public byte encode(String string) {
+    int id = encodeInt(string);
+    if (id >= MAX_SHORT_CODES) {
+      throw new IllegalArgumentException("Too many string keys when inserting " + string);
+    }
+    return (byte) id;
+  }
+
+  /**
+   * Returns a short code below {@link #MAX_SHORT_CODES} or a long ID for each unique string passed in.
+   *
+   * @param string the string to store
+   * @return an int that can be converted back to a string by {@link #decodeInt(int)}, always the same for a string.
+   */
+  public int encodeInt(String string) {
     // optimization to avoid more expensive computeIfAbsent call for the majority case when concurrent hash map already
     // contains the value.
-    Byte result = stringToId.get(string);
-    if (result == null) {
-      result = stringToId.computeIfAbsent(string, s -> {
-        int id = layerId.getAndIncrement();
-        if (id > 250) {
-          throw new IllegalArgumentException("Too many string keys when inserting " + string);
-        }
-        idToString[id] = string;
-        return (byte) id;
-      });
-    }
-    return result;
+    Entry entry = stringToEntry.get(string);
+    if (entry == null) {
+      entry = stringToEntry.computeIfAbsent(string, this::newEntry);
+    }
+    if (entry.code >= MAX_SHORT_CODES) {
+      // only count uses of long IDs, so the common case doesn't contend on a shared counter
+      entry.uses.incrementAndGet();
+    }
+    return entry.code;
+  }
+
+  private synchronized Entry newEntry(String string) {
+    int id;
+    if (nextShortCode.get() < MAX_SHORT_CODES) {
+      id = nextShortCode.getAndIncrement();
+      shortCodeToString[id] = string;
+    } else {
+      id = nextLongId.getAndIncrement();
+      if (id < 0) {
+        throw new IllegalArgumentException("Too many string keys when inserting " + string);
+      }
+      longIdToString.put(id, string);
+    }
+    return new Entry(id);
+  }
+
+  /** Returns the number of unique strings that have been encoded. */
+  public int size() {
+    return stringToEntry.size();
+  }
+
+  /** Returns up to {@code limit} strings that got long IDs, ordered by how many times they were encoded. */
+  public List<String> mostUsedLongIdStrings(int limit) {
+    return stringToEntry.entrySet().stream()
+      .filter(entry -> entry.getValue().code >= MAX_SHORT_CODES)
+      .sorted(Comparator.comparingInt((Map.Entry<String, Entry> entry) -> entry.getValue().uses.get()).reversed())
+      .limit(limit)
+      .map(Map.Entry::getKey)
+      .toList();
+  }
+
+  private static class Entry {
+
+    private final AtomicInteger uses = new AtomicInteger(0);
+    private final int code;
+
+    private Entry(int code) {
+      this.code = code;
+    }
   }
 }
@@ -2,9 +2,15 @@ package com.onthegomap.planetiler.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import javax.annotation.concurrent.NotThreadSafe;
 
 public class Gzip {
 
@@ -21,4 +27,109 @@ public class Gzip {
       return is.readAllBytes();
     }
   }
+
+  /**
+   * Returns the deflate compression level for {@code name}, which is either {@code fast}, {@code default}, {@code max}
+   * or a number from 0 to 9.
+   */
+  public static int parseLevel(String name) {
+    return switch (name.toLowerCase(Locale.ROOT)) {
+      case "fast" -> Deflater.BEST_SPEED;
+      case "default" -> Deflater.DEFAULT_COMPRESSION;
+      case "max" -> Deflater.BEST_COMPRESSION;
+      default -> {
+        int level;
+        try {
+          level = Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+          level = Integer.MIN_VALUE;
+        }
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+          throw new IllegalArgumentException("Compression level must be fast, default, max, or 0-9, was " + name);
+        }
+        yield level;
+      }
+    };
+  }
+
+  /** Returns the deflate strategy for {@code name}, which is {@code default}, {@code filtered} or {@code huffman}. */
+  public static int parseStrategy(String name) {
+    return switch (name.toLowerCase(Locale.ROOT)) {
+      case "default" -> Deflater.DEFAULT_STRATEGY;
+      case "filtered" -> Deflater.FILTERED;
+      case "huffman" -> Deflater.HUFFMAN_ONLY;
+      default -> throw new IllegalArgumentException(
+        "Compression strategy must be default, filtered, or huffman, was " + name);
+    };
+  }
+
+  /**
+   * A gzip compressor that re-uses the same {@link Deflater} and output buffer for every input, instead of allocating
+   * new ones like {@link #gzip(byte[])} does.
+   * <p>
+   * With the default level and strategy, produces the same output as {@link #gzip(byte[])}. Each thread should create
+   * its own instance and close it when finished to release native memory held by the deflater.
+   */
+  @NotThreadSafe
+  public static class Compressor implements Closeable {
+
+    // same header GZIPOutputStream writes: magic number, deflate method, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_SIZE = 8;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    // don't hold onto the buffer from an unusually large tile between calls
+    private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    public Compressor(int level, int strategy) {
+      deflater = new Deflater(level, true);
+      deflater.setStrategy(strategy);
+    }
+
+    public Compressor() {
+      this(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /** Returns a new array with the gzipped contents of {@code in}. */
+    public byte[] gzip(byte[] in) {
+      deflater.reset();
+      crc.reset();
+      crc.update(in);
+      deflater.setInput(in);
+      deflater.finish();
+      System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+      int length = HEADER.length;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        length += deflater.deflate(buffer, length, buffer.length - length);
+      }
+      if (buffer.length - length < TRAILER_SIZE) {
+        buffer = Arrays.copyOf(buffer, length + TRAILER_SIZE);
+      }
+      length = writeIntLE(buffer, length, (int) crc.getValue());
+      length = writeIntLE(buffer, length, in.length);
+      byte[] result = Arrays.copyOf(buffer, length);
+      if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+        buffer = new byte[INITIAL_BUFFER_SIZE];
+      }
+      return result;
+    }
+
+    private static int writeIntLE(byte[] buf, int offset, int value) {
+      buf[offset] = (byte) value;
+      buf[offset + 1] = (byte) (value >> 8);
+      buf[offset + 2] = (byte) (value >> 16);
+      buf[offset + 3] = (byte) (value >> 24);
+      return offset + 4;
+    }
+
+    @Override
+    public void close() {
+      deflater.end();
+    }
+  }
 }
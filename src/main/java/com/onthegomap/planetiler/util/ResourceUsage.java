@@ -73,6 +73,19 @@ public class ResourceUsage {
     return add(new DiskUsage(path), amount, description);
   }
 
+  /**
+   * Requests {@code amount} bytes spread evenly across the file systems that contain {@code paths}, so each device only
+   * needs room for its share.
+   */
+  public ResourceUsage addDisk(List<Path> paths, long amount, String description) {
+    for (int i = 0; i < paths.size(); i++) {
+      // give the remainder to the first path so the total adds up to amount
+      long share = amount / paths.size() + (i == 0 ? amount % paths.size() : 0);
+      addDisk(paths.get(i), share, description);
+    }
+    return this;
+  }
+
   /** Requests {@code amount} bytes of RAM in the JVM heap. */
   public ResourceUsage addMemory(long amount, String description) {
     return add(HEAP, amount, description);
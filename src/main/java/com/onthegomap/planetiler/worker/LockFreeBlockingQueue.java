@@ -0,0 +1,257 @@
+package com.onthegomap.planetiler.worker;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded multi-producer, multi-consumer {@link BlockingQueue} backed by a ring buffer where each slot has a
+ * sequence number, so that producers and consumers claim slots with a single compare-and-set instead of contending for
+ * a lock.
+ * <p>
+ * Threads that find the queue full when writing or empty when reading spin briefly, then park for exponentially
+ * increasing intervals up to {@link #MAX_PARK_NANOS} until they can make progress. This trades a little hand-off
+ * latency while blocked for no lock contention while items are flowing.
+ * <p>
+ * {@link #iterator()} is weakly consistent like the iterators of {@link java.util.concurrent} queues: it never throws
+ * {@link java.util.ConcurrentModificationException} and returns elements that were in the queue at some point after it
+ * was created, but it does not support {@link Iterator#remove()} since elements can't be removed from the middle of the
+ * ring buffer. That means {@link #remove(Object)}, {@link #removeAll(Collection)}, and {@link #retainAll(Collection)}
+ * throw {@link UnsupportedOperationException}.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+@ThreadSafe
+class LockFreeBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+  private static final int SPINS = 100;
+  private static final int YIELDS = 10;
+  private static final long MAX_PARK_NANOS = 1_000_000;
+  // keep head and tail on separate cache lines so producers and consumers don't invalidate each other
+  private static final int HEAD = 8;
+  private static final int TAIL = 24;
+  private final AtomicLongArray counters = new AtomicLongArray(32);
+  private final AtomicLongArray sequences;
+  private final AtomicReferenceArray<E> elements;
+  private final int capacity;
+  private final int mask;
+
+  /**
+   * Creates a queue with room for {@code minCapacity} elements rounded up to the next power of 2 (and at least 2), so
+   * that slot indexes can be computed with a mask.
+   * <p>
+   * The rounded capacity is the real bound: {@link #remainingCapacity()} reports it and {@link #offer(Object)} only
+   * fails once that many elements are pending, so a queue requested with {@code minCapacity=100} holds up to 128.
+   */
+  LockFreeBlockingQueue(int minCapacity) {
+    capacity = Math.max(2, Integer.highestOneBit(Math.max(1, minCapacity - 1)) << 1);
+    mask = capacity - 1;
+    sequences = new AtomicLongArray(capacity);
+    elements = new AtomicReferenceArray<>(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  private static void backoff(int attempt) {
+    if (attempt < SPINS) {
+      Thread.onSpinWait();
+    } else if (attempt < SPINS + YIELDS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1_000L << Math.min(10, attempt - SPINS - YIELDS)));
+    }
+  }
+
+  private static void checkInterrupted() throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  @Override
+  public boolean offer(E e) {
+    if (e == null) {
+      throw new NullPointerException();
+    }
+    long pos = counters.get(TAIL);
+    while (true) {
+      int index = (int) pos & mask;
+      long diff = sequences.getAcquire(index) - pos;
+      if (diff == 0) {
+        if (counters.weakCompareAndSetVolatile(TAIL, pos, pos + 1)) {
+          elements.setPlain(index, e);
+          sequences.setRelease(index, pos + 1);
+          return true;
+        }
+        pos = counters.get(TAIL);
+      } else if (diff < 0) {
+        // the consumer that last read from this slot has not released it yet, so the queue is full
+        return false;
+      } else {
+        pos = counters.get(TAIL);
+      }
+    }
+  }
+
+  @Override
+  public E poll() {
+    long pos = counters.get(HEAD);
+    while (true) {
+      int index = (int) pos & mask;
+      long diff = sequences.getAcquire(index) - (pos + 1);
+      if (diff == 0) {
+        if (counters.weakCompareAndSetVolatile(HEAD, pos, pos + 1)) {
+          E result = elements.getPlain(index);
+          elements.setPlain(index, null);
+          sequences.setRelease(index, pos + capacity);
+          return result;
+        }
+        pos = counters.get(HEAD);
+      } else if (diff < 0) {
+        // the producer that claimed this slot has not filled it yet, so the queue is empty
+        return null;
+      } else {
+        pos = counters.get(HEAD);
+      }
+    }
+  }
+
+  @Override
+  public E peek() {
+    long pos = counters.get(HEAD);
+    int index = (int) pos & mask;
+    return sequences.getAcquire(index) == pos + 1 ? elements.getPlain(index) : null;
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    for (int attempt = 0; !offer(e); attempt++) {
+      checkInterrupted();
+      backoff(attempt);
+    }
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (int attempt = 0; !offer(e); attempt++) {
+      checkInterrupted();
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      backoff(attempt);
+    }
+    return true;
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    E result;
+    for (int attempt = 0; (result = poll()) == null; attempt++) {
+      checkInterrupted();
+      backoff(attempt);
+    }
+    return result;
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    E result;
+    for (int attempt = 0; (result = poll()) == null; attempt++) {
+      checkInterrupted();
+      if (System.nanoTime() - deadline >= 0) {
+        return null;
+      }
+      backoff(attempt);
+    }
+    return result;
+  }
+
+  @Override
+  public int size() {
+    // read head first so a concurrent poll can only make the result smaller, not negative
+    long head = counters.get(HEAD);
+    long tail = counters.get(TAIL);
+    return (int) Math.max(0, Math.min(capacity, tail - head));
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return capacity - size();
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int count = 0;
+    E item;
+    while (count < maxElements && (item = poll()) != null) {
+      c.add(item);
+      count++;
+    }
+    return count;
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return new Itr();
+  }
+
+  /**
+   * Walks slots from the head of the queue when it was created, skipping ahead to the current head when consumers
+   * overtake it, and stops at the first slot that has not been filled yet.
+   */
+  private class Itr implements Iterator<E> {
+
+    private long pos = counters.get(HEAD);
+    private E next = advance();
+
+    private E advance() {
+      while (true) {
+        int index = (int) pos & mask;
+        long seq = sequences.getAcquire(index);
+        if (seq == pos + 1) {
+          E result = elements.getPlain(index);
+          // make sure a consumer didn't take the element and a producer reuse the slot while it was being read
+          if (sequences.getAcquire(index) == pos + 1 && result != null) {
+            pos++;
+            return result;
+          }
+        } else if (seq < pos + 1) {
+          // reached the tail, or a slot that a producer claimed but has not filled yet
+          return null;
+        }
+        // a consumer already took this element, so resume from the current head
+        pos = Math.max(pos + 1, counters.get(HEAD));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public E next() {
+      E result = next;
+      if (result == null) {
+        throw new NoSuchElementException();
+      }
+      next = advance();
+      return result;
+    }
+  }
+}
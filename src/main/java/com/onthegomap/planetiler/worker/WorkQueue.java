@@ -9,7 +9,6 @@ import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
@@ -19,7 +18,7 @@ import java.util.function.Consumer;
 /**
  * A high-performance blocking queue to hand off work from producing threads to consuming threads.
  * <p>
- * Wraps a standard {@link BlockingDeque}, with a few customizations:
+ * Wraps a standard {@link BlockingQueue} chosen by {@link Type}, with a few customizations:
  * <ul>
  * <li>items are buffered into configurable-sized batches before putting on the actual queue to reduce contention</li>
  * <li>writers can mark the queue "finished" with {@link #close()} and readers will get {@code null} when there are no
@@ -54,11 +53,16 @@ public class WorkQueue<T> implements AutoCloseable, IterableOnce<T>, Consumer<T>
    * @param capacity maximum number of pending items that can be held in the queue
    * @param maxBatch batch size to buffer elements into before handing off to the blocking queue
    * @param stats    stats to monitor this with
+   * @param type     implementation of the queue that batches get handed off through
    */
-  public WorkQueue(String name, int capacity, int maxBatch, Stats stats) {
-    this.pendingBatchesCapacity = Math.max(1, capacity / maxBatch);
+  public WorkQueue(String name, int capacity, int maxBatch, Stats stats, Type type) {
+    int batches = Math.max(1, capacity / maxBatch);
     this.batchSize = maxBatch;
-    itemQueue = new ArrayBlockingQueue<>(pendingBatchesCapacity);
+    itemQueue = switch (type) {
+      case BLOCKING -> new ArrayBlockingQueue<>(batches);
+      case LOCK_FREE -> new LockFreeBlockingQueue<>(batches);
+    };
+    this.pendingBatchesCapacity = itemQueue.remainingCapacity();
 
     stats.gauge(name + "_blocking_queue_capacity", () -> pendingBatchesCapacity);
     stats.gauge(name + "_blocking_queue_size", itemQueue::size);
@@ -71,6 +75,11 @@ public class WorkQueue<T> implements AutoCloseable, IterableOnce<T>, Consumer<T>
     this.dequeueBlockTimeNanosAll = stats.nanoCounter(name + "_dequeue_block_time_seconds");
   }
 
+  /** Creates a queue that hands off batches through a {@link Type#BLOCKING} queue. */
+  public WorkQueue(String name, int capacity, int maxBatch, Stats stats) {
+    this(name, capacity, maxBatch, stats, Type.BLOCKING);
+  }
+
   @Override
   public void close() {
     try {
@@ -233,4 +242,40 @@ public class WorkQueue<T> implements AutoCloseable, IterableOnce<T>, Consumer<T>
       return result;
     }
   }
+
+  /** Implementations of the queue that batches of items get handed off through. */
+  public enum Type {
+    /** An {@link ArrayBlockingQueue} that takes a lock on every enqueue and dequeue. */
+    BLOCKING("blocking"),
+
+    /**
+     * A {@link LockFreeBlockingQueue} where producers and consumers claim slots with compare-and-set instead, and park
+     * when the queue is full or empty. Reduces contention when many threads write to the same queue. Holds up to
+     * {@code capacity / maxBatch} batches rounded up to a power of 2.
+     */
+    LOCK_FREE("lockfree");
+
+    private final String id;
+
+    Type(String id) {
+      this.id = id;
+    }
+
+    public String id() {
+      return id;
+    }
+
+    /**
+     * Returns the queue type associated with {@code id} or throws {@link IllegalArgumentException} if no match is
+     * found.
+     */
+    public static Type from(String id) {
+      for (Type value : values()) {
+        if (value.id.equalsIgnoreCase(id.trim())) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Unexpected queue type: " + id);
+    }
+  }
 }
@@ -53,6 +53,8 @@ public class OpenMapTilesProfile extends ForwardingProfile {
   private final MultiExpression.Index<RowDispatch> osmMappings;
   /** Index variant that filters out any table only used by layers that implement IgnoreWikidata class. */
   private final MultiExpression.Index<Boolean> wikidataMappings;
+  /** Layers that process every OSM element, which need to be asked separately which ways they use. */
+  private final List<OsmAllProcessor> osmAllProcessors = new ArrayList<>();
 
   public OpenMapTilesProfile(Planetiler runner) {
     this(runner.translations(), runner.config(), runner.stats());
@@ -105,6 +107,7 @@ public class OpenMapTilesProfile extends ForwardingProfile {
       }
       if (handler instanceof OsmAllProcessor processor) {
         registerSourceHandler(OSM_SOURCE, processor::processAllOsm);
+        osmAllProcessors.add(processor);
       }
     }
 
@@ -161,6 +164,19 @@ public class OpenMapTilesProfile extends ForwardingProfile {
     }
   }
 
+  @Override
+  public boolean caresAboutOsmWay(SourceFeature way) {
+    if (osmMappings.matches(way)) {
+      return true;
+    }
+    for (OsmAllProcessor processor : osmAllProcessors) {
+      if (processor.caresAboutOsmWay(way)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /*
    * Pass-through constants generated from the OpenMapTiles vector schema
    */
@@ -256,6 +272,16 @@ public class OpenMapTilesProfile extends ForwardingProfile {
      * @see Profile#processFeature(SourceFeature, FeatureCollector)
      */
     void processAllOsm(SourceFeature feature, FeatureCollector features);
+
+    /**
+     * Returns {@code false} if {@link #processAllOsm(SourceFeature, FeatureCollector)} never uses this way unless it is
+     * a member of a relation.
+     *
+     * @see Profile#caresAboutOsmWay(SourceFeature)
+     */
+    default boolean caresAboutOsmWay(SourceFeature way) {
+      return true;
+    }
   }
 
   /**
@@ -2,6 +2,7 @@ package org.openmaptiles;
 
 import com.onthegomap.planetiler.Planetiler;
 import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.server.TileServer;
 import org.openmaptiles.generated.OpenMapTilesSchema;
 import com.onthegomap.planetiler.FeatureCollector;
 
@@ -14,6 +15,19 @@ public class OpenmaptilesApplication {
     }
 
     static void run(Arguments arguments) throws Exception {
+        // use --serve=path/to/output.mbtiles to serve tiles that were already generated instead of generating them
+        Path serve = arguments.file("serve", "serve tiles from this mbtiles file instead of generating them", null);
+        if (serve != null) {
+            TileServer server = TileServer.start(serve, arguments);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (Exception e) {
+                    // shutting down anyway
+                }
+            }));
+            return;
+        }
         Path dataDir = Path.of("data");
         Path sourcesDir = dataDir.resolve("sources");
         // use --area=... argument, AREA=... env var or area=... in config to set the region of the world to use
@@ -203,6 +203,13 @@ public class Boundary implements
     return null;
   }
 
+  @Override
+  public boolean caresAboutOsmWay(SourceFeature way) {
+    // admin boundaries come from boundary relation members, only these tagged lines get emitted on their own
+    String layer = way.getString(LAYER_NAME);
+    return MARITIME.equals(layer) || DISPUTED.equals(layer) || way.getBoolean(DISPUTED);
+  }
+
   @Override
   public void processAllOsm(SourceFeature feature, FeatureCollector features) {
     if (!feature.canBeLine()) {
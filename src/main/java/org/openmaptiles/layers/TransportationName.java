@@ -165,6 +165,11 @@ public class TransportationName implements
     }
   }
 
+  @Override
+  public boolean preprocessesUntaggedOsmNodes() {
+    return false;
+  }
+
   @Override
   public void preprocessOsmWay(OsmElement.Way way) {
     String highway = way.getString("highway");
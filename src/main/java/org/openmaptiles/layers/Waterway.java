@@ -154,6 +154,12 @@ public class Waterway implements
     return null;
   }
 
+  @Override
+  public boolean caresAboutOsmWay(SourceFeature way) {
+    // river lines at low zooms only come from waterway relation members
+    return false;
+  }
+
   @Override
   public void processAllOsm(SourceFeature feature, FeatureCollector features) {
     List<OsmReader.RelationMember<WaterwayRelation>> waterways = feature.relationInfo(WaterwayRelation.class);
@@ -0,0 +1,125 @@
+package com.onthegomap.planetiler;
+
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.util.Format;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Compares {@link VectorTile#encode()} against the reference {@link VectorTile#encodeWithProtobuf()} implementation on
+ * randomly-generated dense tiles.
+ * <p>
+ * First verifies that both produce byte-for-byte identical output for tiles with every kind of attribute value, then
+ * reports the time each one takes to encode the same tiles:
+ * {@code java -cp ... com.onthegomap.planetiler.VectorTileEncodeBenchmark --features=5000 --iterations=200}
+ */
+public class VectorTileEncodeBenchmark {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  public static void main(String[] args) {
+    Arguments arguments = Arguments.fromArgs(args);
+    int features = arguments.getInteger("features", "number of features per tile", 5_000);
+    int tiles = arguments.getInteger("tiles", "number of distinct random tiles to encode", 10);
+    int iterations = arguments.getInteger("iterations", "number of times to encode each tile per round", 50);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 5);
+
+    Random random = new Random(0);
+    List<VectorTile> inputs = new ArrayList<>();
+    for (int i = 0; i < tiles; i++) {
+      inputs.add(randomTile(random, features, false));
+    }
+    for (int i = 0; i < 1_000; i++) {
+      verify(randomTile(random, random.nextInt(50), true));
+    }
+    inputs.forEach(VectorTileEncodeBenchmark::verify);
+    System.out.println("output matches protobuf implementation");
+
+    Format format = Format.defaultInstance();
+    for (int round = 0; round < rounds; round++) {
+      long protobufNanos = time(inputs, iterations, VectorTile::encodeWithProtobuf);
+      long directNanos = time(inputs, iterations, VectorTile::encode);
+      System.out.println("round " + round +
+        " protobuf: " + format.duration(Duration.ofNanos(protobufNanos)) +
+        " direct: " + format.duration(Duration.ofNanos(directNanos)) +
+        " speedup: " + format.decimal((double) protobufNanos / directNanos) + "x");
+    }
+  }
+
+  private static void verify(VectorTile tile) {
+    byte[] expected = tile.encodeWithProtobuf();
+    byte[] actual = tile.encode();
+    if (!Arrays.equals(expected, actual)) {
+      throw new IllegalStateException("Direct encoding does not match protobuf: expected " + expected.length +
+        " bytes but got " + actual.length);
+    }
+  }
+
+  private static long time(List<VectorTile> inputs, int iterations, Function<VectorTile, byte[]> fn) {
+    long bytes = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      for (VectorTile tile : inputs) {
+        bytes += fn.apply(tile).length;
+      }
+    }
+    long result = System.nanoTime() - start;
+    if (bytes == 0) {
+      throw new IllegalStateException("No output");
+    }
+    return result;
+  }
+
+  static VectorTile randomTile(Random random, int numFeatures, boolean invalidStrings) {
+    VectorTile tile = new VectorTile();
+    String[] layers = {"water", "transportation", "building", "poi", invalidStrings ? "place\uD800" : "place"};
+    for (String layer : layers) {
+      List<VectorTile.Feature> features = new ArrayList<>();
+      for (int i = 0; i < numFeatures / layers.length; i++) {
+        Map<String, Object> attrs = new HashMap<>();
+        int numAttrs = random.nextInt(6);
+        for (int j = 0; j < numAttrs; j++) {
+          attrs.put("key" + random.nextInt(20), randomValue(random, invalidStrings));
+        }
+        long id = random.nextInt(10) == 0 ? -1 : random.nextInt(4) == 0 ? random.nextLong() & Long.MAX_VALUE :
+          random.nextInt(1_000_000);
+        features.add(new VectorTile.Feature(layer, id, VectorTile.encodeGeometry(randomGeometry(random)), attrs));
+      }
+      tile.addLayerFeatures(layer, features);
+    }
+    return tile;
+  }
+
+  private static Object randomValue(Random random, boolean invalidStrings) {
+    return switch (random.nextInt(invalidStrings ? 9 : 8)) {
+      case 0 -> random.nextInt();
+      case 1 -> random.nextInt(100) - 50;
+      case 2 -> random.nextLong();
+      case 3 -> random.nextFloat() * 1000;
+      case 4 -> random.nextGaussian();
+      case 5 -> random.nextBoolean();
+      case 6 -> "name " + random.nextInt(100) + " é中😀";
+      case 7 -> List.of(random.nextInt(5));
+      // protobuf replaces unpaired surrogates with '?', and logs a warning each time
+      default -> "unpaired \uDC00 surrogate";
+    };
+  }
+
+  private static Geometry randomGeometry(Random random) {
+    int points = random.nextInt(3) == 0 ? 1 : 2 + random.nextInt(30);
+    Coordinate[] coords = new Coordinate[points];
+    for (int i = 0; i < points; i++) {
+      coords[i] = new Coordinate(random.nextDouble() * 256, random.nextDouble() * 256);
+    }
+    return points == 1 ? GEOMETRY_FACTORY.createPoint(coords[0]) : GEOMETRY_FACTORY.createLineString(coords);
+  }
+}
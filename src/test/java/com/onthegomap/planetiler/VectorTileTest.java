@@ -0,0 +1,154 @@
+package com.onthegomap.planetiler;
+
+import static com.onthegomap.planetiler.geo.GeoUtils.JTS_FACTORY;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Checks that {@link VectorTile#encode()} produces byte-for-byte the same output as the reference
+ * {@link VectorTile#encodeWithProtobuf()} implementation.
+ */
+class VectorTileTest {
+
+  private static void assertSameAsProtobuf(VectorTile tile) {
+    byte[] expected = tile.encodeWithProtobuf();
+    assertArrayEquals(expected, tile.encode());
+    // and again, since encode() reuses a per-thread buffer between calls
+    assertArrayEquals(expected, tile.encode());
+  }
+
+  private static VectorTile.Feature feature(String layer, long id, Geometry geometry, Map<String, Object> attrs) {
+    return new VectorTile.Feature(layer, id, VectorTile.encodeGeometry(geometry), attrs);
+  }
+
+  private static Point point(double x, double y) {
+    return JTS_FACTORY.createPoint(new Coordinate(x, y));
+  }
+
+  private static LineString line(double... coords) {
+    return JTS_FACTORY.createLineString(coordinates(coords));
+  }
+
+  private static LinearRing ring(double... coords) {
+    return JTS_FACTORY.createLinearRing(coordinates(coords));
+  }
+
+  private static Coordinate[] coordinates(double... coords) {
+    Coordinate[] result = new Coordinate[coords.length / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new Coordinate(coords[i * 2], coords[i * 2 + 1]);
+    }
+    return result;
+  }
+
+  @Test
+  void testEmptyTile() {
+    assertSameAsProtobuf(new VectorTile());
+  }
+
+  @Test
+  void testEmptyLayer() {
+    assertSameAsProtobuf(new VectorTile().addLayerFeatures("layer", List.of()));
+  }
+
+  @Test
+  void testGeometryTypes() {
+    Polygon square = JTS_FACTORY.createPolygon(ring(0, 0, 10, 0, 10, 10, 0, 10, 0, 0));
+    Polygon withHole = JTS_FACTORY.createPolygon(
+      ring(20, 20, 60, 20, 60, 60, 20, 60, 20, 20),
+      new LinearRing[]{ring(30, 30, 30, 50, 50, 50, 50, 30, 30, 30)}
+    );
+    assertSameAsProtobuf(new VectorTile().addLayerFeatures("layer", List.of(
+      feature("layer", 1, point(1, 2), Map.of()),
+      feature("layer", 2, JTS_FACTORY.createMultiPoint(new Point[]{point(1, 2), point(3, 4)}), Map.of()),
+      feature("layer", 3, line(0, 0, 10, 10, 20, 0), Map.of()),
+      feature("layer", 4, JTS_FACTORY.createMultiLineString(new LineString[]{
+        line(0, 0, 10, 10),
+        line(-5, 300, 200, -10)
+      }), Map.of()),
+      feature("layer", 5, square, Map.of()),
+      feature("layer", 6, withHole, Map.of()),
+      feature("layer", 7, JTS_FACTORY.createMultiPolygon(new Polygon[]{square, withHole}), Map.of())
+    )));
+  }
+
+  @Test
+  void testAttributeTypes() {
+    Map<String, Object> attrs = new LinkedHashMap<>();
+    attrs.put("string", "value");
+    attrs.put("unicode", "é中😀");
+    attrs.put("empty", "");
+    attrs.put("int", 1);
+    attrs.put("negative int", -1);
+    attrs.put("max int", Integer.MAX_VALUE);
+    attrs.put("long", Long.MAX_VALUE);
+    attrs.put("negative long", Long.MIN_VALUE);
+    attrs.put("float", 1.5f);
+    attrs.put("double", -2.25);
+    attrs.put("nan", Double.NaN);
+    attrs.put("true", true);
+    attrs.put("false", false);
+    attrs.put("null", null);
+    attrs.put("list", List.of(1, 2));
+    assertSameAsProtobuf(new VectorTile().addLayerFeatures("layer", List.of(
+      feature("layer", 1, point(1, 2), attrs),
+      // repeated keys and values get shared between features
+      feature("layer", 2, point(3, 4), Map.of("string", "value", "int", 2))
+    )));
+  }
+
+  @Test
+  void testFeatureIds() {
+    assertSameAsProtobuf(new VectorTile().addLayerFeatures("layer", List.of(
+      feature("layer", -1, point(1, 2), Map.of()),
+      feature("layer", 0, point(1, 2), Map.of()),
+      feature("layer", 1L << 40, point(1, 2), Map.of()),
+      feature("layer", Long.MAX_VALUE, point(1, 2), Map.of())
+    )));
+  }
+
+  @Test
+  void testMultipleLayers() {
+    VectorTile tile = new VectorTile();
+    for (String layer : List.of("water", "transportation", "poi")) {
+      tile.addLayerFeatures(layer, List.of(feature(layer, 1, point(1, 2), Map.of("class", layer))));
+    }
+    assertSameAsProtobuf(tile);
+  }
+
+  @Test
+  void testUnpairedSurrogates() {
+    assertSameAsProtobuf(new VectorTile().addLayerFeatures("layer\uD800", List.of(
+      feature("layer\uD800", 1, point(1, 2), Map.of("key\uDC00", "value \uD800 end"))
+    )));
+  }
+
+  @Test
+  void testRandomTiles() {
+    Random random = new Random(0);
+    for (int i = 0; i < 500; i++) {
+      assertSameAsProtobuf(VectorTileEncodeBenchmark.randomTile(random, random.nextInt(50), i % 2 == 0));
+    }
+  }
+
+  @Test
+  void testLargeRandomTile() {
+    VectorTile tile = VectorTileEncodeBenchmark.randomTile(new Random(1), 20_000, false);
+    assertSameAsProtobuf(tile);
+    List<VectorTile.Feature> decoded = new ArrayList<>(VectorTile.decode(tile.encode()));
+    assertEquals(20_000, decoded.size());
+  }
+}
@@ -0,0 +1,82 @@
+package com.onthegomap.planetiler.collection;
+
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.util.Format;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the {@link ExternalMergeSort.SortAlgorithm algorithms} for sorting the index of each chunk of temporary
+ * features on synthetic {@link FeatureGroup} keys.
+ * <p>
+ * Keys look like features rendered from an osm.pbf file: most are at high zoom levels, with tile IDs that stay close
+ * to the previous feature's except when jumping to a new area, a handful of layers, and a small range of sort keys.
+ * Each round sorts a fresh copy of the same keys with every algorithm, verifies that keys are in order and that equal
+ * keys kept their original order, then reports the wall time of each:
+ * {@code java -cp ... com.onthegomap.planetiler.collection.ChunkSortBenchmark --keys=100000000 --rounds=3}
+ */
+public class ChunkSortBenchmark {
+
+  public static void main(String[] args) {
+    Arguments arguments = Arguments.fromArgs(args);
+    List<String> algorithms = arguments.getList("algorithms", "chunk sort algorithms to compare",
+      Arrays.stream(ExternalMergeSort.SortAlgorithm.values()).map(ExternalMergeSort.SortAlgorithm::id).toList());
+    int numKeys = arguments.getInteger("keys", "number of features in the chunk", 10_000_000);
+    int jumpEvery = arguments.getInteger("jump_every", "number of nearby features between jumps to a new area", 1_000);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 3);
+
+    long[] keys = new long[numKeys];
+    int[] offsets = new int[numKeys];
+    fill(keys, offsets, jumpEvery);
+    long[] keysCopy = new long[numKeys];
+    int[] offsetsCopy = new int[numKeys];
+
+    Format format = Format.defaultInstance();
+    for (int round = 0; round < rounds; round++) {
+      StringBuilder result = new StringBuilder("round " + round);
+      for (String algorithmName : algorithms) {
+        var algorithm = ExternalMergeSort.SortAlgorithm.from(algorithmName);
+        System.arraycopy(keys, 0, keysCopy, 0, numKeys);
+        System.arraycopy(offsets, 0, offsetsCopy, 0, numKeys);
+        long start = System.nanoTime();
+        algorithm.sort(keysCopy, offsetsCopy, numKeys);
+        long nanos = System.nanoTime() - start;
+        verify(algorithm, keysCopy, offsetsCopy);
+        result.append(" ").append(algorithm.id()).append(": ").append(format.integer(nanos / 1_000_000)).append("ms");
+      }
+      System.out.println(result);
+    }
+  }
+
+  private static void fill(long[] keys, int[] offsets, int jumpEvery) {
+    Random random = new Random(0);
+    int x = 0, y = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (i % jumpEvery == 0) {
+        x = random.nextInt(1 << 14);
+        y = random.nextInt(1 << 14);
+      } else if (random.nextInt(10) == 0) {
+        x += random.nextInt(3) - 1;
+        y += random.nextInt(3) - 1;
+      }
+      // most features only show up at the highest zoom levels
+      int z = Math.max(0, 14 - (int) Math.abs(random.nextGaussian() * 3));
+      int tile = TileCoord.ofXYZ(x >> (14 - z), y >> (14 - z), z).encoded();
+      byte layer = (byte) random.nextInt(16);
+      int sortKey = random.nextInt(4) == 0 ? random.nextInt(1_000) : 0;
+      keys[i] = FeatureGroup.encodeKey(tile, layer, sortKey, random.nextInt(10) == 0);
+      // only the order of offsets matters, and real ones fit in an int because chunks are smaller than 2GB
+      offsets[i] = i;
+    }
+  }
+
+  private static void verify(ExternalMergeSort.SortAlgorithm algorithm, long[] keys, int[] offsets) {
+    for (int i = 1; i < keys.length; i++) {
+      if (keys[i - 1] > keys[i] || (keys[i - 1] == keys[i] && offsets[i - 1] > offsets[i])) {
+        throw new IllegalStateException(algorithm.id() + " out of order at " + i);
+      }
+    }
+  }
+}
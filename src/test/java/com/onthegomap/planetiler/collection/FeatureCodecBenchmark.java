@@ -0,0 +1,178 @@
+package com.onthegomap.planetiler.collection;
+
+import com.onthegomap.planetiler.VectorTile;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.render.RenderedFeature;
+import com.onthegomap.planetiler.util.CommonStringEncoder;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Compares the speed, allocation rate, and size of {@link FeatureCodec.Type feature codecs} for temporary feature
+ * storage on randomly-generated features.
+ * <p>
+ * For each codec, first verifies that every feature decodes to the same values that were encoded and that encoding the
+ * same feature twice gives the same bytes, then reports the average time and bytes allocated to encode and decode a
+ * feature, and the average encoded size:
+ * {@code java -cp ... com.onthegomap.planetiler.collection.FeatureCodecBenchmark --features=1000000 --keys=300}
+ */
+public class FeatureCodecBenchmark {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  public static void main(String[] args) throws IOException {
+    Arguments arguments = Arguments.fromArgs(args);
+    List<String> types = arguments.getList("types", "feature codecs to compare", List.of("msgpack", "binary"));
+    int numFeatures = arguments.getInteger("features", "number of distinct random features", 200_000);
+    int keys = arguments.getInteger("keys",
+      "number of distinct attribute keys, more than " + CommonStringEncoder.MAX_SHORT_CODES + " uses long key IDs", 300);
+    int maxAttrs = arguments.getInteger("max_attrs", "maximum number of attributes per feature", 20);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 5);
+
+    Random random = new Random(0);
+    List<VectorTile.Feature> features = new ArrayList<>(numFeatures);
+    List<RenderedFeature.Group> groups = new ArrayList<>(numFeatures);
+    for (int i = 0; i < numFeatures; i++) {
+      features.add(randomFeature(random, keys, maxAttrs));
+      groups.add(random.nextInt(10) == 0 ? new RenderedFeature.Group(random.nextLong(), random.nextInt(100)) : null);
+    }
+
+    for (String typeName : types) {
+      FeatureCodec.Type type = FeatureCodec.Type.from(typeName);
+      FeatureCodec codec = FeatureCodec.from(type, new CommonStringEncoder());
+      byte[][] encoded = new byte[numFeatures][];
+      try (var encoder = codec.newEncoder()) {
+        long bytes = 0;
+        for (int i = 0; i < numFeatures; i++) {
+          encoded[i] = encoder.encode(features.get(i), groups.get(i));
+          bytes += encoded[i].length;
+          verify(codec, encoder, features.get(i), groups.get(i), encoded[i]);
+        }
+        System.out.println(type.id() + " verified, " + String.format("%.1f", bytes * 1d / numFeatures) +
+          " bytes/feature");
+
+        for (int round = 0; round < rounds; round++) {
+          long startAlloc = allocatedBytes();
+          long start = System.nanoTime();
+          long sum = 0;
+          for (int i = 0; i < numFeatures; i++) {
+            sum += encoder.encode(features.get(i), groups.get(i)).length;
+          }
+          long encodeNanos = System.nanoTime() - start;
+          long encodeAlloc = allocatedBytes() - startAlloc;
+
+          startAlloc = allocatedBytes();
+          start = System.nanoTime();
+          for (int i = 0; i < numFeatures; i++) {
+            sum += codec.decode("layer", groups.get(i) != null, encoded[i]).attrs().size();
+          }
+          long decodeNanos = System.nanoTime() - start;
+          long decodeAlloc = allocatedBytes() - startAlloc;
+          blackhole(sum);
+          System.out.println(type.id() + " round " + round +
+            " encode: " + String.format("%.1f", encodeNanos * 1d / numFeatures) + "ns " +
+            String.format("%.1f", encodeAlloc * 1d / numFeatures) + "B allocated" +
+            " decode: " + String.format("%.1f", decodeNanos * 1d / numFeatures) + "ns " +
+            String.format("%.1f", decodeAlloc * 1d / numFeatures) + "B allocated");
+        }
+      }
+    }
+  }
+
+  private static void verify(FeatureCodec codec, FeatureCodec.Encoder encoder, VectorTile.Feature feature,
+    RenderedFeature.Group group, byte[] encoded) {
+    if (!Arrays.equals(encoded, encoder.encode(feature, group))) {
+      throw new IllegalStateException("Encoding the same feature twice gave different bytes: " + feature);
+    }
+    VectorTile.Feature decoded = codec.decode("layer", group != null, encoded);
+    Map<String, Object> expectedAttrs = new HashMap<>();
+    feature.attrs().forEach((key, value) -> {
+      if (value != null) {
+        expectedAttrs.put(key, normalize(value));
+      }
+    });
+    Map<String, Object> actualAttrs = new HashMap<>();
+    decoded.attrs().forEach((key, value) -> actualAttrs.put(key, normalize(value)));
+    if (decoded.id() != feature.id() ||
+      !Arrays.equals(decoded.geometry().commands(), feature.geometry().commands()) ||
+      decoded.geometry().geomType() != feature.geometry().geomType() ||
+      decoded.geometry().scale() != feature.geometry().scale() ||
+      !expectedAttrs.equals(actualAttrs) ||
+      (group != null && (decoded.group() != group.group() || !group.equals(codec.decodeGroup(encoded))))) {
+      throw new IllegalStateException("Expected " + feature + " but got " + decoded);
+    }
+  }
+
+  /** Returns the value that a codec should decode {@code value} as. */
+  private static Object normalize(Object value) {
+    if (value instanceof Integer integer) {
+      return integer.longValue();
+    } else if (value instanceof Long || value instanceof Boolean) {
+      return value;
+    } else if (value instanceof Float floatValue) {
+      return floatValue.doubleValue();
+    } else if (value instanceof Double) {
+      return value;
+    }
+    // unpaired surrogates get replaced with '?' in UTF-8, but interned strings keep them
+    return new String(value.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+  }
+
+  private static long allocatedBytes() {
+    return ManagementFactory.getThreadMXBean()instanceof com.sun.management.ThreadMXBean threadBean ?
+      threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+  }
+
+  private static VectorTile.Feature randomFeature(Random random, int keys, int maxAttrs) {
+    Map<String, Object> attrs = new HashMap<>();
+    int numAttrs = random.nextInt(maxAttrs + 1);
+    for (int j = 0; j < numAttrs; j++) {
+      // skew towards a few common keys like real features
+      int key = random.nextInt(4) == 0 ? random.nextInt(keys) : random.nextInt(Math.min(keys, 20));
+      attrs.put("key" + key, randomValue(random));
+    }
+    long id = random.nextInt(10) == 0 ? -1 : random.nextInt(4) == 0 ? random.nextLong() : random.nextInt(1_000_000);
+    return new VectorTile.Feature("layer", id, VectorTile.encodeGeometry(randomGeometry(random)), attrs);
+  }
+
+  private static Object randomValue(Random random) {
+    return switch (random.nextInt(11)) {
+      case 0 -> random.nextInt();
+      case 1 -> random.nextInt(100) - 50;
+      case 2 -> random.nextLong();
+      case 3 -> random.nextFloat() * 1000;
+      case 4 -> random.nextGaussian();
+      case 5 -> random.nextBoolean();
+      case 6 -> "name " + random.nextInt(100_000) + " é中😀";
+      case 7 -> List.of(random.nextInt(5));
+      case 8 -> "unpaired \uDC00 surrogate";
+      case 9 -> random.nextInt(2) == 0 ? "primary" : "yes";
+      default -> "a long ascii value that will not fit in the dictionary " + random.nextInt(1_000);
+    };
+  }
+
+  private static Geometry randomGeometry(Random random) {
+    int points = random.nextInt(3) == 0 ? 1 : 2 + random.nextInt(30);
+    Coordinate[] coords = new Coordinate[points];
+    for (int i = 0; i < points; i++) {
+      coords[i] = new Coordinate(random.nextDouble() * 256, random.nextDouble() * 256);
+    }
+    return points == 1 ? GEOMETRY_FACTORY.createPoint(coords[0]) : GEOMETRY_FACTORY.createLineString(coords);
+  }
+
+  private static void blackhole(long sum) {
+    if (sum == 42) {
+      System.out.println("");
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.onthegomap.planetiler.collection;
+
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import com.onthegomap.planetiler.util.FileUtils;
+import com.onthegomap.planetiler.util.Format;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the size and read latency of {@link LongLongMap.Type node location maps} filled with synthetic node
+ * locations that look like an osm.pbf file: mostly-sequential IDs with some gaps, where each node is a short distance
+ * from the previous one except when jumping to a new block.
+ * <p>
+ * For each type, verifies that every value read matches what was written, then reports bytes used per node and the
+ * average latency of random reads, and of reads of short runs of nearby nodes like the nodes in a way:
+ * {@code java -cp ... com.onthegomap.planetiler.collection.LongLongMapBenchmark --nodes=50000000 --storage=mmap}
+ */
+public class LongLongMapBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    Arguments arguments = Arguments.fromArgs(args);
+    List<String> types = arguments.getList("types", "node map types to compare",
+      List.of("sparsearray", "sortedtable", "array", "compressed"));
+    String storage = arguments.getString("storage", "storage for node maps", "mmap");
+    int nodes = arguments.getInteger("nodes", "number of node locations to write", 10_000_000);
+    double density = arguments.getDouble("density", "fraction of IDs in the key space that have a node", 0.9);
+    double step = arguments.getDouble("step_meters", "typical distance between consecutive nodes", 50);
+    int blockSize = arguments.getInteger("block_size", "number of nodes between jumps to a new location", 8_000);
+    int reads = arguments.getInteger("reads", "number of timed reads per round", 5_000_000);
+    int wayLength = arguments.getInteger("way_length", "number of nearby nodes to read for each way", 10);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 3);
+    Path dir = arguments.file("tmpdir", "directory for temporary storage", Path.of("data", "tmp", "longlongmap"));
+
+    long[] keys = new long[nodes];
+    long[] values = new long[nodes];
+    fill(keys, values, density, step, blockSize);
+
+    Format format = Format.defaultInstance();
+    FileUtils.createDirectory(dir);
+    for (String typeName : types) {
+      LongLongMap.Type type = LongLongMap.Type.from(typeName);
+      // sortedtable stores keys and values in separate files under this path
+      Path path = dir.resolve(type.id() + ".db");
+      FileUtils.delete(path);
+      try (LongLongMap map = LongLongMap.from(type.id(), storage, path, true)) {
+        long start = System.nanoTime();
+        try (var writer = map.newWriter()) {
+          for (int i = 0; i < nodes; i++) {
+            writer.put(keys[i], values[i]);
+          }
+        }
+        long writeNanos = System.nanoTime() - start;
+        verify(map, keys, values);
+        long bytes = map.diskUsageBytes() + map.estimateMemoryUsageBytes();
+        System.out.println(type.id() + " write " + format.numeric(nodes * 1e9 / writeNanos) + " nodes/s " +
+          format.storage(bytes) + " (" + String.format("%.2f", bytes * 1d / nodes) + " bytes/node)");
+        for (int round = 0; round < rounds; round++) {
+          long randomNanos = readRandom(map, keys, reads, round);
+          long wayNanos = readWays(map, keys, reads, wayLength, round);
+          System.out.println(type.id() + " round " + round +
+            " random: " + String.format("%.1f", randomNanos * 1d / reads) + "ns/read" +
+            " way: " + String.format("%.1f", wayNanos * 1d / reads) + "ns/read");
+        }
+      } finally {
+        FileUtils.delete(path);
+      }
+    }
+  }
+
+  private static void fill(long[] keys, long[] values, double density, double stepMeters, int blockSize) {
+    Random random = new Random(0);
+    double stepDegrees = stepMeters / 111_000;
+    long key = 0;
+    double lon = 0, lat = 0;
+    for (int i = 0; i < keys.length; i++) {
+      do {
+        key++;
+      } while (random.nextDouble() > density);
+      if (i % blockSize == 0) {
+        lon = random.nextDouble() * 360 - 180;
+        lat = random.nextDouble() * 160 - 80;
+      } else {
+        lon = Math.max(-180, Math.min(180, lon + random.nextGaussian() * stepDegrees));
+        lat = Math.max(-85, Math.min(85, lat + random.nextGaussian() * stepDegrees));
+      }
+      keys[i] = key;
+      values[i] = GeoUtils.encodeFlatLocation(lon, lat);
+    }
+  }
+
+  private static void verify(LongLongMap map, long[] keys, long[] values) {
+    long last = 0;
+    for (int i = 0; i < keys.length; i++) {
+      for (long missing = last + 1; missing < keys[i]; missing++) {
+        check(map, missing, LongLongMap.MISSING_VALUE);
+      }
+      check(map, keys[i], values[i]);
+      last = keys[i];
+    }
+    check(map, last + 1, LongLongMap.MISSING_VALUE);
+  }
+
+  private static void check(LongLongMap map, long key, long expected) {
+    long actual = map.get(key);
+    if (actual != expected) {
+      throw new IllegalStateException("Expected " + expected + " for " + key + " but got " + actual);
+    }
+  }
+
+  private static long readRandom(LongLongMap map, long[] keys, int reads, int seed) {
+    Random random = new Random(seed);
+    long sum = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < reads; i++) {
+      sum += map.get(keys[random.nextInt(keys.length)]);
+    }
+    long nanos = System.nanoTime() - start;
+    blackhole(sum);
+    return nanos;
+  }
+
+  private static long readWays(LongLongMap map, long[] keys, int reads, int wayLength, int seed) {
+    Random random = new Random(seed);
+    long sum = 0;
+    int bound = keys.length - wayLength * 4;
+    long start = System.nanoTime();
+    for (int i = 0; i < reads; ) {
+      int idx = random.nextInt(bound);
+      for (int j = 0; j < wayLength && i < reads; j++, i++) {
+        sum += map.get(keys[idx]);
+        idx += 1 + random.nextInt(4);
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    blackhole(sum);
+    return nanos;
+  }
+
+  private static void blackhole(long sum) {
+    if (sum == 42) {
+      System.out.println("");
+    }
+  }
+}
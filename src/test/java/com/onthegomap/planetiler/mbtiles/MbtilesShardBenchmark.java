@@ -0,0 +1,159 @@
+package com.onthegomap.planetiler.mbtiles;
+
+import com.onthegomap.planetiler.Profile;
+import com.onthegomap.planetiler.VectorTile;
+import com.onthegomap.planetiler.collection.FeatureGroup;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.config.MbtilesMetadata;
+import com.onthegomap.planetiler.config.PlanetilerConfig;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.render.RenderedFeature;
+import com.onthegomap.planetiler.stats.Stats;
+import com.onthegomap.planetiler.util.FileUtils;
+import com.onthegomap.planetiler.util.Format;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Compares writing mbtiles output through a single writer against {@code --mbtiles_shards} with and without merging
+ * the shards into the output, on synthetic z14 tiles with random line features.
+ * <p>
+ * Each run goes through {@link MbtilesWriter#writeOutput(FeatureGroup, Path, MbtilesMetadata, PlanetilerConfig, Stats)}
+ * so it includes encoding, verifies that every tile in the output (or in the shard the manifest assigns it to) matches
+ * the single writer's output, then reports the wall time of each:
+ * {@code java -cp ... com.onthegomap.planetiler.mbtiles.MbtilesShardBenchmark --tiles=1000000 --shards=2,4,8}
+ * <p>
+ * Sharded writes only help when the writer thread is the bottleneck, so run this on a machine with at least as many
+ * cores as encoder threads plus shards.
+ */
+public class MbtilesShardBenchmark {
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+  public static void main(String[] args) throws IOException {
+    Arguments arguments = Arguments.fromArgs(args);
+    int tiles = arguments.getInteger("tiles", "number of z14 tiles to write", 200_000);
+    int featuresPerTile = arguments.getInteger("features_per_tile", "maximum number of line features per tile", 8);
+    List<String> shardCounts = arguments.getList("shards", "numbers of shards to compare", List.of("2", "4"));
+    boolean compactDb = arguments.getBoolean("compact_db", "use the compact mbtiles layout", true);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 2);
+    Path dir = arguments.file("dir", "directory to write outputs to", Path.of("data", "tmp", "shard-benchmark"));
+    Stats stats = Stats.inMemory();
+
+    Profile profile = new Profile.NullProfile();
+    FeatureGroup features = FeatureGroup.newInMemoryFeatureGroup(profile, stats);
+    writeFeatures(features, tiles, featuresPerTile);
+    features.prepare();
+    FileUtils.createDirectory(dir);
+
+    Format format = Format.defaultInstance();
+    for (int round = 0; round < rounds; round++) {
+      Path expectedPath = dir.resolve("single.mbtiles");
+      long singleNanos = write(features, expectedPath, profile, compactDb, 1, true, stats);
+      Map<TileCoord, byte[]> expected = readTiles(expectedPath);
+      if (expected.size() != tiles) {
+        throw new IllegalStateException("Expected " + tiles + " tiles but got " + expected.size());
+      }
+      StringBuilder result = new StringBuilder("round " + round + " single: " + seconds(format, singleNanos));
+      for (String shardCount : shardCounts) {
+        int shards = Integer.parseInt(shardCount.trim());
+        Path mergedPath = dir.resolve("merged" + shards + ".mbtiles");
+        long mergedNanos = write(features, mergedPath, profile, compactDb, shards, true, stats);
+        verify(expected, readTiles(mergedPath), "merged " + shards);
+
+        Path shardedPath = dir.resolve("sharded" + shards + ".mbtiles");
+        long shardedNanos = write(features, shardedPath, profile, compactDb, shards, false, stats);
+        for (int i = 0; i < shards; i++) {
+          int shard = i;
+          Map<TileCoord, byte[]> expectedInShard = new HashMap<>();
+          expected.forEach((coord, data) -> {
+            if ((coord.x() + coord.y()) % shards == shard) {
+              expectedInShard.put(coord, data);
+            }
+          });
+          verify(expectedInShard, readTiles(dir.resolve("sharded" + shards + ".shard" + i + ".mbtiles")),
+            "shard " + i + " of " + shards);
+        }
+        result.append(" ").append(shards).append(" shards merged: ").append(seconds(format, mergedNanos))
+          .append(" manifest: ").append(seconds(format, shardedNanos));
+      }
+      System.out.println(result);
+    }
+  }
+
+  private static String seconds(Format format, long nanos) {
+    return format.decimal(nanos / 1e9) + "s";
+  }
+
+  private static void writeFeatures(FeatureGroup features, int tiles, int featuresPerTile) throws IOException {
+    Random random = new Random(0);
+    try (
+      var encoder = features.newRenderedFeatureEncoder();
+      var writer = features.writerForThread()
+    ) {
+      int columnHeight = 1 << 10;
+      for (int i = 0; i < tiles; i++) {
+        TileCoord tile = TileCoord.ofXYZ(i / columnHeight, i % columnHeight, 14);
+        int count = 1 + random.nextInt(featuresPerTile);
+        for (int j = 0; j < count; j++) {
+          Coordinate[] coords = new Coordinate[2 + random.nextInt(50)];
+          for (int k = 0; k < coords.length; k++) {
+            coords[k] = new Coordinate(random.nextDouble() * 256, random.nextDouble() * 256);
+          }
+          var feature = new VectorTile.Feature("layer" + random.nextInt(4), j,
+            VectorTile.encodeGeometry(GEOMETRY_FACTORY.createLineString(coords)),
+            Map.of("class", "class" + random.nextInt(20), "rank", random.nextInt(100)));
+          writer.accept(encoder.apply(new RenderedFeature(tile, feature, j, Optional.empty())));
+        }
+      }
+    }
+  }
+
+  private static long write(FeatureGroup features, Path output, Profile profile, boolean compactDb, int shards,
+    boolean merge, Stats stats) {
+    FileUtils.deleteFile(output);
+    PlanetilerConfig config = PlanetilerConfig.from(Arguments.of(
+      "compact_db", compactDb,
+      "mbtiles_shards", shards,
+      "mbtiles_shards_merge", merge
+    ));
+    long start = System.nanoTime();
+    MbtilesWriter.writeOutput(features, output, new MbtilesMetadata(profile), config, stats);
+    return System.nanoTime() - start;
+  }
+
+  private static Map<TileCoord, byte[]> readTiles(Path path) {
+    if (!Files.isRegularFile(path)) {
+      throw new IllegalStateException(path + " does not exist");
+    }
+    Map<TileCoord, byte[]> result = new HashMap<>();
+    try (Mbtiles db = Mbtiles.newReadOnlyDatabase(path)) {
+      for (TileCoord coord : db.getAllTileCoords()) {
+        result.put(coord, db.getTile(coord));
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return result;
+  }
+
+  private static void verify(Map<TileCoord, byte[]> expected, Map<TileCoord, byte[]> actual, String name) {
+    if (expected.size() != actual.size()) {
+      throw new IllegalStateException(name + ": expected " + expected.size() + " tiles but got " + actual.size());
+    }
+    expected.forEach((coord, data) -> {
+      if (!Arrays.equals(data, actual.get(coord))) {
+        throw new IllegalStateException(name + ": tile " + coord + " does not match the single writer's output");
+      }
+    });
+  }
+}
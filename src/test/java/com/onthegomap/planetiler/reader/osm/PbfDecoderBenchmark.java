@@ -0,0 +1,337 @@
+package com.onthegomap.planetiler.reader.osm;
+
+import com.carrotsearch.hppc.LongArrayList;
+import com.google.protobuf.ByteString;
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.util.Format;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.openstreetmap.osmosis.osmbinary.Fileformat;
+import org.openstreetmap.osmosis.osmbinary.Osmformat;
+
+/**
+ * Checks that {@link PbfDecoder} returns exactly the same elements as parsing blocks into the generated
+ * {@link Osmformat} protobuf classes the way it used to, then compares how fast each one decodes.
+ * <p>
+ * Uses every data block from {@code --input} if it is set, otherwise randomly-generated blocks with every kind of
+ * primitive group, non-default granularity and offsets, raw and zlib blobs, and non-ascii strings. Fails if any element
+ * differs between the two decoders, including elements returned by {@link PbfDecoder#elements} and
+ * {@link PbfDecoder#waysAndRelations()}. Then prints a checksum of every decoded element from each decoder, and the
+ * average time to decode a block:
+ * {@code java -cp ... com.onthegomap.planetiler.reader.osm.PbfDecoderBenchmark --input=data/sources/monaco.osm.pbf}
+ */
+public class PbfDecoderBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    Arguments arguments = Arguments.fromArgs(args);
+    Path input = arguments.file("input", "osm.pbf file to read blocks from instead of generating them", null);
+    int numBlocks = arguments.getInteger("blocks", "number of random blocks to generate", 1_000);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 5);
+
+    List<byte[]> blocks = input != null ? readBlocks(input) : randomBlocks(numBlocks);
+    long elements = 0;
+    long expectedChecksum = 0;
+    long actualChecksum = 0;
+    for (int i = 0; i < blocks.size(); i++) {
+      byte[] block = blocks.get(i);
+      List<OsmElement> expected = decodeWithProtobuf(block);
+      verify(i, expected, block);
+      elements += expected.size();
+      // element hash codes do not depend on the iteration order of tags like toString does
+      for (OsmElement element : expected) {
+        expectedChecksum = expectedChecksum * 31 + element.hashCode();
+      }
+      for (OsmElement element : PbfDecoder.decode(block)) {
+        actualChecksum = actualChecksum * 31 + element.hashCode();
+      }
+    }
+    Format format = Format.defaultInstance();
+    System.out.println("verified " + format.integer(elements) + " elements in " + format.integer(blocks.size()) +
+      " blocks, checksum protobuf: " + Long.toHexString(expectedChecksum) +
+      " wire: " + Long.toHexString(actualChecksum));
+
+    for (int round = 0; round < rounds; round++) {
+      long sum = 0;
+      long start = System.nanoTime();
+      for (byte[] block : blocks) {
+        for (OsmElement element : decodeWithProtobuf(block)) {
+          sum += element.id();
+        }
+      }
+      long protobufNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (byte[] block : blocks) {
+        for (OsmElement element : PbfDecoder.decode(block)) {
+          sum += element.id();
+        }
+      }
+      long wireNanos = System.nanoTime() - start;
+
+      long[] untagged = {0};
+      start = System.nanoTime();
+      for (byte[] block : blocks) {
+        for (OsmElement element : PbfDecoder.decode(block).elements((id, lat, lon) -> untagged[0] += id)) {
+          sum += element.id();
+        }
+      }
+      long callbackNanos = System.nanoTime() - start;
+      blackhole(sum + untagged[0]);
+      System.out.println("round " + round +
+        " protobuf: " + String.format("%.1f", protobufNanos / 1e3 / blocks.size()) + "us/block" +
+        " wire: " + String.format("%.1f", wireNanos / 1e3 / blocks.size()) + "us/block" +
+        " wire with untagged node callback: " + String.format("%.1f", callbackNanos / 1e3 / blocks.size()) +
+        "us/block");
+    }
+  }
+
+  private static void verify(int index, List<OsmElement> expected, byte[] block) {
+    List<OsmElement> actual = new ArrayList<>();
+    PbfDecoder.decode(block).forEach(actual::add);
+    if (!expected.equals(actual)) {
+      throw new IllegalStateException("Block " + index + " decoded differently");
+    }
+    // untagged nodes go to the callback instead, but in the same order
+    List<OsmElement> withCallback = new ArrayList<>();
+    for (var element : PbfDecoder.decode(block)
+      .elements((id, lat, lon) -> withCallback.add(new OsmElement.Node(id, Map.of(), lat, lon)))) {
+      withCallback.add(element);
+    }
+    if (!expected.equals(withCallback)) {
+      throw new IllegalStateException("Block " + index + " decoded differently with an untagged node callback");
+    }
+    List<OsmElement> waysAndRelations = new ArrayList<>();
+    PbfDecoder.decode(block).waysAndRelations().forEach(waysAndRelations::add);
+    if (!expected.stream().filter(element -> !(element instanceof OsmElement.Node)).toList()
+      .equals(waysAndRelations)) {
+      throw new IllegalStateException("Block " + index + " decoded different ways and relations");
+    }
+  }
+
+  private static List<byte[]> readBlocks(Path input) throws IOException {
+    List<byte[]> result = new ArrayList<>();
+    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(input), 1 << 20))) {
+      while (true) {
+        int headerSize;
+        try {
+          headerSize = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        var header = Fileformat.BlobHeader.parseFrom(in.readNBytes(headerSize));
+        byte[] blob = in.readNBytes(header.getDatasize());
+        if ("OSMData".equals(header.getType())) {
+          result.add(blob);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Decodes {@code blob} by parsing it into generated protobuf classes first. */
+  private static List<OsmElement> decodeWithProtobuf(byte[] blob) {
+    try {
+      var parsedBlob = Fileformat.Blob.parseFrom(blob);
+      byte[] data;
+      if (parsedBlob.hasRaw()) {
+        data = parsedBlob.getRaw().toByteArray();
+      } else {
+        Inflater inflater = new Inflater();
+        inflater.setInput(parsedBlob.getZlibData().toByteArray());
+        data = new byte[parsedBlob.getRawSize()];
+        inflater.inflate(data);
+        inflater.end();
+      }
+      var block = Osmformat.PrimitiveBlock.parseFrom(data);
+      String[] strings = new String[block.getStringtable().getSCount()];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = block.getStringtable().getS(i).toStringUtf8();
+      }
+      List<OsmElement> result = new ArrayList<>();
+      for (var group : block.getPrimitivegroupList()) {
+        var dense = group.getDense();
+        long id = 0, lat = 0, lon = 0;
+        int kv = 0;
+        for (int i = 0; i < dense.getIdCount(); i++) {
+          id += dense.getId(i);
+          lat += dense.getLat(i);
+          lon += dense.getLon(i);
+          Map<String, Object> tags = new HashMap<>();
+          while (kv < dense.getKeysValsCount()) {
+            int key = dense.getKeysVals(kv++);
+            if (key == 0) {
+              break;
+            }
+            tags.put(strings[key], strings[dense.getKeysVals(kv++)]);
+          }
+          result.add(new OsmElement.Node(id, tags.isEmpty() ? Collections.emptyMap() : tags,
+            ((double) lat) / 10000000, ((double) lon) / 10000000));
+        }
+        for (var node : group.getNodesList()) {
+          Map<String, Object> tags = new HashMap<>();
+          for (int i = 0; i < node.getKeysCount(); i++) {
+            tags.put(strings[node.getKeys(i)], strings[node.getVals(i)]);
+          }
+          result.add(new OsmElement.Node(node.getId(), tags,
+            0.000000001 * (block.getLatOffset() + (block.getGranularity() * node.getLat())),
+            0.000000001 * (block.getLonOffset() + (block.getGranularity() * node.getLon()))));
+        }
+        for (var way : group.getWaysList()) {
+          Map<String, Object> tags = new HashMap<>();
+          for (int i = 0; i < way.getKeysCount(); i++) {
+            tags.put(strings[way.getKeys(i)], strings[way.getVals(i)]);
+          }
+          LongArrayList nodes = new LongArrayList(way.getRefsCount());
+          long nodeId = 0;
+          for (int i = 0; i < way.getRefsCount(); i++) {
+            nodeId += way.getRefs(i);
+            nodes.add(nodeId);
+          }
+          result.add(new OsmElement.Way(way.getId(), tags, nodes));
+        }
+        for (var relation : group.getRelationsList()) {
+          Map<String, Object> tags = new HashMap<>();
+          for (int i = 0; i < relation.getKeysCount(); i++) {
+            tags.put(strings[relation.getKeys(i)], strings[relation.getVals(i)]);
+          }
+          List<OsmElement.Relation.Member> members = new ArrayList<>();
+          long memberId = 0;
+          for (int i = 0; i < relation.getMemidsCount(); i++) {
+            memberId += relation.getMemids(i);
+            var type = switch (relation.getTypes(i)) {
+              case NODE -> OsmElement.Type.NODE;
+              case WAY -> OsmElement.Type.WAY;
+              case RELATION -> OsmElement.Type.RELATION;
+            };
+            members.add(new OsmElement.Relation.Member(type, memberId, strings[relation.getRolesSid(i)]));
+          }
+          result.add(new OsmElement.Relation(relation.getId(), tags, members));
+        }
+      }
+      return result;
+    } catch (IOException | DataFormatException e) {
+      throw new IllegalStateException("Unable to decode block", e);
+    }
+  }
+
+  private static List<byte[]> randomBlocks(int numBlocks) {
+    Random random = new Random(0);
+    List<byte[]> result = new ArrayList<>(numBlocks);
+    for (int b = 0; b < numBlocks; b++) {
+      var block = Osmformat.PrimitiveBlock.newBuilder();
+      var stringTable = Osmformat.StringTable.newBuilder();
+      int numStrings = 50;
+      for (int i = 0; i < numStrings; i++) {
+        stringTable.addS(ByteString.copyFromUtf8(i == 0 ? "" : "name " + i + " é中😀"));
+      }
+      block.setStringtable(stringTable);
+      if (random.nextBoolean()) {
+        block.setGranularity(10 + random.nextInt(100));
+        block.setLatOffset(random.nextInt(1000));
+        block.setLonOffset(-random.nextInt(1000));
+      }
+      int numGroups = 1 + random.nextInt(4);
+      for (int g = 0; g < numGroups; g++) {
+        block.addPrimitivegroup(randomGroup(random, numStrings));
+      }
+      byte[] raw = block.build().toByteArray();
+      var blob = Fileformat.Blob.newBuilder().setRawSize(raw.length);
+      if (random.nextBoolean()) {
+        blob.setRaw(ByteString.copyFrom(raw));
+      } else {
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] compressed = new byte[raw.length * 2 + 100];
+        int length = deflater.deflate(compressed);
+        deflater.end();
+        blob.setZlibData(ByteString.copyFrom(compressed, 0, length));
+      }
+      result.add(blob.build().toByteArray());
+    }
+    return result;
+  }
+
+  private static Osmformat.PrimitiveGroup randomGroup(Random random, int numStrings) {
+    var group = Osmformat.PrimitiveGroup.newBuilder();
+    switch (random.nextInt(4)) {
+      case 0 -> {
+        var dense = Osmformat.DenseNodes.newBuilder();
+        long prevId = 0, prevLat = 0, prevLon = 0;
+        for (int i = random.nextInt(8_000); i > 0; i--) {
+          long id = prevId + 1 + random.nextInt(100);
+          long lat = random.nextInt(1_800_000_000) - 900_000_000;
+          long lon = random.nextInt(2_000_000_000) - 1_000_000_000;
+          dense.addId(id - prevId).addLat(lat - prevLat).addLon(lon - prevLon);
+          prevId = id;
+          prevLat = lat;
+          prevLon = lon;
+          int numTags = random.nextInt(5) == 0 ? 1 + random.nextInt(3) : 0;
+          for (int t = 0; t < numTags; t++) {
+            dense.addKeysVals(1 + random.nextInt(numStrings - 1)).addKeysVals(1 + random.nextInt(numStrings - 1));
+          }
+          dense.addKeysVals(0);
+        }
+        group.setDense(dense);
+      }
+      case 1 -> {
+        for (int i = random.nextInt(20); i > 0; i--) {
+          var node = Osmformat.Node.newBuilder()
+            .setId(random.nextInt(1_000_000))
+            .setLat(random.nextInt(90_000_000))
+            .setLon(-random.nextInt(90_000_000));
+          for (int t = random.nextInt(3); t > 0; t--) {
+            node.addKeys(1 + random.nextInt(numStrings - 1)).addVals(random.nextInt(numStrings));
+          }
+          group.addNodes(node);
+        }
+      }
+      case 2 -> {
+        for (int i = random.nextInt(1_000); i > 0; i--) {
+          var way = Osmformat.Way.newBuilder().setId(random.nextLong() & 0xff_ffff_ffffL);
+          for (int j = random.nextInt(50); j > 0; j--) {
+            way.addRefs(random.nextInt(2_000) - 1_000);
+          }
+          for (int t = random.nextInt(3); t > 0; t--) {
+            way.addKeys(1 + random.nextInt(numStrings - 1)).addVals(random.nextInt(numStrings));
+          }
+          group.addWays(way);
+        }
+      }
+      default -> {
+        for (int i = random.nextInt(100); i > 0; i--) {
+          var relation = Osmformat.Relation.newBuilder().setId(random.nextInt(100_000));
+          for (int j = random.nextInt(10); j > 0; j--) {
+            relation.addMemids(random.nextInt(2_000) - 1_000)
+              .addRolesSid(random.nextInt(numStrings))
+              .addTypes(Osmformat.Relation.MemberType.forNumber(random.nextInt(3)));
+          }
+          for (int t = random.nextInt(3); t > 0; t--) {
+            relation.addKeys(1 + random.nextInt(numStrings - 1)).addVals(random.nextInt(numStrings));
+          }
+          group.addRelations(relation);
+        }
+      }
+    }
+    return group.build();
+  }
+
+  private static void blackhole(long sum) {
+    if (sum == 42) {
+      System.out.println("");
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.onthegomap.planetiler.server;
+
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.geo.TileCoord;
+import com.onthegomap.planetiler.mbtiles.Mbtiles;
+import com.onthegomap.planetiler.util.Format;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator for {@link TileServer} that requests random tiles from an mbtiles file on many threads and reports
+ * throughput and latency percentiles.
+ * <p>
+ * To benchmark an in-process server:
+ * {@code java -cp ... com.onthegomap.planetiler.server.TileServerBenchmark --mbtiles=data/output.mbtiles}
+ * <p>
+ * Or add {@code --url=http://host:port} to send requests to a server that is already running.
+ */
+public class TileServerBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    Arguments arguments = Arguments.fromArgs(args);
+    Path mbtiles = arguments.inputFile("mbtiles", "mbtiles file to sample tile coordinates from",
+      Path.of("data", "output.mbtiles"));
+    String url = arguments.getString("url", "URL of a running tile server, or empty to start one in-process", "");
+    int threads = arguments.getInteger("clients", "number of concurrent client threads", 16);
+    int requests = arguments.getInteger("requests", "total number of tile requests to send", 100_000);
+    int distinct = arguments.getInteger("distinct_tiles", "number of distinct tiles to request, sampled at random",
+      10_000);
+
+    List<TileCoord> coords = sampleTiles(mbtiles, distinct);
+    if (coords.isEmpty()) {
+      throw new IllegalArgumentException("No tiles in " + mbtiles);
+    }
+    TileServer server = null;
+    if (url.isBlank()) {
+      server = TileServer.start(mbtiles, arguments.orElse(Arguments.of("serve_port", "0")));
+      url = server.url();
+    }
+    try {
+      run(url, coords, threads, requests, server);
+    } finally {
+      if (server != null) {
+        server.close();
+      }
+    }
+  }
+
+  private static List<TileCoord> sampleTiles(Path mbtiles, int limit) throws Exception {
+    // random sample so the requests are spread over every zoom level the archive contains
+    List<TileCoord> result;
+    try (Mbtiles db = Mbtiles.newReadOnlyDatabase(mbtiles)) {
+      result = new ArrayList<>(db.getAllTileCoords());
+    }
+    Collections.shuffle(result, new Random(0));
+    return result.subList(0, Math.min(limit, result.size()));
+  }
+
+  private static void run(String url, List<TileCoord> coords, int threads, int requests, TileServer server)
+    throws InterruptedException {
+    HttpClient client = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofSeconds(10))
+      .version(HttpClient.Version.HTTP_1_1)
+      .build();
+    long[] latencies = new long[requests];
+    AtomicLong nextRequest = new AtomicLong(0);
+    AtomicLong bytes = new AtomicLong(0);
+    AtomicLong errors = new AtomicLong(0);
+    Thread[] workers = new Thread[threads];
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      Random random = new Random(t);
+      workers[t] = new Thread(() -> {
+        int i;
+        while ((i = (int) nextRequest.getAndIncrement()) < requests) {
+          TileCoord coord = coords.get(random.nextInt(coords.size()));
+          HttpRequest request = HttpRequest.newBuilder(
+            URI.create(url + "/" + coord.z() + "/" + coord.x() + "/" + coord.y() + ".pbf"))
+            .header("Accept-Encoding", "gzip")
+            .build();
+          long requestStart = System.nanoTime();
+          try {
+            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+              errors.incrementAndGet();
+            }
+            bytes.addAndGet(response.body().length);
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          }
+          latencies[i] = System.nanoTime() - requestStart;
+        }
+      }, "benchmark-" + t);
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    Arrays.sort(latencies);
+    Format format = Format.defaultInstance();
+    System.out.println("requests: " + requests + " errors: " + errors.get() + " threads: " + threads);
+    System.out.println("throughput: " + format.numeric(requests / seconds, false) + " req/s " +
+      format.storage(bytes.get() / seconds, false) + "/s");
+    System.out.println("latency: p50=" + millis(percentile(latencies, 0.5)) +
+      " p90=" + millis(percentile(latencies, 0.9)) +
+      " p99=" + millis(percentile(latencies, 0.99)) +
+      " max=" + millis(latencies[latencies.length - 1]));
+    if (server != null) {
+      long hits = server.reader().cacheHits();
+      long misses = server.reader().cacheMisses();
+      System.out.println("cache: hits=" + hits + " misses=" + misses + " hit rate=" +
+        format.percent(hits / Math.max(1d, hits + misses)));
+    }
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.2fms", nanos / 1e6);
+  }
+}
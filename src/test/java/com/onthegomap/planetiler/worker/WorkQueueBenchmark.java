@@ -0,0 +1,94 @@
+package com.onthegomap.planetiler.worker;
+
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.stats.Stats;
+import com.onthegomap.planetiler.util.Format;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Compares each {@link WorkQueue.Type} with many threads writing to the same queue, like the queue between the threads
+ * that process input features and the threads that write them to temporary storage.
+ * <p>
+ * For each producer thread count, verifies that readers get every item exactly once, then reports the throughput of
+ * each queue type:
+ * {@code java -cp ... com.onthegomap.planetiler.worker.WorkQueueBenchmark --writers=8,32,64 --items=20000000}
+ */
+public class WorkQueueBenchmark {
+
+  public static void main(String[] args) throws InterruptedException {
+    Arguments arguments = Arguments.fromArgs(args);
+    List<String> writerCounts = arguments.getList("writers", "numbers of producer threads to compare",
+      List.of("8", "32", "64"));
+    int readers = arguments.getInteger("readers", "number of consumer threads", 1);
+    long items = arguments.getLong("items", "total number of items to enqueue per run", 20_000_000);
+    int capacity = arguments.getInteger("capacity", "queue capacity", 50_000);
+    int batchSize = arguments.getInteger("batch_size", "number of items to batch before enqueueing", 1_000);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 3);
+
+    Format format = Format.defaultInstance();
+    for (String writerCount : writerCounts) {
+      int writers = Integer.parseInt(writerCount.trim());
+      for (int round = 0; round < rounds; round++) {
+        StringBuilder result = new StringBuilder("writers " + writers + " round " + round);
+        for (WorkQueue.Type type : WorkQueue.Type.values()) {
+          long nanos = run(type, writers, readers, items / writers, capacity, batchSize);
+          result.append(" ").append(type.id()).append(": ")
+            .append(format.duration(Duration.ofNanos(nanos)))
+            .append(" (").append(format.numeric(items * 1e9 / nanos)).append(" items/s)");
+        }
+        System.out.println(result);
+      }
+    }
+  }
+
+  private static long run(WorkQueue.Type type, int writers, int readers, long itemsPerWriter, int capacity,
+    int batchSize) throws InterruptedException {
+    WorkQueue<Long> queue = new WorkQueue<>("benchmark", capacity, batchSize, Stats.inMemory(), type);
+    AtomicLong count = new AtomicLong(0);
+    AtomicLong sum = new AtomicLong(0);
+    List<Thread> writerThreads = new ArrayList<>();
+    List<Thread> readerThreads = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < writers; i++) {
+      long first = i * itemsPerWriter;
+      writerThreads.add(new Thread(() -> {
+        Consumer<Long> writer = queue.threadLocalWriter();
+        for (long item = first; item < first + itemsPerWriter; item++) {
+          writer.accept(item);
+        }
+      }));
+    }
+    for (int i = 0; i < readers; i++) {
+      readerThreads.add(new Thread(() -> {
+        long localCount = 0, localSum = 0;
+        for (Long item : queue.threadLocalReader()) {
+          localCount++;
+          localSum += item;
+        }
+        count.addAndGet(localCount);
+        sum.addAndGet(localSum);
+      }));
+    }
+    writerThreads.forEach(Thread::start);
+    readerThreads.forEach(Thread::start);
+    for (Thread thread : writerThreads) {
+      thread.join();
+    }
+    queue.close();
+    for (Thread thread : readerThreads) {
+      thread.join();
+    }
+    long nanos = System.nanoTime() - start;
+
+    long total = writers * itemsPerWriter;
+    if (count.get() != total || sum.get() != total * (total - 1) / 2) {
+      throw new IllegalStateException(type.id() + " queue read " + count.get() + " items with sum " + sum.get() +
+        " but expected " + total + " items with sum " + (total * (total - 1) / 2));
+    }
+    return nanos;
+  }
+}
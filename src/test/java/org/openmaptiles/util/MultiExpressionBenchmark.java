@@ -0,0 +1,153 @@
+package org.openmaptiles.util;
+
+import com.onthegomap.planetiler.config.Arguments;
+import com.onthegomap.planetiler.expression.Expression;
+import com.onthegomap.planetiler.expression.MultiExpression;
+import com.onthegomap.planetiler.geo.GeoUtils;
+import com.onthegomap.planetiler.reader.SimpleFeature;
+import com.onthegomap.planetiler.reader.SourceFeature;
+import com.onthegomap.planetiler.util.Format;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.ToIntFunction;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.openmaptiles.generated.Tables;
+
+/**
+ * Compares the default {@link MultiExpression#index()} against {@link MultiExpression#keyIndex()} using the real
+ * OpenMapTiles imposm3 mappings from {@link Tables#MAPPINGS} on randomly-generated OSM-like elements.
+ * <p>
+ * First verifies that both return the same matches with the same trigger keys, then reports the time each one takes to
+ * match the same elements:
+ * {@code java -cp ... org.openmaptiles.util.MultiExpressionBenchmark --elements=100000 --iterations=10 --rounds=5}
+ */
+public class MultiExpressionBenchmark {
+
+  // common tags that no mapping cares about
+  private static final List<String> NOISE_KEYS = List.of("source", "created_by", "addr:street", "addr:housenumber",
+    "note", "fixme", "ref", "operator", "website", "building:levels", "lanes", "maxspeed", "surface");
+
+  public static void main(String[] args) {
+    Arguments arguments = Arguments.fromArgs(args);
+    int elements = arguments.getInteger("elements", "number of distinct random elements to match", 100_000);
+    int iterations = arguments.getInteger("iterations", "number of times to match each element per round", 10);
+    int rounds = arguments.getInteger("rounds", "number of timed rounds", 5);
+
+    var mappings = Tables.MAPPINGS.simplify();
+    MultiExpression.Index<Tables.RowClassAndConstructor> valueIndex = mappings.index();
+    MultiExpression.Index<Tables.RowClassAndConstructor> keyIndex = mappings.keyIndex();
+
+    Map<String, List<String>> valuesByKey = new HashMap<>();
+    for (var entry : mappings.expressions()) {
+      collectTags(entry.expression(), valuesByKey);
+    }
+    List<String> keys = valuesByKey.keySet().stream().sorted().toList();
+    Random random = new Random(0);
+    List<SourceFeature> inputs = new ArrayList<>();
+    for (int i = 0; i < elements; i++) {
+      inputs.add(randomElement(random, keys, valuesByKey));
+    }
+
+    long matched = 0;
+    for (SourceFeature input : inputs) {
+      // closed ways get line matches followed by polygon matches, so only compare the set of matches
+      var expected = keyIndex.getMatchesWithTriggers(input).stream()
+        .sorted(Comparator.comparingInt(MultiExpression.Match::id))
+        .toList();
+      var actual = valueIndex.getMatchesWithTriggers(input).stream()
+        .sorted(Comparator.comparingInt(MultiExpression.Match::id))
+        .toList();
+      if (!expected.equals(actual) || keyIndex.matches(input) != valueIndex.matches(input)) {
+        throw new IllegalStateException("Matches differ for " + input.tags() + ": expected " + expected + " got " +
+          actual);
+      }
+      matched += expected.isEmpty() ? 0 : 1;
+    }
+    System.out.println("matches are the same as key index, " + matched + "/" + elements + " elements matched");
+
+    Format format = Format.defaultInstance();
+    for (int round = 0; round < rounds; round++) {
+      long keyNanos = time(inputs, iterations, input -> keyIndex.getMatchesWithTriggers(input).size());
+      long valueNanos = time(inputs, iterations, input -> valueIndex.getMatchesWithTriggers(input).size());
+      long keyMatchesNanos = time(inputs, iterations, input -> keyIndex.matches(input) ? 1 : 0);
+      long valueMatchesNanos = time(inputs, iterations, input -> valueIndex.matches(input) ? 1 : 0);
+      System.out.println("round " + round +
+        " getMatchesWithTriggers key: " + format.duration(Duration.ofNanos(keyNanos)) +
+        " value: " + format.duration(Duration.ofNanos(valueNanos)) +
+        " speedup: " + format.decimal((double) keyNanos / valueNanos) + "x" +
+        " matches key: " + format.duration(Duration.ofNanos(keyMatchesNanos)) +
+        " value: " + format.duration(Duration.ofNanos(valueMatchesNanos)) +
+        " speedup: " + format.decimal((double) keyMatchesNanos / valueMatchesNanos) + "x");
+    }
+  }
+
+  private static long time(List<SourceFeature> inputs, int iterations, ToIntFunction<SourceFeature> fn) {
+    long start = System.nanoTime();
+    long count = 0;
+    for (int i = 0; i < iterations; i++) {
+      for (SourceFeature input : inputs) {
+        count += fn.applyAsInt(input);
+      }
+    }
+    long result = System.nanoTime() - start;
+    if (count < 0) {
+      throw new IllegalStateException();
+    }
+    return result;
+  }
+
+  /** Adds every tag key and exact value that {@code expression} refers to into {@code result}. */
+  private static void collectTags(Expression expression, Map<String, List<String>> result) {
+    if (expression instanceof Expression.And and) {
+      and.children().forEach(child -> collectTags(child, result));
+    } else if (expression instanceof Expression.Or or) {
+      or.children().forEach(child -> collectTags(child, result));
+    } else if (expression instanceof Expression.Not not) {
+      collectTags(not.child(), result);
+    } else if (expression instanceof Expression.MatchAny any) {
+      var values = result.computeIfAbsent(any.field(), k -> new ArrayList<>());
+      any.exactMatches().stream().filter(v -> !v.isEmpty()).sorted().forEach(values::add);
+      any.wildcards().forEach(wildcard -> values.add("x" + wildcard + "x"));
+    } else if (expression instanceof Expression.MatchField field) {
+      result.computeIfAbsent(field.field(), k -> new ArrayList<>()).add("yes");
+    }
+  }
+
+  /**
+   * Returns an element with a mix of tags that mappings care about, tag keys they care about with other values, and
+   * tags they ignore, where most elements only have ignored tags like most OSM nodes and ways.
+   */
+  private static SourceFeature randomElement(Random random, List<String> keys, Map<String, List<String>> values) {
+    Map<String, Object> tags = new HashMap<>();
+    int relevant = random.nextInt(4) == 0 ? 1 + random.nextInt(3) : 0;
+    for (int i = 0; i < relevant; i++) {
+      String key = keys.get(random.nextInt(keys.size()));
+      List<String> options = values.get(key);
+      tags.put(key, options.isEmpty() || random.nextInt(5) == 0 ? "other" : options.get(random.nextInt(
+        options.size())));
+    }
+    int noise = random.nextInt(6);
+    for (int i = 0; i < noise; i++) {
+      tags.put(NOISE_KEYS.get(random.nextInt(NOISE_KEYS.size())), "value" + random.nextInt(10));
+    }
+    if (random.nextInt(10) == 0) {
+      tags.put("name", "name" + random.nextInt(100));
+    }
+    Geometry geometry = switch (random.nextInt(3)) {
+      case 0 -> GeoUtils.point(0, 0);
+      case 1 -> GeoUtils.JTS_FACTORY.createLineString(new Coordinate[]{
+        new Coordinate(0, 0), new Coordinate(1, 1)
+      });
+      default -> GeoUtils.JTS_FACTORY.createLineString(new Coordinate[]{
+        new Coordinate(0, 0), new Coordinate(1, 0), new Coordinate(1, 1), new Coordinate(0, 0)
+      });
+    };
+    return SimpleFeature.createFakeOsmFeature(geometry, tags, "osm", null, random.nextLong(), null);
+  }
+}